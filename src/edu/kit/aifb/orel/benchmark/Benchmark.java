@@ -0,0 +1,41 @@
+package edu.kit.aifb.orel.benchmark;
+
+/**
+ * Piece of work whose running time is measured by the BenchmarkRunner.
+ * Every measured run is prepared by setUp() and followed by tearDown(),
+ * which are not measured, so that each run can start from the same state.
+ * @author agent
+ */
+public abstract class Benchmark {
+	protected String name;
+
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepare the next run. This is not measured.
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Do the work that is measured.
+	 * @return the number of operations that were done, e.g. facts written or rows derived
+	 * @throws Exception
+	 */
+	abstract public long run() throws Exception;
+
+	/**
+	 * Release any resources of the last run. This is not measured.
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {
+	}
+
+}
@@ -0,0 +1,74 @@
+package edu.kit.aifb.orel.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.kit.aifb.orel.client.LogWriter;
+
+/**
+ * Class for running benchmarks several times and reporting their running
+ * times. Every benchmark is first run a number of times without measuring,
+ * so that the JIT compiler has done its work, and then measured for the
+ * given number of iterations. Results are reported with the median, the
+ * minimum, and the operations per second of the median run.
+ * @author agent
+ */
+public class BenchmarkRunner {
+	protected int warmups;
+	protected int iterations;
+	protected ArrayList<String> results = new ArrayList<String>();
+
+	public BenchmarkRunner(int warmups, int iterations) {
+		this.warmups = warmups;
+		this.iterations = (iterations < 1) ? 1 : iterations;
+	}
+
+	/**
+	 * Run the given benchmark and report its results.
+	 * @param benchmark
+	 * @return the median running time in ms
+	 * @throws Exception
+	 */
+	public double run(Benchmark benchmark) throws Exception {
+		LogWriter.get().printNote("Running " + benchmark.getName() + " ");
+		for (int i=0; i<warmups; i++) {
+			runOnce(benchmark);
+			LogWriter.get().printNote("-");
+		}
+		long[] times = new long[iterations];
+		long operations = 0;
+		for (int i=0; i<iterations; i++) {
+			benchmark.setUp();
+			long sTime = System.nanoTime();
+			operations = benchmark.run();
+			times[i] = System.nanoTime() - sTime;
+			benchmark.tearDown();
+			LogWriter.get().printNote(".");
+		}
+		Arrays.sort(times);
+		double median = times[iterations/2] / 1000000.0;
+		double min = times[0] / 1000000.0;
+		String result = String.format("%-40s %12d ops %10.2f ms (min %10.2f ms) %14.0f ops/s",
+				benchmark.getName(), operations, median, min, (median > 0) ? operations * 1000.0 / median : 0.0);
+		LogWriter.get().printlnNote(" done.");
+		results.add(result);
+		return median;
+	}
+
+	/**
+	 * Print the results of all benchmarks that were run so far.
+	 */
+	public void printResults() {
+		LogWriter.get().printlnNote("\nResults (" + iterations + " iteration(s) after " + warmups + " warmup(s)):");
+		for (int i=0; i<results.size(); i++) {
+			LogWriter.get().printlnNote(results.get(i));
+		}
+	}
+
+	protected void runOnce(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		benchmark.run();
+		benchmark.tearDown();
+	}
+
+}
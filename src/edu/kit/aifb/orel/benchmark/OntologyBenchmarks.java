@@ -0,0 +1,189 @@
+package edu.kit.aifb.orel.benchmark;
+
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.client.Settings;
+import edu.kit.aifb.orel.client.SystemLogWriter;
+import edu.kit.aifb.orel.kbmanager.KBManager;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
+/**
+ * Benchmarks for loading, materializing, and checking entailment with the
+ * knowledge base managers on ontologies from the OntologyGenerator of
+ * growing size. The size is given by the depth of the taxonomy; the numbers
+ * of the other axioms grow with the number of classes. As in
+ * StorageBenchmarks, the in-memory storage is used unless a configuration
+ * file is given.
+ * @author agent
+ */
+public class OntologyBenchmarks {
+	protected OntologyGenerator.Profile profile;
+	protected int fanout;
+	protected int parallelism;
+	protected boolean inmemory = true;
+
+	public OntologyBenchmarks(OntologyGenerator.Profile profile, int fanout, int parallelism) {
+		this.profile = profile;
+		this.fanout = fanout;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		// supported arguments:
+		// -m <managers> -- comma-separated names of knowledge base managers (default elrlmanager,elmanager,instancemanager)
+		// -profile <el|rl> -- profile of the generated axioms (default el)
+		// -d <depths> -- comma-separated depths of the taxonomy (default 3,4,5)
+		// -f <fanout> -- direct subclasses per class in the taxonomy (default 4)
+		// -i <iterations> -- number of measured runs of each benchmark (default 3)
+		// -w <warmups> -- number of runs of each benchmark before measuring (default 1)
+		// -p <parallelism> -- parallelism of the storage (default 1)
+		// -c <configfile> -- use the storage that is configured in the given file
+		String managers = "elrlmanager,elmanager,instancemanager", depths = "3,4,5", configfile = "";
+		OntologyGenerator.Profile profile = OntologyGenerator.Profile.EL;
+		int fanout = 4, iterations = 3, warmups = 1, parallelism = 1;
+		LogWriter.set(new SystemLogWriter(LogWriter.LEVEL_NOTE, LogWriter.LEVEL_WARNING));
+		int i = 0;
+		String arg;
+		try {
+			while (i < args.length) {
+				arg = args[i++];
+				if (i >= args.length) {
+					LogWriter.get().printlnError(arg + " requires a value");
+					return;
+				} else if (arg.equals("-m")) {
+					managers = args[i++];
+				} else if (arg.equals("-profile")) {
+					profile = args[i++].equalsIgnoreCase("rl") ? OntologyGenerator.Profile.RL : OntologyGenerator.Profile.EL;
+				} else if (arg.equals("-d")) {
+					depths = args[i++];
+				} else if (arg.equals("-f")) {
+					fanout = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-i")) {
+					iterations = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-w")) {
+					warmups = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-p")) {
+					parallelism = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-c")) {
+					configfile = args[i++];
+				} else {
+					LogWriter.get().printlnError("Unknown option " + arg);
+					return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Options -f, -i, -w, and -p require a number.");
+			return;
+		}
+
+		OntologyBenchmarks benchmarks = new OntologyBenchmarks(profile, fanout, parallelism);
+		BenchmarkRunner runner = new BenchmarkRunner(warmups, iterations);
+		try {
+			if (!configfile.equals("")) {
+				Settings.load(configfile);
+				benchmarks.inmemory = Settings.getStorage().equals("memory");
+			}
+			String[] depthlist = depths.split(","), managerlist = managers.split(",");
+			for (int d=0; d<depthlist.length; d++) {
+				for (int m=0; m<managerlist.length; m++) {
+					benchmarks.run(runner, managerlist[m].trim(), Integer.parseInt(depthlist[d].trim()));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		runner.printResults();
+	}
+
+	/**
+	 * Run the benchmarks for one knowledge base manager and one size of
+	 * the ontology.
+	 * @param runner
+	 * @param manager name of the knowledge base manager as in KBManager.getKBManager()
+	 * @param depth
+	 * @throws Exception
+	 */
+	public void run(BenchmarkRunner runner, final String manager, int depth) throws Exception {
+		OntologyGenerator generator = new OntologyGenerator(profile);
+		generator.setTaxonomy(depth, fanout);
+		int classes = generator.getClassCount();
+		generator.setProperties(20);
+		generator.setExistentials(classes);
+		generator.setChains(10);
+		generator.setConjunctions(classes/4);
+		generator.setNominals(classes/20, classes/4);
+		generator.setAssertions(classes/2);
+		OWLOntologyManager ontologymanager = OWLManager.createOWLOntologyManager();
+		final OWLOntology ontology = generator.createOntology(ontologymanager);
+		final OWLOntology entailed = generator.createEntailedOntology(ontologymanager, classes/10 + 1);
+		String name = manager + " " + profile + " " + classes + " classes ";
+
+		runner.run(new KBBenchmark(name + "loadOntology", manager) {
+			public long run() throws Exception {
+				kbmanager.loadOntology(ontology);
+				return ontology.getLogicalAxiomCount();
+			}
+		});
+		runner.run(new KBBenchmark(name + "materialize", manager) {
+			public void setUp() throws Exception {
+				super.setUp();
+				kbmanager.loadOntology(ontology);
+			}
+			public long run() throws Exception {
+				kbmanager.materialize();
+				return ontology.getLogicalAxiomCount();
+			}
+		});
+		runner.run(new KBBenchmark(name + "checkEntailment", manager) {
+			public void setUp() throws Exception {
+				super.setUp();
+				kbmanager.loadOntology(ontology);
+			}
+			public long run() throws Exception {
+				if (kbmanager.checkEntailment(entailed) != KBManager.InferenceResult.YES) {
+					LogWriter.get().printlnWarning("Entailed axioms were not recognized by " + manager + ".");
+				}
+				return entailed.getLogicalAxiomCount();
+			}
+		});
+		ontologymanager.removeOntology(ontology);
+		ontologymanager.removeOntology(entailed);
+	}
+
+	/**
+	 * Benchmark that gets a new initialized knowledge base before every run,
+	 * and that drops it afterwards.
+	 */
+	abstract class KBBenchmark extends Benchmark {
+		protected String manager;
+		protected KBManager kbmanager;
+
+		public KBBenchmark(String name, String manager) {
+			super(name);
+			this.manager = manager;
+		}
+
+		public void setUp() throws Exception {
+			kbmanager = KBManager.getKBManager(manager, createStorage());
+			if (kbmanager == null) throw new IllegalArgumentException("The knowledge base manager \"" + manager + "\" is not known.");
+			if (!inmemory) kbmanager.drop();
+			kbmanager.initialize();
+		}
+
+		public void tearDown() throws Exception {
+			kbmanager.drop();
+			kbmanager = null;
+		}
+	}
+
+	protected StorageDriver createStorage() throws Exception {
+		return Settings.createStorage(inmemory, parallelism);
+	}
+
+}
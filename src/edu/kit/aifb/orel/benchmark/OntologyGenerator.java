@@ -0,0 +1,308 @@
+package edu.kit.aifb.orel.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.client.SystemLogWriter;
+
+/**
+ * Class for generating random ontologies of a given size for benchmarks.
+ * The classes form a taxonomy of the given depth, where every class that is
+ * not a leaf has the given number of direct subclasses. Further axioms use
+ * random classes, properties, and individuals:
+ *
+ * existentials: C ⊑ ∃P.D and ∃P.D ⊑ C in EL; C ⊑ ∀P.D and ∃P.D ⊑ C in RL
+ * chains: P ∘ Q ⊑ R
+ * conjunctions: C ⊓ D ⊑ E
+ * nominals: {a} ⊑ C and C ⊑ ∃P.{a} (written as a hasValue restriction in RL)
+ * assertions: C(a) and P(a,b)
+ *
+ * Every property also has a random superproperty with a lower number. The
+ * same seed always leads to the same ontology, so that results of
+ * different runs can be compared.
+ * @author agent
+ */
+public class OntologyGenerator {
+	static public enum Profile {
+		EL, RL
+	}
+	static final protected String NAMESPACE = "http://example.org/orel/benchmark#";
+
+	protected Profile profile = Profile.EL;
+	protected int depth = 4;
+	protected int fanout = 4;
+	protected int properties = 10;
+	protected int existentials = 0;
+	protected int chains = 0;
+	protected int conjunctions = 0;
+	protected int nominals = 0;
+	protected int individuals = 0;
+	protected int assertions = 0;
+	protected long seed = 42;
+
+	protected OWLDataFactory datafactory;
+	protected Random random;
+
+	public OntologyGenerator(Profile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Set the depth and the number of direct subclasses of every class that
+	 * is not a leaf in the taxonomy.
+	 * @param depth
+	 * @param fanout
+	 */
+	public void setTaxonomy(int depth, int fanout) {
+		this.depth = depth;
+		this.fanout = fanout;
+	}
+
+	public void setProperties(int properties) {
+		this.properties = properties;
+	}
+
+	public void setExistentials(int existentials) {
+		this.existentials = existentials;
+	}
+
+	public void setChains(int chains) {
+		this.chains = chains;
+	}
+
+	public void setConjunctions(int conjunctions) {
+		this.conjunctions = conjunctions;
+	}
+
+	/**
+	 * Set the number of axioms with nominals, and the number of individuals
+	 * that are used in nominals and assertions.
+	 * @param nominals
+	 * @param individuals
+	 */
+	public void setNominals(int nominals, int individuals) {
+		this.nominals = nominals;
+		this.individuals = individuals;
+	}
+
+	/**
+	 * Set the number of class assertions and of property assertions.
+	 * @param assertions
+	 */
+	public void setAssertions(int assertions) {
+		this.assertions = assertions;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Get the number of classes in the taxonomy.
+	 * @return
+	 */
+	public int getClassCount() {
+		int result = 1, level = 1;
+		for (int i=0; i<depth; i++) {
+			level = level * fanout;
+			result = result + level;
+		}
+		return result;
+	}
+
+	/**
+	 * Create a new ontology with random axioms for the current settings.
+	 * @param manager
+	 * @return
+	 * @throws Exception
+	 */
+	public OWLOntology createOntology(OWLOntologyManager manager) throws Exception {
+		datafactory = manager.getOWLDataFactory();
+		random = new Random(seed);
+		Set<OWLAxiom> axioms = new HashSet<OWLAxiom>();
+		int classes = getClassCount();
+		for (int i=1; i<classes; i++) {
+			axioms.add(datafactory.getOWLSubClassOfAxiom(getOWLClass(i), getOWLClass(getParent(i))));
+		}
+		for (int i=1; i<properties; i++) {
+			axioms.add(datafactory.getOWLSubObjectPropertyOfAxiom(getOWLObjectProperty(i), getOWLObjectProperty(random.nextInt(i))));
+		}
+		for (int i=0; i<existentials; i++) {
+			if (i % 2 == 0) {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(
+						datafactory.getOWLObjectSomeValuesFrom(getRandomProperty(), getRandomClass()), getRandomClass()));
+			} else if (profile == Profile.EL) {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(getRandomClass(),
+						datafactory.getOWLObjectSomeValuesFrom(getRandomProperty(), getRandomClass())));
+			} else {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(getRandomClass(),
+						datafactory.getOWLObjectAllValuesFrom(getRandomProperty(), getRandomClass())));
+			}
+		}
+		for (int i=0; i<chains; i++) {
+			ArrayList<OWLObjectProperty> chain = new ArrayList<OWLObjectProperty>(2);
+			chain.add(getRandomProperty());
+			chain.add(getRandomProperty());
+			axioms.add(datafactory.getOWLSubPropertyChainOfAxiom(chain, getRandomProperty()));
+		}
+		for (int i=0; i<conjunctions; i++) {
+			axioms.add(datafactory.getOWLSubClassOfAxiom(
+					datafactory.getOWLObjectIntersectionOf(getRandomClass(), getRandomClass()), getRandomClass()));
+		}
+		for (int i=0; (i<nominals) && (individuals>0); i++) {
+			if (i % 2 == 0) {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(
+						datafactory.getOWLObjectOneOf(getRandomIndividual()), getRandomClass()));
+			} else if (profile == Profile.EL) {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(getRandomClass(),
+						datafactory.getOWLObjectSomeValuesFrom(getRandomProperty(), datafactory.getOWLObjectOneOf(getRandomIndividual()))));
+			} else {
+				axioms.add(datafactory.getOWLSubClassOfAxiom(getRandomClass(),
+						datafactory.getOWLObjectHasValue(getRandomProperty(), getRandomIndividual())));
+			}
+		}
+		for (int i=0; (i<assertions) && (individuals>0); i++) {
+			axioms.add(datafactory.getOWLClassAssertionAxiom(getRandomClass(), getRandomIndividual()));
+			axioms.add(datafactory.getOWLObjectPropertyAssertionAxiom(getRandomProperty(), getRandomIndividual(), getRandomIndividual()));
+		}
+		OWLOntology ontology = manager.createOntology(IRI.create(NAMESPACE + "ontology" + seed));
+		manager.addAxioms(ontology, axioms);
+		return ontology;
+	}
+
+	/**
+	 * Create an ontology of the given number of subclass axioms that are
+	 * entailed by the taxonomy of the ontologies of the current settings,
+	 * which can be used to check entailment.
+	 * @param manager
+	 * @param count
+	 * @return
+	 * @throws Exception
+	 */
+	public OWLOntology createEntailedOntology(OWLOntologyManager manager, int count) throws Exception {
+		datafactory = manager.getOWLDataFactory();
+		random = new Random(seed + 1);
+		Set<OWLAxiom> axioms = new HashSet<OWLAxiom>();
+		int classes = getClassCount(), subclass, superclass;
+		for (int i=0; i<count; i++) {
+			subclass = random.nextInt(classes);
+			superclass = subclass;
+			while ( (superclass > 0) && random.nextBoolean() ) {
+				superclass = getParent(superclass);
+			}
+			axioms.add(datafactory.getOWLSubClassOfAxiom(getOWLClass(subclass), getOWLClass(superclass)));
+		}
+		OWLOntology ontology = manager.createOntology(IRI.create(NAMESPACE + "entailed" + seed));
+		manager.addAxioms(ontology, axioms);
+		return ontology;
+	}
+
+	protected int getParent(int classnumber) {
+		return (classnumber-1) / fanout;
+	}
+
+	protected OWLClass getOWLClass(int number) {
+		return datafactory.getOWLClass(IRI.create(NAMESPACE + "C" + number));
+	}
+
+	protected OWLObjectProperty getOWLObjectProperty(int number) {
+		return datafactory.getOWLObjectProperty(IRI.create(NAMESPACE + "P" + number));
+	}
+
+	protected OWLClass getRandomClass() {
+		return getOWLClass(random.nextInt(getClassCount()));
+	}
+
+	protected OWLObjectProperty getRandomProperty() {
+		return getOWLObjectProperty(random.nextInt(properties));
+	}
+
+	protected OWLNamedIndividual getRandomIndividual() {
+		return datafactory.getOWLNamedIndividual(IRI.create(NAMESPACE + "i" + random.nextInt(individuals)));
+	}
+
+	/**
+	 * Write a random ontology to a file.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		// supported arguments:
+		// -o <outputfile> -- name of the file to write to (required)
+		// -profile <el|rl> -- profile of the axioms (default el)
+		// -d <depth>, -f <fanout>, -p <properties>, -e <existentials>, -ch <chains>,
+		// -cj <conjunctions>, -nom <nominals>, -ind <individuals>, -a <assertions>, -s <seed>
+		LogWriter.set(new SystemLogWriter(LogWriter.LEVEL_NOTE, LogWriter.LEVEL_WARNING));
+		String outputfile = "";
+		int i = 0, nominals = 0, individuals = 0, depth = 4, fanout = 4;
+		String arg;
+		OntologyGenerator generator = new OntologyGenerator(Profile.EL);
+		try {
+			while (i < args.length) {
+				arg = args[i++];
+				if (i >= args.length) {
+					LogWriter.get().printlnError(arg + " requires a value");
+					return;
+				} else if (arg.equals("-o")) {
+					outputfile = args[i++];
+				} else if (arg.equals("-profile")) {
+					generator.profile = args[i++].equalsIgnoreCase("rl") ? Profile.RL : Profile.EL;
+				} else if (arg.equals("-d")) {
+					depth = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-f")) {
+					fanout = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-p")) {
+					generator.setProperties(Integer.parseInt(args[i++]));
+				} else if (arg.equals("-e")) {
+					generator.setExistentials(Integer.parseInt(args[i++]));
+				} else if (arg.equals("-ch")) {
+					generator.setChains(Integer.parseInt(args[i++]));
+				} else if (arg.equals("-cj")) {
+					generator.setConjunctions(Integer.parseInt(args[i++]));
+				} else if (arg.equals("-nom")) {
+					nominals = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-ind")) {
+					individuals = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-a")) {
+					generator.setAssertions(Integer.parseInt(args[i++]));
+				} else if (arg.equals("-s")) {
+					generator.setSeed(Long.parseLong(args[i++]));
+				} else {
+					LogWriter.get().printlnError("Unknown option " + arg);
+					return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Options other than -o and -profile require a number.");
+			return;
+		}
+		if (outputfile.equals("")) {
+			LogWriter.get().printlnError("Please provide the name of the output file using the parameter -o.");
+			return;
+		}
+		generator.setTaxonomy(depth, fanout);
+		generator.setNominals(nominals, individuals);
+		try {
+			OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+			OWLOntology ontology = generator.createOntology(manager);
+			manager.saveOntology(ontology, IRI.create(new File(outputfile).toURI()));
+			LogWriter.get().printlnNote("Ontology with " + ontology.getAxiomCount() + " axioms written to " + outputfile + ".");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,338 @@
+package edu.kit.aifb.orel.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.client.Settings;
+import edu.kit.aifb.orel.client.SystemLogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
+/**
+ * Benchmarks for the basic operations of storage drivers: finding ids,
+ * writing and checking facts, and running some typical rules of the
+ * reasoners on random data. By default, the in-memory storage is used, so
+ * that no database is needed; a configuration file can be given to use the
+ * storage that is configured there instead. All data is generated from a
+ * fixed seed, so that runs can be compared across versions.
+ * @author agent
+ */
+public class StorageBenchmarks {
+	protected int size;
+	protected int parallelism;
+	protected boolean inmemory = true;
+
+	public StorageBenchmarks(int size, int parallelism) {
+		this.size = size;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		// supported arguments:
+		// -n <size> -- number of facts or keys used by each benchmark (default 100000)
+		// -i <iterations> -- number of measured runs of each benchmark (default 10)
+		// -w <warmups> -- number of runs of each benchmark before measuring (default 5)
+		// -p <parallelism> -- parallelism of the storage (default 1)
+		// -c <configfile> -- use the storage that is configured in the given file
+		// <name> -- only run benchmarks whose name starts with the given string
+		int size = 100000, iterations = 10, warmups = 5, parallelism = 1;
+		String configfile = "", filter = "";
+		LogWriter.set(new SystemLogWriter(LogWriter.LEVEL_NOTE, LogWriter.LEVEL_WARNING));
+		int i = 0;
+		String arg;
+		try {
+			while (i < args.length) {
+				arg = args[i++];
+				if (arg.equals("-n") && (i < args.length)) {
+					size = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-i") && (i < args.length)) {
+					iterations = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-w") && (i < args.length)) {
+					warmups = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-p") && (i < args.length)) {
+					parallelism = Integer.parseInt(args[i++]);
+				} else if (arg.equals("-c") && (i < args.length)) {
+					configfile = args[i++];
+				} else if (arg.startsWith("-")) {
+					LogWriter.get().printlnError("Unknown option " + arg);
+					return;
+				} else {
+					filter = arg;
+				}
+			}
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Options -n, -i, -w, and -p require a number.");
+			return;
+		}
+
+		StorageBenchmarks benchmarks = new StorageBenchmarks(size, parallelism);
+		BenchmarkRunner runner = new BenchmarkRunner(warmups, iterations);
+		try {
+			if (!configfile.equals("")) {
+				Settings.load(configfile);
+				benchmarks.inmemory = Settings.getStorage().equals("memory");
+			}
+			ArrayList<Benchmark> list = benchmarks.getBenchmarks();
+			for (i=0; i<list.size(); i++) {
+				if (list.get(i).getName().startsWith(filter)) runner.run(list.get(i));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		runner.printResults();
+	}
+
+	/**
+	 * Get all benchmarks.
+	 * @return
+	 */
+	public ArrayList<Benchmark> getBenchmarks() {
+		ArrayList<Benchmark> result = new ArrayList<Benchmark>();
+
+		result.add(new StorageBenchmark("getID (new keys)") {
+			public long run() {
+				for (int i=0; i<size; i++) {
+					blackhole += storage.getID(getKey(i));
+				}
+				return size;
+			}
+		});
+		result.add(new StorageBenchmark("getID (known keys)") {
+			public void setUp() throws Exception {
+				super.setUp();
+				for (int i=0; i<size; i++) storage.getID(getKey(i));
+			}
+			public long run() {
+				for (int i=0; i<size; i++) {
+					blackhole += storage.getID(getKey(i));
+				}
+				return size;
+			}
+		});
+		result.add(new StorageBenchmark("getIDs (new keys, 8 per call)") {
+			public long run() {
+				ArrayList<String> keys = new ArrayList<String>(8);
+				for (int i=0; i<size; i+=8) {
+					keys.clear();
+					for (int j=i; (j<i+8) && (j<size); j++) keys.add(getKey(j));
+					blackhole += storage.getIDs(keys)[0];
+				}
+				return size;
+			}
+		});
+		// the tautologies that loaders write for every occurrence of a class,
+		// for size/10 classes that occur 10 times each
+		result.add(new StorageBenchmark("makePredicateAssertion (tautologies)") {
+			int[] classes;
+			int thing, nothing;
+			public void setUp() throws Exception {
+				super.setUp();
+				classes = makeIDs(size/10);
+				thing = storage.getID("owl:Thing");
+				nothing = storage.getID("owl:Nothing");
+			}
+			public long run() throws Exception {
+				storage.beginLoading();
+				int c;
+				for (int i=0; i<size; i++) {
+					c = classes[random.nextInt(classes.length)];
+					storage.makePredicateAssertion("sco", c, c);
+					storage.makePredicateAssertion("sco", c, thing);
+					storage.makePredicateAssertion("sco", nothing, c);
+				}
+				storage.endLoading();
+				storage.commit();
+				return 3*size;
+			}
+		});
+		result.add(new StorageBenchmark("makePredicateAssertion (distinct)") {
+			int[] facts;
+			public void setUp() throws Exception {
+				super.setUp();
+				facts = makeFacts(size, 3, makeIDs(size/10));
+			}
+			public long run() throws Exception {
+				storage.beginLoading();
+				for (int i=0; i<size; i++) {
+					storage.makePredicateAssertion("sv", facts[3*i], facts[3*i+1], facts[3*i+2]);
+				}
+				storage.endLoading();
+				storage.commit();
+				return size;
+			}
+		});
+		// checks of facts of which about half are stored
+		result.add(new StorageBenchmark("checkPredicateAssertion") {
+			int[] facts;
+			public void setUp() throws Exception {
+				super.setUp();
+				facts = makeFacts(2*size, 2, makeIDs((int)Math.sqrt(20*size)));
+				for (int i=0; i<size; i++) {
+					storage.makePredicateAssertion("sco", facts[2*i], facts[2*i+1]);
+				}
+				storage.commit();
+			}
+			public long run() {
+				int found = 0;
+				for (int i=0; i<2*size; i++) {
+					if (storage.checkPredicateAssertion("sco", facts[2*i], facts[2*i+1])) found++;
+				}
+				blackhole += found;
+				return 2*size;
+			}
+		});
+		// transitivity of a taxonomy where every class has four subclasses
+		result.add(new RuleBenchmark("trans", "sco(x,z) :- sco(x,y,0), sco(y,z)") {
+			protected void makeData(int[] ids) {
+				for (int i=1; i<ids.length; i++) {
+					storage.makePredicateAssertion("sco", ids[i], ids[(i-1)/4]);
+				}
+			}
+		});
+		result.add(new RuleBenchmark("E", "sco(x,z) :- subconjunctionof(y1,y2,z), sco(x,y1), sco(x,y2)") {
+			protected void makeData(int[] ids) {
+				int[] facts = makeFacts(size, 2, ids);
+				for (int i=0; i<size; i++) {
+					storage.makePredicateAssertion("sco", facts[2*i], facts[2*i+1]);
+				}
+				facts = makeFacts(size/10, 3, ids);
+				for (int i=0; i<size/10; i++) {
+					storage.makePredicateAssertion("subconjunctionof", facts[3*i], facts[3*i+1], facts[3*i+2]);
+				}
+			}
+		});
+		result.add(new RuleBenchmark("Hn", "sv(x,w,z) :- sv(x,v1,y), sv(y,v2,z), spoc(v1,v2,w)") {
+			protected void makeData(int[] ids) {
+				int[] properties = makeIDs(20);
+				for (int i=0; i<size; i++) {
+					storage.makePredicateAssertion("sv", ids[random.nextInt(ids.length)], properties[random.nextInt(properties.length)], ids[random.nextInt(ids.length)]);
+				}
+				int[] facts = makeFacts(40, 3, properties);
+				for (int i=0; i<40; i++) {
+					storage.makePredicateAssertion("spoc", facts[3*i], facts[3*i+1], facts[3*i+2]);
+				}
+			}
+		});
+		result.add(new RuleBenchmark("(12W)", "wtriple(x,T,z,w) :- subchain(R,S,T), wtriple(x,R,y,w), wtriple(y,S,z,w)") {
+			protected void makeData(int[] ids) {
+				int[] properties = makeIDs(20);
+				int[] contexts = makeIDs(size/1000 + 1);
+				for (int i=0; i<size; i++) {
+					storage.makePredicateAssertion("wtriple", ids[random.nextInt(ids.length)], properties[random.nextInt(properties.length)],
+							ids[random.nextInt(ids.length)], contexts[random.nextInt(contexts.length)]);
+				}
+				int[] facts = makeFacts(40, 3, properties);
+				for (int i=0; i<40; i++) {
+					storage.makePredicateAssertion("subchain", facts[3*i], facts[3*i+1], facts[3*i+2]);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Benchmark that gets a new storage with the predicates of the rules
+	 * before every run, and that drops it afterwards.
+	 */
+	abstract class StorageBenchmark extends Benchmark {
+		protected StorageDriver storage;
+		protected Random random;
+		protected long blackhole = 0; // results are added here so that they are not optimized away
+
+		public StorageBenchmark(String name) {
+			super(name);
+		}
+
+		public void setUp() throws Exception {
+			random = new Random(42);
+			storage = createStorage();
+			storage.registerPredicate(new PredicateDeclaration("sco",2,true,false));
+			storage.registerPredicate(new PredicateDeclaration("sv",3,true,false));
+			storage.registerPredicate(new PredicateDeclaration("wtriple",4,true,false));
+			storage.registerPredicate(new PredicateDeclaration("subconjunctionof",3,false,true));
+			storage.registerPredicate(new PredicateDeclaration("spoc",3,false,true));
+			storage.registerPredicate(new PredicateDeclaration("subchain",3,false,true));
+			if (!inmemory) storage.drop();
+			storage.initialize();
+		}
+
+		public void tearDown() throws Exception {
+			storage.drop();
+			storage = null;
+		}
+
+		/**
+		 * Get ids for the given number of new keys.
+		 * @param count
+		 * @return
+		 */
+		protected int[] makeIDs(int count) {
+			int[] result = new int[count];
+			for (int i=0; i<count; i++) {
+				result[i] = storage.getID(getName() + "#" + i);
+			}
+			return result;
+		}
+
+		/**
+		 * Make the given number of random tuples of the given arity, which
+		 * are returned as one flat array.
+		 * @param count
+		 * @param arity
+		 * @param ids the values to use in the tuples
+		 * @return
+		 */
+		protected int[] makeFacts(int count, int arity, int[] ids) {
+			int[] result = new int[count*arity];
+			for (int i=0; i<result.length; i++) {
+				result[i] = ids[random.nextInt(ids.length)];
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Benchmark for running one semi-naive step of a rule on data of step 0.
+	 */
+	abstract class RuleBenchmark extends StorageBenchmark {
+		protected String rulename;
+		protected String rule;
+
+		public RuleBenchmark(String rulename, String rule) {
+			super("runRule " + rulename);
+			this.rulename = rulename;
+			this.rule = rule;
+		}
+
+		/**
+		 * Write the data that the rule is run on.
+		 * @param ids the ids of size/10 entities to use
+		 */
+		abstract protected void makeData(int[] ids);
+
+		public void setUp() throws Exception {
+			super.setUp();
+			storage.registerInferenceRule(InferenceRuleDeclaration.buildFromString(rulename, rule));
+			makeData(makeIDs(size/10 + 1));
+			storage.commit();
+		}
+
+		public long run() {
+			return storage.runRule(rulename, 0, 0);
+		}
+	}
+
+	protected StorageDriver createStorage() throws Exception {
+		return Settings.createStorage(inmemory, parallelism);
+	}
+
+	protected static String getKey(int i) {
+		return "http://example.org/benchmark#entity" + i;
+	}
+
+}
@@ -7,7 +7,6 @@ import org.semanticweb.owlapi.model.OWLOntologyManager;
 
 import edu.kit.aifb.orel.kbmanager.KBManager;
 import edu.kit.aifb.orel.kbmanager.KBManager.InferenceResult;
-import edu.kit.aifb.orel.storage.MySQLStorageDriver;
 import edu.kit.aifb.orel.storage.StorageDriver;
 import edu.kit.aifb.orel.test.OWLWGTestCaseChecker;
 
@@ -21,9 +20,10 @@ public class Client {
 	public static void main(String[] args) {
 		// parse command line arguments
 		// supported arguments:  
-		// <mode> -- one of "load", "materialize", "init", "clear", "clearall", "checkentailment", "checkconsistency", "runtests"
+		// <mode> -- one of "load", "remove", "materialize", "init", "clear", "clearall", "checkentailment", "checkconsistency", "runtests"
 		// -c <configfile> -- URL of configuration file
 		// -o <outputfile> -- URL of outputfile file if relevant to the chosen operation
+		//                    (rule statistics as CSV or JSON for "materialize")
 		int i = 0;
 		String arg;
 		String operation = "", inputfile = "", configfile = "./settings.cfg", outputfile = "";
@@ -49,7 +49,7 @@ public class Client {
 				}
 			} else if (arg.startsWith("-")) {
 				System.err.println("Unknown option " + arg);
-			} else if ( (arg.equals("load")) || arg.equals("checkentailment") || arg.equals("runtests")) {
+			} else if ( (arg.equals("load")) || arg.equals("remove") || arg.equals("checkentailment") || arg.equals("runtests")) {
 				operation = arg;
 				if (i < args.length) {
 					inputfile = args[i++];
@@ -66,10 +66,11 @@ public class Client {
 
 		if ( operation.equals("") ) {
 			LogWriter.get().printNote("No operation given. Usage:\n orel.sh <command> [<inputfile>] [-c <configfile>] [-o <ouptutfile>] \n" +
-					           " <command>       : one of \"load\", \"materialize\", \"init\", \"drop\", \"clear\", \"clearall\", \"checkentailment\", \"checkconsistency\", \"runtests\"\n" +
-					           "                   where \"load\", \"checkentailment\", and \"runtests\" must be followed by an input ontology URI\n" +
+					           " <command>       : one of \"load\", \"remove\", \"materialize\", \"init\", \"drop\", \"clear\", \"clearall\", \"checkentailment\", \"checkconsistency\", \"runtests\"\n" +
+					           "                   where \"load\", \"remove\", \"checkentailment\", and \"runtests\" must be followed by an input ontology URI\n" +
 					           " -c <configfile> : path to the configuration file\n" +
 					           " -o <outputfile> : name of the output file, if relevant to the current operation\n" +
+					           "                   (for \"materialize\": rule statistics as CSV if the name ends with .csv, and JSON otherwise)\n" +
 					           " -v              : increase verbosity to show debug outputs \n" +
 					           " -q              : be quiet amd report only errors \n");
 			LogWriter.get().printlnNote("Exiting.");
@@ -82,20 +83,29 @@ public class Client {
 			e.printStackTrace();
 			return;
 		}
-		if ( Settings.getDBServer().equals("") || Settings.getDBUser().equals("") || Settings.getDBName().equals("") ) {
+		boolean inmemory = Settings.getStorage().equals("memory");
+		if ( !inmemory && ( Settings.getDBServer().equals("") || Settings.getDBUser().equals("") || Settings.getDBName().equals("") ) ) {
 			LogWriter.get().printlnError("Insufficient database configuration.\n  See INSTALL on how to configure Orel.");
 			return;
 		}
 
 		long sTime=System.currentTimeMillis();
 		try {
-			storage = new MySQLStorageDriver(Settings.getDBServer(),Settings.getDBName(),Settings.getDBUser(),Settings.getDBPassword());
+			if (!Settings.getEventLog().equals("")) {
+				EventLog.set(new TraceEventLog(Settings.getEventLog()));
+			}
+			if (inmemory) {
+				LogWriter.get().printlnNote("Using in-memory storage; data is not kept after this run.");
+			}
+			storage = Settings.createStorage(inmemory, Settings.getParallelism());
 			LogWriter.get().printlnNote("Using \"" + Settings.getKBManager() + "\" to manage knowledge base.");
 			kbmanager = KBManager.getKBManager(Settings.getKBManager(), storage);
 			if (kbmanager == null) {
 				LogWriter.get().printlnError("The selected knowledge base manager \"" + Settings.getKBManager() + "\" is not known. Aborting.");
 				return;
 			}
+			kbmanager.setGoalDirected(Settings.getGoalDirected());
+			kbmanager.setIncremental(Settings.getIncremental());
 			if (operation.equals("init")) {
 				LogWriter.get().printlnNote("Initialising store ... ");
 				kbmanager.initialize();
@@ -136,6 +146,24 @@ public class Client {
 				if (!success) LogWriter.get().printlnWarning("Some features in the ontology are not (yet) supported by Orel and have been ignored.");
 				LogWriter.get().printlnNote("Ontology stored in " + (loadeTime-loadsTime) + " ms.");
 				manager.removeOntology(ontology);
+			} else if (operation.equals("remove")) {
+				LogWriter.get().printlnNote("Removing ontology ...");
+				if (inputfile.equals("")) {
+					LogWriter.get().printlnError("Please provide the URI of the input ontology using the parameter -i.");
+					return;
+				}
+				long loadsTime = System.currentTimeMillis();
+				OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+				IRI physicalURI = IRI.create(inputfile);
+				OWLOntology ontology = manager.loadOntologyFromOntologyDocument(physicalURI);
+				long loadeTime = System.currentTimeMillis();
+				LogWriter.get().printlnNote("Ontology loaded in " + (loadeTime-loadsTime) + " ms.");
+				loadsTime = System.currentTimeMillis();
+				boolean success = kbmanager.removeOntology(ontology);
+				loadeTime = System.currentTimeMillis();
+				if (!success) LogWriter.get().printlnWarning("Some features in the ontology are not (yet) supported by Orel and have been ignored.");
+				LogWriter.get().printlnNote("Ontology removed in " + (loadeTime-loadsTime) + " ms.");
+				manager.removeOntology(ontology);
 			} else if (operation.equals("runtests")) {
 				LogWriter.get().printlnNote("Loading and executing OWL test cases ...");
 				if (inputfile.equals("")) {
@@ -188,10 +216,19 @@ public class Client {
 			} else if (operation.equals("materialize")) {
 				LogWriter.get().printlnNote("Materialising consequences ...");
 				kbmanager.materialize();
+				if (!outputfile.equals("")) {
+					storage.getRuleStatistics().save(outputfile);
+					LogWriter.get().printlnNote("Rule statistics written to file " + outputfile + ".");
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return;
+		} finally {
+			if (EventLog.get() != null) {
+				EventLog.get().close();
+				LogWriter.get().printlnNote("Events written to file " + Settings.getEventLog() + ".");
+			}
 		}
 		LogWriter.get().printlnNote("Done in " + (System.currentTimeMillis()-sTime) + " ms.\n");
 	}
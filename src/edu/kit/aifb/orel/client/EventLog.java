@@ -0,0 +1,71 @@
+package edu.kit.aifb.orel.client;
+
+/**
+ * Record of timed events of a run, such as loading an ontology, running a
+ * rule, or one iteration of a reasoner. Like the LogWriter, there is one
+ * global event log, which is null unless events are recorded. Code that
+ * emits events gets a start time from start() and passes it to end() when
+ * the event is over:
+ *
+ * long sTime = EventLog.start();
+ * ...
+ * EventLog.end(EventLog.RULE, rulename, result, sTime);
+ *
+ * If no event log is set, this only reads a static field twice, so events
+ * can be emitted in inner loops as long as their names are not built from
+ * strings for this purpose.
+ * @author agent
+ */
+public abstract class EventLog {
+	public static final String LOAD = "load";
+	public static final String ID = "id";
+	public static final String FLUSH = "flush";
+	public static final String RULE = "rule";
+	public static final String ITERATION = "iteration";
+	protected static EventLog mainlog = null;
+
+	static public void set(EventLog log) {
+		mainlog = log;
+	}
+	static public EventLog get() {
+		return mainlog;
+	}
+
+	/**
+	 * Get the start time of a new event.
+	 * @return the current time in ns if events are recorded, and 0 otherwise
+	 */
+	static public long start() {
+		return (mainlog == null) ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Record an event that started at the given time and ends now.
+	 * @param category one of the constants of this class
+	 * @param name e.g. the name of the rule
+	 * @param count e.g. the number of affected rows
+	 * @param sTime the result of start() when the event started
+	 */
+	static public void end(String category, String name, long count, long sTime) {
+		EventLog log = mainlog;
+		if ( (log != null) && (sTime != 0) ) {
+			log.record(category, name, count, sTime, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Record an event.
+	 * @param category
+	 * @param name
+	 * @param count
+	 * @param start start time in ns as given by System.nanoTime()
+	 * @param end end time in ns as given by System.nanoTime()
+	 */
+	public abstract void record(String category, String name, long count, long start, long end);
+
+	/**
+	 * Write all events that were not written yet and release all resources.
+	 */
+	public abstract void close();
+
+}
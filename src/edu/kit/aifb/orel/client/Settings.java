@@ -6,8 +6,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.sql.SQLException;
 import java.util.Properties;
 
+import edu.kit.aifb.orel.storage.MemoryStorageDriver;
+import edu.kit.aifb.orel.storage.MySQLStorageDriver;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
 /**
  * Class for managing global settings such as the DB connection information.
  * @author Markus Krötzsch
@@ -19,6 +24,18 @@ public class Settings {
 	static protected String dbname = "";
 	static protected String dbpassword = "";
 	static protected String kbmanager = "";
+	static protected String storage = "";
+	static protected int parallelism = 1;
+	static protected int contextthreads = 1;
+	static protected int idcachesize = 1000000;
+	static protected int writefiltersize = 1000000;
+	static protected boolean bulkload = true;
+	static protected boolean goaldirected = false;
+	static protected boolean incremental = false;
+	static protected boolean deltatables = false;
+	static protected boolean ruleindexes = false;
+	static protected boolean explainrules = false;
+	static protected String eventlog = "";
 
 	/**
 	 * Load the configuration from a file.
@@ -43,6 +60,40 @@ public class Settings {
 		Settings.dbserver = props.getProperty("dbserver","");
 		Settings.dbname = props.getProperty("dbname","");
 		Settings.kbmanager = props.getProperty("kbmanager","ELRLManager");
+		Settings.storage = props.getProperty("storage","mysql");
+		try {
+			Settings.parallelism = Integer.parseInt(props.getProperty("parallelism","1").trim());
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Configuration value for parallelism must be a number; using 1.");
+			Settings.parallelism = 1;
+		}
+		if (Settings.parallelism < 1) Settings.parallelism = 1;
+		try {
+			Settings.contextthreads = Integer.parseInt(props.getProperty("contextthreads","1").trim());
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Configuration value for contextthreads must be a number; using 1.");
+			Settings.contextthreads = 1;
+		}
+		if (Settings.contextthreads < 1) Settings.contextthreads = 1;
+		try {
+			Settings.idcachesize = Integer.parseInt(props.getProperty("idcachesize","1000000").trim());
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Configuration value for idcachesize must be a number; using 1000000.");
+			Settings.idcachesize = 1000000;
+		}
+		try {
+			Settings.writefiltersize = Integer.parseInt(props.getProperty("writefiltersize","1000000").trim());
+		} catch (NumberFormatException e) {
+			LogWriter.get().printlnError("Configuration value for writefiltersize must be a number; using 1000000.");
+			Settings.writefiltersize = 1000000;
+		}
+		Settings.bulkload = !props.getProperty("bulkload","true").trim().equalsIgnoreCase("false");
+		Settings.goaldirected = props.getProperty("goaldirected","false").trim().equalsIgnoreCase("true");
+		Settings.incremental = props.getProperty("incremental","false").trim().equalsIgnoreCase("true");
+		Settings.deltatables = props.getProperty("deltatables","false").trim().equalsIgnoreCase("true");
+		Settings.ruleindexes = props.getProperty("ruleindexes","false").trim().equalsIgnoreCase("true");
+		Settings.explainrules = props.getProperty("explainrules","false").trim().equalsIgnoreCase("true");
+		Settings.eventlog = props.getProperty("eventlog","").trim();
 	}
 	
 	static public String getDBPassword() {
@@ -64,4 +115,123 @@ public class Settings {
 	static public String getKBManager() {
 		return Settings.kbmanager;
 	}
+
+	/**
+	 * Get the name of the storage driver to use: "mysql" (default) or
+	 * "memory" for keeping all data in main memory.
+	 */
+	static public String getStorage() {
+		return Settings.storage;
+	}
+
+	/**
+	 * Get the number of inference rules that may be evaluated concurrently.
+	 */
+	static public int getParallelism() {
+		return Settings.parallelism;
+	}
+
+	/**
+	 * Get the number of threads that saturate the contexts of rules with a
+	 * common context concurrently (in-memory storage only; MySQL uses the
+	 * parallelism for this).
+	 */
+	static public int getContextThreads() {
+		return Settings.contextthreads;
+	}
+
+	/**
+	 * Get the maximal number of ids that the storage should keep in memory.
+	 */
+	static public int getIDCacheSize() {
+		return Settings.idcachesize;
+	}
+
+	/**
+	 * Get the maximal number of written facts per predicate that the storage
+	 * should keep in memory to avoid writing them again (0 to disable this).
+	 */
+	static public int getWriteFilterSize() {
+		return Settings.writefiltersize;
+	}
+
+	/**
+	 * Check if data should be loaded into the database with LOAD DATA LOCAL
+	 * INFILE where possible.
+	 */
+	static public boolean getBulkLoad() {
+		return Settings.bulkload;
+	}
+
+	/**
+	 * Check if entailment checks should only compute the consequences that
+	 * are relevant for the checked axioms instead of a full materialization.
+	 */
+	static public boolean getGoalDirected() {
+		return Settings.goaldirected;
+	}
+
+	/**
+	 * Check if materialization should continue from the results of the last
+	 * incremental materialization instead of considering all facts again.
+	 */
+	static public boolean getIncremental() {
+		return Settings.incremental;
+	}
+
+	/**
+	 * Check if the database should use separate delta tables for semi-naive
+	 * evaluation instead of filtering facts by step.
+	 */
+	static public boolean getDeltaTables() {
+		return Settings.deltatables;
+	}
+
+	/**
+	 * Check if the database should get the composite indexes that the
+	 * inference rules need for their joins.
+	 */
+	static public boolean getRuleIndexes() {
+		return Settings.ruleindexes;
+	}
+
+	/**
+	 * Check if the plans of the database for the statements of inference
+	 * rules should be checked for full table scans and temporary tables.
+	 */
+	static public boolean getExplainRules() {
+		return Settings.explainrules;
+	}
+
+	/**
+	 * Get the name of the file to which timed events of the run should be
+	 * written, or "" if events should not be recorded.
+	 */
+	static public String getEventLog() {
+		return Settings.eventlog;
+	}
+
+	/**
+	 * Create the storage driver that is described by the current settings,
+	 * with all of the configured storage options. The kind of storage and its
+	 * parallelism are given explicitly, so that callers can override them.
+	 * @param inmemory if true, use MemoryStorageDriver, else MySQLStorageDriver
+	 * @param parallelism
+	 * @throws SQLException if the connection to the database fails
+	 */
+	static public StorageDriver createStorage(boolean inmemory, int parallelism) throws SQLException {
+		if (inmemory) {
+			MemoryStorageDriver memorystorage = new MemoryStorageDriver(parallelism);
+			memorystorage.setContextThreads(Settings.contextthreads);
+			return memorystorage;
+		} else {
+			MySQLStorageDriver mysqlstorage = new MySQLStorageDriver(Settings.dbserver,Settings.dbname,Settings.dbuser,Settings.dbpassword,parallelism,Settings.idcachesize);
+			mysqlstorage.setBulkLoad(Settings.bulkload);
+			mysqlstorage.setWriteFilterSize(Settings.writefiltersize);
+			mysqlstorage.setDeltaTables(Settings.deltatables);
+			mysqlstorage.setRuleIndexes(Settings.ruleindexes);
+			mysqlstorage.setExplainRules(Settings.explainrules);
+			return mysqlstorage;
+		}
+	}
 }
@@ -0,0 +1,69 @@
+package edu.kit.aifb.orel.client;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Event log that writes all events to a file in the trace event format of
+ * Chromium, so that they can be viewed on a timeline with the trace viewers
+ * of Chromium or Perfetto. Every event is written as a complete event of
+ * the thread that ended it, with the count as its argument.
+ * @author agent
+ */
+public class TraceEventLog extends EventLog {
+	protected Writer out;
+	protected long basetime; // start of the trace in ns
+	protected boolean first = true;
+
+	public TraceEventLog(String filename) throws IOException {
+		out = new BufferedWriter(new FileWriter(filename));
+		out.write("[\n");
+		basetime = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void record(String category, String name, long count, long start, long end) {
+		if (out == null) return;
+		try {
+			out.write( (first ? "" : ",\n") + "{\"cat\": \"" + category + "\", \"name\": " + quote(name) +
+					", \"ph\": \"X\", \"ts\": " + (start - basetime) / 1000.0 + ", \"dur\": " + (end - start) / 1000.0 +
+					", \"pid\": 1, \"tid\": " + Thread.currentThread().getId() + ", \"args\": {\"count\": " + count + "}}");
+			first = false;
+		} catch (IOException e) {
+			LogWriter.get().printlnError("Could not write event: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out == null) return;
+		try {
+			out.write("\n]\n");
+			out.close();
+		} catch (IOException e) {
+			LogWriter.get().printlnError("Could not write events: " + e.getMessage());
+		}
+		out = null;
+	}
+
+	static protected String quote(String value) {
+		StringBuilder result = new StringBuilder(value.length() + 2);
+		result.append('"');
+		char c;
+		for (int i=0; i<value.length(); i++) {
+			c = value.charAt(i);
+			if ( (c == '"') || (c == '\\') ) {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int)c));
+			} else {
+				result.append(c);
+			}
+		}
+		result.append('"');
+		return result.toString();
+	}
+
+}
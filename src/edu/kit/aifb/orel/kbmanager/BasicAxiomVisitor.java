@@ -115,7 +115,7 @@ public class BasicAxiomVisitor implements OWLAxiomVisitorEx<Boolean> {
 				ops.add(keys[i]);
 				ops.add(keys[j]);
 				Collections.sort(ops);
-				conkey = BasicExpressionVisitor.makeNAryExpressionKey("ObjectIntersection",ops,ops.size()-1,null);
+				conkey = expvisitor.makeNAryExpressionKey("ObjectIntersection",ops,ops.size()-1,null);
 				conid = storage.getID(conkey);
 				if ( (todos & BasicKBLoader.ASSERT) != 0 ) {
 					storage.makePredicateAssertion("sco",conid,botid);
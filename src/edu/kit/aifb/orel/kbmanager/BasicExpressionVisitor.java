@@ -1,6 +1,7 @@
 package edu.kit.aifb.orel.kbmanager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -132,22 +133,41 @@ public class BasicExpressionVisitor implements
 		int sid1, sid2, oid;
 		if (action == Action.WRITEBODY) {
 			result = (ops.size()>0) ? opkeys.get(0) : OP_NOTHING;
-			for (int i=1; i<ops.size(); i++) {
-					sid1 = storage.getID(result);
-					sid2 = storage.getID(opkeys.get(i));
-					result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,i,null); 
-					oid  = storage.getID(result);
+			if (ops.size() > 1) {
+				// get the ids of all operands, and then of all partial conjunctions at once
+				int n = ops.size();
+				int[] opids = storage.getIDs(opkeys);
+				ArrayList<String> keys = new ArrayList<String>(n+1);
+				keys.add(OP_THING);
+				keys.add(OP_NOTHING);
+				for (int i=1; i<n; i++) {
+					keys.add(makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opids,i));
+				}
+				int[] ids = storage.getIDs(keys);
+				sid1 = opids[0];
+				for (int i=1; i<n; i++) {
+					sid2 = opids[i];
+					oid  = ids[1+i];
 					storage.makePredicateAssertion("subconjunctionof",sid1,sid2,oid);
-					createClassTautologies(oid,storage);
+					createClassTautologies(oid,ids[0],ids[1],storage);
+					sid1 = oid;
+				}
+				result = keys.get(keys.size()-1);
 			}
 		} else if (action == Action.WRITEHEAD) {
 			result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,opkeys.size()-1,OP_NOTHING);
-			sid1 = storage.getID(result);
+			ArrayList<String> keys = new ArrayList<String>(opkeys.size()+3);
+			keys.add(OP_THING);
+			keys.add(OP_NOTHING);
+			keys.add(result);
+			keys.addAll(opkeys);
+			int[] ids = storage.getIDs(keys);
+			sid1 = ids[2];
 			for (int i=0; i<opkeys.size(); i++) {
-				oid = storage.getID(opkeys.get(i));
+				oid = ids[3+i];
 				storage.makePredicateAssertion("sco",sid1,oid);
 			}
-			createClassTautologies(sid1,storage);
+			createClassTautologies(sid1,ids[0],ids[1],storage);
 		} else {
 			assert action == Action.READ;
 			result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,opkeys.size()-1,OP_NOTHING);
@@ -172,12 +192,18 @@ public class BasicExpressionVisitor implements
 		int sid, oid;
 		if (action == Action.WRITEBODY) {		
 			result = makeNAryExpressionKey(OP_OBJECT_UNION,opkeys,opkeys.size()-1,OP_THING);
-			oid = storage.getID(result);
+			ArrayList<String> keys = new ArrayList<String>(opkeys.size()+3);
+			keys.add(OP_THING);
+			keys.add(OP_NOTHING);
+			keys.add(result);
+			keys.addAll(opkeys);
+			int[] ids = storage.getIDs(keys);
+			oid = ids[2];
 			for (int i=0; i<opkeys.size(); i++) {
-				sid = storage.getID(opkeys.get(i));
+				sid = ids[3+i];
 				storage.makePredicateAssertion("sco",sid,oid);
 			}
-			createClassTautologies(oid,storage);
+			createClassTautologies(oid,ids[0],ids[1],storage);
 		} else if (action == Action.WRITEHEAD) {
 			result = null; // not supported in OWL EL or RL
 		}  else {
@@ -600,7 +626,7 @@ public class BasicExpressionVisitor implements
 	
 	public static String visitSimpleLiteral(SimpleLiteral sl, StorageDriver storage, Action action) {
 		if (sl == null) return null;
-		String result = makeNAryExpressionKey(OP_DATA_ONE_OF, sl.toString());
+		String result = makeNAryExpressionKey(OP_DATA_ONE_OF, new int[] {storage.getID(sl.toString())}, 0);
 		if ( (action == Action.WRITEBODY) || (action == Action.WRITEHEAD) ) {
 			int id = storage.getID(result);
 			storage.makePredicateAssertion("dnominal",id);
@@ -623,9 +649,21 @@ public class BasicExpressionVisitor implements
 	}
 	
 	public static void createClassTautologies(int id, StorageDriver storage) {
+		createClassTautologies(id, storage.getID(OP_THING), storage.getID(OP_NOTHING), storage);
+	}
+
+	/**
+	 * Create basic statements for the given class, using the given ids of
+	 * owl:Thing and owl:Nothing.
+	 * @param id
+	 * @param thingid
+	 * @param nothingid
+	 * @param storage
+	 */
+	public static void createClassTautologies(int id, int thingid, int nothingid, StorageDriver storage) {
 		storage.makePredicateAssertion("sco",id,id);
-		storage.makePredicateAssertion("sco",id,storage.getID(OP_THING));
-		storage.makePredicateAssertion("sco",storage.getID(OP_NOTHING),id);
+		storage.makePredicateAssertion("sco",id,thingid);
+		storage.makePredicateAssertion("sco",nothingid,id);
 	}
 
 	public static void createDatarangeTautologies(int id, StorageDriver storage) {
@@ -634,22 +672,45 @@ public class BasicExpressionVisitor implements
 		storage.makePredicateAssertion("dsco",storage.getID(Literals.BOTTOM_DATATYPE),id);
 	}
 	
-	public static String makeNAryExpressionKey(String opname, List<String> operators, int maxindex, String emptyKey) {
-		assert maxindex<operators.size();
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operands, or return emptyKey if maxindex is
+	 * negative. The operands are given by their keys, but the result refers
+	 * to them by their ids. Keys thus do not grow with the nesting depth of
+	 * expressions and rarely need to be hashed by the storage, and equal
+	 * expressions get equal ids since their operands have equal ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @param emptyKey
+	 * @return
+	 */
+	public String makeNAryExpressionKey(String opname, List<String> operands, int maxindex, String emptyKey) {
+		assert maxindex<operands.size();
 		if (maxindex<0) return emptyKey;
-		String oplist = "";
-		for (int i=0; i<=maxindex; i++) {
-			oplist += " " + operators.get(i);
-		}
-		return opname + "(" + oplist + " )";
+		return makeNAryExpressionKey(opname, storage.getIDs(operands.subList(0,maxindex+1)), maxindex);
 	}
 	
-	public static String makeNAryExpressionKey(String opname, String... operators) {
-		String oplist = "";
-		for (int i=0; i<operators.length; i++) {
-			oplist += " " + operators[i];
+	public String makeNAryExpressionKey(String opname, String... operands) {
+		return makeNAryExpressionKey(opname, storage.getIDs(Arrays.asList(operands)), operands.length-1);
+	}
+
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operand ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @return
+	 */
+	public static String makeNAryExpressionKey(String opname, int[] operands, int maxindex) {
+		StringBuilder key = new StringBuilder(opname.length() + 8*(maxindex+2));
+		key.append(opname).append('(');
+		for (int i=0; i<=maxindex; i++) {
+			if (i>0) key.append(' ');
+			key.append(operands[i]);
 		}
-		return opname + "(" + oplist + " )";
+		return key.append(')').toString();
 	}
 
 }
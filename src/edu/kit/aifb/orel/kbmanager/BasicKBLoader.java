@@ -1,17 +1,12 @@
 package edu.kit.aifb.orel.kbmanager;
 
-import java.util.Iterator;
-import java.util.Set;
 import org.semanticweb.owlapi.model.*;
 
-import edu.kit.aifb.orel.client.LogWriter;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
 public class BasicKBLoader {
 	protected StorageDriver storage;
 	protected OWLDataFactory datafactory;
-	protected BasicExpressionVisitor expvisitor;
-	protected BasicAxiomVisitor axiomvisitor;
 	
 	/// Flags for more fine-grained control of actions during axiom processing
 	static public final int CHECK = 1;
@@ -31,36 +26,26 @@ public class BasicKBLoader {
 	 * @param ontology
 	 * @param donotassert if true then only load the relevant subexpressions without asserting the axioms 
 	 */
-	public boolean processOntology(OWLOntology ontology, int todos) throws Exception {
-		boolean result = true;
+	public boolean processOntology(OWLOntology ontology, final int todos) throws Exception {
 		datafactory = ontology.getOWLOntologyManager().getOWLDataFactory();
-		expvisitor = new BasicExpressionVisitor(BasicExpressionVisitor.Action.READ,storage);
-		axiomvisitor = new BasicAxiomVisitor(storage,datafactory,expvisitor,todos);
 		boolean writing = ( (todos & BasicKBLoader.WRITE) != 0 );
+		// visit all axioms, using one visitor per thread if the storage allows concurrent writes:
+		ParallelAxiomLoader axiomloader = new ParallelAxiomLoader(storage.getParallelism(), writing,
+				(todos & (BasicKBLoader.ASSERT | BasicKBLoader.PREPARE)) != 0 ) {
+			protected OWLAxiomVisitorEx<Boolean> createVisitor(OWLDataFactory datafactory) {
+				return new BasicAxiomVisitor(storage,datafactory,new BasicExpressionVisitor(BasicExpressionVisitor.Action.READ,storage),todos);
+			}
+		};
 		if ( writing ) { // initialize bridge and prepare for bulk insert:
 			storage.beginLoading();
 		}
-		// iterate over ontology to load all axioms:
-		Set<OWLLogicalAxiom> axiomset = ontology.getLogicalAxioms();
-		Iterator<OWLLogicalAxiom> axiomiterator = axiomset.iterator();
-		OWLLogicalAxiom axiom;
-		boolean curresult;
-		int count = 0;
-		while ( (result || writing) && axiomiterator.hasNext() ) {
-			axiom = axiomiterator.next();
-			curresult = axiom.accept(axiomvisitor);
-			if ( !curresult && ((todos & (BasicKBLoader.ASSERT | BasicKBLoader.PREPARE)) != 0) ) {
-				LogWriter.get().printlnWarning("Unsupported axiom: " + axiom.toString());
+		try {
+			return axiomloader.processAxioms(ontology.getLogicalAxioms(), datafactory);
+		} finally {
+			if ( writing ) { // close, commit, and recompute indexes
+				storage.endLoading();
 			}
-			result = curresult && result;
-			count++;
-			if (count % 100  == 0 ) System.out.print(".");
-		}
-		LogWriter.get().printlnNote(" processed " + count + " axiom(s).");
-		if ( writing ) { // close, commit, and recompute indexes
-			storage.endLoading();
 		}
-		return result;
 	}
 
 }
@@ -5,7 +5,9 @@ import java.util.List;
 
 import org.semanticweb.owlapi.model.*;
 
+import edu.kit.aifb.orel.client.EventLog;
 import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.storage.AssertionRecordingStorageDriver;
 import edu.kit.aifb.orel.storage.SimpleLiteral;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
@@ -120,6 +122,7 @@ public class BasicKBManager extends KBManager {
 				storage.makePredicateAssertion("dsubconjunctionof",otypeid1,otypeid2,bottype);
 			}
 		}
+		new NaiveKBReasoner(storage).prepareInferenceRules();
 		storage.commit();
 	}
 	
@@ -137,7 +140,39 @@ public class BasicKBManager extends KBManager {
 		while (ontit.hasNext()) {
 			result = loadOntology(ontit.next()) && result;
 		}
-		return loader.processOntology(ontology, (BasicKBLoader.PREPAREASSERT | BasicKBLoader.ASSERT) ) && result;
+		long sTime = EventLog.start();
+		result = loader.processOntology(ontology, (BasicKBLoader.PREPAREASSERT | BasicKBLoader.ASSERT) ) && result;
+		EventLog.end(EventLog.LOAD, "loadOntology", ontology.getAxiomCount(), sTime);
+		return result;
+	}
+
+	/**
+	 * Remove the content of some ontology from the database, together with
+	 * all consequences that no longer follow from the remaining content.
+	 * @param ontology
+	 */
+	@Override
+	public boolean removeOntology(OWLOntology ontology) throws Exception {
+		AssertionRecordingStorageDriver recorder = new AssertionRecordingStorageDriver(storage);
+		boolean result = recordOntology(ontology, recorder);
+		NaiveKBReasoner reasoner = new NaiveKBReasoner(storage);
+		reasoner.remove(recorder.getAssertions());
+		return result;
+	}
+
+	/**
+	 * Record the facts that loading the given ontology asserts.
+	 * @param ontology
+	 * @param recorder
+	 */
+	protected boolean recordOntology(OWLOntology ontology, AssertionRecordingStorageDriver recorder) throws Exception {
+		boolean result = true;
+		BasicKBLoader loader = new BasicKBLoader(recorder);
+		Iterator<OWLOntology> ontit = ontology.getDirectImports().iterator();
+		while (ontit.hasNext()) {
+			result = recordOntology(ontit.next(), recorder) && result;
+		}
+		return loader.processOntology(ontology, BasicKBLoader.ASSERT ) && result;
 	}
 
 	/**
@@ -148,6 +183,8 @@ public class BasicKBManager extends KBManager {
 	@Override
 	public InferenceResult checkEntailment(OWLOntology ontology) throws Exception {
 		NaiveKBReasoner reasoner = new NaiveKBReasoner(storage);
+		reasoner.setGoalDirected(goaldirected);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkEntailment(ontology);
 	}
 	
@@ -158,6 +195,7 @@ public class BasicKBManager extends KBManager {
 	@Override
 	public InferenceResult checkConsistency() throws Exception {
 		NaiveKBReasoner reasoner = new NaiveKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkConsistency();
 	}
 
@@ -167,6 +205,7 @@ public class BasicKBManager extends KBManager {
 	@Override
 	public void materialize() throws Exception {
 		NaiveKBReasoner reasoner = new NaiveKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		reasoner.materialize();
 	}
 
@@ -183,26 +222,26 @@ public class BasicKBManager extends KBManager {
 		storage.registerPredicate( new PredicateDeclaration("datmostoneaux",4,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("ran",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("dran",2,true,false) );
-		storage.registerPredicate( new PredicateDeclaration("subconjunctionof",3,false,false) );
-		storage.registerPredicate( new PredicateDeclaration("dsubconjunctionof",3,false,false) );
-		storage.registerPredicate( new PredicateDeclaration("subsomevalues",3,false,false) );
-		storage.registerPredicate( new PredicateDeclaration("dsubsomevalues",3,false,false) );
+		storage.registerPredicate( new PredicateDeclaration("subconjunctionof",3,false,true) );
+		storage.registerPredicate( new PredicateDeclaration("dsubconjunctionof",3,false,true) );
+		storage.registerPredicate( new PredicateDeclaration("subsomevalues",3,false,true) );
+		storage.registerPredicate( new PredicateDeclaration("dsubsomevalues",3,false,true) );
 		storage.registerPredicate( new PredicateDeclaration("spo",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("dspo",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("disjoint",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("ddisjoint",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("disjointaux",3,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("ddisjointaux",3,true,false) );
-		storage.registerPredicate( new PredicateDeclaration("nominal",1,false,false) );
-		storage.registerPredicate( new PredicateDeclaration("dnominal",1,false,false) );
+		storage.registerPredicate( new PredicateDeclaration("nominal",1,false,true) );
+		storage.registerPredicate( new PredicateDeclaration("dnominal",1,false,true) );
 		storage.registerPredicate( new PredicateDeclaration("nonempty",1,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("dnonempty",1,true,false) );
 		
 		storage.registerPredicate( new PredicateDeclaration("eltype",1,true,false) );
 		
-		storage.registerPredicate( new PredicateDeclaration("spoc",3,true,false) );
+		storage.registerPredicate( new PredicateDeclaration("spoc",3,true,true) );
 		storage.registerPredicate( new PredicateDeclaration("self",2,true,false) );
-		storage.registerPredicate( new PredicateDeclaration("subself",2,false,false) );
+		storage.registerPredicate( new PredicateDeclaration("subself",2,false,true) );
 		storage.registerPredicate( new PredicateDeclaration("inverseof",2,true,false) );
 	}
 
@@ -10,7 +10,6 @@ import edu.kit.aifb.orel.storage.StorageDriver;
 
 public class BasicKBReasoner {
 	protected StorageDriver storage;
-	protected long timerepair = 0;
 	protected long timetrans = 0;
 	
 	public BasicKBReasoner(StorageDriver storage) {
@@ -21,16 +20,11 @@ public class BasicKBReasoner {
 		HashMap<String,String> rules = new HashMap<String,String>();
 		// make the rule declaration as readable as possible;
 		// it is crucial to have this error free and customizable
-		rules.put("prop-1", "spo(x,z) :- spo(x,y,0), spo(y,z)");
 		rules.put("prop-2", "spoc(u,v2,w) :- spo(u,v1), spoc(v1,v2,w)");
 		rules.put("prop-3", "spoc(v1,u,w) :- spo(u,v2), spoc(v1,v2,w)");
 		
-		rules.put("trans-repair1",  "sco(x,z)  :- sco(x,y,0), sco(y,z,?,?)");
-		rules.put("trans-repair2",  "sco(x,z)  :- sco(x,y,?,?), sco(y,z,?,?)");
-		
 		rules.put("del-ref",  "-sco(x,x) :- ");
 		
-		rules.put("trans",  "sco(x,z)  :- sco(x,y,0), sco(y,z)");
 		rules.put("E",      "sco(x,z)  :- subconjunctionof(y1,y2,z), sco(x,y1), sco(x,y2)");
 		rules.put("E ref1", "sco(x,z)  :- subconjunctionof(x,y,z), sco(x,y)");
 		rules.put("E ref2", "sco(x,z)  :- subconjunctionof(y,x,z), sco(x,y)");
@@ -74,7 +68,7 @@ public class BasicKBReasoner {
 			System.out.println("###");
 			if (maxstep>=curstep_scotra) {
 				System.out.println(" Materialising transitivity for step " + curstep_scotra + "... ");
-				maxstep = materializeSubclassOfTransitivity(curstep_scotra);
+				maxstep = materializeSubclassOfTransitivity(maxstep+1);
 				storage.runRule("del-ref",curstep_scotra+1,maxstep); // clean up reflexive subClassOfs
 				curstep_scotra = maxstep + 1; // for now we are done; only future results will matter to scotra
 				System.out.println(" Done.");
@@ -97,16 +91,16 @@ public class BasicKBReasoner {
 					if (auxarows > 0 ) maxstep++;
 				}
 				if (affectedrows > 0) { // new sconl statements; update result of transitivity materialisation
-					System.out.println(" Number of rows affected in above rules: " + affectedrows + ". Starting sco repair for steps " + auxcurstep + " to " + curstep_sco + " ... ");
+					System.out.println(" Number of rows affected in above rules: " + affectedrows + ". Closing sco again after steps " + auxcurstep + " to " + curstep_sco + " ... ");
 					storage.runRule("del-ref",auxcurstep,curstep_sco); // clean up reflexive subClassOfs
-					// Before moving the new facts downwards to become base facts, make sure that the remaining rules have seen them:
+					// Before closing sco again, make sure that the remaining rules have seen the new facts:
 					affectedrows = storage.runRule("Hn",curstep_nonsco,curstep_sco);
 					affectedrows = affectedrows + storage.runRule("Jn",curstep_nonsco,curstep_sco);
 					curstep_nonsco = curstep_sco+1;
-					// now do the actual repair (and increase of maxstep)
-					maxstep = repairMaterializeSubclassOfTransitivity(auxcurstep,curstep_sco); // always increases step counter
+					// now recompute the closure (and increase of maxstep)
+					maxstep = materializeSubclassOfTransitivity(curstep_sco+1); // always increases step counter
 					storage.runRule("del-ref",curstep_sco+1,maxstep); // clean up reflexive subClassOfs
-					curstep_scotra = maxstep; // scotra can continue here
+					curstep_scotra = maxstep+1; // the closure is complete for now
 					System.out.println(" Done.");
 				}
 			} else { // this implies (maxstep>=curstep_nonsco)
@@ -125,7 +119,6 @@ public class BasicKBReasoner {
 		System.out.println("Done in " + (System.currentTimeMillis() - sTime) + "ms.");
 		System.out.println("Times used:");
 		System.out.println("Sco transitivity materialisation total: " + timetrans);
-		System.out.println("Sco repair total: " + timerepair);
 		storage.dumpStatistics();
 	}
 
@@ -142,92 +135,25 @@ public class BasicKBReasoner {
 	}
 	
 	protected void materializePropertyHierarchy() throws Exception {
-		int i = 1;
-		int affectedrows = 1;
-		while (affectedrows != 0 ) {
-			affectedrows = storage.runRule("prop-1", i-1, i-1);
-			i++;
-		}
-		storage.runRule("prop-2", i);
-		storage.runRule("prop-3", i);
+		storage.computeTransitiveClosure("spo", 1);
+		storage.runRule("prop-2", 2);
+		storage.runRule("prop-3", 2);
 	}
 
 	/**
-	 * Materialize all consequences of Rule D (transitivity of subclassOf) starting 
-	 * from the given step counter (inserting new results after this counter). The
-	 * operation performs steps until no more results are obtained, and it returns the
-	 * step counter of the last new results that have been added. Especially, the method
-	 * returns an unchanged step counter if no facts were added.
-	 * @param curstep The inference step whose results should be considered as "new" here.
+	 * Materialize all consequences of Rule D (transitivity of subclassOf) by
+	 * computing the transitive closure of sco in the storage. New results are
+	 * inserted with the given step value, which is returned if any facts were
+	 * added. Otherwise the method returns newstep-1.
+	 * @param newstep The step value for the new facts.
 	 * @return new step counter
-	 * @throws SQLException
+	 * @throws Exception
 	 */
-	protected int materializeSubclassOfTransitivity(int curstep) throws Exception {
+	protected int materializeSubclassOfTransitivity(int newstep) throws Exception {
 		long starttime = System.currentTimeMillis();
-		int affectedrows = 1;
-		while (affectedrows != 0 ) {
-			affectedrows = storage.runRule("trans",curstep,curstep);
-			curstep++;
-		}
+		int affectedrows = storage.computeTransitiveClosure("sco", newstep);
 		timetrans = timetrans + System.currentTimeMillis() - starttime;
-		return curstep-1;
-	}
-
-	/**
-	 * Materialize additional consequences of transitivity of subclassOf that would have been 
-	 * obtained up to this step if all sco facts that have been inserted at the given step would have 
-	 * been available as base facts. The operation performs enough steps to ensure that all those
-	 * conclusions are obtained, so that the normal materialization can continue at the returned step
-	 * value. The operation does not continue until staturation of the sco table w.r.t. transitivity
-	 * -- it just restores the assumed completeness of facts that are found in sco up to step. 
-	 * 
-	 * After this "repair" operation, all facts of level -1 so as to be taken into account for future
-	 * applications the transitivity rule.
-	 * @param step
-	 * @return new step counter
-	 * @throws SQLException
-	 */
-	protected int repairMaterializeSubclassOfTransitivity(int min_cur_step, int max_cur_step) throws Exception {
-		long starttime = System.currentTimeMillis();
-		// repeat all sco transitivity iterations that happened so far, but only recompute results that
-		// rely on the newly added facts
-		//System.out.print("    ");
-		int affectedrows, min_cstep=min_cur_step, max_cstep=max_cur_step;
-		int[] params1 = new int[2];
-		int[] params2 = new int[4];
-		params2[0] = min_cur_step;
-		params2[1] = max_cur_step;
-		boolean prevaffected = true;
-		for (int i=0; i<min_cur_step; i++) {
-			// join new base facts with old level i facts:
-			if (i == 0)	params2[2] = -1; else params2[2] = i; // include -1 for base case 
-			params2[3] = i;
-			affectedrows = storage.runRule("trans-repair2", max_cstep+1, params2 );
-			if (prevaffected) {
-				// joins with new level i facts only needed if new level i facts were added:
-				params2[2] = min_cstep;
-				params2[3] = max_cstep;
-				affectedrows = affectedrows + storage.runRule("trans-repair2" , max_cstep+1, params2 );
-				params1[0] = min_cstep;
-				params1[1] = max_cstep;
-				affectedrows = affectedrows + storage.runRule("trans-repair1" , max_cstep+1, params1 );
-			}
-			prevaffected = (affectedrows > 0);
-			if (prevaffected) {
-				max_cstep++;
-				min_cstep = max_cstep;
-				//System.out.print("(" + i + ":" + affectedrows + ")");
-			} else {
-				//System.out.print(".");
-			}
-		}
-		//System.out.println(" Done.");
-		// move the new facts down to the base level
-		for (int i=min_cur_step; i<=max_cur_step; i++) {
-			storage.changeStep("sco",i,-1);
-		}
-		timerepair = timerepair + System.currentTimeMillis() - starttime;
-		return max_cstep+1;
+		return (affectedrows > 0) ? newstep : newstep-1;
 	}
 	
 }
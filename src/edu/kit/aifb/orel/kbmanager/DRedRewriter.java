@@ -0,0 +1,341 @@
+package edu.kit.aifb.orel.kbmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
+/**
+ * Class for removing asserted facts from a materialized storage with the
+ * Delete and Rederive (DRed) method, so that the consequences of the
+ * remaining facts do not need to be computed again from scratch.
+ *
+ * For every predicate that may lose facts, a deletion predicate stores the
+ * facts that are deleted. It is initialized with the removed facts, and
+ * the overdeletion rules then find all derived facts that used some deleted
+ * fact in their derivation: for every rule and every body atom of a
+ * predicate that may lose facts, there is a rule that uses the deletion
+ * predicate for this atom and that derives the deletion predicate of the
+ * head, provided that the head fact is stored and was not asserted, since
+ * asserted facts are kept anyway. These rules are evaluated on the facts
+ * before the deletion. Next, the removed facts and all derived facts that
+ * are found in the deletion predicates are deleted; facts that were
+ * asserted are only deleted if they are removed, where the storage tells
+ * asserted facts from derived ones by their step. Some of the deleted facts may still be derivable in
+ * other ways, so the rederivation rules apply every rule once more to the
+ * remaining facts, restricted to deleted facts of its head. The rederived
+ * facts are given a new step, and materializing the rules from this step
+ * then finds all of their consequences, which completes the removal.
+ *
+ * All predicates that are the head of some rule must have steps. Facts
+ * that were asserted more than once, e.g. by several axioms, are only
+ * stored once, and are therefore removed even if only one of their
+ * assertions is removed.
+ * @author agent
+ */
+public class DRedRewriter {
+	protected ArrayList<InferenceRuleDeclaration> inferencerules;
+	protected HashMap<String,ArrayList<InferenceRuleDeclaration>> rulesbybody;
+	protected HashSet<String> derived; // heads of inference rules
+
+	// results of the last rewriting
+	protected HashMap<String,PredicateDeclaration> deletionpredicates; // indexed by the original predicates
+	protected ArrayList<InferenceRuleDeclaration> affectedrules; // rules with some body predicate that may lose facts
+	protected ArrayList<InferenceRuleDeclaration> rederivationrules;
+	protected ArrayList<PredicateAtom> seeds;
+
+	/**
+	 * Create a rewriter for the given inference rules.
+	 * @param inferencerules
+	 */
+	public DRedRewriter(Collection<InferenceRuleDeclaration> inferencerules) {
+		this.inferencerules = new ArrayList<InferenceRuleDeclaration>(inferencerules);
+		rulesbybody = new HashMap<String,ArrayList<InferenceRuleDeclaration>>();
+		derived = new HashSet<String>();
+		InferenceRuleDeclaration rd;
+		String predicate;
+		for (int i=0; i<this.inferencerules.size(); i++) {
+			rd = this.inferencerules.get(i);
+			derived.add(rd.getHead().getName());
+			for (int j=0; j<rd.getBody().size(); j++) {
+				predicate = rd.getBody().get(j).getName();
+				if (!rulesbybody.containsKey(predicate)) rulesbybody.put(predicate, new ArrayList<InferenceRuleDeclaration>());
+				if (!rulesbybody.get(predicate).contains(rd)) rulesbybody.get(predicate).add(rd);
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the rules for removing the given facts. The result is available
+	 * from getOverdeletionRules(int), getRederivationRules(),
+	 * getDeletionPredicates(), and getSeeds().
+	 * @param facts atoms that have only constant arguments
+	 */
+	public void rewrite(Collection<PredicateAtom> facts) {
+		deletionpredicates = new HashMap<String,PredicateDeclaration>();
+		affectedrules = new ArrayList<InferenceRuleDeclaration>();
+		rederivationrules = new ArrayList<InferenceRuleDeclaration>();
+		seeds = new ArrayList<PredicateAtom>();
+		// find all predicates that may lose facts
+		ArrayList<String> todo = new ArrayList<String>();
+		Iterator<PredicateAtom> factit = facts.iterator();
+		PredicateAtom fact;
+		while (factit.hasNext()) {
+			fact = factit.next();
+			if (!deletionpredicates.containsKey(fact.getName())) todo.add(fact.getName());
+			seeds.add(new PredicateAtom(getDeletionPredicate(fact), fact.getArguments()));
+		}
+		ArrayList<InferenceRuleDeclaration> rules;
+		InferenceRuleDeclaration rd;
+		HashSet<InferenceRuleDeclaration> affected = new HashSet<InferenceRuleDeclaration>();
+		while (!todo.isEmpty()) {
+			rules = rulesbybody.get(todo.remove(todo.size()-1));
+			if (rules == null) continue;
+			for (int i=0; i<rules.size(); i++) {
+				rd = rules.get(i);
+				affected.add(rd);
+				if (!deletionpredicates.containsKey(rd.getHead().getName())) {
+					getDeletionPredicate(rd.getHead());
+					todo.add(rd.getHead().getName());
+				}
+			}
+		}
+		// keep the order of the given rules, so that the rewriting does not depend on hashing
+		ArrayList<PredicateAtom> body;
+		for (int i=0; i<inferencerules.size(); i++) {
+			rd = inferencerules.get(i);
+			if (affected.contains(rd)) affectedrules.add(rd);
+			if (deletionpredicates.containsKey(rd.getHead().getName())) {
+				body = new ArrayList<PredicateAtom>(rd.getBody().size()+1);
+				body.add(new PredicateAtom(getDeletionPredicate(rd.getHead()), rd.getHead().getArguments()));
+				body.addAll(rd.getBody());
+				rederivationrules.add(new InferenceRuleDeclaration("dred-rederive:" + rd.getName(), body, rd.getHead(), InferenceRuleDeclaration.MODE_INFER));
+			}
+		}
+		LogWriter.get().printlnDebug("DRed rewriting for " + facts.size() + " fact(s): " + deletionpredicates.size() + " deletion predicate(s), " +
+		                             affectedrules.size() + " affected rule(s), " + rederivationrules.size() + " rederivation rule(s).");
+	}
+
+	/**
+	 * Get the name of the deletion predicate for the predicate of the given
+	 * atom, and make sure that it is declared.
+	 * @param atom
+	 * @return
+	 */
+	protected String getDeletionPredicate(PredicateAtom atom) {
+		if (!deletionpredicates.containsKey(atom.getName())) {
+			deletionpredicates.put(atom.getName(), new PredicateDeclaration("del_" + atom.getName(), atom.getArguments().size(), true, false));
+		}
+		return deletionpredicates.get(atom.getName()).getName();
+	}
+
+	/**
+	 * Get the rules that find the derived facts that may have to be deleted.
+	 * Only facts with steps from 1 to the given step are considered, since
+	 * other facts were asserted and are not deleted unless they are removed.
+	 * Facts that were asserted while loading with some other step may still
+	 * be found, which is not a problem since they are rederived later.
+	 * @param maxstep the largest step of any fact before the seeds were added
+	 * @return
+	 */
+	public ArrayList<InferenceRuleDeclaration> getOverdeletionRules(int maxstep) {
+		ArrayList<InferenceRuleDeclaration> result = new ArrayList<InferenceRuleDeclaration>();
+		InferenceRuleDeclaration rd;
+		PredicateAtom atom;
+		ArrayList<PredicateAtom> body;
+		ArrayList<PredicateTerm> headarguments;
+		for (int i=0; i<affectedrules.size(); i++) {
+			rd = affectedrules.get(i);
+			headarguments = new ArrayList<PredicateTerm>(rd.getHead().getArguments());
+			headarguments.add(new PredicateTerm("1", false));
+			headarguments.add(new PredicateTerm(String.valueOf(maxstep), false));
+			for (int j=0; j<rd.getBody().size(); j++) {
+				atom = rd.getBody().get(j);
+				if (!deletionpredicates.containsKey(atom.getName())) continue; // includes built-ins
+				body = new ArrayList<PredicateAtom>(rd.getBody());
+				body.set(j, new PredicateAtom(getDeletionPredicate(atom), atom.getArguments()));
+				body.add(new PredicateAtom(rd.getHead().getName(), headarguments));
+				result.add(new InferenceRuleDeclaration("dred-overdelete:" + rd.getName() + ":" + j, body,
+						new PredicateAtom(getDeletionPredicate(rd.getHead()), rd.getHead().getArguments()),
+						InferenceRuleDeclaration.MODE_INFER));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the rules that restore deleted facts that can still be derived.
+	 * @return
+	 */
+	public ArrayList<InferenceRuleDeclaration> getRederivationRules() {
+		return rederivationrules;
+	}
+
+	/**
+	 * Get the declarations of the deletion predicates used in the last
+	 * rewriting.
+	 * @return
+	 */
+	public Collection<PredicateDeclaration> getDeletionPredicates() {
+		return deletionpredicates.values();
+	}
+
+	/**
+	 * Get the facts for deletion predicates that must be asserted before the
+	 * overdeletion rules are materialized.
+	 * @return
+	 */
+	public ArrayList<PredicateAtom> getSeeds() {
+		return seeds;
+	}
+
+	/**
+	 * Delete the facts of the last rewriting from the given storage, together
+	 * with all derived facts that are no longer derivable, and rederive the
+	 * deleted facts that are still derivable by applying every rule once.
+	 * The rederived facts are given a new step, and the inference rules must
+	 * be materialized from this step afterwards to find their consequences.
+	 * The inference rules must be registered with the storage already. The
+	 * rewritten rules are unregistered and the deletion predicates are
+	 * dropped when done.
+	 * @param storage
+	 * @return the step of the rederived facts
+	 * @throws Exception
+	 */
+	public int remove(StorageDriver storage) throws Exception {
+		Iterator<PredicateDeclaration> predit = deletionpredicates.values().iterator();
+		while (predit.hasNext()) {
+			storage.registerPredicate(predit.next());
+		}
+		storage.initialize();
+		predit = deletionpredicates.values().iterator();
+		while (predit.hasNext()) {
+			storage.clear(predit.next().getName(), false);
+		}
+		// steps of derived facts are above 0 and up to the current largest step
+		int maxstep = storage.getMaxStep();
+		ArrayList<Integer> loadsteps = new ArrayList<Integer>(storage.getLoadSteps());
+		Collections.sort(loadsteps);
+		// the seeds get steps above all other facts, so that the overdeletion rules can start from them
+		PredicateAtom seed;
+		int[] ids;
+		storage.beginLoading(); // seeds are loaded like other facts, so that watermarks are kept
+		for (int i=0; i<seeds.size(); i++) {
+			seed = seeds.get(i);
+			ids = new int[seed.getArguments().size()];
+			for (int j=0; j<ids.length; j++) {
+				ids[j] = Integer.parseInt(seed.getArguments().get(j).getValue());
+			}
+			storage.makePredicateAssertion(seed.getName(), ids);
+		}
+		storage.endLoading();
+		predit = deletionpredicates.values().iterator();
+		while (predit.hasNext()) {
+			storage.changeStep(predit.next().getName(), 0, maxstep+1);
+		}
+		storage.commit();
+		int seedstep = storage.getMaxStep();
+
+		ArrayList<InferenceRuleDeclaration> temporaryrules = new ArrayList<InferenceRuleDeclaration>();
+		int deleted = 0, rederived = 0, newstep;
+		try {
+			// overdeletion
+			RuleScheduler scheduler = new RuleScheduler(storage);
+			ArrayList<InferenceRuleDeclaration> overdeletionrules = getOverdeletionRules(maxstep);
+			temporaryrules.addAll(overdeletionrules);
+			for (int i=0; i<overdeletionrules.size(); i++) {
+				storage.registerInferenceRule(overdeletionrules.get(i));
+				scheduler.addRule(overdeletionrules.get(i));
+			}
+			scheduler.materialize(maxstep+1);
+
+			// deletion
+			ArrayList<InferenceRuleDeclaration> deletionrules = getDeletionRules(maxstep, seedstep, loadsteps);
+			temporaryrules.addAll(deletionrules);
+			for (int i=0; i<deletionrules.size(); i++) {
+				storage.registerInferenceRule(deletionrules.get(i));
+				deleted = deleted + storage.runRule(deletionrules.get(i).getName(), 0);
+			}
+
+			// rederivation
+			newstep = storage.getMaxStep()+1;
+			temporaryrules.addAll(rederivationrules);
+			for (int i=0; i<rederivationrules.size(); i++) {
+				storage.registerInferenceRule(rederivationrules.get(i));
+				rederived = rederived + storage.runRule(rederivationrules.get(i).getName(), newstep);
+			}
+		} finally { // the rewritten rules and the deletion predicates are not needed any more
+			for (int i=0; i<temporaryrules.size(); i++) {
+				storage.unregisterInferenceRule(temporaryrules.get(i).getName());
+			}
+			predit = deletionpredicates.values().iterator();
+			while (predit.hasNext()) {
+				storage.drop(predit.next().getName());
+			}
+		}
+		storage.commit();
+		LogWriter.get().printlnDebug("DRed removal of " + seeds.size() + " fact(s): " + deleted + " fact(s) deleted, " + rederived + " fact(s) rederived.");
+		return newstep;
+	}
+
+	/**
+	 * Make the retraction rules that delete the facts of the deletion
+	 * predicates. Derived facts are deleted if they are in the deletion
+	 * predicate, while other facts are only deleted if they are removed, i.e.
+	 * if they are among the seeds.
+	 * @param maxstep the largest step of any fact before the seeds were added
+	 * @param seedstep the largest step of the seeds
+	 * @param loadsteps the steps of asserted facts other than 0, in ascending order
+	 * @return
+	 */
+	protected ArrayList<InferenceRuleDeclaration> getDeletionRules(int maxstep, int seedstep, ArrayList<Integer> loadsteps) {
+		ArrayList<InferenceRuleDeclaration> result = new ArrayList<InferenceRuleDeclaration>();
+		Iterator<String> predit = deletionpredicates.keySet().iterator();
+		String predicate;
+		PredicateDeclaration pd;
+		ArrayList<PredicateTerm> arguments, bodyarguments;
+		ArrayList<PredicateAtom> body;
+		int lower, upper;
+		while (predit.hasNext()) {
+			predicate = predit.next();
+			pd = deletionpredicates.get(predicate);
+			arguments = new ArrayList<PredicateTerm>(pd.getFieldCount()+2);
+			for (int i=0; i<pd.getFieldCount(); i++) {
+				arguments.add(new PredicateTerm("x" + i, true));
+			}
+			// removed facts, with any step
+			bodyarguments = new ArrayList<PredicateTerm>(arguments);
+			bodyarguments.add(new PredicateTerm(String.valueOf(maxstep+1), false));
+			bodyarguments.add(new PredicateTerm(String.valueOf(seedstep), false));
+			body = new ArrayList<PredicateAtom>(1);
+			body.add(new PredicateAtom(pd.getName(), bodyarguments));
+			result.add(new InferenceRuleDeclaration("dred-delete:" + predicate, body, new PredicateAtom(predicate, arguments), InferenceRuleDeclaration.MODE_RETRACT));
+			if (!derived.contains(predicate)) continue;
+			// derived facts, with any step between the steps of asserted facts
+			lower = 1;
+			for (int i=0; i<=loadsteps.size(); i++) {
+				upper = (i < loadsteps.size()) ? Math.min(loadsteps.get(i)-1, maxstep) : maxstep;
+				if (lower <= upper) {
+					bodyarguments = new ArrayList<PredicateTerm>(arguments);
+					bodyarguments.add(new PredicateTerm(String.valueOf(lower), false));
+					bodyarguments.add(new PredicateTerm(String.valueOf(upper), false));
+					body = new ArrayList<PredicateAtom>(1);
+					body.add(new PredicateAtom(pd.getName(), arguments));
+					result.add(new InferenceRuleDeclaration("dred-delete:" + predicate + ":" + lower, body,
+							new PredicateAtom(predicate, bodyarguments), InferenceRuleDeclaration.MODE_RETRACT));
+				}
+				if (i < loadsteps.size()) lower = loadsteps.get(i)+1;
+			}
+		}
+		return result;
+	}
+}
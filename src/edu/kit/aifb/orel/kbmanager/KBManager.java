@@ -11,6 +11,8 @@ public abstract class KBManager {
 	    YES, NO, DONTKNOW 
 	}
 	protected StorageDriver storage;
+	protected boolean goaldirected = false;
+	protected boolean incremental = false;
 	
 	public static KBManager getKBManager(String name, StorageDriver storage) {
 		name = name.toLowerCase(); // compare case insensitive
@@ -29,6 +31,27 @@ public abstract class KBManager {
 		this.storage = storage;
 	}
 
+	/**
+	 * Enable or disable goal-directed entailment checking, where only the
+	 * consequences that are relevant for the checked ontology are computed.
+	 * Managers that do not support this ignore the setting.
+	 * @param goaldirected
+	 */
+	public void setGoalDirected(boolean goaldirected) {
+		this.goaldirected = goaldirected;
+	}
+
+	/**
+	 * Enable or disable incremental materialization, where rules are only
+	 * applied to facts that were loaded or derived since the last
+	 * incremental materialization. Managers that do not support this ignore
+	 * the setting.
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
 	/**
 	 * Prepare the storage for loading and reasoning by initializing the
 	 * necessary structures (e.g. database tables) and contents (e.g. static
@@ -46,6 +69,18 @@ public abstract class KBManager {
 	 */
 	public abstract boolean loadOntology(OWLOntology ontology) throws Exception;
 
+	/**
+	 * Remove the given ontology from the storage, i.e. delete the facts that
+	 * loading it has asserted together with all materialized consequences
+	 * that do not follow from the remaining content. The materialization is
+	 * updated without computing it again. Facts that were also asserted when
+	 * loading other ontologies are removed as well.
+	 * @param ontology
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract boolean removeOntology(OWLOntology ontology) throws Exception;
+
 	/**
 	 * Compute and store all logical consequences of the loaded ontology data
 	 * for easier querying, or update any earlier materialization based on new
@@ -0,0 +1,496 @@
+package edu.kit.aifb.orel.kbmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
+/**
+ * Class for rewriting inference rules with magic sets, so that their
+ * materialization only derives facts that are relevant for checking a given
+ * set of goal atoms. Goals are ground atoms as asked for by
+ * StorageDriver.checkPredicateAssertion().
+ *
+ * Each derived predicate is considered with adornments that specify which of
+ * its arguments are bound ("b") or free ("f"). For every adornment that is
+ * needed, a magic predicate stores the values of the bound arguments that
+ * are relevant. At most one argument is bound in each adornment, so that
+ * magic predicates never contain combinations of values. Rules are restricted by the magic predicate of their head,
+ * and additional rules compute the magic predicates of their body atoms,
+ * where bindings are passed on by choosing the atom with most bound arguments
+ * as the next atom. Unlike the textbook version
+ * of the method, the rewritten rules still write to the original predicates
+ * instead of using one predicate per adornment. This may derive some more
+ * facts than needed, but all derived facts are correct, and the storage can
+ * keep using its existing tables.
+ *
+ * Check rules are not used in materialization, but they tell which facts
+ * are needed when the goals are checked, so they are used to compute magic
+ * predicates. Rules where no variable of the head is bound are not
+ * restricted, and neither are transitivity rules, since the storage
+ * computes their result in one operation anyway.
+ * @author agent
+ */
+public class MagicSetRewriter {
+	protected HashMap<String,ArrayList<InferenceRuleDeclaration>> rulesbyhead; // inference and check rules
+	protected HashSet<String> derived; // heads of inference rules
+
+	// results of the last rewriting
+	protected HashMap<String,PredicateDeclaration> magicpredicates;
+	protected ArrayList<InferenceRuleDeclaration> restrictedrules;
+	protected ArrayList<InferenceRuleDeclaration> magicrules;
+	protected ArrayList<String> magicrulesources; // rule and head adornment that each magic rule was made for
+	protected HashSet<String> freerules; // names of rules that were rewritten without any bound head variable
+	protected HashSet<String> unrestricted; // names of rules that are kept as they are
+	protected ArrayList<InferenceRuleDeclaration> unrestrictedrules;
+	protected ArrayList<PredicateAtom> seeds;
+	protected HashSet<String> seedkeys;
+
+	/**
+	 * Create a rewriter for the given inference rules, where the given check
+	 * rules are also used when checking goals.
+	 * @param inferencerules
+	 * @param checkrules
+	 */
+	public MagicSetRewriter(Collection<InferenceRuleDeclaration> inferencerules, Collection<InferenceRuleDeclaration> checkrules) {
+		rulesbyhead = new HashMap<String,ArrayList<InferenceRuleDeclaration>>();
+		derived = new HashSet<String>();
+		Iterator<InferenceRuleDeclaration> ruleit = inferencerules.iterator();
+		InferenceRuleDeclaration rd;
+		while (ruleit.hasNext()) {
+			rd = ruleit.next();
+			derived.add(rd.getHead().getName());
+			addRule(rd);
+		}
+		ruleit = checkrules.iterator();
+		while (ruleit.hasNext()) {
+			addRule(ruleit.next());
+		}
+	}
+
+	protected void addRule(InferenceRuleDeclaration rd) {
+		String head = rd.getHead().getName();
+		if (!rulesbyhead.containsKey(head)) rulesbyhead.put(head, new ArrayList<InferenceRuleDeclaration>());
+		rulesbyhead.get(head).add(rd);
+	}
+
+	/**
+	 * Rewrite the rules for the given goals. The result is available from
+	 * getRules(), getMagicPredicates(), and getSeeds().
+	 * @param goals atoms that have only constant arguments
+	 */
+	public void rewrite(Collection<PredicateAtom> goals) {
+		magicpredicates = new HashMap<String,PredicateDeclaration>();
+		restrictedrules = new ArrayList<InferenceRuleDeclaration>();
+		magicrules = new ArrayList<InferenceRuleDeclaration>();
+		magicrulesources = new ArrayList<String>();
+		freerules = new HashSet<String>();
+		unrestricted = new HashSet<String>();
+		unrestrictedrules = new ArrayList<InferenceRuleDeclaration>();
+		seeds = new ArrayList<PredicateAtom>();
+		seedkeys = new HashSet<String>();
+		LinkedList<String> todo = new LinkedList<String>(); // entries are "predicate/adornment"
+		HashSet<String> done = new HashSet<String>();
+		Iterator<PredicateAtom> goalit = goals.iterator();
+		PredicateAtom goal;
+		String adornment;
+		while (goalit.hasNext()) {
+			goal = goalit.next();
+			if (!rulesbyhead.containsKey(goal.getName())) continue; // nothing to derive or check
+			adornment = getAdornment(goal, getBoundPosition(goal, new HashSet<String>()));
+			addSeed(goal.getName(), adornment, getBoundArguments(goal, adornment));
+			if (done.add(goal.getName() + "/" + adornment)) todo.add(goal.getName() + "/" + adornment);
+		}
+		String entry, predicate;
+		ArrayList<InferenceRuleDeclaration> rules;
+		while (!todo.isEmpty()) {
+			entry = todo.removeFirst();
+			predicate = entry.substring(0, entry.lastIndexOf('/'));
+			adornment = entry.substring(entry.lastIndexOf('/')+1);
+			rules = rulesbyhead.get(predicate);
+			if (rules == null) continue;
+			for (int i=0; i<rules.size(); i++) {
+				rewriteRule(rules.get(i), adornment, todo, done);
+			}
+		}
+		// restricted versions of unrestricted rules are not needed
+		for (int i=restrictedrules.size()-1; i>=0; i--) {
+			if (unrestricted.contains(restrictedrules.get(i).getName().substring(0, restrictedrules.get(i).getName().lastIndexOf('@')))) {
+				restrictedrules.remove(i);
+			}
+		}
+		// magic rules of rules without bound head variables cover all other magic rules of the same rule
+		for (int i=magicrules.size()-1; i>=0; i--) {
+			if ( freerules.contains(magicrulesources.get(i).substring(0, magicrulesources.get(i).lastIndexOf('@'))) &&
+			     !freerules.contains(magicrulesources.get(i)) ) {
+				magicrules.remove(i);
+				magicrulesources.remove(i);
+			}
+		}
+		removeUnusedMagicRules();
+		LogWriter.get().printlnDebug("Magic set rewriting for " + goals.size() + " goal(s): " + unrestrictedrules.size() + " unrestricted rule(s), " +
+		                             restrictedrules.size() + " restricted rule(s), " + magicrules.size() + " magic rule(s), " + seeds.size() + " seed(s).");
+	}
+
+	/**
+	 * Rewrite one rule for the given adornment of its head.
+	 * @param rd
+	 * @param adornment
+	 * @param todo adornments of derived predicates that still need to be processed
+	 * @param done adornments of derived predicates that have been found already
+	 */
+	protected void rewriteRule(InferenceRuleDeclaration rd, String adornment, LinkedList<String> todo, HashSet<String> done) {
+		PredicateAtom head = rd.getHead();
+		HashSet<String> bound = new HashSet<String>();
+		ArrayList<PredicateTerm> guardargs = new ArrayList<PredicateTerm>();
+		for (int i=0; i<head.getArguments().size(); i++) {
+			if (adornment.charAt(i) == 'b') {
+				guardargs.add(head.getArguments().get(i));
+				if (head.getArguments().get(i).isVariable()) bound.add(head.getArguments().get(i).getValue());
+			}
+		}
+		PredicateAtom guard = null;
+		ArrayList<PredicateAtom> prefix = new ArrayList<PredicateAtom>();
+		if (!bound.isEmpty()) { // guards without variables would only restrict the rule to the goals' constants
+			guard = new PredicateAtom(getMagicPredicate(head.getName(), adornment), guardargs);
+			prefix.add(guard);
+		} else {
+			freerules.add(rd.getName());
+			freerules.add(rd.getName() + "@" + adornment);
+		}
+		PredicateAtom atom;
+		String bodyadornment;
+		ArrayList<PredicateTerm> magicargs;
+		boolean constant;
+		ArrayList<Integer> order = getBindingOrder(rd, bound, done);
+		int i;
+		for (int k=0; k<order.size(); k++) {
+			i = order.get(k);
+			atom = rd.getBody().get(i);
+			if (derived.contains(atom.getName())) {
+				bodyadornment = getAdornment(atom, getBoundPosition(atom, bound));
+				magicargs = getBoundArguments(atom, bodyadornment);
+				constant = true;
+				for (int j=0; j<magicargs.size(); j++) {
+					if (magicargs.get(j).isVariable()) constant = false;
+				}
+				if (constant) { // includes the case without bound arguments
+					addSeed(atom.getName(), bodyadornment, magicargs);
+				} else {
+					magicrules.add(new InferenceRuleDeclaration("magic:" + rd.getName() + "@" + adornment + ":" + i,
+							getConnectedAtoms(prefix, magicargs),
+							new PredicateAtom(getMagicPredicate(atom.getName(), bodyadornment), magicargs),
+							InferenceRuleDeclaration.MODE_INFER));
+					magicrulesources.add(rd.getName() + "@" + adornment);
+				}
+				if (done.add(atom.getName() + "/" + bodyadornment)) todo.add(atom.getName() + "/" + bodyadornment);
+			}
+			prefix.add(atom);
+			for (int j=0; j<atom.getArguments().size(); j++) {
+				if (atom.getArguments().get(j).isVariable()) bound.add(atom.getArguments().get(j).getValue());
+			}
+		}
+		if (rd.getMode() != InferenceRuleDeclaration.MODE_INFER) return; // check rules are only used for finding goals
+		if ( (guard == null) || RuleScheduler.isTransitivityRule(rd) ) {
+			if (unrestricted.add(rd.getName())) unrestrictedrules.add(rd);
+		} else {
+			ArrayList<PredicateAtom> body = new ArrayList<PredicateAtom>(rd.getBody().size()+1);
+			body.add(guard);
+			body.addAll(rd.getBody());
+			restrictedrules.add(new InferenceRuleDeclaration(rd.getName() + "@" + adornment, body, head, rd.getMode()));
+		}
+	}
+
+	/**
+	 * Get the atoms of the given list that are connected to the variables of
+	 * the given arguments, directly or through other atoms with shared
+	 * variables. Other atoms do not restrict the values of these variables
+	 * and only check that some facts exist, so they can be omitted from the
+	 * body of a magic rule.
+	 * @param atoms
+	 * @param arguments
+	 * @return
+	 */
+	protected ArrayList<PredicateAtom> getConnectedAtoms(ArrayList<PredicateAtom> atoms, ArrayList<PredicateTerm> arguments) {
+		HashSet<String> variables = new HashSet<String>();
+		for (int j=0; j<arguments.size(); j++) {
+			if (arguments.get(j).isVariable()) variables.add(arguments.get(j).getValue());
+		}
+		boolean[] connected = new boolean[atoms.size()];
+		boolean changed = true, shared;
+		ArrayList<PredicateTerm> atomargs;
+		while (changed) {
+			changed = false;
+			for (int i=0; i<atoms.size(); i++) {
+				if (connected[i]) continue;
+				atomargs = atoms.get(i).getArguments();
+				shared = false;
+				for (int j=0; j<atomargs.size(); j++) {
+					if (atomargs.get(j).isVariable() && variables.contains(atomargs.get(j).getValue())) shared = true;
+				}
+				if (shared) {
+					connected[i] = true;
+					changed = true;
+					for (int j=0; j<atomargs.size(); j++) {
+						if (atomargs.get(j).isVariable()) variables.add(atomargs.get(j).getValue());
+					}
+				}
+			}
+		}
+		ArrayList<PredicateAtom> result = new ArrayList<PredicateAtom>();
+		for (int i=0; i<atoms.size(); i++) {
+			if (connected[i]) result.add(atoms.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Remove magic rules for magic predicates that are not used in any of the
+	 * remaining rules. This happens when all rules of a predicate turned out
+	 * to be unrestricted.
+	 */
+	protected void removeUnusedMagicRules() {
+		boolean changed = true;
+		HashSet<String> used;
+		while (changed) {
+			used = new HashSet<String>();
+			for (int i=0; i<restrictedrules.size(); i++) {
+				used.add(restrictedrules.get(i).getBody().get(0).getName()); // the guard
+			}
+			for (int i=0; i<magicrules.size(); i++) {
+				for (int j=0; j<magicrules.get(i).getBody().size(); j++) {
+					used.add(magicrules.get(i).getBody().get(j).getName());
+				}
+			}
+			changed = false;
+			for (int i=magicrules.size()-1; i>=0; i--) {
+				if (!used.contains(magicrules.get(i).getHead().getName())) {
+					magicrules.remove(i);
+					magicrulesources.remove(i);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the order in which bindings are passed through the body of a rule,
+	 * given the variables that are bound by the head. The next atom is always
+	 * one with the largest number of bound arguments, where atoms of
+	 * predicates that are not derived are preferred if this number is equal.
+	 * Among atoms without bound arguments, atoms of predicates that are
+	 * needed without any bindings anyway are preferred, since they do not
+	 * lead to additional derivations. Built-ins are omitted, since they do not
+	 * bind variables.
+	 * @param rd
+	 * @param headbound
+	 * @param done adornments of derived predicates that have been found already
+	 * @return positions of body atoms
+	 */
+	protected ArrayList<Integer> getBindingOrder(InferenceRuleDeclaration rd, HashSet<String> headbound, HashSet<String> done) {
+		HashSet<String> bound = new HashSet<String>(headbound);
+		ArrayList<Integer> remaining = new ArrayList<Integer>();
+		for (int i=0; i<rd.getBody().size(); i++) {
+			if (!rd.getBody().get(i).getName().equals("orel:distinct")) remaining.add(i);
+		}
+		ArrayList<Integer> result = new ArrayList<Integer>(remaining.size());
+		PredicateAtom atom;
+		int best, bestscore, score;
+		while (!remaining.isEmpty()) {
+			best = 0;
+			bestscore = -1;
+			for (int k=0; k<remaining.size(); k++) {
+				atom = rd.getBody().get(remaining.get(k));
+				score = 0;
+				for (int j=0; j<atom.getArguments().size(); j++) {
+					if ( !atom.getArguments().get(j).isVariable() || bound.contains(atom.getArguments().get(j).getValue()) ) score++;
+				}
+				if ( (score == 0) && derived.contains(atom.getName()) && done.contains(atom.getName() + "/" + getFreeAdornment(atom)) ) {
+					score = 1;
+				} else {
+					score = 3*score + (derived.contains(atom.getName()) ? 0 : 2);
+				}
+				if (score > bestscore) {
+					best = k;
+					bestscore = score;
+				}
+			}
+			atom = rd.getBody().get(remaining.get(best));
+			for (int j=0; j<atom.getArguments().size(); j++) {
+				if (atom.getArguments().get(j).isVariable()) bound.add(atom.getArguments().get(j).getValue());
+			}
+			result.add(remaining.remove(best));
+		}
+		return result;
+	}
+
+	/**
+	 * Find the argument of the atom that should be bound when the given
+	 * variables are bound. At most one argument is bound, since magic
+	 * predicates for several bound arguments can become much larger than the
+	 * predicates that they restrict: they would contain all combinations of
+	 * relevant values. Variables are preferred over constants, since the
+	 * latter do not pass on any bindings.
+	 * @param atom
+	 * @param bound
+	 * @return the position of the argument, or -1 if no argument is bound
+	 */
+	protected static int getBoundPosition(PredicateAtom atom, HashSet<String> bound) {
+		int result = -1;
+		PredicateTerm term;
+		for (int j=0; j<atom.getArguments().size(); j++) {
+			term = atom.getArguments().get(j);
+			if (term.isVariable() && bound.contains(term.getValue())) {
+				return j;
+			} else if (!term.isVariable() && (result < 0)) {
+				result = j;
+			}
+		}
+		return result;
+	}
+
+	protected static String getAdornment(PredicateAtom atom, int boundposition) {
+		String result = "";
+		for (int j=0; j<atom.getArguments().size(); j++) {
+			result = result + ((j == boundposition) ? "b" : "f");
+		}
+		return result;
+	}
+
+	protected static ArrayList<PredicateTerm> getBoundArguments(PredicateAtom atom, String adornment) {
+		ArrayList<PredicateTerm> result = new ArrayList<PredicateTerm>();
+		for (int j=0; j<atom.getArguments().size(); j++) {
+			if (adornment.charAt(j) == 'b') result.add(atom.getArguments().get(j));
+		}
+		return result;
+	}
+
+	protected static String getFreeAdornment(PredicateAtom atom) {
+		String result = "";
+		for (int j=0; j<atom.getArguments().size(); j++) {
+			result = result + "f";
+		}
+		return result;
+	}
+
+	/**
+	 * Record that the magic predicate for the given adornment must contain the
+	 * given constants. Nothing needs to be done if no argument is bound.
+	 * @param predicate
+	 * @param adornment
+	 * @param arguments the constant arguments at the bound positions
+	 */
+	protected void addSeed(String predicate, String adornment, ArrayList<PredicateTerm> arguments) {
+		if (arguments.isEmpty()) return;
+		String magicpredicate = getMagicPredicate(predicate, adornment);
+		String key = magicpredicate;
+		for (int i=0; i<arguments.size(); i++) {
+			key = key + "," + arguments.get(i).getValue();
+		}
+		if (seedkeys.add(key)) seeds.add(new PredicateAtom(magicpredicate, arguments));
+	}
+
+	/**
+	 * Get the name of the magic predicate for the given adornment of a
+	 * predicate, and make sure that it is declared.
+	 * @param predicate
+	 * @param adornment
+	 * @return
+	 */
+	protected String getMagicPredicate(String predicate, String adornment) {
+		String name = "magic_" + predicate + "_" + adornment;
+		if (!magicpredicates.containsKey(name)) {
+			magicpredicates.put(name, new PredicateDeclaration(name, adornment.replace("f","").length(), true, false));
+		}
+		return name;
+	}
+
+	/**
+	 * Get all rules that should be materialized for the goals of the last
+	 * rewriting.
+	 * @return
+	 */
+	public ArrayList<InferenceRuleDeclaration> getRules() {
+		ArrayList<InferenceRuleDeclaration> result = new ArrayList<InferenceRuleDeclaration>(unrestrictedrules);
+		result.addAll(restrictedrules);
+		result.addAll(magicrules);
+		return result;
+	}
+
+	/**
+	 * Get the declarations of the magic predicates used in the last rewriting.
+	 * @return
+	 */
+	public Collection<PredicateDeclaration> getMagicPredicates() {
+		return magicpredicates.values();
+	}
+
+	/**
+	 * Get the facts for magic predicates that must be asserted before the
+	 * rewritten rules are materialized.
+	 * @return
+	 */
+	public ArrayList<PredicateAtom> getSeeds() {
+		return seeds;
+	}
+
+	/**
+	 * Materialize the rules of the last rewriting on the given storage. Magic
+	 * predicates are registered and initialized with the seed facts first;
+	 * previous contents of magic predicates are deleted. When done, the
+	 * rewritten rules are unregistered and the magic predicates are dropped,
+	 * so that only the derived facts of the original predicates remain.
+	 * @param storage
+	 * @throws Exception
+	 */
+	public void materialize(StorageDriver storage) throws Exception {
+		Iterator<PredicateDeclaration> predit = magicpredicates.values().iterator();
+		while (predit.hasNext()) {
+			storage.registerPredicate(predit.next());
+		}
+		storage.initialize();
+		predit = magicpredicates.values().iterator();
+		while (predit.hasNext()) {
+			storage.clear(predit.next().getName(), false);
+		}
+		PredicateAtom seed;
+		int[] ids;
+		storage.beginLoading(); // seeds are loaded like other facts, so that watermarks are kept
+		for (int i=0; i<seeds.size(); i++) {
+			seed = seeds.get(i);
+			ids = new int[seed.getArguments().size()];
+			for (int j=0; j<ids.length; j++) {
+				ids[j] = Integer.parseInt(seed.getArguments().get(j).getValue());
+			}
+			storage.makePredicateAssertion(seed.getName(), ids);
+		}
+		storage.endLoading();
+		storage.commit();
+		RuleScheduler scheduler = new RuleScheduler(storage);
+		ArrayList<InferenceRuleDeclaration> rules = getRules();
+		try {
+			for (int i=0; i<rules.size(); i++) {
+				storage.registerInferenceRule(rules.get(i));
+				scheduler.addRule(rules.get(i));
+			}
+			scheduler.materialize();
+		} finally {
+			for (int i=0; i<rules.size(); i++) { // unrestricted rules are the registered inference rules
+				if (!unrestricted.contains(rules.get(i).getName())) storage.unregisterInferenceRule(rules.get(i).getName());
+			}
+			predit = magicpredicates.values().iterator();
+			while (predit.hasNext()) {
+				storage.drop(predit.next().getName());
+			}
+		}
+	}
+}
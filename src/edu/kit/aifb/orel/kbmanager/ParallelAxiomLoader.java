@@ -0,0 +1,129 @@
+package edu.kit.aifb.orel.kbmanager;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.semanticweb.owlapi.model.OWLAxiomVisitorEx;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLLogicalAxiom;
+
+import uk.ac.manchester.cs.owl.owlapi.OWLDataFactoryImpl;
+
+import edu.kit.aifb.orel.client.LogWriter;
+
+/**
+ * Class for visiting the logical axioms of an ontology on several threads,
+ * as done by the loaders. The axioms are split into chunks, and every worker
+ * takes the next chunk that has not been visited yet until all are done.
+ * Workers do not share visitors: each of them gets its own visitor from
+ * createVisitor(), with its own data factory since OWLDataFactory is not
+ * known to be thread-safe, so that the visitors only share the storage
+ * driver. The
+ * storage thus has to allow concurrent calls when more than one thread is
+ * used (see StorageDriver.getParallelism()). With one thread, all axioms are
+ * visited in the order of the ontology on the calling thread.
+ *
+ * As in sequential loading, all axioms are visited if facts are written,
+ * whereas checking stops at the first axiom that is not entailed.
+ * @author agent
+ */
+public abstract class ParallelAxiomLoader {
+	// chunks are at least this large, so that small ontologies use fewer threads
+	static final protected int MIN_CHUNK_SIZE = 100;
+	// chunks per thread, so that threads that are done early can take over work of others
+	static final protected int CHUNKS_PER_THREAD = 8;
+
+	protected int threads;
+	protected boolean writing;
+	protected boolean warn;
+	protected volatile boolean failed = false;
+	protected AtomicInteger count = new AtomicInteger(0);
+
+	/**
+	 * Create a new loader.
+	 * @param threads the largest number of threads to use
+	 * @param writing true if all axioms should be visited even if some of them fail
+	 * @param warn true if axioms that fail should be reported as unsupported
+	 */
+	public ParallelAxiomLoader(int threads, boolean writing, boolean warn) {
+		this.threads = threads;
+		this.writing = writing;
+		this.warn = warn;
+	}
+
+	/**
+	 * Create a visitor for the axioms. This is called once by every worker.
+	 * @param datafactory the data factory that the visitor should use; it is
+	 * not used by any other worker
+	 * @return
+	 */
+	abstract protected OWLAxiomVisitorEx<Boolean> createVisitor(OWLDataFactory datafactory);
+
+	/**
+	 * Visit all the given axioms.
+	 * @param axiomset
+	 * @param datafactory the data factory of the ontology, which is used
+	 * when the axioms are visited on the calling thread
+	 * @return true if all axioms were processed successfully
+	 * @throws Exception
+	 */
+	public boolean processAxioms(Set<OWLLogicalAxiom> axiomset, OWLDataFactory datafactory) throws Exception {
+		final ArrayList<OWLLogicalAxiom> axioms = new ArrayList<OWLLogicalAxiom>(axiomset);
+		int workers = Math.min(threads, (axioms.size() + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE);
+		if (workers <= 1) {
+			visitAxioms(createVisitor(datafactory), axioms, 0, axioms.size());
+		} else {
+			final int chunksize = Math.max(MIN_CHUNK_SIZE, axioms.size() / (workers * CHUNKS_PER_THREAD) + 1);
+			final AtomicInteger nextchunk = new AtomicInteger(0);
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			try {
+				ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(workers);
+				for (int i=0; i<workers; i++) {
+					futures.add(executor.submit(new Callable<Object>() {
+						public Object call() {
+							OWLAxiomVisitorEx<Boolean> visitor = createVisitor(new OWLDataFactoryImpl());
+							int from;
+							while ( (writing || !failed) && ((from = nextchunk.getAndAdd(chunksize)) < axioms.size()) ) {
+								visitAxioms(visitor, axioms, from, Math.min(from + chunksize, axioms.size()));
+							}
+							return null;
+						}
+					}));
+				}
+				for (int i=0; i<futures.size(); i++) {
+					futures.get(i).get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+		LogWriter.get().printlnNote(" processed " + count.get() + " axiom(s).");
+		return !failed;
+	}
+
+	/**
+	 * Visit the axioms from index "from" (inclusive) to index "to"
+	 * (exclusive) of the given list.
+	 * @param visitor
+	 * @param axioms
+	 * @param from
+	 * @param to
+	 */
+	protected void visitAxioms(OWLAxiomVisitorEx<Boolean> visitor, ArrayList<OWLLogicalAxiom> axioms, int from, int to) {
+		OWLLogicalAxiom axiom;
+		for (int i=from; (i<to) && (writing || !failed); i++) {
+			axiom = axioms.get(i);
+			if (!axiom.accept(visitor)) {
+				if (warn) LogWriter.get().printlnWarning("Unsupported axiom: " + axiom.toString());
+				failed = true;
+			}
+			if (count.incrementAndGet() % 100 == 0) System.out.print(".");
+		}
+	}
+
+}
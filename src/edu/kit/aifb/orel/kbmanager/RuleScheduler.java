@@ -0,0 +1,535 @@
+package edu.kit.aifb.orel.kbmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.kit.aifb.orel.client.EventLog;
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+import edu.kit.aifb.orel.storage.StorageDriver;
+
+/**
+ * Class for computing the saturation of a set of inference rules in a
+ * sensible order. The scheduler builds the dependency graph of the
+ * predicates used in the rules and computes its strongly connected
+ * components. Each component is saturated in topological order, so that
+ * rules are only applied when all rules for their body predicates from
+ * other components have been completed. Rules are skipped if none of
+ * their body predicates received new facts since the rule was last run.
+ *
+ * Rules that express transitivity of a binary predicate are not run as
+ * rules; instead, the storage computes the transitive closure directly.
+ * Such closures are run after all other rules of a round. The closure is
+ * only computed the first time that the rule is run in a materialization;
+ * later rounds apply the rule to the new facts like any other rule, which
+ * is much cheaper than closing the whole predicate again.
+ *
+ * If the storage allows rules to be run concurrently, all rules that need
+ * to be run in one round are grouped by their head predicate, and the groups
+ * are processed in parallel. Rules within one round only use facts from
+ * earlier rounds, so the result does not depend on their order.
+ *
+ * Recursive rules of a component whose facts all belong to some context,
+ * i.e. whose heads end with a variable that ends all their body atoms of
+ * these heads (see findContextRules()), are not run as single rules;
+ * instead, the storage saturates them for every context on its own after
+ * the other rules of a round (see StorageDriver.saturateContextRules()).
+ * The facts of one context are then joined without looking at those of
+ * other contexts, and contexts can be saturated concurrently.
+ *
+ * In incremental mode, every rule is only applied to the facts above the
+ * watermark that the storage recorded for it at the end of the last
+ * incremental materialization, and new watermarks are recorded when done.
+ * Since facts that are loaded after this get new steps, the effort then
+ * depends on the size of the change rather than on the size of the storage.
+ * Transitive closures are not recomputed in this case; transitivity rules
+ * that have a watermark are applied like all other rules instead.
+ *
+ * The scheduler does not register rules with the storage, which is still
+ * the task of the reasoner.
+ * @author agent
+ */
+public class RuleScheduler {
+	protected StorageDriver storage;
+	protected ArrayList<ScheduledRule> rules;
+	protected ArrayList<ArrayList<ScheduledRule>> components = null; // rules per component, in topological order
+	// the largest step of facts that any predicate received in the current run
+	protected HashMap<String,Integer> laststepchange;
+	protected int startstep; // the largest step used in the storage when the current run started
+	protected boolean incremental = false;
+	protected ExecutorService executor = null; // used only while materializing with parallelism > 1
+
+	protected class ScheduledRule {
+		public String name;
+		public String head;
+		public HashSet<String> body;
+		public int laststep;
+		public boolean transitive; // true if the rule is p(x,z) :- p(x,y), p(y,z)
+		public boolean closure; // true if the rule is run by computing the transitive closure next time
+		public boolean context; // true if the rule is saturated per context with other rules of its component
+		public InferenceRuleDeclaration declaration;
+		public ScheduledRule(InferenceRuleDeclaration rd) {
+			declaration = rd;
+			name = rd.getName();
+			head = rd.getHead().getName();
+			body = new HashSet<String>();
+			for (int i=0; i<rd.getBody().size(); i++) {
+				if (!rd.getBody().get(i).getName().equals("orel:distinct")) {
+					body.add(rd.getBody().get(i).getName());
+				}
+			}
+			laststep = -1;
+			transitive = isTransitivityRule(rd);
+			closure = transitive;
+			context = false;
+		}
+	}
+
+	public RuleScheduler(StorageDriver storage) {
+		this.storage = storage;
+		rules = new ArrayList<ScheduledRule>();
+		laststepchange = new HashMap<String,Integer>();
+	}
+
+	/**
+	 * Enable or disable incremental materialization based on the watermarks
+	 * of the storage.
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Add a rule to the scheduler. The rule must also be registered with the
+	 * storage driver.
+	 * @param rd
+	 */
+	public void addRule(InferenceRuleDeclaration rd) {
+		rules.add(new ScheduledRule(rd));
+		components = null;
+	}
+
+	/**
+	 * Check if the given rule has the form p(x,z) :- p(x,y), p(y,z) (in any
+	 * order of the body atoms) without additional step arguments.
+	 * @param rd
+	 * @return
+	 */
+	protected static boolean isTransitivityRule(InferenceRuleDeclaration rd) {
+		if ( (rd.getMode() != InferenceRuleDeclaration.MODE_INFER) || (rd.getBody().size() != 2) ) return false;
+		PredicateAtom head = rd.getHead(), first = rd.getBody().get(0), second = rd.getBody().get(1);
+		if ( !first.getName().equals(head.getName()) || !second.getName().equals(head.getName()) ||
+		     (head.getArguments().size() != 2) || (first.getArguments().size() != 2) || (second.getArguments().size() != 2) ) {
+			return false;
+		}
+		for (int i=0; i<2; i++) {
+			if ( !head.getArguments().get(i).isVariable() || !first.getArguments().get(i).isVariable() || !second.getArguments().get(i).isVariable() ) {
+				return false;
+			}
+		}
+		String x = head.getArguments().get(0).getValue(), z = head.getArguments().get(1).getValue();
+		if (x.equals(z)) return false;
+		if (first.getArguments().get(0).getValue().equals(x)) { // p(x,y), p(y,z)
+			String y = first.getArguments().get(1).getValue();
+			return !y.equals(x) && !y.equals(z) && second.getArguments().get(0).getValue().equals(y) && second.getArguments().get(1).getValue().equals(z);
+		} else { // p(y,z), p(x,y)
+			String y = first.getArguments().get(0).getValue();
+			return !y.equals(x) && !y.equals(z) && first.getArguments().get(1).getValue().equals(z) &&
+			       second.getArguments().get(0).getValue().equals(x) && second.getArguments().get(1).getValue().equals(y);
+		}
+	}
+
+	/**
+	 * Compute the saturation of all rules on the storage.
+	 * @throws Exception
+	 */
+	public void materialize() throws Exception {
+		materialize(incremental, 0);
+	}
+
+	/**
+	 * Compute the saturation of all rules on the storage, assuming that all
+	 * rules have already been applied to the facts with steps below
+	 * fromstep. This is useful after new facts have been added with a new
+	 * step without loading them. Watermarks are neither used nor changed.
+	 * @param fromstep
+	 * @throws Exception
+	 */
+	public void materialize(int fromstep) throws Exception {
+		materialize(false, fromstep);
+	}
+
+	protected void materialize(boolean usewatermarks, int fromstep) throws Exception {
+		if (components == null) computeComponents();
+		int curstep = storage.getMaxStep();
+		// at the start, any fact might be new to the rules unless the storage knows better
+		ScheduledRule sr;
+		for (int i=0; i<rules.size(); i++) {
+			sr = rules.get(i);
+			sr.laststep = usewatermarks ? storage.getWatermark(sr.name) : fromstep-1;
+			sr.closure = sr.transitive && (sr.laststep < 0);
+			// new facts must not be hidden below some watermark
+			if (sr.laststep > curstep) curstep = sr.laststep;
+		}
+		startstep = curstep;
+		laststepchange.clear();
+		if (storage.getParallelism() > 1) {
+			executor = Executors.newFixedThreadPool(storage.getParallelism());
+		}
+		try {
+			for (int i=0; i<components.size(); i++) {
+				curstep = saturateComponent(components.get(i), curstep);
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+		}
+		if (usewatermarks) { // all rules have now been applied to all facts
+			for (int i=0; i<rules.size(); i++) {
+				storage.setWatermark(rules.get(i).name, curstep);
+			}
+		}
+		storage.commit(); // e.g. move facts out of delta tables, so that later runs see them
+	}
+
+	/**
+	 * Apply the rules of one component until no more new facts are found.
+	 * @param component
+	 * @param curstep the largest step used in the storage so far
+	 * @return the largest step used in the storage after saturation
+	 */
+	protected int saturateComponent(ArrayList<ScheduledRule> component, int curstep) throws Exception {
+		boolean changed = true;
+		long sTime;
+		while (changed) {
+			LogWriter.get().printlnDebug("============");
+			sTime = EventLog.start();
+			// decide on all rules first, so that changes of this round are not considered
+			ArrayList<ScheduledRule> round = new ArrayList<ScheduledRule>();
+			ArrayList<ScheduledRule> closures = new ArrayList<ScheduledRule>();
+			ArrayList<ScheduledRule> contextrules = new ArrayList<ScheduledRule>();
+			boolean contextrun = false;
+			for (int i=0; i<component.size(); i++) {
+				if (component.get(i).context) {
+					contextrules.add(component.get(i));
+					contextrun = contextrun || needsRun(component.get(i), curstep);
+				} else if (needsRun(component.get(i), curstep)) {
+					if (component.get(i).closure) {
+						closures.add(component.get(i));
+					} else {
+						round.add(component.get(i));
+					}
+				}
+			}
+			round.addAll(closures);
+			HashSet<String> changedheads;
+			if ( (executor != null) && (round.size() > 1) ) {
+				changedheads = runRulesConcurrently(round, curstep);
+			} else {
+				changedheads = new HashSet<String>();
+				for (int i=0; i<round.size(); i++) {
+					if (runRule(round.get(i), curstep) > 0) changedheads.add(round.get(i).head);
+				}
+			}
+			if ( contextrun && (runContextRules(contextrules, curstep) > 0) ) {
+				for (int i=0; i<contextrules.size(); i++) {
+					changedheads.add(contextrules.get(i).head);
+				}
+			}
+			Iterator<String> headit = changedheads.iterator();
+			while (headit.hasNext()) {
+				laststepchange.put(headit.next(), curstep+1);
+			}
+			changed = !changedheads.isEmpty();
+			curstep++;
+			EventLog.end(EventLog.ITERATION, "saturateComponent", round.size() + (contextrun ? contextrules.size() : 0), sTime);
+		}
+		return curstep-1;
+	}
+
+	/**
+	 * Run the given rules in parallel, where rules with the same head
+	 * predicate are run sequentially by the same thread.
+	 * @param round
+	 * @param curstep
+	 * @return the head predicates that received new facts
+	 * @throws Exception
+	 */
+	protected HashSet<String> runRulesConcurrently(ArrayList<ScheduledRule> round, final int curstep) throws Exception {
+		HashMap<String,ArrayList<ScheduledRule>> groups = new HashMap<String,ArrayList<ScheduledRule>>();
+		for (int i=0; i<round.size(); i++) {
+			if (!groups.containsKey(round.get(i).head)) groups.put(round.get(i).head, new ArrayList<ScheduledRule>());
+			groups.get(round.get(i).head).add(round.get(i));
+		}
+		ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(groups.size());
+		ArrayList<String> heads = new ArrayList<String>(groups.keySet());
+		for (int i=0; i<heads.size(); i++) {
+			final ArrayList<ScheduledRule> group = groups.get(heads.get(i));
+			futures.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					boolean changed = false;
+					for (int j=0; j<group.size(); j++) {
+						if (runRule(group.get(j), curstep) > 0) changed = true;
+					}
+					return changed;
+				}
+			}));
+		}
+		HashSet<String> result = new HashSet<String>();
+		for (int i=0; i<futures.size(); i++) {
+			if (futures.get(i).get()) result.add(heads.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Check if some body predicate of the rule may have facts that the rule
+	 * has not considered yet. Rules that have not been run since the start
+	 * may have to consider facts from before the start.
+	 * @param sr
+	 * @param curstep
+	 * @return
+	 */
+	protected boolean needsRun(ScheduledRule sr, int curstep) {
+		if (sr.laststep < startstep) return true;
+		Iterator<String> predit = sr.body.iterator();
+		Integer changestep;
+		while (predit.hasNext()) {
+			changestep = laststepchange.get(predit.next());
+			if ( (changestep != null) && (changestep > sr.laststep) && (changestep <= curstep) ) return true;
+		}
+		return false;
+	}
+
+	protected int runRule(ScheduledRule sr, int curstep) {
+		int affectedrows;
+		if (sr.closure) {
+			affectedrows = storage.computeTransitiveClosure(sr.head, curstep+1);
+			// the closure also covers the facts that other rules derived in this round
+			sr.laststep = curstep+1;
+			sr.closure = false;
+		} else {
+			affectedrows = storage.runRule(sr.name,sr.laststep+1,curstep);
+			sr.laststep = curstep;
+		}
+		return affectedrows;
+	}
+
+	/**
+	 * Saturate the given context rules of one component, after the other
+	 * rules of the round have been run. The rules are applied to all facts
+	 * above the smallest step that one of them has not considered yet,
+	 * including the facts of the current round, and new facts get the step
+	 * of the current round.
+	 * @param contextrules
+	 * @param curstep
+	 * @return the number of new facts
+	 */
+	protected int runContextRules(ArrayList<ScheduledRule> contextrules, int curstep) {
+		ArrayList<String> names = new ArrayList<String>(contextrules.size());
+		int minstep = curstep+1;
+		for (int i=0; i<contextrules.size(); i++) {
+			names.add(contextrules.get(i).name);
+			minstep = Math.min(minstep, contextrules.get(i).laststep+1);
+		}
+		int result = storage.saturateContextRules(names, minstep, curstep+1);
+		for (int i=0; i<contextrules.size(); i++) {
+			contextrules.get(i).laststep = curstep+1;
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the strongly connected components of the predicate dependency
+	 * graph and assign each rule to the component of its head predicate.
+	 * The context rules of every component are marked as well.
+	 */
+	protected void computeComponents() {
+		HashMap<String,HashSet<String>> edges = new HashMap<String,HashSet<String>>();
+		ScheduledRule sr;
+		Iterator<String> predit;
+		String predicate;
+		for (int i=0; i<rules.size(); i++) {
+			sr = rules.get(i);
+			if (!edges.containsKey(sr.head)) edges.put(sr.head, new HashSet<String>());
+			predit = sr.body.iterator();
+			while (predit.hasNext()) {
+				predicate = predit.next();
+				if (!edges.containsKey(predicate)) edges.put(predicate, new HashSet<String>());
+				edges.get(predicate).add(sr.head);
+			}
+		}
+		// Tarjan's algorithm finds components in reverse topological order
+		TarjanState state = new TarjanState();
+		predit = edges.keySet().iterator();
+		while (predit.hasNext()) {
+			predicate = predit.next();
+			if (!state.index.containsKey(predicate)) findComponents(predicate, edges, state);
+		}
+		HashMap<String,Integer> componentofpredicate = new HashMap<String,Integer>();
+		int count = state.components.size();
+		for (int i=0; i<count; i++) {
+			predit = state.components.get(i).iterator();
+			while (predit.hasNext()) {
+				componentofpredicate.put(predit.next(), count-1-i);
+			}
+		}
+		components = new ArrayList<ArrayList<ScheduledRule>>(count);
+		for (int i=0; i<count; i++) {
+			components.add(new ArrayList<ScheduledRule>());
+		}
+		for (int i=0; i<rules.size(); i++) {
+			sr = rules.get(i);
+			components.get(componentofpredicate.get(sr.head)).add(sr);
+		}
+		// drop components without rules (base predicates)
+		for (int i=components.size()-1; i>=0; i--) {
+			if (components.get(i).size() == 0) components.remove(i);
+		}
+		for (int i=0; i<components.size(); i++) {
+			findContextRules(components.get(i));
+		}
+		LogWriter.get().printlnDebug("Scheduling " + rules.size() + " rules in " + components.size() + " components.");
+	}
+
+	/**
+	 * Mark the rules of the given component that can be saturated per
+	 * context. Only predicates that are recursive within one context are
+	 * considered, i.e. those that some rule derives from an atom of the same
+	 * predicate that ends with the same variable as the head, since other
+	 * predicates do not gain anything. The context rules are those that
+	 * infer facts of such a predicate and that have at least one body atom
+	 * of the head of a context rule, where all such atoms end with the same
+	 * variable as the head. Rules with parameters and transitivity rules are
+	 * never used.
+	 * @param component
+	 */
+	protected void findContextRules(ArrayList<ScheduledRule> component) {
+		ArrayList<ScheduledRule> candidates = new ArrayList<ScheduledRule>();
+		HashSet<String> recursive = new HashSet<String>();
+		HashMap<String,Integer> heads = new HashMap<String,Integer>(); // arity of every head
+		ScheduledRule sr;
+		for (int i=0; i<component.size(); i++) {
+			sr = component.get(i);
+			sr.context = false;
+			if ( (sr.declaration.getMode() == InferenceRuleDeclaration.MODE_INFER) && !sr.transitive && !hasParameters(sr.declaration) ) {
+				candidates.add(sr);
+				heads.clear();
+				heads.put(sr.head, sr.declaration.getHead().getArguments().size());
+				if (hasContext(sr.declaration, heads)) recursive.add(sr.head);
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			heads.clear();
+			for (int i=0; i<candidates.size(); i++) {
+				if (recursive.contains(candidates.get(i).head)) {
+					heads.put(candidates.get(i).head, candidates.get(i).declaration.getHead().getArguments().size());
+				}
+			}
+			changed = false;
+			for (int i=candidates.size()-1; i>=0; i--) {
+				if ( !heads.containsKey(candidates.get(i).head) || !hasContext(candidates.get(i).declaration, heads) ) {
+					candidates.remove(i);
+					changed = true;
+				}
+			}
+		}
+		for (int i=0; i<candidates.size(); i++) {
+			candidates.get(i).context = true;
+		}
+		if (candidates.size() > 0) LogWriter.get().printlnDebug("Saturating " + candidates.size() + " rules per context.");
+	}
+
+	/**
+	 * Check if the last argument of the head of the given rule is a variable
+	 * that is the last argument of all body atoms of the given heads, and if
+	 * there is at least one such atom. Atoms with more arguments than their
+	 * head have step arguments, so that the rule does not qualify.
+	 * @param rd
+	 * @param heads map from head predicates to their arities
+	 * @return
+	 */
+	protected static boolean hasContext(InferenceRuleDeclaration rd, HashMap<String,Integer> heads) {
+		ArrayList<PredicateTerm> arguments = rd.getHead().getArguments();
+		if ( (arguments.size() == 0) || !arguments.get(arguments.size()-1).isVariable() ) return false;
+		String context = arguments.get(arguments.size()-1).getValue();
+		boolean found = false;
+		PredicateAtom pa;
+		for (int i=0; i<rd.getBody().size(); i++) {
+			pa = rd.getBody().get(i);
+			if (!heads.containsKey(pa.getName())) continue;
+			arguments = pa.getArguments();
+			if ( (arguments.size() != heads.get(pa.getName())) || !arguments.get(arguments.size()-1).isVariable() ||
+			     !arguments.get(arguments.size()-1).getValue().equals(context) ) {
+				return false;
+			}
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Check if some argument of the given rule is a parameter "?".
+	 * @param rd
+	 * @return
+	 */
+	protected static boolean hasParameters(InferenceRuleDeclaration rd) {
+		for (int i=0; i<=rd.getBody().size(); i++) {
+			PredicateAtom pa = (i < rd.getBody().size()) ? rd.getBody().get(i) : rd.getHead();
+			for (int j=0; j<pa.getArguments().size(); j++) {
+				if ( !pa.getArguments().get(j).isVariable() && pa.getArguments().get(j).getValue().equals("?") ) return true;
+			}
+		}
+		return false;
+	}
+
+	protected class TarjanState {
+		public int nextindex = 0;
+		public HashMap<String,Integer> index = new HashMap<String,Integer>();
+		public HashMap<String,Integer> lowlink = new HashMap<String,Integer>();
+		public ArrayList<String> stack = new ArrayList<String>();
+		public HashSet<String> onstack = new HashSet<String>();
+		public ArrayList<ArrayList<String>> components = new ArrayList<ArrayList<String>>();
+	}
+
+	protected void findComponents(String predicate, HashMap<String,HashSet<String>> edges, TarjanState state) {
+		state.index.put(predicate, state.nextindex);
+		state.lowlink.put(predicate, state.nextindex);
+		state.nextindex++;
+		state.stack.add(predicate);
+		state.onstack.add(predicate);
+		Iterator<String> succit = edges.get(predicate).iterator();
+		String successor;
+		while (succit.hasNext()) {
+			successor = succit.next();
+			if (!state.index.containsKey(successor)) {
+				findComponents(successor, edges, state);
+				state.lowlink.put(predicate, Math.min(state.lowlink.get(predicate), state.lowlink.get(successor)));
+			} else if (state.onstack.contains(successor)) {
+				state.lowlink.put(predicate, Math.min(state.lowlink.get(predicate), state.index.get(successor)));
+			}
+		}
+		if (state.lowlink.get(predicate).equals(state.index.get(predicate))) {
+			ArrayList<String> component = new ArrayList<String>();
+			String member;
+			do {
+				member = state.stack.remove(state.stack.size()-1);
+				state.onstack.remove(member);
+				component.add(member);
+			} while (!member.equals(predicate));
+			state.components.add(component);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package edu.kit.aifb.orel.kbmanager.elhmanager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -132,10 +133,11 @@ public class ELExpressionVisitor implements
 		int sid1, sid2, oid;
 		if (action == Action.WRITEBODY) {
 			result = (ops.size()>0) ? opkeys.get(0) : OP_NOTHING;
+			int[] opids = storage.getIDs(opkeys);
 			for (int i=1; i<ops.size(); i++) {
 					sid1 = storage.getID(result);
-					sid2 = storage.getID(opkeys.get(i));
-					result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,i,null); 
+					sid2 = opids[i];
+					result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opids,i); 
 					oid  = storage.getID(result);
 					storage.makePredicateAssertion("subconjunctionof",sid1,sid2,oid);
 					createClassTautologies(oid,storage);
@@ -413,22 +415,45 @@ public class ELExpressionVisitor implements
 		storage.makePredicateAssertion("dsco",storage.getID(Literals.BOTTOM_DATATYPE),id);
 	}
 	
-	public static String makeNAryExpressionKey(String opname, List<String> operators, int maxindex, String emptyKey) {
-		assert maxindex<operators.size();
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operands, or return emptyKey if maxindex is
+	 * negative. The operands are given by their keys, but the result refers
+	 * to them by their ids. Keys thus do not grow with the nesting depth of
+	 * expressions and rarely need to be hashed by the storage, and equal
+	 * expressions get equal ids since their operands have equal ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @param emptyKey
+	 * @return
+	 */
+	public String makeNAryExpressionKey(String opname, List<String> operands, int maxindex, String emptyKey) {
+		assert maxindex<operands.size();
 		if (maxindex<0) return emptyKey;
-		String oplist = "";
-		for (int i=0; i<=maxindex; i++) {
-			oplist += " " + operators.get(i);
-		}
-		return opname + "(" + oplist + " )";
+		return makeNAryExpressionKey(opname, storage.getIDs(operands.subList(0,maxindex+1)), maxindex);
 	}
 	
-	public static String makeNAryExpressionKey(String opname, String... operators) {
-		String oplist = "";
-		for (int i=0; i<operators.length; i++) {
-			oplist += " " + operators[i];
+	public String makeNAryExpressionKey(String opname, String... operands) {
+		return makeNAryExpressionKey(opname, storage.getIDs(Arrays.asList(operands)), operands.length-1);
+	}
+
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operand ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @return
+	 */
+	public static String makeNAryExpressionKey(String opname, int[] operands, int maxindex) {
+		StringBuilder key = new StringBuilder(opname.length() + 8*(maxindex+2));
+		key.append(opname).append('(');
+		for (int i=0; i<=maxindex; i++) {
+			if (i>0) key.append(' ');
+			key.append(operands[i]);
 		}
-		return opname + "(" + oplist + " )";
+		return key.append(')').toString();
 	}
 
 	
@@ -3,10 +3,12 @@ package edu.kit.aifb.orel.kbmanager.elhmanager;
 import java.util.Iterator;
 
 import org.semanticweb.owlapi.model.OWLOntology;
+import edu.kit.aifb.orel.client.EventLog;
 import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
 import edu.kit.aifb.orel.kbmanager.BasicExpressionVisitor;
 import edu.kit.aifb.orel.kbmanager.BasicKBLoader;
 import edu.kit.aifb.orel.kbmanager.KBManager;
+import edu.kit.aifb.orel.storage.AssertionRecordingStorageDriver;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
 /**
@@ -24,6 +26,7 @@ public class ELKBManager extends KBManager{
 	@Override
 	public InferenceResult checkConsistency() throws Exception {
 		ELKBReasoner reasoner = new ELKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkConsistency();
 	}
 
@@ -31,6 +34,7 @@ public class ELKBManager extends KBManager{
 	public InferenceResult checkEntailment(OWLOntology ontology)
 			throws Exception {
 		ELKBReasoner reasoner = new ELKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkEntailment(ontology);
 	}
 
@@ -44,6 +48,7 @@ public class ELKBManager extends KBManager{
 		storage.makePredicateAssertion("subconjunctionof",thing,nothing,nothing);
 		int botobjprop = storage.getID(BasicExpressionVisitor.OP_BOTTOM_OBJECT_PROPERTY); 
 		storage.makePredicateAssertion("spo",botobjprop,botobjprop);
+		new ELKBReasoner(storage).prepareInferenceRules();
 		storage.commit();
 		
 	}
@@ -57,12 +62,45 @@ public class ELKBManager extends KBManager{
 		while (ontit.hasNext()) {
 			result = loadOntology(ontit.next()) && result;
 		}
-		return loader.processOntology(ontology, (BasicKBLoader.PREPAREASSERT | BasicKBLoader.ASSERT) ) && result;
+		long sTime = EventLog.start();
+		result = loader.processOntology(ontology, (BasicKBLoader.PREPAREASSERT | BasicKBLoader.ASSERT) ) && result;
+		EventLog.end(EventLog.LOAD, "loadOntology", ontology.getAxiomCount(), sTime);
+		return result;
+	}
+
+	/**
+	 * Remove the content of some ontology from the database, together with
+	 * all consequences that no longer follow from the remaining content.
+	 * @param ontology
+	 */
+	@Override
+	public boolean removeOntology(OWLOntology ontology) throws Exception {
+		AssertionRecordingStorageDriver recorder = new AssertionRecordingStorageDriver(storage);
+		boolean result = recordOntology(ontology, recorder);
+		ELKBReasoner reasoner = new ELKBReasoner(storage);
+		reasoner.remove(recorder.getAssertions());
+		return result;
+	}
+
+	/**
+	 * Record the facts that loading the given ontology asserts.
+	 * @param ontology
+	 * @param recorder
+	 */
+	protected boolean recordOntology(OWLOntology ontology, AssertionRecordingStorageDriver recorder) throws Exception {
+		boolean result = true;
+		BasicKBLoader loader = new BasicKBLoader(recorder);
+		Iterator<OWLOntology> ontit = ontology.getDirectImports().iterator();
+		while (ontit.hasNext()) {
+			result = recordOntology(ontit.next(), recorder) && result;
+		}
+		return loader.processOntology(ontology, BasicKBLoader.ASSERT ) && result;
 	}
 
 	@Override
 	public void materialize() throws Exception {
 		ELKBReasoner reasoner = new ELKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		reasoner.materialize();
 		
 	}
@@ -70,10 +108,10 @@ public class ELKBManager extends KBManager{
 	private void registerPredicates() {
 		storage.registerPredicate( new PredicateDeclaration("sco",2,true,false) );
 		storage.registerPredicate( new PredicateDeclaration("sv",3,true,false) );
-		storage.registerPredicate( new PredicateDeclaration("subconjunctionof",3,false,false) );
-		storage.registerPredicate( new PredicateDeclaration("subsomevalues",3,false,false) );
+		storage.registerPredicate( new PredicateDeclaration("subconjunctionof",3,false,true) );
+		storage.registerPredicate( new PredicateDeclaration("subsomevalues",3,false,true) );
 		storage.registerPredicate( new PredicateDeclaration("spo",2,true,false) );
-		storage.registerPredicate( new PredicateDeclaration("spoc",3,true,false) );
+		storage.registerPredicate( new PredicateDeclaration("spoc",3,true,true) );
 	}
 
 
@@ -1,7 +1,7 @@
 package edu.kit.aifb.orel.kbmanager.elhmanager;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -10,8 +10,11 @@ import org.semanticweb.owlapi.model.OWLOntology;
 
 import edu.kit.aifb.orel.client.LogWriter;
 import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.kbmanager.DRedRewriter;
 import edu.kit.aifb.orel.kbmanager.Literals;
 import edu.kit.aifb.orel.kbmanager.KBManager.InferenceResult;
+import edu.kit.aifb.orel.kbmanager.RuleScheduler;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
 /**
@@ -22,51 +25,23 @@ import edu.kit.aifb.orel.storage.StorageDriver;
 public class ELKBReasoner {
 	protected StorageDriver storage;
 	//protected ArrayList<String> inferencerules = null;
-	protected ArrayList<RuleInfo> ruleinfo = null;
-	protected class RuleInfo implements Comparable<RuleInfo> {
-		public int laststep;
-		public String name;
-		protected int lastaffected;
-		protected int runs = 0;
-		protected int successfulruns = 0;
-		public RuleInfo (String name) {
-			this.name = name;
-			reset();
-		}
-		public void reset() {
-			laststep = -1;
-			lastaffected = 0;
-		}
-		public int compareTo(RuleInfo ri) {
-			if (this.lastaffected > ri.lastaffected) {
-				return -1;
-			} else if (this.lastaffected < ri.lastaffected) {
-				return 1;
-			} else {
-				float rate1 = (runs>0) ? (successfulruns/runs) : 0;
-				float rate2 = (ri.runs>0) ? (ri.successfulruns/ri.runs) : 0;
-				if (rate1 > rate2) {
-					return -1;
-				} else if (rate1 < rate2) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
-		}
-		public int getLastAffected() {
-			return lastaffected;
-		}
-		public void setLastAffected(int n) {
-			runs++;
-			if (n>0) successfulruns++;
-			lastaffected = n;
-		}
-	}
+	protected ArrayList<InferenceRuleDeclaration> registeredrules = new ArrayList<InferenceRuleDeclaration>();
+	protected RuleScheduler scheduler = null;
+	protected boolean incremental = false;
 	
 	public ELKBReasoner(StorageDriver storage) {
 		this.storage = storage;
 	}
+
+	/**
+	 * Enable or disable incremental materialization. If enabled, rules are
+	 * only applied to facts that are new since the last incremental
+	 * materialization, as far as the storage can tell.
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
 	
 	protected void registerCheckRules() {
 		HashMap<String,String> rules = new HashMap<String,String>();
@@ -80,9 +55,27 @@ public class ELKBReasoner {
 	}
 	
 	protected void registerInferenceRules() {
-		if (ruleinfo != null) return; // do not do this multiple times in one run
-//		inferencerules = new ArrayList<String>();
-		ruleinfo = new ArrayList<RuleInfo>();
+		if (scheduler != null) return; // do not do this multiple times in one run
+		scheduler = new RuleScheduler(storage);
+		registeredrules = getInferenceRules();
+		for (int i=0; i<registeredrules.size(); i++) {
+			storage.registerInferenceRule(registeredrules.get(i));
+			scheduler.addRule(registeredrules.get(i));
+		}
+	}
+
+	/**
+	 * Prepare the storage for the inference rules of this reasoner (see
+	 * StorageDriver.prepareInferenceRules()). This is done when the
+	 * knowledge base is initialized.
+	 * @throws Exception
+	 */
+	public void prepareInferenceRules() throws Exception {
+		storage.prepareInferenceRules(getInferenceRules());
+	}
+
+	protected ArrayList<InferenceRuleDeclaration> getInferenceRules() {
+		ArrayList<InferenceRuleDeclaration> result = new ArrayList<InferenceRuleDeclaration>();
 		HashMap<String,String> rules = new HashMap<String,String>();
 	
 		// NOTE: spo(p,p) is created at load time
@@ -94,15 +87,13 @@ public class ELKBReasoner {
 
 		rules.put("svp",          "sv(x,q,y) :- sv(x,p,y), spo(p,q)");
 		rules.put("svspoc",       "sv(x,r,z) :- spoc(p,q,r), sv(x,p,x'), sco(x',z'), sv(z',q,z)");
-		// now register those rules:
 		Iterator<String> nameit = rules.keySet().iterator();
 		String name;
 		while (nameit.hasNext()) {
 			name = nameit.next();
-			//inferencerules.add(name);
-			ruleinfo.add(new RuleInfo(name));
-			storage.registerInferenceRule(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
+			result.add(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
 		}
+		return result;
 	}
 
 	/**
@@ -111,29 +102,27 @@ public class ELKBReasoner {
 	public void materialize() throws Exception {
 		long sTime=System.currentTimeMillis();
 		registerInferenceRules();
-		for (int i=0; i<ruleinfo.size(); i++) {
-			ruleinfo.get(i).reset();
-		}
-		int affectedrows = 1, curstep = storage.getMaxStep();
-		while (affectedrows > 0) {
-			LogWriter.get().printlnDebug("============");
-			Collections.sort(ruleinfo);
-			affectedrows = 0;
-			for (int i=0; i<ruleinfo.size(); i++) {
-				affectedrows = affectedrows + runRule(ruleinfo.get(i),curstep);
-				if (affectedrows != 0) i=ruleinfo.size();
-			}
-			curstep++;
-		}
+		scheduler.setIncremental(incremental);
+		scheduler.materialize();
 		LogWriter.get().printlnNote("Completed materialization in " + (System.currentTimeMillis() - sTime) + "ms.");
 		storage.dumpStatistics();
 	}
-	
-	protected int runRule(RuleInfo ri, int curstep) {
-		int affectedrows = storage.runRule(ri.name,ri.laststep+1,curstep);
-		ri.laststep = curstep;
-		ri.setLastAffected(affectedrows);
-		return affectedrows;
+
+	/**
+	 * Remove the given asserted facts together with all of their consequences
+	 * that can no longer be derived, using the DRed method instead of
+	 * recomputing the materialization. Consequences of the remaining facts
+	 * that were not materialized before are not computed.
+	 * @param facts
+	 */
+	public void remove(Collection<PredicateAtom> facts) throws Exception {
+		long sTime=System.currentTimeMillis();
+		registerInferenceRules();
+		DRedRewriter rewriter = new DRedRewriter(registeredrules);
+		rewriter.rewrite(facts);
+		scheduler.materialize(rewriter.remove(storage));
+		LogWriter.get().printlnNote("Completed removal in " + (System.currentTimeMillis() - sTime) + "ms.");
+		storage.dumpStatistics();
 	}
 	
 	/**
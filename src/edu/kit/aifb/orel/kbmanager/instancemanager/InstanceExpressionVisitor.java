@@ -1,6 +1,7 @@
 package edu.kit.aifb.orel.kbmanager.instancemanager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -95,22 +96,39 @@ public class InstanceExpressionVisitor implements
 		int sid1, sid2, oid;
 		if (action == Action.WRITEBODY) {
 			result = (ops.size()>0) ? opkeys.get(0) : OP_NOTHING;
-			for (int i=1; i<ops.size(); i++) {
-					sid1 = storage.getID(result);
-					sid2 = storage.getID(opkeys.get(i));
-					result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,i,null); 
-					oid  = storage.getID(result);
+			if (ops.size() > 1) {
+				// get the ids of all operands, and then of all partial conjunctions at once
+				int n = ops.size();
+				int[] opids = storage.getIDs(opkeys);
+				ArrayList<String> keys = new ArrayList<String>(n);
+				keys.add(OP_THING);
+				for (int i=1; i<n; i++) {
+					keys.add(makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opids,i));
+				}
+				int[] ids = storage.getIDs(keys);
+				sid1 = opids[0];
+				for (int i=1; i<n; i++) {
+					sid2 = opids[i];
+					oid  = ids[i];
 					storage.makePredicateAssertion("subcon",sid1,sid2,oid);
-					createAuxiliaryClassTautologies(oid,storage);
+					createAuxiliaryClassTautologies(oid,ids[0],storage);
+					sid1 = oid;
+				}
+				result = keys.get(keys.size()-1);
 			}
 		} else if (action == Action.WRITEHEAD) {
 			result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,opkeys.size()-1,OP_NOTHING);
-			sid1 = storage.getID(result);
+			ArrayList<String> keys = new ArrayList<String>(opkeys.size()+2);
+			keys.add(OP_THING);
+			keys.add(result);
+			keys.addAll(opkeys);
+			int[] ids = storage.getIDs(keys);
+			sid1 = ids[1];
 			for (int i=0; i<opkeys.size(); i++) {
-				oid = storage.getID(opkeys.get(i));
+				oid = ids[2+i];
 				storage.makePredicateAssertion("subc",sid1,oid);
 			}
-			createAuxiliaryClassTautologies(sid1,storage);
+			createAuxiliaryClassTautologies(sid1,ids[0],storage);
 		} else {
 			assert action == Action.READ;
 			result = makeNAryExpressionKey(OP_OBJECT_INTERSECTION,opkeys,opkeys.size()-1,OP_NOTHING);
@@ -135,12 +153,17 @@ public class InstanceExpressionVisitor implements
 		int sid, oid;
 		if (action == Action.WRITEBODY) {		
 			result = makeNAryExpressionKey(OP_OBJECT_UNION,opkeys,opkeys.size()-1,OP_THING);
-			oid = storage.getID(result);
+			ArrayList<String> keys = new ArrayList<String>(opkeys.size()+2);
+			keys.add(OP_THING);
+			keys.add(result);
+			keys.addAll(opkeys);
+			int[] ids = storage.getIDs(keys);
+			oid = ids[1];
 			for (int i=0; i<opkeys.size(); i++) {
-				sid = storage.getID(opkeys.get(i));
+				sid = ids[2+i];
 				storage.makePredicateAssertion("subc",sid,oid);
 			}
-			createAuxiliaryClassTautologies(oid,storage);
+			createAuxiliaryClassTautologies(oid,ids[0],storage);
 		} else if (action == Action.WRITEHEAD) {
 			result = null; // not supported in OWL EL or RL
 		}  else {
@@ -568,7 +591,7 @@ public class InstanceExpressionVisitor implements
 	
 	public static String visitSimpleLiteral(SimpleLiteral sl, StorageDriver storage, Action action) {
 		if (sl == null) return null;
-		String result = makeNAryExpressionKey(OP_DATA_ONE_OF, sl.toString());
+		String result = makeNAryExpressionKey(OP_DATA_ONE_OF, new int[] {storage.getID(sl.toString())}, 0);
 		if ( (action == Action.WRITEBODY) || (action == Action.WRITEHEAD) ) {
 			int id = storage.getID(result);
 			storage.makePredicateAssertion("dname",id);
@@ -603,6 +626,10 @@ public class InstanceExpressionVisitor implements
 		createClassTautologies(id, storage, false);
 	}
 
+	protected static void createAuxiliaryClassTautologies(int id, int thingid, StorageDriver storage) {
+		createClassTautologies(id, thingid, storage, false);
+	}
+
 	/**
 	 * Create basic statements for class expressions that are of special
 	 * interest because they are named. If real is true, the class is
@@ -615,13 +642,25 @@ public class InstanceExpressionVisitor implements
 	 * @param real
 	 */
 	protected static void createClassTautologies(int id, StorageDriver storage, boolean real) {
+		createClassTautologies(id, storage.getID(InstanceExpressionVisitor.OP_THING), storage, real);
+	}
+
+	/**
+	 * Create basic statements for class expressions as above, using the
+	 * given id of owl:Thing.
+	 * @param id
+	 * @param thingid
+	 * @param storage
+	 * @param real
+	 */
+	protected static void createClassTautologies(int id, int thingid, StorageDriver storage, boolean real) {
 		if (real) {
 			storage.makePredicateAssertion("real",id);
 		} else {
 			storage.makePredicateAssertion("unreal",id);
 		}
 		storage.makePredicateAssertion("inst",id,id);
-		storage.makePredicateAssertion("inst",id,storage.getID(InstanceExpressionVisitor.OP_THING));
+		storage.makePredicateAssertion("inst",id,thingid);
 	}
 
 	protected static void createDatarangeTautologies(int id, StorageDriver storage) {
@@ -629,22 +668,45 @@ public class InstanceExpressionVisitor implements
 		storage.makePredicateAssertion("dinst",id,storage.getID(Literals.TOP_DATATYPE));
 	}
 
-	public static String makeNAryExpressionKey(String opname, List<String> operators, int maxindex, String emptyKey) {
-		assert maxindex<operators.size();
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operands, or return emptyKey if maxindex is
+	 * negative. The operands are given by their keys, but the result refers
+	 * to them by their ids. Keys thus do not grow with the nesting depth of
+	 * expressions and rarely need to be hashed by the storage, and equal
+	 * expressions get equal ids since their operands have equal ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @param emptyKey
+	 * @return
+	 */
+	public String makeNAryExpressionKey(String opname, List<String> operands, int maxindex, String emptyKey) {
+		assert maxindex<operands.size();
 		if (maxindex<0) return emptyKey;
-		String oplist = "";
-		for (int i=0; i<=maxindex; i++) {
-			oplist += " " + operators.get(i);
-		}
-		return opname + "(" + oplist + " )";
+		return makeNAryExpressionKey(opname, storage.getIDs(operands.subList(0,maxindex+1)), maxindex);
+	}
+	
+	public String makeNAryExpressionKey(String opname, String... operands) {
+		return makeNAryExpressionKey(opname, storage.getIDs(Arrays.asList(operands)), operands.length-1);
 	}
 
-	public static String makeNAryExpressionKey(String opname, String... operators) {
-		String oplist = "";
-		for (int i=0; i<operators.length; i++) {
-			oplist += " " + operators[i];
+	/**
+	 * Make the key of an expression with the given operator and the first
+	 * maxindex+1 of the given operand ids.
+	 * @param opname
+	 * @param operands
+	 * @param maxindex
+	 * @return
+	 */
+	public static String makeNAryExpressionKey(String opname, int[] operands, int maxindex) {
+		StringBuilder key = new StringBuilder(opname.length() + 8*(maxindex+2));
+		key.append(opname).append('(');
+		for (int i=0; i<=maxindex; i++) {
+			if (i>0) key.append(' ');
+			key.append(operands[i]);
 		}
-		return opname + "(" + oplist + " )";
+		return key.append(')').toString();
 	}
 
 }
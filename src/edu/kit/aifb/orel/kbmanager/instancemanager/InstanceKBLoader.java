@@ -1,17 +1,13 @@
 package edu.kit.aifb.orel.kbmanager.instancemanager;
 
-import java.util.Iterator;
-import java.util.Set;
 import org.semanticweb.owlapi.model.*;
 
-import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.kbmanager.ParallelAxiomLoader;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
 public class InstanceKBLoader {
 	protected StorageDriver storage;
 	protected OWLDataFactory datafactory;
-	protected InstanceExpressionVisitor expvisitor;
-	protected InstanceAxiomVisitor axiomvisitor;
 	
 	/*
 	 * Flag to indicate the activity of reading the store to check for some
@@ -55,36 +51,26 @@ public class InstanceKBLoader {
 	 * @param ontology
 	 * @param donotassert if true then only load the relevant subexpressions without asserting the axioms 
 	 */
-	public boolean processOntology(OWLOntology ontology, int todos) throws Exception {
-		boolean result = true;
+	public boolean processOntology(OWLOntology ontology, final int todos) throws Exception {
 		datafactory = ontology.getOWLOntologyManager().getOWLDataFactory();
-		expvisitor = new InstanceExpressionVisitor(InstanceExpressionVisitor.Action.READ,storage);
-		axiomvisitor = new InstanceAxiomVisitor(storage,datafactory,expvisitor,todos);
 		boolean writing = ( (todos & InstanceKBLoader.WRITE) != 0 );
+		// visit all axioms, using one visitor per thread if the storage allows concurrent writes:
+		ParallelAxiomLoader axiomloader = new ParallelAxiomLoader(storage.getParallelism(), writing,
+				(todos & (InstanceKBLoader.ASSERT | InstanceKBLoader.PREPARE)) != 0 ) {
+			protected OWLAxiomVisitorEx<Boolean> createVisitor(OWLDataFactory datafactory) {
+				return new InstanceAxiomVisitor(storage,datafactory,new InstanceExpressionVisitor(InstanceExpressionVisitor.Action.READ,storage),todos);
+			}
+		};
 		if ( writing ) { // initialize bridge and prepare for bulk insert:
 			storage.beginLoading();
 		}
-		// iterate over ontology to load all axioms:
-		Set<OWLLogicalAxiom> axiomset = ontology.getLogicalAxioms();
-		Iterator<OWLLogicalAxiom> axiomiterator = axiomset.iterator();
-		OWLLogicalAxiom axiom;
-		boolean curresult;
-		int count = 0;
-		while ( (result || writing) && axiomiterator.hasNext() ) {
-			axiom = axiomiterator.next();
-			curresult = axiom.accept(axiomvisitor);
-			if ( !curresult && ((todos & (InstanceKBLoader.ASSERT | InstanceKBLoader.PREPARE)) != 0) ) {
-				LogWriter.get().printlnWarning("Unsupported axiom: " + axiom.toString());
+		try {
+			return axiomloader.processAxioms(ontology.getLogicalAxioms(), datafactory);
+		} finally {
+			if ( writing ) { // close, commit, and recompute indexes
+				storage.endLoading();
 			}
-			result = curresult && result;
-			count++;
-			if (count % 100  == 0 ) System.out.print(".");
-		}
-		LogWriter.get().printlnNote(" processed " + count + " axiom(s).");
-		if ( writing ) { // close, commit, and recompute indexes
-			storage.endLoading();
 		}
-		return result;
 	}
 
 }
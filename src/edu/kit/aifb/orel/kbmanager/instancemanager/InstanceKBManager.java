@@ -5,9 +5,11 @@ import java.util.List;
 
 import org.semanticweb.owlapi.model.OWLOntology;
 
+import edu.kit.aifb.orel.client.EventLog;
 import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
 import edu.kit.aifb.orel.kbmanager.KBManager;
 import edu.kit.aifb.orel.kbmanager.Literals;
+import edu.kit.aifb.orel.storage.AssertionRecordingStorageDriver;
 import edu.kit.aifb.orel.storage.SimpleLiteral;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
@@ -142,6 +144,7 @@ public class InstanceKBManager extends KBManager {
 				storage.makePredicateAssertion("dsubcon",otypeid1,otypeid2,bottype);
 			}
 		}
+		new InstanceKBReasoner(storage).prepareInferenceRules();
 		storage.commit();
 	}
 	
@@ -159,7 +162,39 @@ public class InstanceKBManager extends KBManager {
 		while (ontit.hasNext()) {
 			result = loadOntology(ontit.next()) && result;
 		}
-		return loader.processOntology(ontology, (InstanceKBLoader.PREPAREASSERT | InstanceKBLoader.ASSERT) ) && result;
+		long sTime = EventLog.start();
+		result = loader.processOntology(ontology, (InstanceKBLoader.PREPAREASSERT | InstanceKBLoader.ASSERT) ) && result;
+		EventLog.end(EventLog.LOAD, "loadOntology", ontology.getAxiomCount(), sTime);
+		return result;
+	}
+
+	/**
+	 * Remove the content of some ontology from the database, together with
+	 * all consequences that no longer follow from the remaining content.
+	 * @param ontology
+	 */
+	@Override
+	public boolean removeOntology(OWLOntology ontology) throws Exception {
+		AssertionRecordingStorageDriver recorder = new AssertionRecordingStorageDriver(storage);
+		boolean result = recordOntology(ontology, recorder);
+		InstanceKBReasoner reasoner = new InstanceKBReasoner(storage);
+		reasoner.remove(recorder.getAssertions());
+		return result;
+	}
+
+	/**
+	 * Record the facts that loading the given ontology asserts.
+	 * @param ontology
+	 * @param recorder
+	 */
+	protected boolean recordOntology(OWLOntology ontology, AssertionRecordingStorageDriver recorder) throws Exception {
+		boolean result = true;
+		InstanceKBLoader loader = new InstanceKBLoader(recorder);
+		Iterator<OWLOntology> ontit = ontology.getDirectImports().iterator();
+		while (ontit.hasNext()) {
+			result = recordOntology(ontit.next(), recorder) && result;
+		}
+		return loader.processOntology(ontology, InstanceKBLoader.ASSERT ) && result;
 	}
 
 	/**
@@ -170,6 +205,8 @@ public class InstanceKBManager extends KBManager {
 	@Override
 	public InferenceResult checkEntailment(OWLOntology ontology) throws Exception {
 		InstanceKBReasoner reasoner = new InstanceKBReasoner(storage);
+		reasoner.setGoalDirected(goaldirected);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkEntailment(ontology);
 	}
 	
@@ -180,6 +217,7 @@ public class InstanceKBManager extends KBManager {
 	@Override
 	public InferenceResult checkConsistency() throws Exception {
 		InstanceKBReasoner reasoner = new InstanceKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		return reasoner.checkConsistency();
 	}
 
@@ -189,6 +227,7 @@ public class InstanceKBManager extends KBManager {
 	@Override
 	public void materialize() throws Exception {
 		InstanceKBReasoner reasoner = new InstanceKBReasoner(storage);
+		reasoner.setIncremental(incremental);
 		reasoner.materialize();
 	}
 
@@ -217,31 +256,31 @@ public class InstanceKBManager extends KBManager {
 		storage.registerPredicate( new PredicateDeclaration("dliteral",1,false,false) ); // literal(a): data literal, normalized by Orel (can be compared syntactically for finding clashes)
 		// axiom predicates
 		/// TBox (classes)
-		storage.registerPredicate( new PredicateDeclaration("subc",2,false,false) ); // subc(A,C): A ⊑ C
-		storage.registerPredicate( new PredicateDeclaration("subcon",3,false,false) ); // subcon(A,B,C): A ⊓ B ⊑ C
-		storage.registerPredicate( new PredicateDeclaration("subsome",3,false,false) ); // subsome(R,A,C): ∃R.A ⊑ C
-		storage.registerPredicate( new PredicateDeclaration("supsome",3,false,false) ); // supsome(A,R,C): A ⊑ ∃R.C
-		storage.registerPredicate( new PredicateDeclaration("subself",2,false,false) ); // subself(R,C): ∃R.Self ⊑ C
-		storage.registerPredicate( new PredicateDeclaration("supself",2,false,false) ); // supself(A,R): A ⊑ ∃R.Self
-		storage.registerPredicate( new PredicateDeclaration("supall",3,false,false) ); // supall(A,R,C): A ⊑ ∀R.C
-		storage.registerPredicate( new PredicateDeclaration("supfunc",3,false,false) ); // supfunc(A,R,C): A ⊑ ≤1R.B
+		storage.registerPredicate( new PredicateDeclaration("subc",2,false,true) ); // subc(A,C): A ⊑ C
+		storage.registerPredicate( new PredicateDeclaration("subcon",3,false,true) ); // subcon(A,B,C): A ⊓ B ⊑ C
+		storage.registerPredicate( new PredicateDeclaration("subsome",3,false,true) ); // subsome(R,A,C): ∃R.A ⊑ C
+		storage.registerPredicate( new PredicateDeclaration("supsome",3,false,true) ); // supsome(A,R,C): A ⊑ ∃R.C
+		storage.registerPredicate( new PredicateDeclaration("subself",2,false,true) ); // subself(R,C): ∃R.Self ⊑ C
+		storage.registerPredicate( new PredicateDeclaration("supself",2,false,true) ); // supself(A,R): A ⊑ ∃R.Self
+		storage.registerPredicate( new PredicateDeclaration("supall",3,false,true) ); // supall(A,R,C): A ⊑ ∀R.C
+		storage.registerPredicate( new PredicateDeclaration("supfunc",3,false,true) ); // supfunc(A,R,C): A ⊑ ≤1R.B
 		/// TBox (datatypes)
-		storage.registerPredicate( new PredicateDeclaration("dsubc",2,false,false) ); // dsubc(D,E): D ⊑ E
-		storage.registerPredicate( new PredicateDeclaration("dsubcon",3,false,false) ); // dsubcon(D,E,F): D ⊓ E ⊑ F
-		storage.registerPredicate( new PredicateDeclaration("dsubsome",3,false,false) ); // dsubsome(P,D,C): ∃P.D ⊑ C
-		storage.registerPredicate( new PredicateDeclaration("dsupsome",3,false,false) ); // dsupsome(A,P,D): A ⊑ ∃P.D
-		storage.registerPredicate( new PredicateDeclaration("dsupall",3,false,false) ); // dsupall(A,P,D): A ⊑ ∀P.D
-		storage.registerPredicate( new PredicateDeclaration("dsupfunc",3,false,false) ); // dsupfunc(A,P,D): A ⊑ ≤1P.D
+		storage.registerPredicate( new PredicateDeclaration("dsubc",2,false,true) ); // dsubc(D,E): D ⊑ E
+		storage.registerPredicate( new PredicateDeclaration("dsubcon",3,false,true) ); // dsubcon(D,E,F): D ⊓ E ⊑ F
+		storage.registerPredicate( new PredicateDeclaration("dsubsome",3,false,true) ); // dsubsome(P,D,C): ∃P.D ⊑ C
+		storage.registerPredicate( new PredicateDeclaration("dsupsome",3,false,true) ); // dsupsome(A,P,D): A ⊑ ∃P.D
+		storage.registerPredicate( new PredicateDeclaration("dsupall",3,false,true) ); // dsupall(A,P,D): A ⊑ ∀P.D
+		storage.registerPredicate( new PredicateDeclaration("dsupfunc",3,false,true) ); // dsupfunc(A,P,D): A ⊑ ≤1P.D
 		
 		/// RBox
-		storage.registerPredicate( new PredicateDeclaration("subp",2,false,false) ); // subp(R,S): R ⊑ S
-		storage.registerPredicate( new PredicateDeclaration("dsubp",2,false,false) ); // subp(P,Q): P ⊑ Q (DataProperties)
-		storage.registerPredicate( new PredicateDeclaration("subinv",2,false,false) ); // subinv(R,S): Inv(R) ⊑ S
-		storage.registerPredicate( new PredicateDeclaration("subchain",3,false,false) ); // subchain(R,S,T): R ◦ S ⊑ T
+		storage.registerPredicate( new PredicateDeclaration("subp",2,false,true) ); // subp(R,S): R ⊑ S
+		storage.registerPredicate( new PredicateDeclaration("dsubp",2,false,true) ); // subp(P,Q): P ⊑ Q (DataProperties)
+		storage.registerPredicate( new PredicateDeclaration("subinv",2,false,true) ); // subinv(R,S): Inv(R) ⊑ S
+		storage.registerPredicate( new PredicateDeclaration("subchain",3,false,true) ); // subchain(R,S,T): R ◦ S ⊑ T
 		//storage.registerPredicate( new PredicateDeclaration("subpcon",3,false,false) ); // subrcon(R,S,T): R ⊓ S ⊑ T
 		// only support one special case of role conjunctions
-		storage.registerPredicate( new PredicateDeclaration("pdisjoint",2,false,false) ); // pdisjoint(R,S): R ⊓ S ⊑ bottom-role
-		storage.registerPredicate( new PredicateDeclaration("dpdisjoint",2,false,false) ); // pdisjoint(R,S): P ⊓ Q ⊑ bottom-role (DataProperties)
+		storage.registerPredicate( new PredicateDeclaration("pdisjoint",2,false,true) ); // pdisjoint(R,S): R ⊓ S ⊑ bottom-role
+		storage.registerPredicate( new PredicateDeclaration("dpdisjoint",2,false,true) ); // pdisjoint(R,S): P ⊓ Q ⊑ bottom-role (DataProperties)
 		
 		storage.registerPredicate( new PredicateDeclaration("eltype",1,true,false) );
 	}
@@ -1,7 +1,7 @@
 package edu.kit.aifb.orel.kbmanager.instancemanager;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -10,8 +10,13 @@ import org.semanticweb.owlapi.model.OWLOntology;
 
 import edu.kit.aifb.orel.client.LogWriter;
 import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.kbmanager.DRedRewriter;
 import edu.kit.aifb.orel.kbmanager.Literals;
+import edu.kit.aifb.orel.kbmanager.MagicSetRewriter;
 import edu.kit.aifb.orel.kbmanager.KBManager.InferenceResult;
+import edu.kit.aifb.orel.kbmanager.RuleScheduler;
+import edu.kit.aifb.orel.storage.GoalRecordingStorageDriver;
 import edu.kit.aifb.orel.storage.StorageDriver;
 
 /**
@@ -21,57 +26,49 @@ import edu.kit.aifb.orel.storage.StorageDriver;
  */
 public class InstanceKBReasoner {
 	protected StorageDriver storage;
-	//protected ArrayList<String> inferencerules = null;
-	protected ArrayList<RuleInfo> ruleinfo = null;
+	protected ArrayList<InferenceRuleDeclaration> inferencerules = null;
+	protected ArrayList<InferenceRuleDeclaration> checkrules = null;
+	protected RuleScheduler scheduler = null;
 	protected boolean hasCheckRules = false; 
-	protected class RuleInfo implements Comparable<RuleInfo> {
-		public int laststep;
-		public String name;
-		protected int lastaffected;
-		protected int runs = 0;
-		protected int successfulruns = 0;
-		public RuleInfo (String name) {
-			this.name = name;
-			reset();
-		}
-		public void reset() {
-			laststep = -1;
-			lastaffected = 0;
-		}
-		public int compareTo(RuleInfo ri) {
-			if (this.lastaffected > ri.lastaffected) {
-				return -1;
-			} else if (this.lastaffected < ri.lastaffected) {
-				return 1;
-			} else {
-				float rate1 = (runs>0) ? (successfulruns/runs) : 0;
-				float rate2 = (ri.runs>0) ? (ri.successfulruns/ri.runs) : 0;
-				if (rate1 > rate2) {
-					return -1;
-				} else if (rate1 < rate2) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
-		}
-		public int getLastAffected() {
-			return lastaffected;
-		}
-		public void setLastAffected(int n) {
-			runs++;
-			if (n>0) successfulruns++;
-			lastaffected = n;
-		}
-	}
+	protected boolean goaldirected = false;
+	protected boolean incremental = false;
 	
 	public InstanceKBReasoner(StorageDriver storage) {
 		this.storage = storage;
 	}
 	
+	/**
+	 * Enable or disable goal-directed entailment checking. If enabled, only
+	 * facts that are relevant for the checked axioms are materialized before
+	 * checking entailment.
+	 * @param goaldirected
+	 */
+	public void setGoalDirected(boolean goaldirected) {
+		this.goaldirected = goaldirected;
+	}
+
+	/**
+	 * Enable or disable incremental materialization. If enabled, rules are
+	 * only applied to facts that are new since the last incremental
+	 * materialization, as far as the storage can tell.
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
 	protected void registerCheckRules() {
 		if (hasCheckRules) return;
 		hasCheckRules = true;
+		ArrayList<InferenceRuleDeclaration> rules = getCheckRules();
+		for (int i=0; i<rules.size(); i++) {
+			storage.registerInferenceRule(rules.get(i));
+		}
+	}
+
+	protected ArrayList<InferenceRuleDeclaration> getCheckRules() {
+		if (checkrules != null) return checkrules;
+		checkrules = new ArrayList<InferenceRuleDeclaration>();
 		HashMap<String,String> rules = new HashMap<String,String>();
 		// make the rule declaration as readable as possible;
 		// it is crucial to have this error-free and customizable
@@ -104,18 +101,40 @@ public class InstanceKBReasoner {
 		// Rules without bodies not supported yet:
 		//storage.registerInferenceRule(InferenceRuleDeclaration.buildFromString("test","?self(x,x) :- "));
 		
-		// now register those rules:
 		Iterator<String> nameit = rules.keySet().iterator();
 		String name;
 		while (nameit.hasNext()) {
 			name = nameit.next();
-			storage.registerInferenceRule(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
+			checkrules.add(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
 		}
+		return checkrules;
 	}
 	
 	protected void registerInferenceRules() {
-		if (ruleinfo != null) return; // do not do this multiple times in one run
-		ruleinfo = new ArrayList<RuleInfo>();
+		if (scheduler != null) return; // do not do this multiple times in one run
+		scheduler = new RuleScheduler(storage);
+		ArrayList<InferenceRuleDeclaration> rules = getInferenceRules();
+		for (int i=0; i<rules.size(); i++) {
+			storage.registerInferenceRule(rules.get(i));
+			scheduler.addRule(rules.get(i));
+		}
+	}
+
+	/**
+	 * Prepare the storage for the inference and check rules of this reasoner
+	 * (see StorageDriver.prepareInferenceRules()). This is done when the
+	 * knowledge base is initialized.
+	 * @throws Exception
+	 */
+	public void prepareInferenceRules() throws Exception {
+		ArrayList<InferenceRuleDeclaration> rules = new ArrayList<InferenceRuleDeclaration>(getInferenceRules());
+		rules.addAll(getCheckRules());
+		storage.prepareInferenceRules(rules);
+	}
+
+	protected ArrayList<InferenceRuleDeclaration> getInferenceRules() {
+		if (inferencerules != null) return inferencerules;
+		inferencerules = new ArrayList<InferenceRuleDeclaration>();
 		HashMap<String,String> rules = new HashMap<String,String>();
 //		int top = storage.getIDForThing();
 		int bot = storage.getID(InstanceExpressionVisitor.OP_NOTHING);
@@ -187,7 +206,7 @@ public class InstanceKBReasoner {
 		rules.put("(R5)", "winst(x,y,w) :- rampant(w), real(x), inst(x,y)"); // could be restricted to: g(w) ∧ real(x) → winst(x,x,w)
 		rules.put("(R6)", "wname(x,w) :- rampant(w), real(x), name(x)");
 		
-		// EL rules with context:
+		// EL rules with context (contexts are independent, so that the scheduler lets storages saturate them per w):
 		rules.put("(1W)", "wself(x,R,w) :- wtriple(x,R,x,w), wname(x,w)");
 		rules.put("(2W)", "winst(x,C,w) :- subc(A,C), winst(x,A,w)");
 		rules.put("(3W)", "winst(x,C,w) :- subcon(A,B,C), winst(x,A,w), winst(x,B,w)");
@@ -218,14 +237,13 @@ public class InstanceKBReasoner {
 		
 		// TODO Code remaining rules for establishing completeness ...
 				
-		// now register those rules:
 		Iterator<String> nameit = rules.keySet().iterator();
 		String name;
 		while (nameit.hasNext()) {
 			name = nameit.next();
-			ruleinfo.add(new RuleInfo(name));
-			storage.registerInferenceRule(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
+			inferencerules.add(InferenceRuleDeclaration.buildFromString(name,rules.get(name)));
 		}
+		return inferencerules;
 	}
 
 	/**
@@ -234,29 +252,41 @@ public class InstanceKBReasoner {
 	public void materialize() throws Exception {
 		long sTime=System.currentTimeMillis();
 		registerInferenceRules();
-		for (int i=0; i<ruleinfo.size(); i++) {
-			ruleinfo.get(i).reset();
-		}
-		int affectedrows = 1, curstep = storage.getMaxStep();
-		while (affectedrows > 0) {
-			LogWriter.get().printlnDebug("============");
-			Collections.sort(ruleinfo);
-			affectedrows = 0;
-			for (int i=0; i<ruleinfo.size(); i++) {
-				affectedrows = affectedrows + runRule(ruleinfo.get(i),curstep);
-				if (affectedrows != 0) i=ruleinfo.size();
-			}
-			curstep++;
-		}
+		scheduler.setIncremental(incremental);
+		scheduler.materialize();
 		LogWriter.get().printlnNote("Completed materialization in " + (System.currentTimeMillis() - sTime) + "ms.");
 		storage.dumpStatistics();
 	}
-	
-	protected int runRule(RuleInfo ri, int curstep) {
-		int affectedrows = storage.runRule(ri.name,ri.laststep+1,curstep);
-		ri.laststep = curstep;
-		ri.setLastAffected(affectedrows);
-		return affectedrows;
+
+	/**
+	 * Compute the materialized statements that are needed for checking the
+	 * given atoms, using a magic set rewriting of the inference rules.
+	 * @param goals
+	 */
+	protected void materialize(Collection<PredicateAtom> goals) throws Exception {
+		long sTime=System.currentTimeMillis();
+		MagicSetRewriter rewriter = new MagicSetRewriter(getInferenceRules(), getCheckRules());
+		rewriter.rewrite(goals);
+		rewriter.materialize(storage);
+		LogWriter.get().printlnNote("Completed goal-directed materialization in " + (System.currentTimeMillis() - sTime) + "ms.");
+		storage.dumpStatistics();
+	}
+
+	/**
+	 * Remove the given asserted facts together with all of their consequences
+	 * that can no longer be derived, using the DRed method instead of
+	 * recomputing the materialization. Consequences of the remaining facts
+	 * that were not materialized before are not computed.
+	 * @param facts
+	 */
+	public void remove(Collection<PredicateAtom> facts) throws Exception {
+		long sTime=System.currentTimeMillis();
+		registerInferenceRules();
+		DRedRewriter rewriter = new DRedRewriter(getInferenceRules());
+		rewriter.rewrite(facts);
+		scheduler.materialize(rewriter.remove(storage));
+		LogWriter.get().printlnNote("Completed removal in " + (System.currentTimeMillis() - sTime) + "ms.");
+		storage.dumpStatistics();
 	}
 	
 	/**
@@ -267,7 +297,14 @@ public class InstanceKBReasoner {
 	public InferenceResult checkEntailment(OWLOntology ontology) throws Exception {
 		InstanceKBLoader loader = new InstanceKBLoader(storage);
 		boolean loaded = loader.processOntology(ontology, InstanceKBLoader.PREPARECHECK );
-		materialize();
+		if (goaldirected) { // find the assertions that will be checked below
+			GoalRecordingStorageDriver recorder = new GoalRecordingStorageDriver(storage);
+			recorder.checkPredicateAssertion("inst", storage.getID(InstanceExpressionVisitor.OP_THING), storage.getID(InstanceExpressionVisitor.OP_NOTHING));
+			new InstanceKBLoader(recorder).processOntology(ontology, InstanceKBLoader.CHECK );
+			materialize(recorder.getGoals());
+		} else {
+			materialize();
+		}
 		registerCheckRules();
 		// inconsistent ontologies entail everything
 		if ( storage.checkPredicateAssertion("inst", storage.getID(InstanceExpressionVisitor.OP_THING), storage.getID(InstanceExpressionVisitor.OP_NOTHING)) ) {
@@ -0,0 +1,164 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+
+/**
+ * Storage driver that forwards all operations to another driver, but that
+ * records the assertions that are checked instead of checking them. All
+ * checks succeed, so that a checking pass over some ontology asks for all
+ * assertions that it might need. The recorded assertions can then be used
+ * as goals for goal-directed reasoning.
+ * @author agent
+ */
+public class GoalRecordingStorageDriver implements StorageDriver {
+	protected StorageDriver storage;
+	protected ArrayList<PredicateAtom> goals;
+	protected HashSet<String> goalkeys;
+
+	public GoalRecordingStorageDriver(StorageDriver storage) {
+		this.storage = storage;
+		goals = new ArrayList<PredicateAtom>();
+		goalkeys = new HashSet<String>();
+	}
+
+	/**
+	 * Get the assertions that were checked so far, each given as an atom
+	 * with constant arguments. Every assertion is returned only once.
+	 * @return
+	 */
+	public ArrayList<PredicateAtom> getGoals() {
+		return goals;
+	}
+
+	public synchronized boolean checkPredicateAssertion(String predicate, int... ids) {
+		String key = predicate;
+		ArrayList<PredicateTerm> arguments = new ArrayList<PredicateTerm>(ids.length);
+		for (int i=0; i<ids.length; i++) {
+			key = key + "," + ids[i];
+			arguments.add(new PredicateTerm(String.valueOf(ids[i]),false));
+		}
+		if (goalkeys.add(key)) {
+			goals.add(new PredicateAtom(predicate,arguments));
+		}
+		return true;
+	}
+
+	public void registerPredicate(PredicateDeclaration pd) {
+		storage.registerPredicate(pd);
+	}
+
+	public void initialize() throws Exception {
+		storage.initialize();
+	}
+
+	public void drop() throws Exception {
+		storage.drop();
+	}
+
+	public void drop(String predicate) throws Exception {
+		storage.drop(predicate);
+	}
+
+	public void dumpStatistics() {
+		storage.dumpStatistics();
+	}
+
+	public RuleStatistics getRuleStatistics() {
+		return storage.getRuleStatistics();
+	}
+
+	public void clear(boolean onlyderived) throws Exception {
+		storage.clear(onlyderived);
+	}
+
+	public void clear(String predicate, boolean onlyderived) throws Exception {
+		storage.clear(predicate, onlyderived);
+	}
+
+	public void commit() throws Exception {
+		storage.commit();
+	}
+
+	public void beginLoading() {
+		storage.beginLoading();
+	}
+
+	public void endLoading() {
+		storage.endLoading();
+	}
+
+	public void makePredicateAssertion(String predicate, int... ids) {
+		storage.makePredicateAssertion(predicate, ids);
+	}
+
+	public int changeStep(String predicate, int oldstep, int newstep) throws Exception {
+		return storage.changeStep(predicate, oldstep, newstep);
+	}
+
+	public int getMaxStep() {
+		return storage.getMaxStep();
+	}
+
+	public void registerInferenceRule(InferenceRuleDeclaration rd) {
+		storage.registerInferenceRule(rd);
+	}
+
+	public void unregisterInferenceRule(String rulename) {
+		storage.unregisterInferenceRule(rulename);
+	}
+
+	public void prepareInferenceRules(Collection<InferenceRuleDeclaration> rules) throws Exception {
+		storage.prepareInferenceRules(rules);
+	}
+
+	public int runRule(String rulename, int newstep) {
+		return storage.runRule(rulename, newstep);
+	}
+
+	public int runRule(String rulename, int newstep, int[] params) {
+		return storage.runRule(rulename, newstep, params);
+	}
+
+	public int runRule(String rulename, int min_cur_step, int max_cur_step) {
+		return storage.runRule(rulename, min_cur_step, max_cur_step);
+	}
+
+	public int computeTransitiveClosure(String predicate, int newstep) {
+		return storage.computeTransitiveClosure(predicate, newstep);
+	}
+
+	public int saturateContextRules(Collection<String> rulenames, int min_cur_step, int max_cur_step) {
+		return storage.saturateContextRules(rulenames, min_cur_step, max_cur_step);
+	}
+
+	public int getWatermark(String rulename) {
+		return storage.getWatermark(rulename);
+	}
+
+	public void setWatermark(String rulename, int step) {
+		storage.setWatermark(rulename, step);
+	}
+
+	public Collection<Integer> getLoadSteps() {
+		return storage.getLoadSteps();
+	}
+
+	public int getParallelism() {
+		return storage.getParallelism();
+	}
+
+	public int getID(String key) {
+		return storage.getID(key);
+	}
+
+	public int[] getIDs(Collection<String> keys) {
+		return storage.getIDs(keys);
+	}
+}
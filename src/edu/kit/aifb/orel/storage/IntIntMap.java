@@ -0,0 +1,100 @@
+package edu.kit.aifb.orel.storage;
+
+/**
+ * Simple open addressing hash map from int keys to non-negative int values.
+ * It is used for indexing tuples of in-memory predicates without creating
+ * wrapper objects for every entry. The value -1 is used to indicate that a
+ * key was not found, so it cannot be stored as a value.
+ * @author agent
+ */
+public class IntIntMap {
+	protected int[] keys;
+	protected int[] values;
+	protected int size = 0;
+	protected int mask;
+
+	public IntIntMap(int expectedsize) {
+		int capacity = 16;
+		while (capacity < expectedsize*2) capacity = capacity << 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		java.util.Arrays.fill(values, -1);
+		mask = capacity-1;
+	}
+
+	/**
+	 * Get the value stored for the given key, or -1 if there is none.
+	 * @param key
+	 * @return
+	 */
+	public int get(int key) {
+		int pos = hash(key) & mask;
+		while (values[pos] != -1) {
+			if (keys[pos] == key) return values[pos];
+			pos = (pos+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Store the given (non-negative) value for the given key, overwriting
+	 * any previous value.
+	 * @param key
+	 * @param value
+	 */
+	public void put(int key, int value) {
+		assert value >= 0;
+		int pos = hash(key) & mask;
+		while (values[pos] != -1) {
+			if (keys[pos] == key) {
+				values[pos] = value;
+				return;
+			}
+			pos = (pos+1) & mask;
+		}
+		keys[pos] = key;
+		values[pos] = value;
+		size++;
+		if (size*2 > keys.length) rehash(keys.length << 1);
+	}
+
+	/**
+	 * Get the number of keys in this map.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		java.util.Arrays.fill(values, -1);
+		size = 0;
+	}
+
+	protected void rehash(int capacity) {
+		int[] oldkeys = keys, oldvalues = values;
+		keys = new int[capacity];
+		values = new int[capacity];
+		java.util.Arrays.fill(values, -1);
+		mask = capacity-1;
+		int pos;
+		for (int i=0; i<oldkeys.length; i++) {
+			if (oldvalues[i] != -1) {
+				pos = hash(oldkeys[i]) & mask;
+				while (values[pos] != -1) pos = (pos+1) & mask;
+				keys[pos] = oldkeys[i];
+				values[pos] = oldvalues[i];
+			}
+		}
+	}
+
+	/**
+	 * Spread the bits of the key to avoid clustering of consecutive IDs.
+	 * @param key
+	 * @return
+	 */
+	protected static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,381 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+
+/**
+ * Executable join plan for one variant of a MemoryRule. The plan fixes the
+ * order in which the atoms are matched, and precomputes for every atom the
+ * column used for index lookups, the columns whose values must be checked,
+ * and the columns whose values bind new variables. Inequalities are tested
+ * as soon as both of their variables are bound.
+ *
+ * Plans can be reused for any number of evaluations. If statistics of the
+ * tables are given, the order of atoms and the columns for lookups are chosen
+ * by estimating the costs for the current data (see estimateCost()), and the
+ * plan should be replaced once the data has changed too much (see
+ * isOutdated()). Otherwise, the plan prefers atoms with many known values.
+ * @author agent
+ */
+public class MemoryJoinPlan {
+	static final protected int SOURCE_NONE = 0;
+	static final protected int SOURCE_CONSTANT = 1;
+	static final protected int SOURCE_PARAMETER = 2;
+	static final protected int SOURCE_SLOT = 3;
+	// factor by which the number of rows of an atom may change before a plan that uses statistics is outdated
+	static final protected int REPLAN_FACTOR = 10;
+
+	/**
+	 * Callback for processing complete matches of a plan.
+	 */
+	public static abstract class MatchHandler {
+		/**
+		 * Process one match, given by the values of all variable slots and
+		 * the matched row for every atom of the rule.
+		 * @param values
+		 * @param rows
+		 * @return true if the evaluation should stop
+		 */
+		public abstract boolean match(int[] values, int[] rows);
+	}
+
+	protected MemoryRule rule;
+	protected int[] order; // atom indexes in the order of evaluation
+	// for each position in the order:
+	protected int[] probecolumns; // column used for index lookup, or -1 to scan the table
+	protected int[] probesources;
+	protected int[] proberefs;
+	protected int[][] checkcolumns; // columns that must match known values
+	protected int[][] checksources;
+	protected int[][] checkrefs;
+	protected int[][] bindcolumns; // columns that bind new variables
+	protected int[][] bindslots;
+	protected int[][] distinctchecks; // indexes of inequalities to test
+	// statistics used for planning, or null if the plan does not depend on the data:
+	protected int[] plannedsizes; // size of the table of each atom
+	protected int[] plannedrowcounts; // rows in the step bounds of each atom
+
+	/**
+	 * Create a new plan for the given rule.
+	 * @param rule
+	 * @param firstatom index of the atom to evaluate first, or -1 to choose automatically
+	 * @param boundslots slots that have a value before the evaluation starts
+	 */
+	public MemoryJoinPlan(MemoryRule rule, int firstatom, boolean[] boundslots) {
+		this(rule, firstatom, boundslots, null, null);
+	}
+
+	/**
+	 * Create a new plan for the given rule, using statistics of the given
+	 * tables to choose the order of atoms.
+	 * @param rule
+	 * @param firstatom index of the atom to evaluate first, or -1 to choose automatically
+	 * @param boundslots slots that have a value before the evaluation starts
+	 * @param tables the table for each atom of the rule, or null to plan without statistics
+	 * @param rowcounts the number of rows in the step bounds of each atom (if tables are given)
+	 */
+	public MemoryJoinPlan(MemoryRule rule, int firstatom, boolean[] boundslots, MemoryPredicateTable[] tables, int[] rowcounts) {
+		this.rule = rule;
+		MemoryRule.Atom[] atoms = rule.getAtoms();
+		int count = atoms.length;
+		order = new int[count];
+		probecolumns = new int[count];
+		probesources = new int[count];
+		proberefs = new int[count];
+		checkcolumns = new int[count][];
+		checksources = new int[count][];
+		checkrefs = new int[count][];
+		bindcolumns = new int[count][];
+		bindslots = new int[count][];
+		distinctchecks = new int[count][];
+
+		boolean[] bound = boundslots.clone();
+		boolean[] used = new boolean[count];
+		boolean[] distinctdone = new boolean[rule.distinct1.length];
+		if (tables != null) {
+			plannedsizes = new int[count];
+			for (int i=0; i<count; i++) {
+				plannedsizes[i] = tables[i].size();
+			}
+			plannedrowcounts = rowcounts.clone();
+		}
+		for (int pos=0; pos<count; pos++) {
+			int next;
+			if ( (pos == 0) && (firstatom >= 0) ) {
+				next = firstatom;
+			} else if (tables != null) {
+				next = chooseCheapestAtom(atoms, used, bound, tables, rowcounts);
+			} else {
+				next = chooseNextAtom(atoms, used, bound);
+			}
+			order[pos] = next;
+			used[next] = true;
+			compileAtom(pos, atoms[next], bound, (tables != null) ? tables[next] : null);
+			// test inequalities as early as possible
+			ArrayList<Integer> tests = new ArrayList<Integer>();
+			for (int i=0; i<distinctdone.length; i++) {
+				if ( !distinctdone[i] && bound[rule.distinct1[i]] && bound[rule.distinct2[i]] ) {
+					tests.add(i);
+					distinctdone[i] = true;
+				}
+			}
+			distinctchecks[pos] = toArray(tests);
+		}
+	}
+
+	/**
+	 * Create a plan for the given rule without computing any operations, for
+	 * subclasses that evaluate the rule in another way.
+	 * @param rule
+	 */
+	protected MemoryJoinPlan(MemoryRule rule) {
+		this.rule = rule;
+	}
+
+	/**
+	 * Choose the atom that has the largest number of known values, preferring
+	 * earlier atoms if there are several such atoms.
+	 * @param atoms
+	 * @param used
+	 * @param bound
+	 * @return
+	 */
+	protected int chooseNextAtom(MemoryRule.Atom[] atoms, boolean[] used, boolean[] bound) {
+		int best = -1, bestscore = -1, score;
+		for (int i=0; i<atoms.length; i++) {
+			if (used[i]) continue;
+			score = 0;
+			for (int j=0; j<atoms[i].arity; j++) {
+				if ( (atoms[i].slots[j] < 0) || bound[atoms[i].slots[j]] ) score++;
+			}
+			if (score > bestscore) {
+				best = i;
+				bestscore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Choose the atom with the lowest estimated cost, preferring earlier
+	 * atoms if there are several such atoms.
+	 * @param atoms
+	 * @param used
+	 * @param bound
+	 * @param tables
+	 * @param rowcounts
+	 * @return
+	 */
+	protected int chooseCheapestAtom(MemoryRule.Atom[] atoms, boolean[] used, boolean[] bound, MemoryPredicateTable[] tables, int[] rowcounts) {
+		int best = -1;
+		double bestcost = Double.MAX_VALUE, cost;
+		for (int i=0; i<atoms.length; i++) {
+			if (used[i]) continue;
+			cost = estimateCost(atoms[i], bound, tables[i], rowcounts[i]);
+			if ( (best < 0) || (cost < bestcost) ) {
+				best = i;
+				bestcost = cost;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Estimate the cost of matching the given atom for one match of the
+	 * earlier atoms: the number of rows that are read, plus the number of
+	 * matches that are passed on to the later atoms. Values of different
+	 * columns are assumed to be independent and evenly distributed.
+	 * @param atom
+	 * @param bound
+	 * @param table
+	 * @param rowcount number of rows in the step bounds of the atom
+	 * @return
+	 */
+	protected double estimateCost(MemoryRule.Atom atom, boolean[] bound, MemoryPredicateTable table, int rowcount) {
+		int probecolumn = chooseProbeColumn(atom, bound, table);
+		double read, matches = rowcount;
+		if (probecolumn >= 0) { // lookups find all rows with the value, whatever their step
+			read = (double)table.size() / Math.max(1, table.getDistinctCount(probecolumn));
+		} else { // scans of tables that are sorted by step only read the rows in the step bounds
+			read = table.isStepSorted() ? rowcount : table.size();
+		}
+		for (int j=0; j<atom.arity; j++) {
+			if ( (atom.slots[j] < 0) || bound[atom.slots[j]] ) {
+				matches = matches / Math.max(1, table.getDistinctCount(j));
+			}
+		}
+		return read + matches;
+	}
+
+	/**
+	 * Choose the column with a known value that is used for index lookups.
+	 * If a table is given, this is the column with the most distinct values;
+	 * otherwise it is the first such column.
+	 * @param atom
+	 * @param bound
+	 * @param table
+	 * @return the column, or -1 if no value of the atom is known
+	 */
+	protected int chooseProbeColumn(MemoryRule.Atom atom, boolean[] bound, MemoryPredicateTable table) {
+		int best = -1;
+		for (int j=0; j<atom.arity; j++) {
+			if ( (atom.slots[j] >= 0) && !bound[atom.slots[j]] ) continue;
+			if (best < 0) {
+				best = j;
+				if (table == null) break;
+			} else if (table.getDistinctCount(j) > table.getDistinctCount(best)) {
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Compute the operations for the given atom at the given position,
+	 * marking all of its variables as bound.
+	 * @param pos
+	 * @param atom
+	 * @param bound
+	 * @param table the table of the atom for choosing the lookup column, or null
+	 */
+	protected void compileAtom(int pos, MemoryRule.Atom atom, boolean[] bound, MemoryPredicateTable table) {
+		ArrayList<Integer> ccols = new ArrayList<Integer>(), csources = new ArrayList<Integer>(), crefs = new ArrayList<Integer>();
+		ArrayList<Integer> bcols = new ArrayList<Integer>(), bslots = new ArrayList<Integer>();
+		probecolumns[pos] = chooseProbeColumn(atom, bound, table);
+		probesources[pos] = SOURCE_NONE;
+		int source, ref;
+		for (int j=0; j<atom.arity; j++) {
+			if (atom.slots[j] >= 0) {
+				if (!bound[atom.slots[j]]) {
+					bcols.add(j);
+					bslots.add(atom.slots[j]);
+					bound[atom.slots[j]] = true;
+					continue;
+				}
+				source = SOURCE_SLOT;
+				ref = atom.slots[j];
+			} else if (atom.paramindexes[j] >= 0) {
+				source = SOURCE_PARAMETER;
+				ref = atom.paramindexes[j];
+			} else {
+				source = SOURCE_CONSTANT;
+				ref = atom.constants[j];
+			}
+			if (j == probecolumns[pos]) {
+				probesources[pos] = source;
+				proberefs[pos] = ref;
+			} else {
+				ccols.add(j);
+				csources.add(source);
+				crefs.add(ref);
+			}
+		}
+		checkcolumns[pos] = toArray(ccols);
+		checksources[pos] = toArray(csources);
+		checkrefs[pos] = toArray(crefs);
+		bindcolumns[pos] = toArray(bcols);
+		bindslots[pos] = toArray(bslots);
+	}
+
+	/**
+	 * Check if the plan was made for data that differs too much from the
+	 * data with the given numbers of rows: this is the case if the size of
+	 * the table or the number of rows in the step bounds has changed by more
+	 * than REPLAN_FACTOR for some atom. Plans without statistics are never
+	 * outdated.
+	 * @param tables
+	 * @param rowcounts
+	 * @return
+	 */
+	public boolean isOutdated(MemoryPredicateTable[] tables, int[] rowcounts) {
+		if (plannedsizes == null) return false;
+		for (int i=0; i<plannedsizes.length; i++) {
+			if ( hasChanged(plannedsizes[i], tables[i].size()) || hasChanged(plannedrowcounts[i], rowcounts[i]) ) return true;
+		}
+		return false;
+	}
+
+	protected static boolean hasChanged(int oldcount, int newcount) {
+		long low = Math.max(1, Math.min(oldcount, newcount)), high = Math.max(oldcount, newcount);
+		return (high > low*REPLAN_FACTOR);
+	}
+
+	/**
+	 * Get the indexes of the atoms of the rule in the order of evaluation.
+	 * @return
+	 */
+	public int[] getOrder() {
+		return order;
+	}
+
+	/**
+	 * Evaluate the plan.
+	 * @param tables the table for each atom of the rule
+	 * @param lowersteps the minimal step for each atom of the rule
+	 * @param uppersteps the maximal step for each atom of the rule
+	 * @param params values of the parameters of the rule
+	 * @param values values of the slots, including the initially bound ones
+	 * @param handler callback for processing matches
+	 * @return true if the evaluation was stopped by the handler
+	 */
+	public boolean execute(MemoryPredicateTable[] tables, int[] lowersteps, int[] uppersteps, int[] params, int[] values, MatchHandler handler) {
+		int[] rows = new int[order.length];
+		return match(0, tables, lowersteps, uppersteps, params, values, rows, handler);
+	}
+
+	protected boolean match(int pos, MemoryPredicateTable[] tables, int[] lowersteps, int[] uppersteps,
+			int[] params, int[] values, int[] rows, MatchHandler handler) {
+		if (pos == order.length) return handler.match(values, rows);
+		int atom = order[pos];
+		MemoryPredicateTable table = tables[atom];
+		int lower = lowersteps[atom], upper = uppersteps[atom];
+		int probecolumn = probecolumns[pos];
+		int[] ccols = checkcolumns[pos], csources = checksources[pos], crefs = checkrefs[pos];
+		int[] bcols = bindcolumns[pos], bslots = bindslots[pos];
+		int[] dchecks = distinctchecks[pos];
+		int size = table.size(), step, i;
+		// scans of tables that are sorted by step only need to read the rows in the step range
+		boolean stepsorted = (probecolumn < 0) && table.isStepSorted();
+		int row = (probecolumn >= 0) ? table.getFirstRow(probecolumn, getValue(probesources[pos], proberefs[pos], params, values)) : table.getFirstRowFromStep(lower);
+		boolean matches;
+		while ( (row >= 0) && ( (row < size) || (probecolumn >= 0) ) ) {
+			step = table.getStep(row);
+			if ( stepsorted && (step > upper) ) break;
+			if ( (row < size) && (step >= lower) && (step <= upper) ) { // ignore rows that were added during evaluation
+				for (i=0; i<bcols.length; i++) {
+					values[bslots[i]] = table.getValue(row, bcols[i]);
+				}
+				matches = true;
+				for (i=0; (i<ccols.length) && matches; i++) {
+					matches = (table.getValue(row, ccols[i]) == getValue(csources[i], crefs[i], params, values));
+				}
+				for (i=0; (i<dchecks.length) && matches; i++) {
+					matches = (values[rule.distinct1[dchecks[i]]] != values[rule.distinct2[dchecks[i]]]);
+				}
+				if (matches) {
+					rows[atom] = row;
+					if (match(pos+1, tables, lowersteps, uppersteps, params, values, rows, handler)) return true;
+				}
+			}
+			row = (probecolumn >= 0) ? table.getNextRow(probecolumn, row) : row+1;
+		}
+		return false;
+	}
+
+	protected static int getValue(int source, int ref, int[] params, int[] values) {
+		if (source == SOURCE_SLOT) {
+			return values[ref];
+		} else if (source == SOURCE_PARAMETER) {
+			return params[ref];
+		} else {
+			return ref;
+		}
+	}
+
+	protected static int[] toArray(ArrayList<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,430 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Table for storing the tuples of one predicate in main memory. Tuples are
+ * kept in a flat int array together with their step values. Duplicates are
+ * eliminated using an open addressing hash table over the rows, and every
+ * column has an index that chains all rows with the same value in this column.
+ *
+ * Rows are never moved unless some tuples are deleted, so row numbers can be
+ * used as stable references while no deletions happen.
+ *
+ * As long as tuples are added in the order of their steps, which is the
+ * usual case for semi-naive evaluation, the table can find the first row
+ * of a given step by binary search, so that recent tuples can be read
+ * without scanning the whole table.
+ *
+ * For trie joins, the table can also provide its rows sorted by some order
+ * of columns. Such orders are cached and updated by merging when new rows
+ * have been added.
+ * @author agent
+ */
+public class MemoryPredicateTable {
+	protected int arity;
+	protected int size = 0;
+	protected int[] tuples; // arity values per row
+	protected int[] steps;  // one step value per row
+	protected boolean stepsorted = true; // true if the steps of the rows are not decreasing
+
+	// hash table for finding rows: stores row+1, 0 means empty
+	protected int[] rowhash;
+	protected int rowmask;
+
+	// column indexes: first row for each value, and next row with the same value
+	protected IntIntMap[] indexheads;
+	protected int[][] indexnext;
+
+	// rows sorted by some order of columns (see getSortedRows()), or null if none are cached
+	protected HashMap<String,int[]> sortedrows = null;
+
+	public MemoryPredicateTable(int arity) {
+		this.arity = arity;
+		init(16);
+	}
+
+	protected void init(int capacity) {
+		size = 0;
+		stepsorted = true;
+		tuples = new int[capacity*arity];
+		steps = new int[capacity];
+		rowhash = new int[capacity*2];
+		rowmask = rowhash.length-1;
+		indexheads = new IntIntMap[arity];
+		indexnext = new int[arity][];
+		for (int i=0; i<arity; i++) {
+			indexheads[i] = new IntIntMap(capacity);
+			indexnext[i] = new int[capacity];
+		}
+		sortedrows = null;
+	}
+
+	public int getArity() {
+		return arity;
+	}
+
+	/**
+	 * Get the number of tuples in this table.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getValue(int row, int column) {
+		return tuples[row*arity+column];
+	}
+
+	public int getStep(int row) {
+		return steps[row];
+	}
+
+	public void setStep(int row, int step) {
+		steps[row] = step;
+		stepsorted = stepsorted && ( (row == 0) || (steps[row-1] <= step) ) && ( (row+1 >= size) || (step <= steps[row+1]) );
+	}
+
+	/**
+	 * Return true if the steps of all rows are in ascending order.
+	 * @return
+	 */
+	public boolean isStepSorted() {
+		return stepsorted;
+	}
+
+	/**
+	 * Get the first row whose step is at least the given value, or size() if
+	 * there is no such row. If the rows are not sorted by step, 0 is returned
+	 * so that all rows are considered.
+	 * @param step
+	 * @return
+	 */
+	public int getFirstRowFromStep(int step) {
+		if (!stepsorted) return 0;
+		int low = 0, high = size, mid;
+		while (low < high) {
+			mid = (low+high) >>> 1;
+			if (steps[mid] < step) {
+				low = mid+1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Get the number of rows whose step is between the given bounds. The
+	 * result is exact if the rows are sorted by step; otherwise the size of
+	 * the table is returned as an upper bound.
+	 * @param lower
+	 * @param upper
+	 * @return
+	 */
+	public int getRowCount(int lower, int upper) {
+		if (!stepsorted) return size;
+		int end = (upper == Integer.MAX_VALUE) ? size : getFirstRowFromStep(upper+1);
+		return Math.max(0, end - getFirstRowFromStep(lower));
+	}
+
+	/**
+	 * Get the number of distinct values found in the given column.
+	 * @param column
+	 * @return
+	 */
+	public int getDistinctCount(int column) {
+		return indexheads[column].size();
+	}
+
+	/**
+	 * Get the first row that has the given value in the given column, or -1
+	 * if there is no such row. Use getNextRow() to find further rows.
+	 * @param column
+	 * @param value
+	 * @return
+	 */
+	public int getFirstRow(int column, int value) {
+		return indexheads[column].get(value);
+	}
+
+	/**
+	 * Get the next row that has the same value in the given column as the
+	 * given row, or -1 if there is no such row.
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public int getNextRow(int column, int row) {
+		return indexnext[column][row];
+	}
+
+	/**
+	 * Get the numbers of all rows, sorted by the values of the given columns
+	 * (later columns are only compared if earlier columns are equal). The
+	 * result is cached and must not be modified.
+	 * @param columns
+	 * @return
+	 */
+	public synchronized int[] getSortedRows(int[] columns) {
+		String key = Arrays.toString(columns);
+		int[] cached = (sortedrows == null) ? null : sortedrows.get(key);
+		if ( (cached != null) && (cached.length == size) ) return cached;
+		int oldsize = (cached == null) ? 0 : cached.length;
+		int[] added = new int[size-oldsize];
+		for (int i=0; i<added.length; i++) {
+			added[i] = oldsize+i;
+		}
+		sortRows(added, columns);
+		int[] result;
+		if (oldsize == 0) {
+			result = added;
+		} else { // merge the new rows into the sorted old rows
+			result = new int[size];
+			int i = 0, j = 0, k = 0;
+			while ( (i < oldsize) && (j < added.length) ) {
+				result[k++] = (compareRows(cached[i], added[j], columns) <= 0) ? cached[i++] : added[j++];
+			}
+			while (i < oldsize) result[k++] = cached[i++];
+			while (j < added.length) result[k++] = added[j++];
+		}
+		if (sortedrows == null) sortedrows = new HashMap<String,int[]>();
+		sortedrows.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Sort the given row numbers by the values of the given columns, as in
+	 * getSortedRows().
+	 * @param rows
+	 * @param columns
+	 */
+	public void sortRows(int[] rows, int[] columns) {
+		int[] temp = new int[rows.length], from = rows, to = temp, swap;
+		int mid, end, i, j, k;
+		for (int width=1; width<rows.length; width*=2) { // bottom-up merge sort
+			for (int start=0; start<rows.length; start+=2*width) {
+				mid = Math.min(start+width, rows.length);
+				end = Math.min(start+2*width, rows.length);
+				i = start;
+				j = mid;
+				k = start;
+				while ( (i < mid) && (j < end) ) {
+					to[k++] = (compareRows(from[i], from[j], columns) <= 0) ? from[i++] : from[j++];
+				}
+				while (i < mid) to[k++] = from[i++];
+				while (j < end) to[k++] = from[j++];
+			}
+			swap = from;
+			from = to;
+			to = swap;
+		}
+		if (from != rows) System.arraycopy(from, 0, rows, 0, rows.length);
+	}
+
+	protected int compareRows(int row1, int row2, int[] columns) {
+		int value1, value2;
+		for (int i=0; i<columns.length; i++) {
+			value1 = tuples[row1*arity+columns[i]];
+			value2 = tuples[row2*arity+columns[i]];
+			if (value1 != value2) return (value1 < value2) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Find the row of the given tuple, or return -1 if it is not stored.
+	 * @param tuple
+	 * @return
+	 */
+	public int find(int[] tuple) {
+		int pos = hashTuple(tuple, 0) & rowmask;
+		int row;
+		while (rowhash[pos] != 0) {
+			row = rowhash[pos]-1;
+			if (equalsRow(row, tuple, 0)) return row;
+			pos = (pos+1) & rowmask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add the tuple with the given step unless it is already contained in the
+	 * table. The step of existing tuples is not changed.
+	 * @param tuple
+	 * @param step
+	 * @return true if the tuple was added
+	 */
+	public boolean add(int[] tuple, int step) {
+		int pos = hashTuple(tuple, 0) & rowmask;
+		while (rowhash[pos] != 0) {
+			if (equalsRow(rowhash[pos]-1, tuple, 0)) return false;
+			pos = (pos+1) & rowmask;
+		}
+		if (size == steps.length) {
+			grow();
+			pos = hashTuple(tuple, 0) & rowmask;
+			while (rowhash[pos] != 0) pos = (pos+1) & rowmask;
+		}
+		int row = size++;
+		System.arraycopy(tuple, 0, tuples, row*arity, arity);
+		if ( (row > 0) && (steps[row-1] > step) ) stepsorted = false;
+		steps[row] = step;
+		rowhash[pos] = row+1;
+		indexRow(row);
+		return true;
+	}
+
+	/**
+	 * Delete all rows for which the given array has value true. Remaining rows
+	 * are compacted, so row numbers change in this operation.
+	 * @param deleted
+	 * @return the number of deleted rows
+	 */
+	public int delete(boolean[] deleted) {
+		int newsize = 0;
+		for (int row=0; row<size; row++) {
+			if (deleted[row]) continue;
+			if (newsize != row) {
+				System.arraycopy(tuples, row*arity, tuples, newsize*arity, arity);
+				steps[newsize] = steps[row];
+			}
+			newsize++;
+		}
+		int result = size - newsize;
+		if (result > 0) {
+			size = newsize;
+			rebuildIndexes();
+			checkStepOrder();
+		}
+		return result;
+	}
+
+	/**
+	 * Delete all rows whose step is not 0.
+	 * @return the number of deleted rows
+	 */
+	public int deleteDerived() {
+		return deleteDerived(new HashSet<Integer>());
+	}
+
+	/**
+	 * Delete all rows whose step is neither 0 nor one of the given steps of
+	 * asserted facts.
+	 * @param loadsteps
+	 * @return the number of deleted rows
+	 */
+	public int deleteDerived(Set<Integer> loadsteps) {
+		boolean[] deleted = new boolean[size];
+		for (int row=0; row<size; row++) {
+			deleted[row] = (steps[row] != 0) && !loadsteps.contains(steps[row]);
+		}
+		return delete(deleted);
+	}
+
+	public void clear() {
+		init(16);
+	}
+
+	/**
+	 * Get the largest step value used in this table, or Integer.MIN_VALUE if
+	 * the table is empty.
+	 * @return
+	 */
+	public int getMaxStep() {
+		if (stepsorted) return (size > 0) ? steps[size-1] : Integer.MIN_VALUE;
+		int result = Integer.MIN_VALUE;
+		for (int row=0; row<size; row++) {
+			if (steps[row] > result) result = steps[row];
+		}
+		return result;
+	}
+
+	/**
+	 * Change all step values oldstep to newstep.
+	 * @return the number of changed rows
+	 */
+	public int changeStep(int oldstep, int newstep) {
+		int result = 0;
+		for (int row=0; row<size; row++) {
+			if (steps[row] == oldstep) {
+				steps[row] = newstep;
+				result++;
+			}
+		}
+		if (result > 0) checkStepOrder();
+		return result;
+	}
+
+	protected void checkStepOrder() {
+		stepsorted = true;
+		for (int row=1; (row<size) && stepsorted; row++) {
+			stepsorted = (steps[row-1] <= steps[row]);
+		}
+	}
+
+	protected void grow() {
+		int capacity = steps.length*2;
+		tuples = Arrays.copyOf(tuples, capacity*arity);
+		steps = Arrays.copyOf(steps, capacity);
+		for (int i=0; i<arity; i++) {
+			indexnext[i] = Arrays.copyOf(indexnext[i], capacity);
+		}
+		rowhash = new int[capacity*2];
+		rowmask = rowhash.length-1;
+		int pos;
+		for (int row=0; row<size; row++) {
+			pos = hashRow(row) & rowmask;
+			while (rowhash[pos] != 0) pos = (pos+1) & rowmask;
+			rowhash[pos] = row+1;
+		}
+	}
+
+	protected void rebuildIndexes() {
+		sortedrows = null;
+		Arrays.fill(rowhash, 0);
+		for (int i=0; i<arity; i++) {
+			indexheads[i].clear();
+		}
+		int pos;
+		for (int row=0; row<size; row++) {
+			pos = hashRow(row) & rowmask;
+			while (rowhash[pos] != 0) pos = (pos+1) & rowmask;
+			rowhash[pos] = row+1;
+			indexRow(row);
+		}
+	}
+
+	protected void indexRow(int row) {
+		int value;
+		for (int i=0; i<arity; i++) {
+			value = tuples[row*arity+i];
+			indexnext[i][row] = indexheads[i].get(value);
+			indexheads[i].put(value, row);
+		}
+	}
+
+	protected boolean equalsRow(int row, int[] tuple, int offset) {
+		int base = row*arity;
+		for (int i=0; i<arity; i++) {
+			if (tuples[base+i] != tuple[offset+i]) return false;
+		}
+		return true;
+	}
+
+	protected int hashRow(int row) {
+		return hashTuple(tuples, row*arity);
+	}
+
+	protected int hashTuple(int[] values, int offset) {
+		int h = 17;
+		for (int i=0; i<arity; i++) {
+			h = h*31 + values[offset+i];
+		}
+		h = h * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
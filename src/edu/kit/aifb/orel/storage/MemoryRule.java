@@ -0,0 +1,469 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+
+/**
+ * Compiled form of an inference rule for the evaluation on tables in memory.
+ * Variables are replaced by numbered slots and parameters ("?") by numbered
+ * parameter positions. Join plans for the evaluation of the rule and all of its
+ * semi-naive variants are created on demand and cached. Nested join plans use
+ * the current statistics of the tables, and are made again when these have
+ * changed too much. Rules with at least
+ * three atoms whose variables are shared in a cycle or by three or more atoms
+ * are evaluated by leapfrog triejoin (see MemoryTrieJoinPlan); other rules
+ * and checks use nested joins with index lookups. Rules that are saturated
+ * per context use separate nested join plans without statistics.
+ * @author agent
+ */
+public class MemoryRule {
+	static final public int STEP_NONE = 0;
+	static final public int STEP_EQUAL = 1;
+	static final public int STEP_UPTO = 2;
+	static final public int STEP_BETWEEN = 3;
+
+	/**
+	 * Compiled form of one atom of a rule.
+	 */
+	public static class Atom {
+		public String predicate;
+		public int arity;
+		public boolean stepped = false; // true if this atom is used in semi-naive variants
+		public int[] slots; // variable slot for each field, or -1 for constants
+		public int[] constants; // constant value for each field (if slot is -1)
+		public int[] paramindexes; // parameter index for each field, or -1 if no parameter
+		// explicit step conditions given by additional arguments:
+		public int steptype = STEP_NONE;
+		public int stepconst1, stepconst2; // constant step bounds
+		public int stepparam1 = -1, stepparam2 = -1; // parameter indexes for step bounds, or -1
+	}
+
+	protected InferenceRuleDeclaration rd;
+	protected Atom[] atoms; // body atoms, followed by the head atom for retraction rules
+	protected int[] headslots; // variable slot for each head field, -1 for constants, -2 for unrestricted variables in checks
+	protected int[] headconstants;
+	protected int[] distinct1, distinct2; // pairs of slots that must have different values
+	protected int slotcount = 0;
+	protected int paramcount = 0;
+	protected int steppedcount = 0;
+	// cached plans: index 0 for the full rule, index i+1 for the i-th semi-naive variant
+	protected MemoryJoinPlan[] plans;
+	protected MemoryJoinPlan[] contextplans; // plans of the semi-naive variants for saturating one context
+	protected MemoryJoinPlan checkplan = null;
+	protected boolean triejoin = false; // true if plans use leapfrog triejoin
+	protected int contextslot = -1; // slot of the last head argument, or -1 (see getContextSlot())
+
+	/**
+	 * Transform a rule declaration into its compiled form. Returns null if the
+	 * rule cannot be used.
+	 * @param rd
+	 * @param predicates map of all known predicate declarations
+	 * @return
+	 */
+	public static MemoryRule compile(InferenceRuleDeclaration rd, Map<String,PredicateDeclaration> predicates) {
+		MemoryRule rule = new MemoryRule();
+		rule.rd = rd;
+		HashMap<String,Integer> slots = new HashMap<String,Integer>();
+		ArrayList<Atom> atoms = new ArrayList<Atom>();
+		ArrayList<PredicateAtom> distinct = new ArrayList<PredicateAtom>();
+		for (int i=0; i<rd.getBody().size(); i++) {
+			if (rd.getBody().get(i).getName().equals("orel:distinct")) {
+				distinct.add(rd.getBody().get(i));
+			} else {
+				atoms.add(rule.compileAtom(rd.getBody().get(i), predicates, slots));
+			}
+		}
+		if (predicates.get(rd.getHead().getName()) == null) {
+			LogWriter.get().printlnError("There was a problem registering rule " + rd.getName());
+			return null;
+		}
+		if (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT) {
+			atoms.add(rule.compileAtom(rd.getHead(), predicates, slots));
+		} else {
+			int headsize = rd.getHead().getArguments().size();
+			rule.headslots = new int[headsize];
+			rule.headconstants = new int[headsize];
+			PredicateTerm pt;
+			for (int i=0; i<headsize; i++) {
+				pt = rd.getHead().getArguments().get(i);
+				if (pt.isVariable()) {
+					if (slots.containsKey(pt.getValue())) {
+						rule.headslots[i] = slots.get(pt.getValue());
+					} else if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) {
+						rule.headslots[i] = -2; // variable only used in head: no restriction
+					} else { // unsafe rule, drop it
+						LogWriter.get().printlnError("Rule " + rd.getName() + " is unsafe. Ignoring it.");
+						LogWriter.get().printlnError("There was a problem registering rule " + rd.getName());
+						return null;
+					}
+				} else {
+					rule.headslots[i] = -1;
+					rule.headconstants[i] = Integer.parseInt(pt.getValue());
+				}
+			}
+		}
+		rule.atoms = atoms.toArray(new Atom[atoms.size()]);
+		// inequalities only apply if both variables occur in the body
+		ArrayList<Integer> d1 = new ArrayList<Integer>(), d2 = new ArrayList<Integer>();
+		for (int i=0; i<distinct.size(); i++) {
+			String var1 = distinct.get(i).getArguments().get(0).getValue(),
+			       var2 = distinct.get(i).getArguments().get(1).getValue();
+			if (slots.containsKey(var1) && slots.containsKey(var2)) {
+				d1.add(slots.get(var1));
+				d2.add(slots.get(var2));
+			}
+		}
+		rule.distinct1 = new int[d1.size()];
+		rule.distinct2 = new int[d2.size()];
+		for (int i=0; i<d1.size(); i++) {
+			rule.distinct1[i] = d1.get(i);
+			rule.distinct2[i] = d2.get(i);
+		}
+		rule.plans = new MemoryJoinPlan[rule.steppedcount+1];
+		rule.contextplans = new MemoryJoinPlan[rule.steppedcount];
+		rule.triejoin = rule.hasComplexBody();
+		if ( (rule.headslots != null) && (rule.headslots.length > 0) ) {
+			rule.contextslot = Math.max(-1, rule.headslots[rule.headslots.length-1]);
+		}
+		return rule;
+	}
+
+	/**
+	 * Helper function to process one atom of a rule, assigning slots to its
+	 * variables and numbers to its parameters.
+	 * @param pa
+	 * @param predicates
+	 * @param slots
+	 * @return
+	 */
+	protected Atom compileAtom(PredicateAtom pa, Map<String,PredicateDeclaration> predicates, HashMap<String,Integer> slots) {
+		PredicateDeclaration pd = predicates.get(pa.getName());
+		if (pd == null) throw new IllegalArgumentException("Unknown predicate " + pa.getName() + " used in inference rule."); // ignore unknown predicates
+		Atom atom = new Atom();
+		atom.predicate = pa.getName();
+		atom.arity = pd.getFieldCount();
+		atom.slots = new int[atom.arity];
+		atom.constants = new int[atom.arity];
+		atom.paramindexes = new int[atom.arity];
+		if ( pd.isInferred() && (pa.getArguments().size()==pd.getFieldCount()) ) {
+			atom.stepped = true;
+			steppedcount++;
+		}
+		PredicateTerm pt;
+		for (int j=0; j<pa.getArguments().size(); j++) {
+			pt = pa.getArguments().get(j);
+			if (j<pd.getFieldCount()) {
+				atom.paramindexes[j] = -1;
+				if (pt.isVariable()) {
+					if (!slots.containsKey(pt.getValue())) {
+						slots.put(pt.getValue(), slotcount++);
+					}
+					atom.slots[j] = slots.get(pt.getValue());
+				} else {
+					atom.slots[j] = -1;
+					if (pt.getValue().equals("?")) {
+						atom.paramindexes[j] = paramcount++;
+					} else {
+						atom.constants[j] = Integer.parseInt(pt.getValue());
+					}
+				}
+			} else { // use the extra field for the step
+				if (pa.getArguments().size() == pd.getFieldCount()+1) {
+					if (pt.getValue().equals("0")) { // special handling: match all steps below 0
+						atom.steptype = STEP_UPTO;
+						atom.stepconst1 = 0;
+					} else {
+						atom.steptype = STEP_EQUAL;
+						if (pt.getValue().equals("?")) {
+							atom.stepparam1 = paramcount++;
+						} else {
+							atom.stepconst1 = Integer.parseInt(pt.getValue());
+						}
+					}
+				} else { // support up to two step parameters (outer bounds)
+					atom.steptype = STEP_BETWEEN;
+					if (j==pd.getFieldCount()) {
+						if (pt.getValue().equals("?")) {
+							atom.stepparam1 = paramcount++;
+						} else {
+							atom.stepconst1 = Integer.parseInt(pt.getValue());
+						}
+					} else if (j==pd.getFieldCount()+1) {
+						if (pt.getValue().equals("?")) {
+							atom.stepparam2 = paramcount++;
+						} else {
+							atom.stepconst2 = Integer.parseInt(pt.getValue());
+						}
+					}
+				}
+			}
+		}
+		return atom;
+	}
+
+	public InferenceRuleDeclaration getDeclaration() {
+		return rd;
+	}
+
+	public Atom[] getAtoms() {
+		return atoms;
+	}
+
+	/**
+	 * Get the position of the head atom in the list of atoms for retraction
+	 * rules, or -1 for other rules.
+	 * @return
+	 */
+	public int getHeadAtomIndex() {
+		return (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT) ? atoms.length-1 : -1;
+	}
+
+	public int[] getHeadSlots() {
+		return headslots;
+	}
+
+	public int[] getHeadConstants() {
+		return headconstants;
+	}
+
+	public int getSlotCount() {
+		return slotcount;
+	}
+
+	public int getParameterCount() {
+		return paramcount;
+	}
+
+	/**
+	 * Get the number of atoms that are used for semi-naive evaluation, which
+	 * is also the number of semi-naive variants of this rule.
+	 * @return
+	 */
+	public int getSteppedCount() {
+		return steppedcount;
+	}
+
+	/**
+	 * Check if the atoms of the rule are joined in a way that can lead to
+	 * large intermediate results when joining one atom after the other: there
+	 * must be at least three atoms, and some variable must occur in three or
+	 * more of them, or the atoms must not be acyclic. The latter is checked
+	 * by GYO reduction: variables that occur in only one atom are removed,
+	 * and so are atoms whose variables all occur in some other atom; the
+	 * atoms are acyclic if at most one atom remains.
+	 * @return
+	 */
+	protected boolean hasComplexBody() {
+		if (atoms.length < 3) return false;
+		ArrayList<HashSet<Integer>> edges = new ArrayList<HashSet<Integer>>();
+		int[] occurrences = new int[slotcount];
+		for (int i=0; i<atoms.length; i++) {
+			HashSet<Integer> edge = new HashSet<Integer>();
+			for (int j=0; j<atoms[i].arity; j++) {
+				if ( (atoms[i].slots[j] >= 0) && edge.add(atoms[i].slots[j]) ) {
+					occurrences[atoms[i].slots[j]]++;
+				}
+			}
+			edges.add(edge);
+		}
+		for (int s=0; s<slotcount; s++) {
+			if (occurrences[s] >= 3) return true;
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i=0; i<edges.size(); i++) {
+				Iterator<Integer> slotit = edges.get(i).iterator();
+				while (slotit.hasNext()) {
+					if (occurrences[slotit.next()] == 1) {
+						slotit.remove();
+						changed = true;
+					}
+				}
+			}
+			for (int i=0; i<edges.size(); i++) {
+				for (int j=0; j<edges.size(); j++) {
+					if ( (i != j) && edges.get(j).containsAll(edges.get(i)) ) {
+						Iterator<Integer> slotit = edges.get(i).iterator();
+						while (slotit.hasNext()) {
+							occurrences[slotit.next()]--;
+						}
+						edges.remove(i);
+						changed = true;
+						i--;
+						break;
+					}
+				}
+			}
+		}
+		return (edges.size() > 1);
+	}
+
+	/**
+	 * Get the slot of the variable that is the last argument of the head, or
+	 * -1 if this is no variable or the rule retracts facts. When the rule is
+	 * saturated per context (see MemoryStorageDriver.saturateContextRules()),
+	 * this variable is the context.
+	 * @return
+	 */
+	public int getContextSlot() {
+		return contextslot;
+	}
+
+	/**
+	 * Return true if the plans of this rule use leapfrog triejoin.
+	 * @return
+	 */
+	public boolean usesTrieJoin() {
+		return triejoin;
+	}
+
+	/**
+	 * Enable or disable leapfrog triejoin for this rule. It is only used if
+	 * the body of the rule is complex enough (see hasComplexBody()).
+	 * @param enabled
+	 */
+	public synchronized void setTrieJoin(boolean enabled) {
+		boolean newtriejoin = enabled && hasComplexBody();
+		if (newtriejoin != triejoin) {
+			triejoin = newtriejoin;
+			Arrays.fill(plans, null);
+		}
+	}
+
+	/**
+	 * Get the plan for evaluating the rule. A variant of -1 selects the plan
+	 * for evaluating the full rule; other values select the plan for the
+	 * semi-naive variant where the atom of the given number (counting only
+	 * stepped atoms) is restricted to the most recent steps. The tables and
+	 * step bounds of the atoms are used to decide if a cached plan can be
+	 * used and, if not, to choose the order of atoms for a new plan.
+	 * @param variant
+	 * @param tables
+	 * @param lowersteps
+	 * @param uppersteps
+	 * @return
+	 */
+	public synchronized MemoryJoinPlan getPlan(int variant, MemoryPredicateTable[] tables, int[] lowersteps, int[] uppersteps) {
+		if (triejoin) {
+			if (plans[variant+1] == null) plans[variant+1] = new MemoryTrieJoinPlan(this, getVariantAtom(variant));
+			return plans[variant+1];
+		}
+		int[] rowcounts = new int[atoms.length];
+		for (int i=0; i<atoms.length; i++) {
+			rowcounts[i] = tables[i].getRowCount(lowersteps[i], uppersteps[i]);
+		}
+		if ( (plans[variant+1] == null) || plans[variant+1].isOutdated(tables, rowcounts) ) {
+			plans[variant+1] = new MemoryJoinPlan(this, -1, new boolean[slotcount], tables, rowcounts);
+		}
+		return plans[variant+1];
+	}
+
+	/**
+	 * Get the index of the atom that is restricted to the most recent steps
+	 * in the given semi-naive variant, or -1 for the full rule.
+	 * @param variant
+	 * @return
+	 */
+	protected int getVariantAtom(int variant) {
+		int first = -1;
+		if (variant >= 0) {
+			int steppedpos = 0;
+			for (int i=0; i<atoms.length; i++) {
+				if (!atoms[i].stepped) continue;
+				if (steppedpos == variant) first = i;
+				steppedpos++;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Get the plan for evaluating the given semi-naive variant of the rule
+	 * on the tables of one context, starting with the atom that is
+	 * restricted to the most recent steps. The plan uses nested joins and no
+	 * statistics, since it is used for many small tables at once.
+	 * @param variant
+	 * @return
+	 */
+	public synchronized MemoryJoinPlan getContextPlan(int variant) {
+		if (contextplans[variant] == null) contextplans[variant] = new MemoryJoinPlan(this, getVariantAtom(variant), new boolean[slotcount]);
+		return contextplans[variant];
+	}
+
+	/**
+	 * Get the plan for evaluating a check rule, where all variables of the
+	 * head are bound in advance.
+	 * @return
+	 */
+	public synchronized MemoryJoinPlan getCheckPlan() {
+		if (checkplan == null) {
+			boolean[] bound = new boolean[slotcount];
+			for (int i=0; i<headslots.length; i++) {
+				if (headslots[i] >= 0) bound[headslots[i]] = true;
+			}
+			checkplan = new MemoryJoinPlan(this, -1, bound);
+		}
+		return checkplan;
+	}
+
+	/**
+	 * Compute the lower and upper step bounds of all atoms for evaluating the
+	 * full rule with the given parameters.
+	 * @param params
+	 * @param lowersteps
+	 * @param uppersteps
+	 */
+	public void getStepBounds(int[] params, int[] lowersteps, int[] uppersteps) {
+		Atom atom;
+		for (int i=0; i<atoms.length; i++) {
+			atom = atoms[i];
+			lowersteps[i] = Integer.MIN_VALUE;
+			uppersteps[i] = Integer.MAX_VALUE;
+			if (atom.steptype == STEP_EQUAL) {
+				lowersteps[i] = (atom.stepparam1 >= 0) ? params[atom.stepparam1] : atom.stepconst1;
+				uppersteps[i] = lowersteps[i];
+			} else if (atom.steptype == STEP_UPTO) {
+				uppersteps[i] = atom.stepconst1;
+			} else if (atom.steptype == STEP_BETWEEN) {
+				lowersteps[i] = (atom.stepparam1 >= 0) ? params[atom.stepparam1] : atom.stepconst1;
+				uppersteps[i] = (atom.stepparam2 >= 0) ? params[atom.stepparam2] : atom.stepconst2;
+			}
+		}
+	}
+
+	/**
+	 * Restrict the step bounds of the stepped atoms for the given semi-naive
+	 * variant: all stepped atoms before the variant's atom must have steps
+	 * below min_cur_step, and the variant's atom must have a step between
+	 * min_cur_step and max_cur_step.
+	 * @param variant
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @param lowersteps
+	 * @param uppersteps
+	 */
+	public void restrictStepBounds(int variant, int min_cur_step, int max_cur_step, int[] lowersteps, int[] uppersteps) {
+		int steppedpos = 0;
+		for (int i=0; i<atoms.length; i++) {
+			if (!atoms[i].stepped) continue;
+			if (steppedpos < variant) {
+				uppersteps[i] = min_cur_step-1;
+			} else if (steppedpos == variant) {
+				lowersteps[i] = min_cur_step;
+				uppersteps[i] = max_cur_step;
+			}
+			steppedpos++;
+		}
+	}
+}
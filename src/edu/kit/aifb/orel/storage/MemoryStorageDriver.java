@@ -0,0 +1,953 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.kit.aifb.orel.client.EventLog;
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+
+/**
+ * Storage driver that keeps all data in main memory, without using a
+ * database. Every predicate is stored in a MemoryPredicateTable, and rules
+ * are compiled into MemoryRule objects whose join plans are evaluated on
+ * these tables.
+ *
+ * The semantics of steps, rule variants for semi-naive evaluation, and check
+ * rules is the same as in MySQLStorageDriver, so that all KB managers can use
+ * this driver without modification. Data is lost when the JVM terminates.
+ *
+ * Rules can be run concurrently: all matches are computed while holding a
+ * shared lock, and the results are written while holding an exclusive lock.
+ *
+ * Rules whose bodies share variables in cycles or among many atoms are
+ * evaluated by leapfrog triejoin, using sorted orders of the rows that the
+ * tables cache between evaluations. This can be disabled for comparison.
+ *
+ * Rules with a common context, such as the rules for the contexts of
+ * rampant individuals in InstanceKBReasoner, are saturated for every context
+ * separately (see saturateContextRules()). Contexts are independent, so they
+ * are saturated concurrently by several context threads.
+ *
+ * Facts can be written by several threads at once, e.g. when loading an
+ * ontology in parallel: every table is locked while a fact is added to it,
+ * and ids are kept in a concurrent map. Checking facts only reads tables,
+ * so checks may run concurrently with each other but not with writes.
+ *
+ * @author agent
+ */
+public class MemoryStorageDriver implements StorageDriver {
+
+	protected HashMap<String,PredicateDeclaration> predicates;
+	protected HashMap<String,MemoryPredicateTable> tables;
+	protected HashMap<String,InferenceRuleDeclaration> inferencerules;
+	protected HashMap<String,MemoryRule> memoryrules; // compiled versions of inferencerules
+	protected HashMap<String,ArrayList<MemoryRule>> checkrules;
+	protected RuleStatistics rulestatistics = new RuleStatistics();
+	protected int parallelism;
+	protected ReentrantReadWriteLock lock;
+	protected Watermarks watermarks;
+	protected int loadstep = 0; // step of asserted facts, above 0 while loading a delta
+	protected boolean triejoins = true;
+	protected int contextthreads = 1;
+	protected ExecutorService contextexecutor = null; // created when first needed
+
+	// the remaining fields are for ID management
+	protected ConcurrentHashMap<String,Integer> ids;
+	protected int curid = 1; // only changed while holding the lock of ids
+
+	public MemoryStorageDriver() {
+		this(1);
+	}
+
+	/**
+	 * Create a new driver that allows the given number of rules to be run
+	 * concurrently.
+	 * @param parallelism
+	 */
+	public MemoryStorageDriver(int parallelism) {
+		this.parallelism = parallelism;
+		lock = new ReentrantReadWriteLock();
+		final int expectedNumberOfPredicates = 15;
+		predicates = new HashMap<String,PredicateDeclaration>(expectedNumberOfPredicates);
+		tables = new HashMap<String,MemoryPredicateTable>(expectedNumberOfPredicates);
+		inferencerules = new HashMap<String,InferenceRuleDeclaration>(30);
+		memoryrules = new HashMap<String,MemoryRule>(30);
+		checkrules = new HashMap<String,ArrayList<MemoryRule>>(expectedNumberOfPredicates);
+		watermarks = new Watermarks();
+		ids = new ConcurrentHashMap<String,Integer>(1000);
+	}
+
+	public void registerPredicate(PredicateDeclaration pd) {
+		predicates.put(pd.getName(), pd);
+		if (!tables.containsKey(pd.getName())) {
+			tables.put(pd.getName(), new MemoryPredicateTable(pd.getFieldCount()));
+		}
+	}
+
+	/**
+	 * Ensure that there are tables for all registered predicates. This happens
+	 * on registration already, so there is nothing else to do here.
+	 */
+	public void initialize() {
+		Iterator<PredicateDeclaration> pit = predicates.values().iterator();
+		PredicateDeclaration pd;
+		while (pit.hasNext()) {
+			pd = pit.next();
+			if (!tables.containsKey(pd.getName())) {
+				tables.put(pd.getName(), new MemoryPredicateTable(pd.getFieldCount()));
+			}
+		}
+	}
+
+	/**
+	 * Delete all tables and ids.
+	 */
+	public void drop() {
+		tables.clear();
+		watermarks.clear();
+		ids.clear();
+		curid = 1;
+	}
+
+	public synchronized void drop(String predicate) {
+		if (!predicates.containsKey(predicate)) return;
+		watermarks.removeRuleWatermarks(predicate);
+		predicates.remove(predicate);
+		tables.remove(predicate);
+	}
+
+	public void clear(boolean onlyderived) {
+		Iterator<String> pit = predicates.keySet().iterator();
+		while (pit.hasNext()) {
+			clear(pit.next(),onlyderived);
+		}
+		if (!onlyderived) {
+			watermarks.clear();
+			ids.clear();
+			curid = 1;
+		}
+	}
+
+	public void clear(String predicate, boolean onlyderived) {
+		PredicateDeclaration pd = predicates.get(predicate);
+		if (pd == null) return; // unknown predicate
+		MemoryPredicateTable table = getTable(predicate);
+		if (onlyderived == true) {
+			if ( pd.isInferred() ) {
+				table.deleteDerived(watermarks.getLoadSteps());
+			}
+		} else {
+			table.clear();
+		}
+		watermarks.removeRuleWatermarks(predicate);
+	}
+
+	/**
+	 * All changes are immediately visible in memory, so there is nothing to
+	 * do here.
+	 */
+	public void commit() {
+	}
+
+	/**
+	 * Debugging function to print all statistics gathered about some run.
+	 */
+	public void dumpStatistics() {
+		rulestatistics.print();
+		Iterator<String> tableit = tables.keySet().iterator();
+		String predicate;
+		LogWriter.get().printlnDebug("Sizes of in-memory tables:");
+		while (tableit.hasNext()) {
+			predicate = tableit.next();
+			LogWriter.get().printlnDebug("  " + predicate + ": " + tables.get(predicate).size());
+		}
+	}
+
+	/**
+	 * Get the statistics of the rules that were run so far. The variants of
+	 * a rule are the runs on all facts and the semi-naive runs for each
+	 * body atom with steps.
+	 */
+	public RuleStatistics getRuleStatistics() {
+		return rulestatistics;
+	}
+
+	/**
+	 * Start loading facts. If rules have watermarks, the facts are given a
+	 * new step so that they can be processed incrementally.
+	 */
+	public void beginLoading() {
+		if (watermarks.hasRuleWatermarks()) {
+			loadstep = watermarks.getEntries().get(watermarks.recordLoadStep(getMaxStep()));
+		}
+	}
+
+	public void endLoading() {
+		loadstep = 0;
+	}
+
+	/* *** Basic data access *** */
+
+	public void makePredicateAssertion(String predicate, int... ids) {
+		MemoryPredicateTable table = getTable(predicate);
+		if (table == null) throw new IllegalArgumentException("Cannot insert data into predicate \"" + predicate + "\" -- misspelled predicate name?");
+		boolean inferred = predicates.get(predicate).isInferred(), added;
+		synchronized (table) {
+			added = table.add(ids, (inferred ? loadstep : 0));
+		}
+		if ( added && ((loadstep > 0) ? !inferred : watermarks.hasRuleWatermarks()) ) {
+			recordNewFact(predicate);
+		}
+	}
+
+	/**
+	 * Update the watermarks after a new fact of the given predicate without
+	 * steps was loaded, or after a new fact was asserted outside of loading.
+	 * @param predicate
+	 */
+	protected synchronized void recordNewFact(String predicate) {
+		if (loadstep > 0) {
+			watermarks.recordChange(predicate, loadstep);
+		} else { // new facts that cannot be told apart from old ones
+			watermarks.removeRuleWatermarks();
+		}
+	}
+
+	public boolean checkPredicateAssertion(String predicate, int... ids) {
+		MemoryPredicateTable table = getTable(predicate);
+		if (table == null) return false;
+		if (table.find(ids) >= 0) return true;
+		ArrayList<MemoryRule> rules = checkrules.get(predicate);
+		if (rules == null) return false;
+		for (int i=0; i<rules.size(); i++) {
+			if (checkRule(rules.get(i), ids)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get all tuples of the given predicate, without their steps. The result
+	 * is a copy, and is empty if the predicate is not known.
+	 * @param predicate
+	 * @return
+	 */
+	public ArrayList<int[]> getFacts(String predicate) {
+		ArrayList<int[]> result = new ArrayList<int[]>();
+		MemoryPredicateTable table = getTable(predicate);
+		if (table == null) return result;
+		int[] tuple;
+		lock.readLock().lock();
+		try {
+			for (int row=0; row<table.size(); row++) {
+				tuple = new int[table.getArity()];
+				for (int i=0; i<tuple.length; i++) {
+					tuple[i] = table.getValue(row, i);
+				}
+				result.add(tuple);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public int changeStep(String predicate, int oldstep, int newstep) {
+		MemoryPredicateTable table = getTable(predicate);
+		if (table == null) return 0;
+		return table.changeStep(oldstep, newstep);
+	}
+
+	public int getMaxStep() {
+		int result = 0;
+		Iterator<PredicateDeclaration> pit = predicates.values().iterator();
+		PredicateDeclaration pd;
+		int tablemax;
+		while (pit.hasNext()) {
+			pd = pit.next();
+			if (pd.isInferred()) {
+				tablemax = getTable(pd.getName()).getMaxStep();
+				if (tablemax > result) result = tablemax;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the table for the given predicate, or null if the predicate is not
+	 * known.
+	 * @param predicate
+	 * @return
+	 */
+	protected synchronized MemoryPredicateTable getTable(String predicate) {
+		MemoryPredicateTable table = tables.get(predicate);
+		if ( (table == null) && predicates.containsKey(predicate) ) { // dropped earlier
+			table = new MemoryPredicateTable(predicates.get(predicate).getFieldCount());
+			tables.put(predicate, table);
+		}
+		return table;
+	}
+
+	/* *** Rule execution *** */
+
+	/**
+	 * Enable or disable leapfrog triejoin for rules with complex bodies. It
+	 * is enabled by default; otherwise all rules use nested joins.
+	 * @param triejoins
+	 */
+	public void setTrieJoins(boolean triejoins) {
+		this.triejoins = triejoins;
+		Iterator<MemoryRule> ruleit = memoryrules.values().iterator();
+		while (ruleit.hasNext()) {
+			ruleit.next().setTrieJoin(triejoins);
+		}
+	}
+
+	/**
+	 * Set the number of threads that saturate contexts concurrently in
+	 * saturateContextRules(). The default is 1, where all contexts are
+	 * saturated by the calling thread.
+	 * @param contextthreads
+	 */
+	public synchronized void setContextThreads(int contextthreads) {
+		if (contextexecutor != null) {
+			contextexecutor.shutdown();
+			contextexecutor = null;
+		}
+		this.contextthreads = Math.max(1, contextthreads);
+	}
+
+	public void registerInferenceRule(InferenceRuleDeclaration rd) {
+		inferencerules.put(rd.getName(), rd);
+		MemoryRule rule = MemoryRule.compile(rd, predicates);
+		if ( (rule != null) && !triejoins ) rule.setTrieJoin(false);
+		if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) {
+			if (rule == null) return;
+			String predicate = rd.getHead().getName();
+			ArrayList<MemoryRule> rules = checkrules.get(predicate);
+			if (rules == null) {
+				rules = new ArrayList<MemoryRule>(1);
+				checkrules.put(predicate, rules);
+			}
+			rules.add(rule);
+		} else if (rule != null) {
+			memoryrules.put(rd.getName(), rule);
+		} else {
+			memoryrules.remove(rd.getName());
+		}
+	}
+
+	public void unregisterInferenceRule(String rulename) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if ( (rd == null) || (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ) return;
+		inferencerules.remove(rulename);
+		memoryrules.remove(rulename);
+	}
+
+	/**
+	 * Tables have indexes on all columns, and rules are compiled when they
+	 * are registered, so there is nothing to prepare.
+	 */
+	public void prepareInferenceRules(Collection<InferenceRuleDeclaration> rules) {
+	}
+
+	/**
+	 * Run the given rule on all existing preconditions, without filtering
+	 * by step. The results are given the step value as defined by newstep.
+	 * @param rulename
+	 * @param newstep
+	 * @return the number of new tuples that were found
+	 */
+	public int runRule(String rulename, int newstep) {
+		return runRule(rulename, newstep, new int[0]);
+	}
+
+	/**
+	 * Run the given rule on all existing preconditions, without filtering
+	 * by step, but using the given parameters for setting the unspecified constants
+	 * in the rule. The results are given the step value as defined by newstep.
+	 * @param rulename
+	 * @param newstep
+	 * @return the number of new tuples that were found
+	 */
+	public int runRule(String rulename, int newstep, int[] params) {
+		MemoryRule rule = memoryrules.get(rulename);
+		if (rule == null) { // internal error, just print it
+			LogWriter.get().printlnError("Call to unknown rule " + rulename);
+			return 0;
+		}
+		if (params.length < rule.getParameterCount()) {
+			LogWriter.get().printlnError("Rule " + rulename + " requires " + rule.getParameterCount() + " parameters.");
+			return 0;
+		}
+		LogWriter.get().printDebug("  Rule " + rulename + "(*) -> " + newstep + " ... "); // debug
+		long sTime = EventLog.start();
+		int atomcount = rule.getAtoms().length;
+		int[] lowersteps = new int[atomcount], uppersteps = new int[atomcount];
+		rule.getStepBounds(params, lowersteps, uppersteps);
+		int result = evaluateRule(rule, -1, lowersteps, uppersteps, params, newstep, -1, newstep-1);
+		LogWriter.get().printlnDebug("[" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
+		return result;
+	}
+
+	/**
+	 * Run the given rule for obtaining all results that require the use of
+	 * some data with step values between min_cur_step and max_cur_step; the
+	 * boundaries are included. Newly derived tuples are marked with the step
+	 * value max_cur_step+1.
+	 * @param rulename
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 */
+	public int runRule(String rulename, int min_cur_step, int max_cur_step) {
+		if (min_cur_step == 0) min_cur_step = -1; // make sure that sub-zero (late) base facts are considered in this case
+		MemoryRule rule = memoryrules.get(rulename);
+		if (rule == null) { // internal error, just print it
+			LogWriter.get().printlnError("Call to unknown rule " + rulename);
+			return 0;
+		}
+		if ( (rule.getSteppedCount() == 0) || (rule.getParameterCount() > 0) ) return runRule(rulename,max_cur_step+1); // no steps in body
+		int result = 0;
+		LogWriter.get().printDebug("  Rule " + rulename + "(" + min_cur_step + "-" + max_cur_step + ") ... "); // debug
+		long sTime = EventLog.start();
+		int atomcount = rule.getAtoms().length;
+		int[] lowersteps = new int[atomcount], uppersteps = new int[atomcount], params = new int[0];
+		for (int i=0; i<rule.getSteppedCount(); i++) {
+			rule.getStepBounds(params, lowersteps, uppersteps);
+			rule.restrictStepBounds(i, min_cur_step, max_cur_step, lowersteps, uppersteps);
+			result = result + evaluateRule(rule, i, lowersteps, uppersteps, params, max_cur_step+1, min_cur_step, max_cur_step);
+		}
+		LogWriter.get().printlnDebug("[" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
+		return result;
+	}
+
+	public int computeTransitiveClosure(String predicate, int newstep) {
+		MemoryPredicateTable table = getTable(predicate);
+		if ( (table == null) || (table.getArity() != 2) ) { // internal error, just print it
+			LogWriter.get().printlnError("Cannot compute transitive closure of predicate " + predicate);
+			return 0;
+		}
+		long sTime = System.nanoTime(), eTime = EventLog.start();
+		int result;
+		lock.writeLock().lock();
+		try {
+			result = TransitiveClosure.close(table, newstep);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		LogWriter.get().printlnDebug("  Closure of " + predicate + " -> " + newstep + " ... [" + result + "]"); // debug
+		rulestatistics.record(predicate, "closure", -1, newstep-1, result, -1, System.nanoTime() - sTime);
+		if (eTime != 0) EventLog.end(EventLog.RULE, "closure of " + predicate, result, eTime);
+		return result;
+	}
+
+	/**
+	 * Saturate the given rules with a common context, as described in
+	 * StorageDriver. New results are only possible for the contexts of the
+	 * facts of the head predicates with steps between min_cur_step and
+	 * max_cur_step, or for all contexts if some other inferred body
+	 * predicate has such facts. Every such context is saturated on its own
+	 * (see saturateContext()), where the contexts are distributed among the
+	 * context threads. This happens while holding the read lock, and the new
+	 * facts of all contexts are written to the head tables afterwards.
+	 * @param rulenames
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 */
+	public int saturateContextRules(Collection<String> rulenames, int min_cur_step, int max_cur_step) {
+		if (min_cur_step == 0) min_cur_step = -1; // make sure that sub-zero (late) base facts are considered in this case
+		final ArrayList<MemoryRule> rules = new ArrayList<MemoryRule>(rulenames.size());
+		final HashMap<String,Integer> heads = new HashMap<String,Integer>(); // number of each head predicate
+		Iterator<String> nameit = rulenames.iterator();
+		MemoryRule rule;
+		String rulename;
+		while (nameit.hasNext()) {
+			rulename = nameit.next();
+			rule = memoryrules.get(rulename);
+			if (rule == null) { // internal error, just print it
+				LogWriter.get().printlnError("Call to unknown rule " + rulename);
+				return 0;
+			}
+			rules.add(rule);
+			if (!heads.containsKey(rule.getDeclaration().getHead().getName())) {
+				heads.put(rule.getDeclaration().getHead().getName(), heads.size());
+			}
+		}
+		final MemoryPredicateTable[] headtables = new MemoryPredicateTable[heads.size()];
+		Iterator<String> headit = heads.keySet().iterator();
+		String head;
+		while (headit.hasNext()) {
+			head = headit.next();
+			headtables[heads.get(head)] = getTable(head);
+		}
+		for (int i=0; i<rules.size(); i++) {
+			if (!hasContext(rules.get(i), heads)) { // internal error, just print it
+				LogWriter.get().printlnError("Rule " + rules.get(i).getDeclaration().getName() + " cannot be saturated per context.");
+				return 0;
+			}
+		}
+		LogWriter.get().printDebug("  Context rules (" + min_cur_step + "-" + max_cur_step + ") ... "); // debug
+		long sTime = System.nanoTime(), eTime = EventLog.start();
+		final int minstep = min_cur_step, maxstep = max_cur_step;
+		ArrayList<ContextResult> results = new ArrayList<ContextResult>();
+		int[] contexts;
+		lock.readLock().lock();
+		try {
+			contexts = getChangedContexts(rules, heads, headtables, min_cur_step, max_cur_step);
+			if ( (contextthreads <= 1) || (contexts.length <= 1) ) {
+				for (int k=0; k<contexts.length; k++) {
+					results.add(saturateContext(rules, heads, headtables, contexts[k], minstep, maxstep));
+				}
+			} else {
+				ArrayList<Future<ContextResult>> futures = new ArrayList<Future<ContextResult>>(contexts.length);
+				for (int k=0; k<contexts.length; k++) {
+					final int context = contexts[k];
+					futures.add(getContextExecutor().submit(new Callable<ContextResult>() {
+						public ContextResult call() {
+							return saturateContext(rules, heads, headtables, context, minstep, maxstep);
+						}
+					}));
+				}
+				try {
+					for (int k=0; k<futures.size(); k++) {
+						results.add(futures.get(k).get());
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		int result = 0;
+		int[] added = new int[rules.size()], found = new int[rules.size()];
+		long[] nanos = new long[rules.size()];
+		ContextResult cr;
+		int[] tuple;
+		lock.writeLock().lock();
+		try {
+			for (int k=0; k<results.size(); k++) {
+				cr = results.get(k);
+				for (int h=0; h<headtables.length; h++) {
+					tuple = new int[headtables[h].getArity()];
+					for (int row=0; row<cr.facts[h].size(); row++) {
+						for (int i=0; i<tuple.length; i++) {
+							tuple[i] = cr.facts[h].getValue(row, i);
+						}
+						if (headtables[h].add(tuple, max_cur_step)) result++;
+					}
+				}
+				for (int i=0; i<rules.size(); i++) {
+					added[i] += cr.added[i];
+					found[i] += cr.found[i];
+					nanos[i] += cr.nanos[i];
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for (int i=0; i<rules.size(); i++) {
+			rulestatistics.record(rules.get(i).getDeclaration().getName(), "context saturation", min_cur_step, max_cur_step, added[i], found[i] - added[i], nanos[i]);
+		}
+		LogWriter.get().printlnDebug("[" + result + " in " + contexts.length + " contexts, " + (System.nanoTime() - sTime)/1000000 + " ms]"); // debug
+		if (eTime != 0) EventLog.end(EventLog.RULE, "context rules", result, eTime);
+		return result;
+	}
+
+	/**
+	 * The facts that the saturation of one context has found, and the
+	 * numbers of new and of all results, and the time, for every rule.
+	 */
+	protected static class ContextResult {
+		public MemoryPredicateTable[] facts; // new facts, one table per head predicate
+		public int[] added;
+		public int[] found;
+		public long[] nanos;
+	}
+
+	/**
+	 * Check if the given rule can be saturated per context together with
+	 * other rules of the given heads: the last argument of the head must be
+	 * a variable, every atom of one of the heads must have this variable as
+	 * its last argument and no step arguments, and there must be at least
+	 * one such atom.
+	 * @param rule
+	 * @param heads
+	 * @return
+	 */
+	protected boolean hasContext(MemoryRule rule, HashMap<String,Integer> heads) {
+		if ( (rule.getContextSlot() < 0) || (rule.getParameterCount() > 0) ) return false;
+		boolean found = false;
+		MemoryRule.Atom[] atoms = rule.getAtoms();
+		for (int i=0; i<atoms.length; i++) {
+			if (!heads.containsKey(atoms[i].predicate)) continue;
+			if ( (atoms[i].steptype != MemoryRule.STEP_NONE) || (atoms[i].slots[atoms[i].arity-1] != rule.getContextSlot()) ) return false;
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Get the contexts for which the given rules may find new facts, i.e.
+	 * the values of the last argument of the facts of the heads that have
+	 * steps between min_cur_step and max_cur_step. If some other inferred
+	 * body predicate has such facts, the contexts of all facts of the heads
+	 * are returned. Must be called while holding the read lock.
+	 * @param rules
+	 * @param heads
+	 * @param headtables
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the contexts in ascending order
+	 */
+	protected int[] getChangedContexts(ArrayList<MemoryRule> rules, HashMap<String,Integer> heads, MemoryPredicateTable[] headtables, int min_cur_step, int max_cur_step) {
+		int lower = min_cur_step, upper = max_cur_step;
+		MemoryRule.Atom[] atoms;
+		for (int i=0; i<rules.size(); i++) {
+			atoms = rules.get(i).getAtoms();
+			for (int j=0; j<atoms.length; j++) {
+				if ( atoms[j].stepped && !heads.containsKey(atoms[j].predicate) && (getTable(atoms[j].predicate).getRowCount(min_cur_step, max_cur_step) > 0) ) {
+					lower = Integer.MIN_VALUE;
+					upper = Integer.MAX_VALUE;
+				}
+			}
+		}
+		HashSet<Integer> contexts = new HashSet<Integer>();
+		MemoryPredicateTable table;
+		int step;
+		for (int h=0; h<headtables.length; h++) {
+			table = headtables[h];
+			for (int row=table.getFirstRowFromStep(lower); row<table.size(); row++) {
+				step = table.getStep(row);
+				if ( table.isStepSorted() && (step > upper) ) break;
+				if ( (step >= lower) && (step <= upper) ) contexts.add(table.getValue(row, table.getArity()-1));
+			}
+		}
+		int[] result = new int[contexts.size()];
+		Iterator<Integer> contextit = contexts.iterator();
+		for (int k=0; k<result.length; k++) {
+			result[k] = contextit.next();
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Apply the given rules to the facts of one context until no more new
+	 * facts are found. The facts of the heads with this context are first
+	 * copied to tables of their own, using the index of the last column, and
+	 * the rules are then evaluated on these small tables by semi-naive
+	 * evaluation. Facts of other body predicates are read from the shared
+	 * tables, which must not change meanwhile. Results that use facts with
+	 * steps between min_cur_step and max_cur_step are found in the first
+	 * round; later rounds use the facts of the previous round. Must be
+	 * called while holding the read lock.
+	 * @param rules
+	 * @param heads
+	 * @param headtables
+	 * @param context
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the new facts and the statistics of every rule
+	 */
+	protected ContextResult saturateContext(ArrayList<MemoryRule> rules, HashMap<String,Integer> heads, MemoryPredicateTable[] headtables,
+			int context, int min_cur_step, int max_cur_step) {
+		MemoryPredicateTable[] local = new MemoryPredicateTable[headtables.length];
+		int[] copied = new int[headtables.length]; // facts of each local table that were copied
+		int[] tuple, rows = new int[16];
+		int count, column;
+		for (int h=0; h<headtables.length; h++) {
+			local[h] = new MemoryPredicateTable(headtables[h].getArity());
+			tuple = new int[headtables[h].getArity()];
+			column = tuple.length-1;
+			count = 0;
+			for (int row=headtables[h].getFirstRow(column, context); row>=0; row=headtables[h].getNextRow(column, row)) {
+				if (count == rows.length) rows = Arrays.copyOf(rows, count*2);
+				rows[count++] = row;
+			}
+			for (int i=count-1; i>=0; i--) { // rows are found from the last to the first
+				for (int j=0; j<tuple.length; j++) {
+					tuple[j] = headtables[h].getValue(rows[i], j);
+				}
+				local[h].add(tuple, headtables[h].getStep(rows[i]));
+			}
+			copied[h] = local[h].size();
+		}
+		ContextResult result = new ContextResult();
+		result.added = new int[rules.size()];
+		result.found = new int[rules.size()];
+		result.nanos = new long[rules.size()];
+		MemoryPredicateTable[][] atomtables = new MemoryPredicateTable[rules.size()][];
+		MemoryRule.Atom[] atoms;
+		for (int i=0; i<rules.size(); i++) {
+			atoms = rules.get(i).getAtoms();
+			atomtables[i] = new MemoryPredicateTable[atoms.length];
+			for (int j=0; j<atoms.length; j++) {
+				atomtables[i][j] = heads.containsKey(atoms[j].predicate) ? local[heads.get(atoms[j].predicate)] : getTable(atoms[j].predicate);
+			}
+		}
+		int lower = min_cur_step, upper = max_cur_step, added;
+		boolean changed = true, first = true;
+		long sTime;
+		MemoryRule rule;
+		MemoryPredicateTable headtable;
+		int[] lowersteps, uppersteps, params = new int[0];
+		while (changed) {
+			changed = false;
+			for (int i=0; i<rules.size(); i++) {
+				sTime = System.nanoTime();
+				rule = rules.get(i);
+				atoms = rule.getAtoms();
+				lowersteps = new int[atoms.length];
+				uppersteps = new int[atoms.length];
+				final int[] headslots = rule.getHeadSlots(), headconstants = rule.getHeadConstants();
+				final MemoryPredicateTable matches = new MemoryPredicateTable(headslots.length);
+				final int[] match = new int[headslots.length];
+				for (int v=0; v<rule.getSteppedCount(); v++) {
+					// only facts of the context are new after the first round
+					if ( !first && !heads.containsKey(atoms[rule.getVariantAtom(v)].predicate) ) continue;
+					rule.getStepBounds(params, lowersteps, uppersteps);
+					rule.restrictStepBounds(v, lower, upper, lowersteps, uppersteps);
+					rule.getContextPlan(v).execute(atomtables[i], lowersteps, uppersteps, params, new int[rule.getSlotCount()], new MemoryJoinPlan.MatchHandler() {
+						public boolean match(int[] values, int[] rows) {
+							for (int j=0; j<match.length; j++) {
+								match[j] = (headslots[j] >= 0) ? values[headslots[j]] : headconstants[j];
+							}
+							matches.add(match, 0);
+							return false;
+						}
+					});
+				}
+				headtable = local[heads.get(rule.getDeclaration().getHead().getName())];
+				added = 0;
+				for (int row=0; row<matches.size(); row++) {
+					for (int j=0; j<match.length; j++) {
+						match[j] = matches.getValue(row, j);
+					}
+					if (headtable.add(match, upper+1)) added++;
+				}
+				result.added[i] += added;
+				result.found[i] += matches.size();
+				result.nanos[i] += System.nanoTime() - sTime;
+				changed = changed || (added > 0);
+			}
+			first = false;
+			lower = upper+1;
+			upper = lower;
+		}
+		result.facts = new MemoryPredicateTable[local.length];
+		for (int h=0; h<local.length; h++) {
+			result.facts[h] = new MemoryPredicateTable(local[h].getArity());
+			tuple = new int[local[h].getArity()];
+			for (int row=copied[h]; row<local[h].size(); row++) {
+				for (int j=0; j<tuple.length; j++) {
+					tuple[j] = local[h].getValue(row, j);
+				}
+				result.facts[h].add(tuple, 0);
+			}
+		}
+		return result;
+	}
+
+	public int getWatermark(String rulename) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if (rd == null) return -1;
+		return watermarks.getRuleWatermark(rd, predicates);
+	}
+
+	public void setWatermark(String rulename, int step) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if (rd != null) watermarks.setRuleWatermark(rd, step);
+	}
+
+	public Collection<Integer> getLoadSteps() {
+		return watermarks.getLoadSteps();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Get the tables for all atoms of the given rule.
+	 * @param rule
+	 * @return
+	 */
+	protected MemoryPredicateTable[] getAtomTables(MemoryRule rule) {
+		MemoryRule.Atom[] atoms = rule.getAtoms();
+		MemoryPredicateTable[] result = new MemoryPredicateTable[atoms.length];
+		for (int i=0; i<atoms.length; i++) {
+			result[i] = getTable(atoms[i].predicate);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluate a plan of the given rule and write its results to the head
+	 * table. All matches are computed before the head table is modified.
+	 * The run is recorded in the rule statistics.
+	 * @param rule
+	 * @param variant the variant of the rule as in MemoryRule.getPlan()
+	 * @param lowersteps
+	 * @param uppersteps
+	 * @param params
+	 * @param newstep
+	 * @param minstep smallest step of the facts that the variant is restricted to
+	 * @param maxstep largest step of the facts that the variant is restricted to
+	 * @return the number of added or deleted tuples
+	 */
+	protected int evaluateRule(MemoryRule rule, int variant, int[] lowersteps, int[] uppersteps, int[] params, int newstep, int minstep, int maxstep) {
+		long sTime = System.nanoTime();
+		String rulename = rule.getDeclaration().getName();
+		String variantname = (variant < 0) ? "all" : "semi-naive " + variant;
+		MemoryPredicateTable[] atomtables = getAtomTables(rule);
+		int[] values = new int[rule.getSlotCount()];
+		if (rule.getHeadAtomIndex() >= 0) { // retraction
+			final int headatom = rule.getHeadAtomIndex();
+			MemoryPredicateTable headtable = atomtables[headatom];
+			lock.readLock().lock();
+			final boolean[] retracted = new boolean[headtable.size()];
+			try {
+				MemoryJoinPlan plan = rule.getPlan(variant, atomtables, lowersteps, uppersteps);
+				plan.execute(atomtables, lowersteps, uppersteps, params, values, new MemoryJoinPlan.MatchHandler() {
+					public boolean match(int[] values, int[] rows) {
+						retracted[rows[headatom]] = true;
+						return false;
+					}
+				});
+			} finally {
+				lock.readLock().unlock();
+			}
+			int result;
+			lock.writeLock().lock();
+			try {
+				result = headtable.delete(retracted);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			rulestatistics.record(rulename, variantname, minstep, maxstep, result, 0, System.nanoTime() - sTime);
+			return result;
+		} else {
+			MemoryPredicateTable headtable = getTable(rule.getDeclaration().getHead().getName());
+			final int[] headslots = rule.getHeadSlots(), headconstants = rule.getHeadConstants();
+			final MemoryPredicateTable results = new MemoryPredicateTable(headslots.length);
+			final int[] tuple = new int[headslots.length];
+			lock.readLock().lock();
+			try {
+				MemoryJoinPlan plan = rule.getPlan(variant, atomtables, lowersteps, uppersteps);
+				plan.execute(atomtables, lowersteps, uppersteps, params, values, new MemoryJoinPlan.MatchHandler() {
+					public boolean match(int[] values, int[] rows) {
+						for (int i=0; i<tuple.length; i++) {
+							tuple[i] = (headslots[i] >= 0) ? values[headslots[i]] : headconstants[i];
+						}
+						results.add(tuple, 0);
+						return false;
+					}
+				});
+			} finally {
+				lock.readLock().unlock();
+			}
+			int result = 0, found = results.size();
+			lock.writeLock().lock();
+			try {
+				for (int row=0; row<results.size(); row++) {
+					for (int i=0; i<tuple.length; i++) {
+						tuple[i] = results.getValue(row, i);
+					}
+					if (headtable.add(tuple, newstep)) result++;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			rulestatistics.record(rulename, variantname, minstep, maxstep, result, found - result, System.nanoTime() - sTime);
+			return result;
+		}
+	}
+
+	protected synchronized ExecutorService getContextExecutor() {
+		if (contextexecutor == null) {
+			contextexecutor = Executors.newFixedThreadPool(contextthreads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "orel-context");
+					thread.setDaemon(true); // the driver has no life cycle for stopping threads
+					return thread;
+				}
+			});
+		}
+		return contextexecutor;
+	}
+
+	/**
+	 * Check if the given check rule applies to the given tuple.
+	 * @param rule
+	 * @param ids
+	 * @return
+	 */
+	protected boolean checkRule(MemoryRule rule, int[] ids) {
+		int[] headslots = rule.getHeadSlots(), headconstants = rule.getHeadConstants();
+		int[] values = new int[rule.getSlotCount()];
+		boolean[] bound = new boolean[rule.getSlotCount()];
+		for (int i=0; i<headslots.length; i++) {
+			if (headslots[i] == -1) {
+				if (headconstants[i] != ids[i]) return false;
+			} else if (headslots[i] >= 0) {
+				if (bound[headslots[i]] && (values[headslots[i]] != ids[i])) return false;
+				bound[headslots[i]] = true;
+				values[headslots[i]] = ids[i];
+			}
+		}
+		int atomcount = rule.getAtoms().length;
+		int[] lowersteps = new int[atomcount], uppersteps = new int[atomcount], params = new int[0];
+		rule.getStepBounds(params, lowersteps, uppersteps);
+		return rule.getCheckPlan().execute(getAtomTables(rule), lowersteps, uppersteps, params, values, new MemoryJoinPlan.MatchHandler() {
+			public boolean match(int[] values, int[] rows) {
+				return true; // one match suffices
+			}
+		});
+	}
+
+	/* *** Id management *** */
+
+	public int getID(String key) {
+		Integer id = ids.get(key);
+		if (id == null) {
+			synchronized (ids) { // look again, since another thread may have created the id
+				id = ids.get(key);
+				if (id == null) {
+					id = curid++;
+					ids.put(key, id);
+				}
+			}
+		}
+		return id.intValue();
+	}
+
+	public int[] getIDs(Collection<String> keys) {
+		int[] result = new int[keys.size()];
+		Iterator<String> keyit = keys.iterator();
+		for (int i=0; i<result.length; i++) {
+			result[i] = getID(keyit.next());
+		}
+		return result;
+	}
+
+}
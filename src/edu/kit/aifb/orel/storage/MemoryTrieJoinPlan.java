@@ -0,0 +1,435 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+
+/**
+ * Join plan that evaluates one variant of a MemoryRule by leapfrog triejoin.
+ * Instead of matching one atom after the other, the plan binds one variable
+ * after the other: the values of a variable are found by intersecting the
+ * values that all atoms with this variable allow for the values of the
+ * earlier variables. Intermediate results therefore never grow beyond what
+ * the final result allows, which avoids the large intermediate results of
+ * atom-by-atom joins for rule bodies where variables are shared in cycles
+ * or by many atoms.
+ *
+ * Every atom is read as a trie whose levels are its columns: first the
+ * columns with constants or parameters, then one column for every variable
+ * in the order in which the variables are bound. The tries are given by the
+ * rows of the tables sorted by these columns. Further occurrences of a
+ * variable in the same atom and the step bounds are checked for every
+ * complete match of the atom. Tables that are sorted by step are only read
+ * for the rows in the step bounds if these are few, e.g. for the atom that
+ * is restricted to the most recent steps in a semi-naive variant.
+ *
+ * Plans do not depend on the current data and can be reused for any number
+ * of evaluations, also concurrently.
+ * @author agent
+ */
+public class MemoryTrieJoinPlan extends MemoryJoinPlan {
+	protected int[] varorder; // slots in the order in which they are bound
+	// for each atom:
+	protected int[][] triecolumns; // columns in the order of the trie levels
+	protected int[] prefixcounts; // number of levels with constants or parameters
+	protected int[][] prefixsources;
+	protected int[][] prefixrefs;
+	protected int[][] repeatcolumns; // columns of further occurrences of a variable
+	protected int[][] repeatslots;
+	// for each depth, i.e. for each position in varorder:
+	protected int[][] depthatoms; // atoms with the variable of this depth
+	protected int[][] completeatoms; // atoms whose last variable is bound at this depth
+	protected int[][] depthdistinct; // indexes of inequalities to test
+	protected int[] initialatoms; // atoms without variables
+
+	/**
+	 * Iterator over the trie of one atom. It keeps the range of rows for
+	 * every level that is open, and the current position within the range
+	 * of the deepest open level.
+	 */
+	protected static class TrieIterator {
+		protected MemoryPredicateTable table;
+		protected int[] rows;
+		protected int[] columns;
+		protected int depth = 0; // number of open levels
+		protected int[] lo, hi; // range of rows for each depth
+		protected int pos;
+
+		public TrieIterator(MemoryPredicateTable table, int[] columns, int lower, int upper) {
+			this.table = table;
+			this.columns = columns;
+			rows = getRows(lower, upper);
+			lo = new int[columns.length+1];
+			hi = new int[columns.length+1];
+			hi[0] = rows.length;
+			pos = 0;
+		}
+
+		protected int[] getRows(int lower, int upper) {
+			int size = table.size();
+			if ( table.isStepSorted() && ( (lower > Integer.MIN_VALUE) || (upper < Integer.MAX_VALUE) ) ) {
+				int start = table.getFirstRowFromStep(lower);
+				int end = (upper == Integer.MAX_VALUE) ? size : table.getFirstRowFromStep(upper+1);
+				if (2*(end-start) < size) { // few rows in the step bounds: sort them now
+					int[] result = new int[Math.max(0, end-start)];
+					for (int i=0; i<result.length; i++) {
+						result[i] = start+i;
+					}
+					table.sortRows(result, columns);
+					return result;
+				}
+			}
+			return table.getSortedRows(columns);
+		}
+
+		/**
+		 * Move to the first key of the deepest open level.
+		 */
+		public void reset() {
+			pos = lo[depth];
+		}
+
+		public boolean atEnd() {
+			return (pos >= hi[depth]);
+		}
+
+		public int key() {
+			return table.getValue(rows[pos], columns[depth]);
+		}
+
+		/**
+		 * Move to the first key that is not smaller than the given value.
+		 * @param value
+		 */
+		public void seek(int value) {
+			pos = find(pos, hi[depth], value, false);
+		}
+
+		/**
+		 * Move to the next key.
+		 */
+		public void next() {
+			pos = find(pos+1, hi[depth], key(), true);
+		}
+
+		/**
+		 * Open the next level for the rows with the current key.
+		 */
+		public void open() {
+			int end = find(pos+1, hi[depth], key(), true);
+			lo[depth+1] = pos;
+			hi[depth+1] = end;
+			depth++;
+		}
+
+		/**
+		 * Return to the previous level, at the key that was opened.
+		 */
+		public void up() {
+			pos = lo[depth];
+			depth--;
+		}
+
+		/**
+		 * Open the next level for the given key, if there are rows with it.
+		 * @param value
+		 * @return false if there are no such rows
+		 */
+		public boolean open(int value) {
+			seek(value);
+			if ( atEnd() || (key() != value) ) return false;
+			open();
+			return true;
+		}
+
+		/**
+		 * Find the first position between from and to whose key is at least
+		 * (or, if above is true, more than) the given value. Galloping
+		 * search is used, so that short moves are cheap.
+		 */
+		protected int find(int from, int to, int value, boolean above) {
+			int column = columns[depth];
+			int low = from, high = from, step = 1, key;
+			while (high < to) {
+				key = table.getValue(rows[high], column);
+				if ( (key > value) || ( !above && (key == value) ) ) break;
+				low = high+1;
+				high += step;
+				step *= 2;
+			}
+			if (high > to) high = to;
+			int mid;
+			while (low < high) {
+				mid = (low+high) >>> 1;
+				key = table.getValue(rows[mid], column);
+				if ( (key < value) || ( above && (key == value) ) ) {
+					low = mid+1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Create a new plan for the given rule.
+	 * @param rule
+	 * @param firstatom index of the atom whose variables should be bound first, or -1 to choose automatically
+	 */
+	public MemoryTrieJoinPlan(MemoryRule rule, int firstatom) {
+		super(rule);
+		MemoryRule.Atom[] atoms = rule.getAtoms();
+		int count = atoms.length;
+		chooseVariableOrder(atoms, firstatom);
+		int[] depths = new int[rule.getSlotCount()];
+		for (int d=0; d<varorder.length; d++) {
+			depths[varorder[d]] = d;
+		}
+
+		triecolumns = new int[count][];
+		prefixcounts = new int[count];
+		prefixsources = new int[count][];
+		prefixrefs = new int[count][];
+		repeatcolumns = new int[count][];
+		repeatslots = new int[count][];
+		ArrayList<ArrayList<Integer>> datoms = new ArrayList<ArrayList<Integer>>(), catoms = new ArrayList<ArrayList<Integer>>();
+		for (int d=0; d<varorder.length; d++) {
+			datoms.add(new ArrayList<Integer>());
+			catoms.add(new ArrayList<Integer>());
+		}
+		ArrayList<Integer> iatoms = new ArrayList<Integer>();
+		int[] completedepths = new int[count];
+		for (int i=0; i<count; i++) {
+			completedepths[i] = compileAtom(i, atoms[i], depths, datoms);
+			if (completedepths[i] >= 0) {
+				catoms.get(completedepths[i]).add(i);
+			} else {
+				iatoms.add(i);
+			}
+		}
+		depthatoms = new int[varorder.length][];
+		completeatoms = new int[varorder.length][];
+		depthdistinct = new int[varorder.length][];
+		for (int d=0; d<varorder.length; d++) {
+			depthatoms[d] = toArray(datoms.get(d));
+			completeatoms[d] = toArray(catoms.get(d));
+			ArrayList<Integer> tests = new ArrayList<Integer>();
+			for (int i=0; i<rule.distinct1.length; i++) {
+				if (Math.max(depths[rule.distinct1[i]], depths[rule.distinct2[i]]) == d) tests.add(i);
+			}
+			depthdistinct[d] = toArray(tests);
+		}
+		initialatoms = toArray(iatoms);
+		// the order of atoms is the order in which their matches are complete
+		order = new int[count];
+		int pos = 0;
+		for (int i=0; i<initialatoms.length; i++) {
+			order[pos++] = initialatoms[i];
+		}
+		for (int d=0; d<varorder.length; d++) {
+			for (int i=0; i<completeatoms[d].length; i++) {
+				order[pos++] = completeatoms[d][i];
+			}
+		}
+	}
+
+	/**
+	 * Choose the order in which variables are bound. The variables of the
+	 * first atom come first, then variables that share some atom with the
+	 * variables chosen before. Among these candidates, variables that occur
+	 * in more atoms are preferred, since they restrict more atoms at once.
+	 * @param atoms
+	 * @param firstatom
+	 */
+	protected void chooseVariableOrder(MemoryRule.Atom[] atoms, int firstatom) {
+		int slotcount = rule.getSlotCount();
+		boolean[][] contains = new boolean[atoms.length][slotcount];
+		int[] occurrences = new int[slotcount];
+		for (int i=0; i<atoms.length; i++) {
+			for (int j=0; j<atoms[i].arity; j++) {
+				if ( (atoms[i].slots[j] >= 0) && !contains[i][atoms[i].slots[j]] ) {
+					contains[i][atoms[i].slots[j]] = true;
+					occurrences[atoms[i].slots[j]]++;
+				}
+			}
+		}
+		varorder = new int[slotcount];
+		boolean[] chosen = new boolean[slotcount];
+		boolean[] touched = new boolean[atoms.length]; // atoms with some chosen variable
+		for (int d=0; d<slotcount; d++) {
+			int best = -1, bestscore = -1, score;
+			for (int s=0; s<slotcount; s++) {
+				if (chosen[s]) continue;
+				score = occurrences[s];
+				if ( (firstatom >= 0) && contains[firstatom][s] ) {
+					score += 2*atoms.length;
+				} else {
+					for (int i=0; i<atoms.length; i++) {
+						if (touched[i] && contains[i][s]) {
+							score += atoms.length;
+							break;
+						}
+					}
+				}
+				if (score > bestscore) {
+					best = s;
+					bestscore = score;
+				}
+			}
+			varorder[d] = best;
+			chosen[best] = true;
+			for (int i=0; i<atoms.length; i++) {
+				if (contains[i][best]) touched[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Compute the trie levels and checks for the given atom, and record the
+	 * atom for the depths of its variables.
+	 * @param index
+	 * @param atom
+	 * @param depths the depth of every slot
+	 * @param datoms lists of atoms for every depth
+	 * @return the depth of the last variable of the atom, or -1 if it has no variables
+	 */
+	protected int compileAtom(int index, MemoryRule.Atom atom, int[] depths, ArrayList<ArrayList<Integer>> datoms) {
+		ArrayList<Integer> columns = new ArrayList<Integer>(), sources = new ArrayList<Integer>(), refs = new ArrayList<Integer>();
+		ArrayList<Integer> rcols = new ArrayList<Integer>(), rslots = new ArrayList<Integer>();
+		for (int j=0; j<atom.arity; j++) {
+			if (atom.slots[j] >= 0) continue;
+			columns.add(j);
+			if (atom.paramindexes[j] >= 0) {
+				sources.add(SOURCE_PARAMETER);
+				refs.add(atom.paramindexes[j]);
+			} else {
+				sources.add(SOURCE_CONSTANT);
+				refs.add(atom.constants[j]);
+			}
+		}
+		prefixcounts[index] = columns.size();
+		int last = -1;
+		for (int d=0; d<varorder.length; d++) {
+			boolean found = false;
+			for (int j=0; j<atom.arity; j++) {
+				if (atom.slots[j] != varorder[d]) continue;
+				if (found) {
+					rcols.add(j);
+					rslots.add(varorder[d]);
+				} else {
+					columns.add(j);
+					found = true;
+				}
+			}
+			if (found) {
+				datoms.get(d).add(index);
+				last = d;
+			}
+		}
+		triecolumns[index] = toArray(columns);
+		prefixsources[index] = toArray(sources);
+		prefixrefs[index] = toArray(refs);
+		repeatcolumns[index] = toArray(rcols);
+		repeatslots[index] = toArray(rslots);
+		return last;
+	}
+
+	/**
+	 * Get the slots in the order in which they are bound.
+	 * @return
+	 */
+	public int[] getVariableOrder() {
+		return varorder;
+	}
+
+	@Override
+	public boolean execute(MemoryPredicateTable[] tables, int[] lowersteps, int[] uppersteps, int[] params, int[] values, MatchHandler handler) {
+		int count = triecolumns.length;
+		TrieIterator[] iterators = new TrieIterator[count];
+		for (int i=0; i<count; i++) {
+			iterators[i] = new TrieIterator(tables[i], triecolumns[i], lowersteps[i], uppersteps[i]);
+			for (int j=0; j<prefixcounts[i]; j++) {
+				if (!iterators[i].open(getValue(prefixsources[i][j], prefixrefs[i][j], params, values))) return false;
+			}
+		}
+		int[] rows = new int[count];
+		for (int i=0; i<initialatoms.length; i++) {
+			if (!findRow(initialatoms[i], iterators[initialatoms[i]], lowersteps, uppersteps, values, rows)) return false;
+		}
+		return join(0, iterators, lowersteps, uppersteps, values, rows, handler);
+	}
+
+	protected boolean join(int depth, TrieIterator[] iterators, int[] lowersteps, int[] uppersteps,
+			int[] values, int[] rows, MatchHandler handler) {
+		if (depth == varorder.length) return handler.match(values, rows);
+		int[] datoms = depthatoms[depth], catoms = completeatoms[depth], dchecks = depthdistinct[depth];
+		int k = datoms.length, i;
+		// leapfrog: keep the iterators sorted by key, and move the one with the smallest key to the largest key
+		TrieIterator[] its = new TrieIterator[k];
+		TrieIterator it;
+		for (i=0; i<k; i++) {
+			it = iterators[datoms[i]];
+			it.reset();
+			if (it.atEnd()) return false;
+			int j = i;
+			while ( (j > 0) && (its[j-1].key() > it.key()) ) {
+				its[j] = its[j-1];
+				j--;
+			}
+			its[j] = it;
+		}
+		int p = 0, max = its[k-1].key(), key;
+		boolean matches;
+		while (true) {
+			key = its[p].key();
+			if (key == max) { // all iterators agree on this key
+				values[varorder[depth]] = key;
+				matches = true;
+				for (i=0; (i<dchecks.length) && matches; i++) {
+					matches = (values[rule.distinct1[dchecks[i]]] != values[rule.distinct2[dchecks[i]]]);
+				}
+				if (matches) {
+					for (i=0; i<k; i++) {
+						its[i].open();
+					}
+					for (i=0; (i<catoms.length) && matches; i++) {
+						matches = findRow(catoms[i], iterators[catoms[i]], lowersteps, uppersteps, values, rows);
+					}
+					if ( matches && join(depth+1, iterators, lowersteps, uppersteps, values, rows, handler) ) return true;
+					for (i=0; i<k; i++) {
+						its[i].up();
+					}
+				}
+				its[p].next();
+			} else {
+				its[p].seek(max);
+			}
+			if (its[p].atEnd()) return false;
+			max = its[p].key();
+			p = (p+1) % k;
+		}
+	}
+
+	/**
+	 * Find a row among the complete matches of the trie of the given atom
+	 * that satisfies the step bounds and has the values of the variables in
+	 * the columns of further occurrences.
+	 * @return true if such a row was found
+	 */
+	protected boolean findRow(int atom, TrieIterator it, int[] lowersteps, int[] uppersteps, int[] values, int[] rows) {
+		int[] rcols = repeatcolumns[atom], rslots = repeatslots[atom];
+		int lower = lowersteps[atom], upper = uppersteps[atom], row, step, i;
+		for (int pos=it.lo[it.depth]; pos<it.hi[it.depth]; pos++) {
+			row = it.rows[pos];
+			step = it.table.getStep(row);
+			if ( (step < lower) || (step > upper) ) continue;
+			for (i=0; i<rcols.length; i++) {
+				if (it.table.getValue(row, rcols[i]) != values[rslots[i]]) break;
+			}
+			if (i == rcols.length) {
+				rows[atom] = row;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,5 +1,9 @@
 package edu.kit.aifb.orel.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.sql.Statement;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -9,11 +13,21 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import edu.kit.aifb.orel.client.EventLog;
 import edu.kit.aifb.orel.client.LogWriter;
 import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
 import edu.kit.aifb.orel.inferencing.PredicateAtom;
@@ -27,6 +41,61 @@ import edu.kit.aifb.orel.inferencing.PredicateTerm;
  * For now, we replicate a lot of code here in a dumb fashion for
  * all the tables. Maybe we can reduce the code needed later on.
  * 
+ * Predicates that are declared to be kept in memory are still stored in
+ * normal tables, but the driver additionally keeps a copy of their data in
+ * the JVM heap (used to avoid duplicate inserts and to answer checks) and
+ * in a table of the MEMORY engine that is used in rule bodies. These copies
+ * are refreshed whenever the predicate has been changed.
+ * 
+ * During loading, tuples and new ids can be collected in tab-separated
+ * buffers that are sent to the server with LOAD DATA LOCAL INFILE. If the
+ * JDBC driver or the server does not support this, the driver falls back to
+ * batches of INSERT statements.
+ * 
+ * If a parallelism greater than 1 is given, rules can be run concurrently.
+ * Every concurrent rule application then uses one of a fixed number of
+ * additional connections with its own prepared statements.
+ *
+ * makePredicateAssertion() and checkPredicateAssertion() may be called by
+ * several threads at once, e.g. by loaders and queries. Each call takes a
+ * connection from the same pool that is used for rules (or the main
+ * connection if the parallelism is 1), and uses the batched inserts, load
+ * buffers, and check statements that are kept for this connection. Every
+ * connection is locked while it is used, and the main lock of the driver is
+ * never requested while holding the lock of a connection. commit() writes
+ * the pending inserts of all connections.
+ *
+ * Optionally, semi-naive evaluation can use delta tables instead of step
+ * filters (see setDeltaTables()). Every inferred predicate that is not kept
+ * in memory then has a delta table with the facts of the last round, and a
+ * new-delta table that collects the facts that rules derive in the current
+ * round. Rules join the delta table against the full tables of the other
+ * body atoms, and the new-delta table becomes the delta table when rules
+ * ask for facts of the next round. Facts still get steps, since these are
+ * needed to tell asserted facts from derived ones, but the step column is
+ * not indexed. If the delta table of some body predicate does not match
+ * the steps that a rule asks for, the rule falls back to step filters.
+ *
+ * The statements of rules join their body atoms with STRAIGHT_JOIN in an
+ * order that is chosen from the sizes of the tables, separately for every
+ * semi-naive variant, so that the atom that is restricted to the facts of
+ * the last round is read first (see getJoinOrder()). The statements of a
+ * rule are made again when the size of some body table has changed too
+ * much since. Statements that check facts keep the order of the rule.
+ *
+ * Rules with a common context are saturated in partitions of the contexts
+ * that run their own semi-naive rounds concurrently, where every statement
+ * filters the context of the atom that it reads first (see
+ * saturateContextRules()).
+ *
+ * Every field of a predicate table has its own index. Optionally, the
+ * driver also creates the composite indexes that the fixed rules of the
+ * reasoner need for joining their body atoms when the knowledge base is
+ * initialized (see setRuleIndexes() and prepareInferenceRules()). For
+ * diagnostics, it can run EXPLAIN on every rule statement when it is first
+ * executed and report full table scans and temporary tables (see
+ * setExplainRules()).
+ * 
  * @author Markus Krötzsch
  */
 public class MySQLStorageDriver implements StorageDriver {
@@ -34,11 +103,240 @@ public class MySQLStorageDriver implements StorageDriver {
 	protected HashMap<String,PredicateDeclaration> predicates;
 	protected HashMap<String,InferenceRuleDeclaration> inferencerules;
 	protected HashMap<String,ArrayList<PreparedStatement>> inferencerulestmts;
-	protected HashMap<String,Long> inferenceruleruntimes;
-	// keep prepared statements in a map to process them with less code
-	protected HashMap<String,PreparedStatement> prepinsertstmts;
-	protected HashMap<String,Integer> prepinsertstmtsizes;
-	protected HashMap<String,ArrayList<PreparedStatement>> prepcheckstmts;
+	protected HashMap<String,ArrayList<String>> inferencerulesql;
+	protected RuleStatistics rulestatistics = new RuleStatistics();
+	// SQL of the statements for checking facts of each predicate, including those of check rules
+	protected HashMap<String,ArrayList<String>> checksql;
+	// heap copies of predicates that are declared to be kept in memory (null if not loaded yet)
+	protected HashMap<String,MemoryPredicateTable> memorytables;
+	// predicates kept in memory whose MEMORY engine copy must be refreshed before use
+	protected HashSet<String> stalememorytables;
+	// connections for running rules concurrently and for writing and checking facts
+	// (only the main connection if rules are only run sequentially)
+	protected int parallelism;
+	protected ArrayBlockingQueue<Session> sessions;
+	protected ArrayList<Session> allsessions; // all sessions, including those in use
+	// rules hold the read lock while executing, refreshing MEMORY tables requires the write lock
+	protected ReentrantReadWriteLock refreshlock;
+	// copy of the table of watermarks (null if not read yet)
+	protected Watermarks watermarks = null;
+	protected int loadstep = 0; // step of asserted facts, above 0 while loading a delta
+	// use delta tables for semi-naive evaluation; the state of the delta tables of each predicate
+	protected boolean deltatables = false;
+	protected HashMap<String,DeltaState> deltastates = new HashMap<String,DeltaState>();
+	protected boolean deltasused = false; // true if some delta table may be non-empty
+	// tuples written to predicates that are not kept in memory, to avoid writing them again
+	protected HashMap<String,TupleFilter> writefilters = null;
+	protected int writefiltersize = 1000000; // largest number of tuples per filter, 0 if filters are not used
+	// create the composite indexes that the prepared rules need
+	protected boolean ruleindexes = false;
+	protected HashSet<String> knownruleindexes = new HashSet<String>(); // "table.index" of indexes that are known to exist
+	// keys and indexes of the rule statements that were explained already
+	protected boolean explainrules = false;
+	protected HashSet<String> explainedstatements = new HashSet<String>();
+	// estimated number of rows of the table of each predicate, for ordering the joins of rules (read again after commit())
+	protected HashMap<String,Long> tablesizes = new HashMap<String,Long>();
+	// number of distinct values of each field of the table of each predicate, and the size of the table when they were counted
+	protected HashMap<String,long[]> fielddistincts = new HashMap<String,long[]>();
+	protected HashMap<String,Long> fielddistinctsizes = new HashMap<String,Long>();
+	// sizes of the body tables for which the statements of each rule were made
+	protected HashMap<String,HashMap<String,Long>> ruleplansizes = new HashMap<String,HashMap<String,Long>>();
+	// make the statements of a rule again if the size of a body table changed by more than this factor
+	static final protected int REPLAN_FACTOR = 10;
+	/**
+	 * Connection that is used by one thread at a time for running rules or
+	 * for writing and checking facts, together with the prepared statements
+	 * that were used on this connection so far, and with the inserts that
+	 * were not sent to the server yet. Threads that use the session, or that
+	 * write its pending inserts, synchronize on it.
+	 */
+	class Session {
+		public Connection con;
+		public HashMap<String,ArrayList<PreparedStatement>> stmts;
+		public HashMap<String,PreparedStatement> insertstmts;
+		public HashMap<String,Integer> insertstmtsizes;
+		public HashMap<String,ArrayList<PreparedStatement>> checkstmts;
+		// buffers of tab-separated rows for LOAD DATA LOCAL INFILE (used in load mode only)
+		public HashMap<String,StringBuilder> loadbuffers;
+		public HashMap<String,Integer> loadbuffersizes;
+		public Session(Connection con) {
+			this.con = con;
+			stmts = new HashMap<String,ArrayList<PreparedStatement>>(30);
+			insertstmts = new HashMap<String,PreparedStatement>();
+			insertstmtsizes = new HashMap<String,Integer>();
+			checkstmts = new HashMap<String,ArrayList<PreparedStatement>>();
+			loadbuffers = new HashMap<String,StringBuilder>();
+			loadbuffersizes = new HashMap<String,Integer>();
+		}
+		public PreparedStatement getStatement(String rulename, int index) throws SQLException {
+			ArrayList<PreparedStatement> rulestmts = stmts.get(rulename);
+			if (rulestmts == null) {
+				ArrayList<String> sql = inferencerulesql.get(rulename);
+				rulestmts = new ArrayList<PreparedStatement>(sql.size());
+				for (int i=0; i<sql.size(); i++) {
+					rulestmts.add(con.prepareStatement(sql.get(i)));
+				}
+				stmts.put(rulename, rulestmts);
+			}
+			return rulestmts.get(index);
+		}
+		/**
+		 * Get the statements for checking facts of the given predicate, which
+		 * are prepared from the given SQL if the list of statements is shorter.
+		 */
+		public ArrayList<PreparedStatement> getCheckStatements(String predicate, ArrayList<String> sql) throws SQLException {
+			ArrayList<PreparedStatement> result = checkstmts.get(predicate);
+			if (result == null) {
+				result = new ArrayList<PreparedStatement>(sql.size());
+				checkstmts.put(predicate, result);
+			}
+			for (int i=result.size(); i<sql.size(); i++) {
+				result.add(con.prepareStatement(sql.get(i)));
+			}
+			return result;
+		}
+		/**
+		 * Add a fact to the batch inserts of the given predicate, and execute
+		 * the batch if it is full.
+		 */
+		public void addInsert(PredicateDeclaration pd, int[] ids, int step) throws SQLException {
+			PreparedStatement stmt = getInsertStatement(pd.getName());
+			for (int i=0; i<ids.length; i++) {
+				stmt.setInt(i+1, ids[i]);
+			}
+			if (pd.isInferred()) stmt.setInt(ids.length+1, step);
+			stmt.addBatch();
+			int cursize = insertstmtsizes.get(pd.getName())+1;
+			if (cursize >= maxbatchsize) {
+				stmt.executeBatch();
+				insertstmtsizes.put(pd.getName(),0);
+			} else {
+				insertstmtsizes.put(pd.getName(),cursize);
+			}
+		}
+		public PreparedStatement getInsertStatement(String predicate) throws SQLException {
+			PreparedStatement stmt = insertstmts.get(predicate);
+			if (stmt == null) {
+				stmt = getPreparedInsertStatement(con, predicate);
+				insertstmts.put(predicate, stmt);
+				insertstmtsizes.put(predicate, 0);
+			}
+			return stmt;
+		}
+		/**
+		 * Add a tuple to the load buffer of the given predicate, and send the
+		 * buffer to the server if it is full.
+		 */
+		public void addLoadRow(String predicate, int[] ids) throws SQLException {
+			StringBuilder buffer = loadbuffers.get(predicate);
+			if (buffer == null) {
+				buffer = new StringBuilder();
+				loadbuffers.put(predicate, buffer);
+				loadbuffersizes.put(predicate, 0);
+			}
+			for (int i=0; i<ids.length; i++) {
+				if (i>0) buffer.append('\t');
+				buffer.append(ids[i]);
+			}
+			buffer.append('\n');
+			int cursize = loadbuffersizes.get(predicate)+1;
+			loadbuffersizes.put(predicate, cursize);
+			if (cursize >= maxloadbuffersize) flushLoadBuffer(predicate);
+		}
+		/**
+		 * Write the load buffer of the given predicate to the database, using
+		 * batch inserts if LOAD DATA LOCAL INFILE is not possible.
+		 * @return the number of rows that were written
+		 */
+		public int flushLoadBuffer(String predicate) throws SQLException {
+			StringBuilder buffer = loadbuffers.get(predicate);
+			if ( (buffer == null) || (buffer.length() == 0) ) return 0;
+			int result = loadbuffersizes.get(predicate);
+			PredicateDeclaration pd = predicates.get(predicate);
+			String columns = "(f0";
+			for (int i=1; i<pd.getFieldCount(); i++) {
+				columns = columns + ",f" + i;
+			}
+			columns = columns + ")" + (pd.isInferred() ? " SET step=" + loadstep : "");
+			if (!loadData(con, predicate, columns, buffer)) { // insert the rows one by one
+				PreparedStatement stmt = getInsertStatement(predicate);
+				String[] rows = buffer.toString().split("\n"), values;
+				for (int i=0; i<rows.length; i++) {
+					values = rows[i].split("\t");
+					for (int j=0; j<values.length; j++) {
+						stmt.setInt(j+1, Integer.parseInt(values[j]));
+					}
+					if (pd.isInferred()) stmt.setInt(values.length+1, loadstep);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				insertstmtsizes.put(predicate,0);
+			}
+			buffer.setLength(0);
+			loadbuffersizes.put(predicate, 0);
+			return result;
+		}
+		/**
+		 * Write all pending inserts of the given predicate.
+		 * @return the number of rows that were written
+		 */
+		public int flushInserts(String predicate) throws SQLException {
+			int result = flushLoadBuffer(predicate);
+			PreparedStatement stmt = insertstmts.get(predicate);
+			if ( (stmt != null) && (insertstmtsizes.get(predicate) > 0) ) {
+				result += insertstmtsizes.get(predicate);
+				stmt.executeBatch();
+				insertstmtsizes.put(predicate,0);
+			}
+			return result;
+		}
+		/**
+		 * Write all pending inserts.
+		 * @return the number of rows that were written
+		 */
+		public int flushInserts() throws SQLException {
+			HashSet<String> pending = new HashSet<String>(loadbuffers.keySet());
+			pending.addAll(insertstmts.keySet());
+			Iterator<String> predit = pending.iterator();
+			int result = 0;
+			while (predit.hasNext()) {
+				result += flushInserts(predit.next());
+			}
+			return result;
+		}
+		/**
+		 * Close all prepared statements of this session, and the connection
+		 * unless it is the main connection of the driver.
+		 */
+		public void close() throws SQLException {
+			Iterator<PreparedStatement> stmtit = insertstmts.values().iterator();
+			while (stmtit.hasNext()) {
+				stmtit.next().close();
+			}
+			insertstmts.clear();
+			insertstmtsizes.clear();
+			checkstmts.clear();
+			stmts.clear();
+			if (con != MySQLStorageDriver.this.con) con.close();
+		}
+	}
+	/**
+	 * State of the delta tables of one predicate. If hasdelta is true, the
+	 * delta table contains all facts with steps from "from" to "to" (and
+	 * maybe some older facts). If pending is true, the new-delta table has
+	 * facts with steps from pendingmin to pendingmax that are not in the
+	 * main table yet. All other facts have steps of at most basemax.
+	 */
+	class DeltaState {
+		public int basemax;
+		public boolean hasdelta = false;
+		public int from, to;
+		public boolean pending = false;
+		public int pendingmin, pendingmax;
+		public DeltaState(int basemax) {
+			this.basemax = basemax;
+		}
+	}
 	class StringPair {
 		public String value1;
 		public String value2;
@@ -50,6 +348,11 @@ public class MySQLStorageDriver implements StorageDriver {
 	
 	// true if we are in bulk loading, auto commit=off mode
 	protected boolean loadmode = false;
+	// use LOAD DATA LOCAL INFILE in load mode (the buffers of facts are kept in sessions)
+	protected volatile boolean bulkload = true;
+	protected StringBuilder idloadbuffer = new StringBuilder();
+	protected int idloadbuffersize = 0;
+	protected int maxloadbuffersize = 100000;
 	
 	// the remaining fields are for ID management
 	protected int curid = 0; // optionally do your own counting instead of using auto increment: faster but not multi-thread safe
@@ -58,15 +361,18 @@ public class MySQLStorageDriver implements StorageDriver {
 	
 	protected int namefieldlength = 50; // maximal length of the VARCHAR in the ids table
 	protected Connection con = null;
+	protected String connectionurl = null;
 	protected MessageDigest digest = null;
 	protected int maxbatchsize = 1000;
 
 	// cache ids locally
-	//protected HashMap<String,Integer> ids = null;
-	protected LinkedHashMap<String,Integer> ids = null;
-	final protected int idcachesize = 1000;
+	protected StringIntDictionary ids = null;
+	protected int idcachesize;
+	protected boolean idsloaded = false; // true if the ids table has been read into the cache
+	protected boolean idsread = false; // true if reading the ids table has been attempted
 	final protected int prelocsize = 1000;
 	protected PreparedStatement findid = null; // SELECT id by name
+	protected HashMap<Integer,PreparedStatement> findidsstmts = new HashMap<Integer,PreparedStatement>(); // SELECT ids for the given number of names
 	protected PreparedStatement makeids = null; // UPDATE prelocated ids with their names
 	protected PreparedStatement makeid = null; // directly insert a single id string using AUTO INCREMENT to get its key
 	protected PreparedStatement prelocids = null; // prelocate empty id rows
@@ -75,18 +381,59 @@ public class MySQLStorageDriver implements StorageDriver {
 
 	
 	public MySQLStorageDriver(String dbserver, String dbname, String dbuser, String dbpwd) throws SQLException {
+		this(dbserver,dbname,dbuser,dbpwd,1);
+	}
+
+	/**
+	 * Create a new driver that allows the given number of rules to be run
+	 * concurrently, using one additional connection for each of them. The
+	 * same connections are shared by threads that write or check facts.
+	 * @param dbserver
+	 * @param dbname
+	 * @param dbuser
+	 * @param dbpwd
+	 * @param parallelism
+	 * @throws SQLException
+	 */
+	public MySQLStorageDriver(String dbserver, String dbname, String dbuser, String dbpwd, int parallelism) throws SQLException {
+		this(dbserver,dbname,dbuser,dbpwd,parallelism,1000000);
+	}
+
+	/**
+	 * Create a new driver as above that caches at most idcachesize ids in
+	 * memory.
+	 * @param dbserver
+	 * @param dbname
+	 * @param dbuser
+	 * @param dbpwd
+	 * @param parallelism
+	 * @param idcachesize
+	 * @throws SQLException
+	 */
+	public MySQLStorageDriver(String dbserver, String dbname, String dbuser, String dbpwd, int parallelism, int idcachesize) throws SQLException {
 		connect(dbserver,dbname,dbuser,dbpwd);
-		//implement a least recently used cache for IDs:
+		this.idcachesize = idcachesize;
+		this.parallelism = parallelism;
+		refreshlock = new ReentrantReadWriteLock();
+		allsessions = new ArrayList<Session>(parallelism);
+		if (parallelism > 1) {
+			for (int i=0; i<parallelism; i++) {
+				allsessions.add(new Session(DriverManager.getConnection(connectionurl)));
+			}
+		} else {
+			allsessions.add(new Session(con));
+		}
+		sessions = new ArrayBlockingQueue<Session>(allsessions.size(), false, allsessions);
 		resetCaches();
 		final int expectedNumberOfPredicates = 15; 
 		predicates = new HashMap<String,PredicateDeclaration>(expectedNumberOfPredicates);
 		inferencerules     = new HashMap<String,InferenceRuleDeclaration>(30);
 		inferencerulestmts = new HashMap<String,ArrayList<PreparedStatement>>(30);
-		inferenceruleruntimes = new HashMap<String,Long>(30);
+		inferencerulesql = new HashMap<String,ArrayList<String>>(30);
 
-		prepinsertstmts = new HashMap<String,PreparedStatement>(expectedNumberOfPredicates);
-		prepinsertstmtsizes = new HashMap<String,Integer>(expectedNumberOfPredicates);
-		prepcheckstmts = new HashMap<String,ArrayList<PreparedStatement>>(expectedNumberOfPredicates);
+		checksql = new HashMap<String,ArrayList<String>>(expectedNumberOfPredicates);
+		memorytables = new HashMap<String,MemoryPredicateTable>(expectedNumberOfPredicates);
+		stalememorytables = new HashSet<String>(expectedNumberOfPredicates);
 		try {
 			digest = java.security.MessageDigest.getInstance("MD5");
 		} catch (NoSuchAlgorithmException e) {
@@ -99,14 +446,22 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * important if the DB is modified in violent ways during some run.
 	 */
 	protected void resetCaches() {
-		ids = new LinkedHashMap<String,Integer>(idcachesize,0.75f,true) {
-			/// Anonymous inner class
-			private static final long serialVersionUID = 1L;
-			protected boolean removeEldestEntry(Map.Entry<String,Integer> eldest) {
-			   return size() > idcachesize;
-			}
-		};
+		if (ids == null) {
+			ids = new StringIntDictionary(idcachesize);
+		} else {
+			ids.clear();
+		}
+		idsloaded = false;
+		idsread = false;
+		watermarks = null;
+		deltastates.clear();
+		deltasused = false;
 		unwrittenids = new HashMap<String,Integer>(prelocsize);
+		forgetWrittenFacts(null);
+		if (memorytables != null) {
+			memorytables.clear();
+			stalememorytables.addAll(getMemoryPredicates());
+		}
 	}
 
 	/**
@@ -122,7 +477,8 @@ public class MySQLStorageDriver implements StorageDriver {
             // This will load the MySQL driver, each DB has its own driver
             Class.forName("com.mysql.jdbc.Driver");
             // Setup the connection with the DB
-            con = DriverManager.getConnection("jdbc:mysql://" + dbserver + "/" + dbname + "?user=" + dbuser + "&password=" + dbpwd + "&rewriteBatchedStatements=true");
+            connectionurl = "jdbc:mysql://" + dbserver + "/" + dbname + "?user=" + dbuser + "&password=" + dbpwd + "&rewriteBatchedStatements=true&allowLoadLocalInfile=true";
+            con = DriverManager.getConnection(connectionurl);
         } catch (SQLException e) { // TODO either do something useful or drop this catch block
             throw e;
         } catch (ClassNotFoundException e) {
@@ -148,6 +504,8 @@ public class MySQLStorageDriver implements StorageDriver {
 		stmt.execute("CREATE TABLE IF NOT EXISTS ids " +
 				"( id " + idfieldtype + " AUTO_INCREMENT" +
                 ", name VARCHAR(50), PRIMARY KEY (id), INDEX(name)) " + engine);
+		stmt.execute("CREATE TABLE IF NOT EXISTS watermarks " +
+				"( name VARCHAR(255) NOT NULL, step INT NOT NULL, PRIMARY KEY (name)) " + engine);
 		Iterator<PredicateDeclaration> pit = predicates.values().iterator();
 		PredicateDeclaration pd;
 		String sql, indexes, primkey, sep;
@@ -164,10 +522,21 @@ public class MySQLStorageDriver implements StorageDriver {
 			}
 			if (pd.isInferred()) {
 				sql = sql + ", step INT";
-				indexes = indexes + ", INDEX(step)";
+				if (!deltatables) indexes = indexes + ", INDEX(step)"; // steps are rarely used in queries with delta tables
 			}
 			stmt.execute(sql + indexes + ", PRIMARY KEY (" + primkey + ") )" + engine);
+			if (hasDeltaTables(pd)) {
+				stmt.execute("CREATE TABLE IF NOT EXISTS " + addQuotes(getDeltaTableName(pd.getName())) + " LIKE " + addQuotes(pd.getName()));
+				stmt.execute("CREATE TABLE IF NOT EXISTS " + addQuotes(getNewDeltaTableName(pd.getName())) + " LIKE " + addQuotes(pd.getName()));
+			}
+			if (pd.isInMemory()) {
+				// not a TEMPORARY table, since these cannot be used twice in one query
+				stmt.execute("CREATE TABLE IF NOT EXISTS " + addQuotes(getMemoryTableName(pd.getName())) + " LIKE " + addQuotes(pd.getName()));
+				stmt.execute("ALTER TABLE " + addQuotes(getMemoryTableName(pd.getName())) + " ENGINE = MEMORY");
+				stalememorytables.add(pd.getName());
+			}
 		}
+		if (!idsloaded) idsread = false; // try again to read the ids now that the table exists
 	}
 
 	/**
@@ -177,13 +546,70 @@ public class MySQLStorageDriver implements StorageDriver {
 		commit(); // use to clear prepared statements' caches
 		Statement stmt = con.createStatement();
 		Iterator<PredicateDeclaration> pit = predicates.values().iterator();
+		PredicateDeclaration pd;
 		while (pit.hasNext()) {
-			stmt.execute("DROP TABLE IF EXISTS " + addQuotes(pit.next().getName()));
+			pd = pit.next();
+			stmt.execute("DROP TABLE IF EXISTS " + addQuotes(pd.getName()));
+			if (pd.isInMemory()) {
+				stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getMemoryTableName(pd.getName())));
+			} else if (pd.isInferred()) {
+				stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getDeltaTableName(pd.getName())));
+				stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getNewDeltaTableName(pd.getName())));
+			}
 		}
 		stmt.execute("DROP TABLE IF EXISTS ids");
+		stmt.execute("DROP TABLE IF EXISTS watermarks");
+		synchronized (this) {
+			knownruleindexes.clear();
+		}
 		resetCaches();
 	}
 
+	/**
+	 * Delete the tables of the given predicate with their contents, and
+	 * forget its declaration and all statements that sessions prepared for
+	 * it.
+	 */
+	public void drop(String predicate) throws SQLException {
+		PredicateDeclaration pd = predicates.get(predicate);
+		if (pd == null) return; // unknown predicate
+		commit();
+		Statement stmt = con.createStatement();
+		stmt.execute("DROP TABLE IF EXISTS " + addQuotes(pd.getName()));
+		if (pd.isInMemory()) {
+			stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getMemoryTableName(pd.getName())));
+		} else if (pd.isInferred()) {
+			stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getDeltaTableName(pd.getName())));
+			stmt.execute("DROP TABLE IF EXISTS " + addQuotes(getNewDeltaTableName(pd.getName())));
+		}
+		stmt.close();
+		deleteWatermarks(getWatermarks().removeRuleWatermarks(predicate));
+		forgetWrittenFacts(predicate);
+		synchronized (this) {
+			predicates.remove(predicate);
+			checksql.remove(predicate);
+			deltastates.remove(predicate);
+			memorytables.remove(predicate);
+			stalememorytables.remove(predicate);
+			Iterator<String> indexit = knownruleindexes.iterator();
+			while (indexit.hasNext()) {
+				if (indexit.next().startsWith(predicate + ".")) indexit.remove();
+			}
+		}
+		Iterator<Session> sessionit = allsessions.iterator();
+		Session session;
+		while (sessionit.hasNext()) {
+			session = sessionit.next();
+			synchronized (session) {
+				if (session.insertstmts.containsKey(predicate)) session.insertstmts.remove(predicate).close();
+				session.insertstmtsizes.remove(predicate);
+				closeStatements(session.checkstmts.remove(predicate));
+				session.loadbuffers.remove(predicate);
+				session.loadbuffersizes.remove(predicate);
+			}
+		}
+	}
+
 	/**
 	 * Delete the contents of the database but do not drop the tables we created.
 	 * @throws SQLException
@@ -199,6 +625,7 @@ public class MySQLStorageDriver implements StorageDriver {
 		if (!onlyderived) {
 			Statement stmt = con.createStatement();
 			stmt.execute("TRUNCATE TABLE ids");
+			stmt.execute("TRUNCATE TABLE watermarks");
 		}
 		resetCaches();
 	}
@@ -208,13 +635,22 @@ public class MySQLStorageDriver implements StorageDriver {
 		Statement stmt = con.createStatement();
 		PredicateDeclaration pd = predicates.get(predicate);
 		if (pd == null) return; // unknown predicate
+		resetDelta(predicate);
 		if (onlyderived == true)  {
 			if ( pd.isInferred() ) {
-				stmt.execute("DELETE FROM " + addQuotes(pd.getName()) + " WHERE step!=0");
+				String sql = "DELETE FROM " + addQuotes(pd.getName()) + " WHERE step!=0";
+				Iterator<Integer> stepit = getWatermarks().getLoadSteps().iterator();
+				while (stepit.hasNext()) { // keep facts of incremental loads
+					sql = sql + " AND step!=" + stepit.next();
+				}
+				stmt.execute(sql);
 			}
 		} else {
 			stmt.execute("TRUNCATE TABLE " + addQuotes(pd.getName()));
 		}
+		if (pd.isInMemory()) invalidateMemoryTable(predicate);
+		forgetWrittenFacts(predicate);
+		deleteWatermarks(getWatermarks().removeRuleWatermarks(predicate));
 	}
 	
 	/**
@@ -222,35 +658,40 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * currently used.
 	 * @throws SQLException
 	 */
-	protected void close() throws SQLException {
+	protected synchronized void close() throws SQLException {
 		commit();
-		Iterator<String> inserttables = prepinsertstmts.keySet().iterator();
-		PreparedStatement pstmt;
-		while (inserttables.hasNext()) {
-			pstmt = prepinsertstmts.get(inserttables.next());
-			pstmt.close();
-		}
-		prepinsertstmts.clear();
-		prepinsertstmtsizes.clear();
 		if (makeids != null) {
 			makeids.close();
 			makeids = null;
 		}
+		Iterator<Session> sessionit = allsessions.iterator();
+		Session session;
+		while (sessionit.hasNext()) {
+			session = sessionit.next();
+			synchronized (session) {
+				session.close();
+			}
+		}
 	}
 
 	/**
 	 * Make sure all batch inserts are flushed, even if they are
-	 * below the maximum size.
+	 * below the maximum size. This includes the inserts of all
+	 * connections that are used by other threads.
 	 */
-	public void commit() throws SQLException {
-		Iterator<String> inserttables = prepinsertstmts.keySet().iterator();
-		String key;
-		while (inserttables.hasNext()) {
-			key = inserttables.next();
-			prepinsertstmts.get(key).executeBatch();
-			prepinsertstmtsizes.put(key,0);
+	public synchronized void commit() throws SQLException {
+		long sTime = EventLog.start();
+		Iterator<Session> sessionit = allsessions.iterator();
+		Session session;
+		int rows = 0;
+		while (sessionit.hasNext()) {
+			session = sessionit.next();
+			synchronized (session) {
+				rows += session.flushInserts();
+			}
 		}
-		if (makeids != null) makeids.executeBatch();
+		if (deltatables) resetDeltas(); // facts in new-delta tables are not seen by later runs
+		flushIDs();
 		try {
 			Statement stmt = con.createStatement();
 			stmt.execute("DELETE FROM ids WHERE name=\"-\""); // delete any unused pre-allocated ids
@@ -258,6 +699,8 @@ public class MySQLStorageDriver implements StorageDriver {
 			// don't worry; usually this just means that the table ids was not created yet
 		}
 		if (loadmode) con.commit();
+		tablesizes.clear(); // read the sizes of tables again when needed
+		EventLog.end(EventLog.FLUSH, "commit", rows, sTime);
 	}
 	
 	/**
@@ -265,13 +708,18 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * architecture for this could become more intelligent in the future.
 	 */
 	public void dumpStatistics() {
-		Iterator<String> statit = inferenceruleruntimes.keySet().iterator();
-		String rulename;
-		LogWriter.get().printlnDebug("Times spent on inference rules:");
-		while (statit.hasNext()) {
-			rulename = statit.next();
-			LogWriter.get().printlnDebug("  Rule " + rulename + ": " + inferenceruleruntimes.get(rulename) + "ms.");
-		}
+		rulestatistics.print();
+		LogWriter.get().printlnDebug("Id cache: " + ids.size() + " of at most " + ids.getMaxSize() + " ids, " +
+				Math.round(ids.getHitRate()*1000)/10.0 + "% hits in " + ids.getLookupCount() + " lookups.");
+	}
+
+	/**
+	 * Get the statistics of the rules that were run so far. The variants
+	 * of a rule are the indexes of its SQL statements, and duplicates are
+	 * not known.
+	 */
+	public RuleStatistics getRuleStatistics() {
+		return rulestatistics;
 	}
 	
 	/**
@@ -279,6 +727,12 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * Call endLoading() when the operation is completed.
 	 */
 	public void beginLoading() {
+		// give new facts a new step if rules should be applied to them incrementally:
+		if (getWatermarks().hasRuleWatermarks()) {
+			String name = getWatermarks().recordLoadStep(getMaxStep());
+			loadstep = watermarks.getEntries().get(name);
+			writeWatermark(name);
+		}
 		// find largest used id to start iteration:
 		if (curid <= 0) {
 			try {
@@ -320,6 +774,7 @@ public class MySQLStorageDriver implements StorageDriver {
 			e.printStackTrace();
 		}
 		loadmode=false;
+		loadstep=0;
 	}
 
 	protected void enableKeys(boolean ek) throws SQLException {
@@ -340,40 +795,116 @@ public class MySQLStorageDriver implements StorageDriver {
 	
 	/* *** Basic data access *** */
 
+	/**
+	 * Write the given fact. This can be called by several threads at once,
+	 * each using one of the connections of the driver. Facts that have been
+	 * written before are recognized by the in-memory copies or by the write
+	 * filter of their predicate, and are not sent to the server again.
+	 */
 	public void makePredicateAssertion(String predicate, int... ids) {
+		PredicateDeclaration pd = predicates.get(predicate);
+		if (pd == null) throw new IllegalArgumentException("Cannot insert data into predicate \"" + predicate + "\" -- misspelled predicate name?");
 		try {
-			PreparedStatement stmt = prepinsertstmts.get(predicate);
-			if (stmt == null) {
-				stmt = getPreparedInsertStatement(predicate);
-				prepinsertstmts.put(predicate, stmt);
-				prepinsertstmtsizes.put(predicate, 0);
-				if (stmt == null) throw new IllegalArgumentException("Cannot insert data into predicate \"" + predicate + "\" -- misspelled predicate name?");
+			if (!pd.isInMemory()) {
+				TupleFilter filter = getWriteFilter(predicate, ids.length);
+				if ( (filter != null) && !filter.add(ids) ) return; // written before
 			}
-			for (int i=0; i<ids.length; i++) {
-				stmt.setInt(i+1, ids[i]);
-			}
-			stmt.addBatch();
-			int cursize = prepinsertstmtsizes.get(predicate)+1;
-			if (cursize >= maxbatchsize) {
-				stmt.executeBatch();
-				prepinsertstmtsizes.put(predicate,0);
-			} else {
-				prepinsertstmtsizes.put(predicate,cursize);
+			if (!prepareAssertion(pd, ids)) return; // no need to write known data
+			Session session = takeSession();
+			try {
+				synchronized (session) {
+					if (loadmode && bulkload) {
+						session.addLoadRow(predicate, ids);
+					} else {
+						session.addInsert(pd, ids, loadstep);
+					}
+				}
+			} finally {
+				releaseSession(session);
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 	}
-	
-	protected PreparedStatement getPreparedInsertStatement(String tablename) throws SQLException {
+
+	/**
+	 * Update the in-memory copy, the delta tables, and the watermarks before
+	 * writing a fact of the given predicate.
+	 * @param pd
+	 * @param ids
+	 * @return false if the fact is known to be stored already
+	 * @throws SQLException
+	 */
+	protected synchronized boolean prepareAssertion(PredicateDeclaration pd, int[] ids) throws SQLException {
+		String predicate = pd.getName();
+		if (pd.isInMemory()) {
+			MemoryPredicateTable table = getMemoryTable(predicate);
+			if ( (table != null) && !table.add(ids, (pd.isInferred() ? loadstep : 0)) ) return false;
+			stalememorytables.add(predicate);
+		}
+		if (deltatables) recordDirectWrite(predicate, loadstep);
+		if (getWatermarks().hasRuleWatermarks()) { // facts might be new
+			if (loadstep > 0) {
+				if (!pd.isInferred()) writeWatermark(getWatermarks().recordChange(predicate, loadstep));
+			} else {
+				deleteWatermarks(getWatermarks().removeRuleWatermarks());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the filter of tuples that have been written to the given predicate,
+	 * or null if write filters are not used.
+	 * @param predicate
+	 * @param arity
+	 * @return
+	 */
+	protected synchronized TupleFilter getWriteFilter(String predicate, int arity) {
+		if (writefiltersize <= 0) return null;
+		TupleFilter filter = writefilters.get(predicate);
+		if (filter == null) {
+			filter = new TupleFilter(arity, writefiltersize);
+			writefilters.put(predicate, filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * Forget which tuples have been written to the given predicate, or to
+	 * all predicates if the predicate is null. This needs to be called
+	 * whenever tuples may have been deleted.
+	 * @param predicate
+	 */
+	protected synchronized void forgetWrittenFacts(String predicate) {
+		if (writefilters == null) {
+			writefilters = new HashMap<String,TupleFilter>();
+		} else if (predicate == null) {
+			writefilters.clear();
+		} else {
+			writefilters.remove(predicate);
+		}
+	}
+
+	/**
+	 * Set the largest number of tuples per predicate that are remembered to
+	 * avoid writing them again. Filtering is disabled if the size is 0.
+	 * @param writefiltersize
+	 */
+	public synchronized void setWriteFilterSize(int writefiltersize) {
+		this.writefiltersize = writefiltersize;
+		writefilters.clear();
+	}
+
+	protected PreparedStatement getPreparedInsertStatement(Connection con, String tablename) throws SQLException {
 		if (predicates.containsKey(tablename)) {
 			PredicateDeclaration pd = predicates.get(tablename);
 			String sql = "INSERT IGNORE INTO " + addQuotes(tablename) + " VALUES (?";
 			for (int i=1; i<pd.getFieldCount(); i++) {
 				sql = sql.concat(",?");
 			}
-			if (pd.isInferred()) { // also set the default step counter:
-				sql = sql.concat(",0");
+			if (pd.isInferred()) { // also set the step counter:
+				sql = sql.concat(",?");
 			}
 			sql = sql.concat(")");
 			return con.prepareStatement(sql);
@@ -381,26 +912,47 @@ public class MySQLStorageDriver implements StorageDriver {
 			return null;
 		}
 	}
-	
+
+	/**
+	 * Check if the given fact is stored or can be derived by check rules.
+	 * This can be called by several threads at once, also while other
+	 * threads write facts.
+	 */
 	public boolean checkPredicateAssertion(String predicate, int... ids) {
-		ArrayList<PreparedStatement> stmts = prepcheckstmts.get(predicate);
-		if (stmts == null) {
-			stmts = new ArrayList<PreparedStatement>(1);
-			stmts.add(getPreparedCheckStatement(predicate));
-			prepcheckstmts.put(predicate, stmts);
-		}
-		Iterator<PreparedStatement> stmtit = stmts.iterator();
-		PreparedStatement stmt;
+		PredicateDeclaration pd = predicates.get(predicate);
+		if (pd == null) return false; // unknown predicate
+		ArrayList<String> sql = getCheckSQL(pd);
+		int first = 0;
 		boolean result = false;
 		try {
-			while (!result && stmtit.hasNext()) {
-				stmt = stmtit.next();
-				for (int i=0; i<ids.length; i++) {
-					stmt.setInt(i+1, ids[i]);
+			if (deltatables) resetDeltas();
+			if (pd.isInMemory()) {
+				synchronized (this) {
+					MemoryPredicateTable table = getMemoryTable(predicate);
+					if (table != null) {
+						if (table.find(ids) >= 0) return true;
+						first = 1; // the first statement would only check the table again
+					}
 				}
-				ResultSet res = stmt.executeQuery();
-				result = (res.next());
-				res.close();
+			}
+			if ( (first < sql.size()) && (pd.isInMemory() || (sql.size() > 1)) ) refreshMemoryTables();
+			Session session = takeSession();
+			try {
+				synchronized (session) {
+					ArrayList<PreparedStatement> stmts = session.getCheckStatements(predicate, sql);
+					PreparedStatement stmt;
+					for (int j=first; !result && (j<stmts.size()); j++) {
+						stmt = stmts.get(j);
+						for (int i=0; i<ids.length; i++) {
+							stmt.setInt(i+1, ids[i]);
+						}
+						ResultSet res = stmt.executeQuery();
+						result = (res.next());
+						res.close();
+					}
+				}
+			} finally {
+				releaseSession(session);
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -408,35 +960,63 @@ public class MySQLStorageDriver implements StorageDriver {
 		return result;
 	}
 
-	protected PreparedStatement getPreparedCheckStatement(String tablename) {
-		if (predicates.containsKey(tablename)) {
-			PredicateDeclaration pd = predicates.get(tablename);
-			String sql = "SELECT * FROM " + addQuotes(tablename) + " WHERE ";
+	/**
+	 * Get the SQL of the statements for checking facts of the given
+	 * predicate. The first statement looks for the fact in the table of the
+	 * predicate, the others apply the check rules of the predicate. The
+	 * returned list is a copy that is not changed by later check rules.
+	 * @param pd
+	 * @return
+	 */
+	protected synchronized ArrayList<String> getCheckSQL(PredicateDeclaration pd) {
+		ArrayList<String> result = checksql.get(pd.getName());
+		if (result == null) {
+			result = new ArrayList<String>(1);
+			String sql = "SELECT * FROM " + addQuotes(pd.getName()) + " WHERE ";
 			for (int i=0; i<pd.getFieldCount(); i++) {
 				if (i>0) sql = sql + " AND ";
 				sql = sql + "f" + (i) + "=?";
 			}
-			sql = sql + " LIMIT 1";
-			try {
-				return con.prepareStatement(sql);
-			} catch (SQLException e) {
-				e.printStackTrace();
-				return null;
-			}
-		} else { 
-			return null;
+			result.add(sql + " LIMIT 1");
+			checksql.put(pd.getName(), result);
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Take a connection for exclusive use by the current thread, waiting
+	 * until some connection is available. The caller must give it back with
+	 * releaseSession() and lock it while using it.
+	 * @return
+	 * @throws SQLException
+	 */
+	protected Session takeSession() throws SQLException {
+		try {
+			return sessions.take();
+		} catch (InterruptedException e) {
+			throw new SQLException("Interrupted while waiting for a connection.");
 		}
 	}
+
+	protected void releaseSession(Session session) {
+		sessions.add(session);
+	}
 	
 	public int changeStep(String predicate, int oldstep, int newstep) throws SQLException {
+		if (deltatables) recordDirectWrite(predicate, newstep);
 		Statement stmt = con.createStatement();
 		//LogWriter.get().printlnDebug("Changestep: " + oldstep + " -> " + newstep + " on " + predicate); // debug
-		return stmt.executeUpdate("UPDATE " + addQuotes(predicate) + " SET step=\"" + newstep + "\" WHERE step=\"" + oldstep + "\"");
+		int result = stmt.executeUpdate("UPDATE " + addQuotes(predicate) + " SET step=\"" + newstep + "\" WHERE step=\"" + oldstep + "\"");
+		if ( (result > 0) && predicates.containsKey(predicate) && predicates.get(predicate).isInMemory() ) {
+			invalidateMemoryTable(predicate);
+		}
+		return result;
 	}
 	
 	public int getMaxStep() {
 		int result = 0;
 		try {
+			if (deltatables) resetDeltas();
 			Statement stmt = con.createStatement();
 			ResultSet res;
 			Iterator<PredicateDeclaration> pit = predicates.values().iterator();
@@ -444,9 +1024,11 @@ public class MySQLStorageDriver implements StorageDriver {
 			while (pit.hasNext()) {
 				pd = pit.next();
 				if (pd.isInferred()) {
+					if (hasDeltaTables(pd)) getDeltaState(pd.getName()); // move facts that earlier runs left in new-delta tables
 					res = stmt.executeQuery("SELECT MAX(step) FROM " + addQuotes(pd.getName()));
-					if ( (res.next()) && (res.getInt(1)>result) ) {
-						result = res.getInt(1);
+					if (res.next()) {
+						if (res.getInt(1)>result) result = res.getInt(1);
+						if (hasDeltaTables(pd)) setBaseStep(pd.getName(), res.getInt(1));
 					}
 				}
 			}
@@ -461,19 +1043,164 @@ public class MySQLStorageDriver implements StorageDriver {
 	public void registerInferenceRule(InferenceRuleDeclaration rd) {
 		inferencerules.put(rd.getName(), rd);
 		if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) {
-			String predicate = rd.getHead().getName();
-			ArrayList<PreparedStatement> stmts = prepcheckstmts.get(predicate);
-			if (stmts == null) {
-				stmts = new ArrayList<PreparedStatement>(1);
-				stmts.add(getPreparedCheckStatement(predicate));
-				prepcheckstmts.put(predicate, stmts);
-			}
-			stmts.addAll(getInferenceRuleStatements(rd));
+			PredicateDeclaration pd = predicates.get(rd.getHead().getName());
+			if (pd != null) { // sessions prepare the new statements when they check facts of pd
+				getCheckSQL(pd);
+				synchronized (this) {
+					checksql.get(pd.getName()).addAll(getInferenceRuleSQL(rd, new ArrayList<String>(), null));
+				}
+			}
 		} else {
 			inferencerulestmts.put(rd.getName(), getInferenceRuleStatements(rd));
 		}
 	}
 
+	/**
+	 * Create the composite indexes that the given rules need if this is
+	 * enabled (see setRuleIndexes()). Rules that are registered without being
+	 * prepared, e.g. the temporary rules of goal-directed materialization,
+	 * never lead to new indexes, so that large tables are not changed while
+	 * reasoning.
+	 */
+	public void prepareInferenceRules(Collection<InferenceRuleDeclaration> rules) throws SQLException {
+		if (!ruleindexes) return;
+		HashMap<String,HashSet<String>> indexfields = new HashMap<String,HashSet<String>>();
+		Iterator<InferenceRuleDeclaration> ruleit = rules.iterator();
+		while (ruleit.hasNext()) {
+			findRuleIndexes(ruleit.next(), indexfields);
+		}
+		createRuleIndexes(indexfields);
+	}
+
+	public void unregisterInferenceRule(String rulename) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if ( (rd == null) || (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ) return;
+		inferencerules.remove(rulename);
+		ruleplansizes.remove(rulename);
+		closeRuleStatements(rulename);
+		inferencerulesql.remove(rulename);
+		inferencerulestmts.remove(rulename);
+		inferencerulesql.remove(getDeltaRuleKey(rulename));
+		inferencerulestmts.remove(getDeltaRuleKey(rulename));
+		inferencerulesql.remove(getContextRuleKey(rulename));
+		inferencerulestmts.remove(getContextRuleKey(rulename));
+	}
+
+	/**
+	 * Close the statements of the given rule, including those for delta
+	 * tables and contexts and those that sessions prepared, and forget that
+	 * they were explained.
+	 * @param rulename
+	 */
+	protected void closeRuleStatements(String rulename) {
+		String[] keys = { rulename, getDeltaRuleKey(rulename), getContextRuleKey(rulename) };
+		Iterator<Session> sessionit;
+		Session session;
+		for (int i=0; i<keys.length; i++) {
+			try {
+				closeStatements(inferencerulestmts.get(keys[i]));
+				sessionit = allsessions.iterator();
+				while (sessionit.hasNext()) {
+					session = sessionit.next();
+					synchronized (session) {
+						closeStatements(session.stmts.remove(keys[i]));
+					}
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			synchronized (explainedstatements) {
+				Iterator<String> keyit = explainedstatements.iterator();
+				while (keyit.hasNext()) {
+					if (keyit.next().startsWith(keys[i] + "\t")) keyit.remove();
+				}
+			}
+		}
+	}
+
+	protected void closeStatements(ArrayList<PreparedStatement> stmts) throws SQLException {
+		if (stmts == null) return;
+		for (int i=0; i<stmts.size(); i++) {
+			stmts.get(i).close();
+		}
+	}
+
+	public int getWatermark(String rulename) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if (rd == null) return -1;
+		return getWatermarks().getRuleWatermark(rd, predicates);
+	}
+
+	public void setWatermark(String rulename, int step) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if (rd != null) writeWatermark(getWatermarks().setRuleWatermark(rd, step));
+	}
+
+	public Collection<Integer> getLoadSteps() {
+		return getWatermarks().getLoadSteps();
+	}
+
+	/**
+	 * Get the watermarks, reading them from the database if necessary.
+	 * @return
+	 */
+	protected synchronized Watermarks getWatermarks() {
+		if (watermarks != null) return watermarks;
+		watermarks = new Watermarks();
+		try {
+			Statement stmt = con.createStatement();
+			ResultSet res = stmt.executeQuery("SELECT name,step FROM watermarks");
+			while (res.next()) {
+				watermarks.put(res.getString(1), res.getInt(2));
+			}
+			res.close();
+		} catch (SQLException e) {
+			// don't worry; usually this just means that the table watermarks was not created yet
+		}
+		return watermarks;
+	}
+
+	/**
+	 * Store the current value of the given watermark entry in the database.
+	 * Nothing happens if the name is null.
+	 * @param name
+	 */
+	protected void writeWatermark(String name) {
+		if (name == null) return;
+		try {
+			PreparedStatement stmt = con.prepareStatement("REPLACE INTO watermarks (name,step) VALUES (?,?)");
+			stmt.setString(1, name);
+			stmt.setInt(2, watermarks.getEntries().get(name));
+			stmt.execute();
+			stmt.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Delete the given watermark entries from the database.
+	 * @param names
+	 */
+	protected void deleteWatermarks(ArrayList<String> names) {
+		if (names.isEmpty()) return;
+		try {
+			PreparedStatement stmt = con.prepareStatement("DELETE FROM watermarks WHERE name=?");
+			for (int i=0; i<names.size(); i++) {
+				stmt.setString(1, names.get(i));
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			stmt.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
 	/**
 	 * Run the given rule on all existing preconditions, without filtering
 	 * by step. The results are given the step value as defined by newstep.
@@ -482,28 +1209,27 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * @return the number of new tuples that were found
 	 */
 	public int runRule(String rulename, int newstep) {
+		updateRulePlan(rulename);
 		ArrayList<PreparedStatement> stmts = inferencerulestmts.get(rulename);
 		if ((stmts == null) || (stmts.size() == 0)) { // internal error, just print it
 			LogWriter.get().printlnError("Call to unknown rule " + rulename);
 			return 0;
 		}
-		LogWriter.get().printDebug("  Rule " + rulename + "(*) -> " + newstep + " ... "); // debug
-		long sTime = System.currentTimeMillis();
-		PreparedStatement stmt = stmts.get(0);
+		long sTime = EventLog.start();
 		int result = 0;
 		try {
+			if (deltatables) beginDirectRule(rulename, newstep);
 			if (inferencerules.get(rulename).getMode() != InferenceRuleDeclaration.MODE_RETRACT) {
-				stmt.setInt(1, newstep);
+				result = executeRuleStatement(rulename, false, 0, new int[] {newstep}, -1, newstep-1);
+			} else {
+				result = executeRuleStatement(rulename, false, 0, new int[0], -1, newstep-1);
 			}
-			result = stmt.executeUpdate();
+			updateMemoryTables(rulename, result);
 		} catch (SQLException e) { // internal bug, just print the message
 			e.printStackTrace();
 		}
-		LogWriter.get().printlnDebug("[" + result + "]"); // debug
-		if (inferenceruleruntimes.containsKey(rulename)) {
-			sTime = sTime - inferenceruleruntimes.get(rulename);
-		}
-		inferenceruleruntimes.put(rulename,new Long(System.currentTimeMillis() - sTime));
+		LogWriter.get().printlnDebug("  Rule " + rulename + "(*) -> " + newstep + " ... [" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
 		return result;
 	}
 
@@ -516,31 +1242,33 @@ public class MySQLStorageDriver implements StorageDriver {
 	 * @return the number of new tuples that were found
 	 */
 	public int runRule(String rulename, int newstep, int[] params) {
+		updateRulePlan(rulename);
 		ArrayList<PreparedStatement> stmts = inferencerulestmts.get(rulename);
 		if ((stmts == null) || (stmts.size() == 0)) { // internal error, just print it
 			LogWriter.get().printlnError("Call to unknown rule " + rulename);
 			return 0;
 		}
-		LogWriter.get().printDebug("  Rule " + rulename + "(*) -> " + newstep + " ... "); // debug
-		long sTime = System.currentTimeMillis();
-		PreparedStatement stmt = stmts.get(0);
-		int result = 0, pos=1;
+		long sTime = EventLog.start();
+		int result = 0, pos = 0;
 		try {
+			if (deltatables) beginDirectRule(rulename, newstep);
+			int[] values;
 			if (inferencerules.get(rulename).getMode() != InferenceRuleDeclaration.MODE_RETRACT) {
-				stmt.setInt(pos++, newstep);
+				values = new int[params.length+1];
+				values[pos++] = newstep;
+			} else {
+				values = new int[params.length];
 			}
 			for (int i=0; i<params.length; i++) {
-				stmt.setInt(pos++, params[i]);				
+				values[pos++] = params[i];
 			}
-			result = stmt.executeUpdate();
+			result = executeRuleStatement(rulename, false, 0, values, -1, newstep-1);
+			updateMemoryTables(rulename, result);
 		} catch (SQLException e) { // internal bug, just print the message
 			e.printStackTrace();
 		}
-		LogWriter.get().printlnDebug("[" + result + "]"); // debug
-		if (inferenceruleruntimes.containsKey(rulename)) {
-			sTime = sTime - inferenceruleruntimes.get(rulename);
-		}
-		inferenceruleruntimes.put(rulename,new Long(System.currentTimeMillis() - sTime));
+		LogWriter.get().printlnDebug("  Rule " + rulename + "(*) -> " + newstep + " ... [" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
 		return result;
 	}
 	
@@ -556,54 +1284,529 @@ public class MySQLStorageDriver implements StorageDriver {
 	 */
 	public int runRule(String rulename, int min_cur_step, int max_cur_step) {
 		if (min_cur_step == 0) min_cur_step = -1; // make sure that sub-zero (late) base facts are considered in this case 
+		updateRulePlan(rulename);
 		ArrayList<PreparedStatement> stmts = inferencerulestmts.get(rulename);
 		if ((stmts == null) || (stmts.size() == 0)) { // internal error, just print it
 			LogWriter.get().printlnError("Call to unknown rule " + rulename);
 			return 0;
 		}
+		if (deltatables) return runDeltaRule(rulename, min_cur_step, max_cur_step);
 		if (stmts.size() == 1) return runRule(rulename,max_cur_step+1); // no steps in body
+		long sTime = EventLog.start();
 		int result = 0;
-		LogWriter.get().printDebug("  Rule " + rulename + "(" + min_cur_step + "-" + max_cur_step + ") ... "); // debug
-		long sTime = System.currentTimeMillis();
 		try {
-			int pos;
-			PreparedStatement stmt;
-			for (int i=1; i<stmts.size(); i++) {
-				stmt = stmts.get(i);
-				pos = 1;
-				if (inferencerules.get(rulename).getMode() != InferenceRuleDeclaration.MODE_RETRACT) {
-					stmt.setInt(pos++, max_cur_step+1);
-				}
-				for (int j=1; j<=i; j++) {
-					stmt.setInt(pos++, min_cur_step);
-				}
-				stmt.setInt(pos++, max_cur_step);
-				result = result + stmt.executeUpdate();
-			}
+			boolean retract = (inferencerules.get(rulename).getMode() == InferenceRuleDeclaration.MODE_RETRACT);
+			result = executeSteppedStatements(rulename, false, 1, stmts.size()-1, retract, min_cur_step, max_cur_step);
+			updateMemoryTables(rulename, result);
 		} catch (SQLException e) { // internal bug, just print the message
 			e.printStackTrace();
 		}
-		LogWriter.get().printlnDebug("[" + result + "]"); // debug
-		if (inferenceruleruntimes.containsKey(rulename)) {
-			sTime = sTime - inferenceruleruntimes.get(rulename);
-		}
-		inferenceruleruntimes.put(rulename,new Long(System.currentTimeMillis() - sTime));
+		LogWriter.get().printlnDebug("  Rule " + rulename + "(" + min_cur_step + "-" + max_cur_step + ") ... [" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
 		return result;
 	}
 
 	/**
-	 * Transform a rule declaration into a list of prepared SQL statements used to
-	 * execute the rule. The first entry of the list is the version of the rule operating
+	 * Run the given rule like runRule(rulename,min_cur_step,max_cur_step)
+	 * when delta tables are used. New facts of predicates with delta tables
+	 * are written to the new-delta table of the head. The rule uses the
+	 * delta tables of its body predicates if they contain all facts with
+	 * steps from min_cur_step to max_cur_step, and step filters otherwise.
+	 * @param rulename
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 */
+	protected int runDeltaRule(String rulename, int min_cur_step, int max_cur_step) {
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		ArrayList<PreparedStatement> deltastmts = inferencerulestmts.get(getDeltaRuleKey(rulename));
+		int stepped = inferencerulestmts.get(rulename).size()-1; // number of body atoms for semi-naive evaluation
+		boolean retract = (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT);
+		boolean usedelta = false;
+		long sTime = EventLog.start();
+		int result = 0;
+		try {
+			usedelta = prepareDeltas(rd, min_cur_step, max_cur_step);
+			if (deltastmts == null) { // the head has no delta tables or the rule deletes facts
+				if (retract) resetDelta(rd.getHead().getName());
+				if (stepped == 0) {
+					result = executeRuleStatement(rulename, false, 0, (retract ? new int[0] : new int[] {max_cur_step+1}), -1, max_cur_step);
+				} else {
+					result = executeSteppedStatements(rulename, false, 1, stepped, retract, min_cur_step, max_cur_step);
+				}
+				updateMemoryTables(rulename, result);
+				usedelta = false;
+			} else {
+				if (stepped == 0) {
+					result = executeRuleStatement(rulename, true, 0, new int[] {max_cur_step+1}, -1, max_cur_step);
+				} else if ( usedelta && (deltastmts.size() > stepped+1) ) {
+					for (int i=1; i<=stepped; i++) {
+						result = result + executeRuleStatement(rulename, true, stepped+i, new int[] {max_cur_step+1}, min_cur_step, max_cur_step);
+					}
+				} else {
+					result = executeSteppedStatements(rulename, true, 1, stepped, false, min_cur_step, max_cur_step);
+					usedelta = false;
+				}
+				if (result > 0) recordPendingDelta(rd.getHead().getName(), max_cur_step+1);
+			}
+		} catch (SQLException e) { // internal bug, just print the message
+			e.printStackTrace();
+		}
+		LogWriter.get().printlnDebug("  Rule " + rulename + "(" + min_cur_step + "-" + max_cur_step + (usedelta ? ", delta" : "") + ") ... [" + result + "]"); // debug
+		EventLog.end(EventLog.RULE, rulename, result, sTime);
+		return result;
+	}
+
+	/**
+	 * Execute the statements of the given rule that filter the body atoms
+	 * by step, i.e. count statements starting from the given index, so that
+	 * all results are found that use some fact with a step between
+	 * min_cur_step and max_cur_step. New tuples get the step max_cur_step+1.
+	 * @param rulename
+	 * @param delta true if the statements of the rule for delta tables should be used
+	 * @param first
+	 * @param count
+	 * @param retract true if the statements have no parameter for the new step
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of affected rows
+	 * @throws SQLException
+	 */
+	protected int executeSteppedStatements(String rulename, boolean delta, int first, int count, boolean retract, int min_cur_step, int max_cur_step) throws SQLException {
+		int result = 0, pos;
+		int[] values;
+		for (int i=1; i<=count; i++) {
+			values = new int[retract ? i+1 : i+2];
+			pos = 0;
+			if (!retract) {
+				values[pos++] = max_cur_step+1;
+			}
+			for (int j=1; j<=i; j++) {
+				values[pos++] = min_cur_step;
+			}
+			values[pos++] = max_cur_step;
+			result = result + executeRuleStatement(rulename, delta, first+i-1, values, min_cur_step, max_cur_step);
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the transitive closure of the given predicate. The table is read
+	 * completely (or taken from the heap if the predicate is kept in memory),
+	 * and all new tuples are inserted with one batch statement. If the
+	 * predicate has delta tables, the new-delta table is read as well, and
+	 * new tuples are written to it just like the results of rules.
+	 * @param predicate
+	 * @param newstep
+	 * @return the number of new tuples that were found
+	 */
+	public synchronized int computeTransitiveClosure(String predicate, int newstep) {
+		PredicateDeclaration pd = predicates.get(predicate);
+		if ( (pd == null) || (pd.getFieldCount() != 2) ) { // internal error, just print it
+			LogWriter.get().printlnError("Cannot compute transitive closure of predicate " + predicate);
+			return 0;
+		}
+		long sTime = System.nanoTime(), eTime = EventLog.start();
+		int result = 0;
+		try {
+			boolean usedelta = hasDeltaTables(pd);
+			MemoryPredicateTable table = getMemoryTable(predicate);
+			if (table == null) {
+				flushInserts(predicate);
+				table = new MemoryPredicateTable(2);
+				Statement stmt = con.createStatement();
+				ResultSet res = stmt.executeQuery("SELECT f0,f1 FROM " + addQuotes(predicate) +
+						(usedelta ? " UNION ALL SELECT f0,f1 FROM " + addQuotes(getNewDeltaTableName(predicate)) : ""));
+				int[] tuple = new int[2];
+				while (res.next()) {
+					tuple[0] = res.getInt(1);
+					tuple[1] = res.getInt(2);
+					table.add(tuple, 0);
+				}
+				res.close();
+			}
+			int oldsize = table.size();
+			result = TransitiveClosure.close(table, newstep);
+			if (result > 0) {
+				PreparedStatement insert = con.prepareStatement("INSERT IGNORE INTO " + addQuotes(usedelta ? getNewDeltaTableName(predicate) : predicate) +
+						(pd.isInferred() ? " (f0,f1,step) VALUES (?,?,?)" : " (f0,f1) VALUES (?,?)"));
+				for (int row=oldsize; row<table.size(); row++) {
+					insert.setInt(1, table.getValue(row, 0));
+					insert.setInt(2, table.getValue(row, 1));
+					if (pd.isInferred()) insert.setInt(3, newstep);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+				insert.close();
+				if (pd.isInMemory()) { // heap copy is up to date, but the MEMORY table is not
+					stalememorytables.add(predicate);
+				}
+				if (usedelta) recordPendingDelta(predicate, newstep);
+				addTableSize(predicate, result);
+			}
+		} catch (SQLException e) { // internal bug, just print the message
+			e.printStackTrace();
+		}
+		LogWriter.get().printlnDebug("  Closure of " + predicate + " -> " + newstep + " ... [" + result + "]"); // debug
+		rulestatistics.record(predicate, "closure", -1, newstep-1, result, -1, System.nanoTime() - sTime);
+		if (eTime != 0) EventLog.end(EventLog.RULE, "closure of " + predicate, result, eTime);
+		return result;
+	}
+
+	/**
+	 * Saturate the given rules with a common context, as described in
+	 * StorageDriver. The contexts are divided into as many partitions as the
+	 * parallelism, by the remainder of the context modulo the parallelism,
+	 * and the partitions are saturated concurrently (see
+	 * saturateContextPartition()). Since the statements of every partition
+	 * only read the facts of its own contexts from the head tables, the
+	 * partitions can use the same steps without seeing each other's facts.
+	 * All new facts finally get the step max_cur_step. If delta tables are
+	 * used, they are emptied first, and the rules read the main tables.
+	 * @param rulenames
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 */
+	public int saturateContextRules(Collection<String> rulenames, int min_cur_step, int max_cur_step) {
+		if (min_cur_step == 0) min_cur_step = -1; // make sure that sub-zero (late) base facts are considered in this case
+		final ArrayList<InferenceRuleDeclaration> rules = new ArrayList<InferenceRuleDeclaration>(rulenames.size());
+		final HashSet<String> heads = new HashSet<String>();
+		Iterator<String> nameit = rulenames.iterator();
+		InferenceRuleDeclaration rd;
+		String rulename;
+		while (nameit.hasNext()) {
+			rulename = nameit.next();
+			rd = inferencerules.get(rulename);
+			if ( (rd == null) || !inferencerulestmts.containsKey(getContextRuleKey(rulename)) ) { // internal error, just print it
+				LogWriter.get().printlnError("Call to unknown rule " + rulename);
+				return 0;
+			}
+			rules.add(rd);
+			heads.add(rd.getHead().getName());
+		}
+		final boolean[][] headvariants = new boolean[rules.size()][];
+		for (int i=0; i<rules.size(); i++) {
+			updateRulePlan(rules.get(i).getName());
+			headvariants[i] = getContextVariants(rules.get(i), heads);
+			if (headvariants[i] == null) { // internal error, just print it
+				LogWriter.get().printlnError("Rule " + rules.get(i).getName() + " cannot be saturated per context.");
+				return 0;
+			}
+		}
+		LogWriter.get().printDebug("  Context rules (" + min_cur_step + "-" + max_cur_step + ") ... "); // debug
+		long sTime = System.nanoTime(), eTime = EventLog.start();
+		final int minstep = min_cur_step, maxstep = max_cur_step, partitions = Math.max(1, parallelism);
+		int result = 0;
+		try {
+			if (deltatables) resetDeltas();
+			if (partitions == 1) {
+				result = saturateContextPartition(rules, headvariants, 1, 0, minstep, maxstep);
+			} else {
+				ExecutorService executor = Executors.newFixedThreadPool(partitions);
+				try {
+					ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>(partitions);
+					for (int k=0; k<partitions; k++) {
+						final int remainder = k;
+						futures.add(executor.submit(new Callable<Integer>() {
+							public Integer call() throws SQLException {
+								return saturateContextPartition(rules, headvariants, partitions, remainder, minstep, maxstep);
+							}
+						}));
+					}
+					for (int k=0; k<futures.size(); k++) {
+						result += futures.get(k).get();
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				} finally {
+					executor.shutdown();
+				}
+			}
+			// give all new facts the step of the last round
+			Statement stmt = con.createStatement();
+			Iterator<String> headit = heads.iterator();
+			String head;
+			while (headit.hasNext()) {
+				head = headit.next();
+				if ( (stmt.executeUpdate("UPDATE " + addQuotes(head) + " SET step=" + max_cur_step + " WHERE step>" + max_cur_step) > 0) && predicates.get(head).isInMemory() ) {
+					invalidateMemoryTable(head);
+				}
+				if (deltatables) recordDirectWrite(head, max_cur_step);
+			}
+			stmt.close();
+		} catch (SQLException e) { // internal bug, just print the message
+			e.printStackTrace();
+		}
+		LogWriter.get().printlnDebug("[" + result + " in " + partitions + " partitions, " + (System.nanoTime() - sTime)/1000000 + " ms]"); // debug
+		if (eTime != 0) EventLog.end(EventLog.RULE, "context rules", result, eTime);
+		return result;
+	}
+
+	/**
+	 * Check if the given rule can be saturated per context together with
+	 * other rules of the given heads, and find its semi-naive versions that
+	 * restrict an atom of one of the heads. The last argument of the head
+	 * must be a variable, every atom of one of the heads must have this
+	 * variable as its last argument and no step arguments, and there must be
+	 * at least one such atom.
+	 * @param rd
+	 * @param heads
+	 * @return for every version of getContextRuleKey(), true if it restricts
+	 * an atom of one of the heads, or null if the rule has no context
+	 */
+	protected boolean[] getContextVariants(InferenceRuleDeclaration rd, HashSet<String> heads) {
+		PredicateTerm context = rd.getHead().getArguments().get(rd.getHead().getArguments().size()-1);
+		ArrayList<Boolean> variants = new ArrayList<Boolean>();
+		boolean found = false;
+		PredicateAtom pa;
+		PredicateDeclaration pd;
+		for (int i=0; i<rd.getBody().size(); i++) {
+			pa = rd.getBody().get(i);
+			pd = predicates.get(pa.getName());
+			if (pd == null) continue; // orel:distinct
+			if (heads.contains(pa.getName())) {
+				if ( (pa.getArguments().size() != pd.getFieldCount()) || !pa.getArguments().get(pd.getFieldCount()-1).isVariable() ||
+				     !pa.getArguments().get(pd.getFieldCount()-1).getValue().equals(context.getValue()) ) {
+					return null;
+				}
+				found = true;
+			}
+			if ( pd.isInferred() && (pa.getArguments().size() == pd.getFieldCount()) ) { // see prepareRuleBodyAtom()
+				variants.add(heads.contains(pa.getName()));
+			}
+		}
+		if ( !found || (variants.size() != inferencerulestmts.get(getContextRuleKey(rd.getName())).size()) ) return null;
+		boolean[] result = new boolean[variants.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = variants.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Apply the given rules to the facts of the contexts with the given
+	 * remainder modulo the given number of partitions until no more new
+	 * facts are found. The first round finds all results that use some
+	 * fact with a step between min_cur_step and max_cur_step, and every
+	 * later round uses the facts of the round before, where only versions
+	 * that restrict an atom of a head are needed. New facts of the n-th
+	 * round get the step max_cur_step+n.
+	 * @param rules
+	 * @param headvariants the result of getContextVariants() for every rule
+	 * @param partitions
+	 * @param remainder
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 * @throws SQLException
+	 */
+	protected int saturateContextPartition(ArrayList<InferenceRuleDeclaration> rules, boolean[][] headvariants, int partitions, int remainder,
+			int min_cur_step, int max_cur_step) throws SQLException {
+		int result = 0, added = 1, changes, pos;
+		int lower = min_cur_step, upper = max_cur_step;
+		boolean first = true;
+		int[] values;
+		String rulename;
+		while (added > 0) {
+			added = 0;
+			for (int i=0; i<rules.size(); i++) {
+				rulename = rules.get(i).getName();
+				changes = 0;
+				for (int v=0; v<headvariants[i].length; v++) {
+					if ( !first && !headvariants[i][v] ) continue; // only facts of the heads are new after the first round
+					values = new int[v+5];
+					pos = 0;
+					values[pos++] = upper+1;
+					for (int j=0; j<=v; j++) {
+						values[pos++] = lower;
+					}
+					values[pos++] = upper;
+					values[pos++] = partitions;
+					values[pos++] = remainder;
+					changes += executeRuleStatement(rulename, getContextRuleKey(rulename), v, values, lower, upper);
+				}
+				updateMemoryTables(rulename, changes);
+				added += changes;
+			}
+			result += added;
+			first = false;
+			lower = upper+1;
+			upper = lower;
+		}
+		return result;
+	}
+
+	/**
+	 * Execute the statement with the given index of the given rule, using the
+	 * given values for its parameters, and record the run in the rule
+	 * statistics.
+	 * @param rulename
+	 * @param delta true if the statements of the rule for delta tables should be used
+	 * @param index
+	 * @param values
+	 * @param minstep smallest step of the facts that the statement is restricted to
+	 * @param maxstep largest step of the facts that the statement is restricted to
+	 * @return the number of affected rows
+	 * @throws SQLException
+	 */
+	protected int executeRuleStatement(String rulename, boolean delta, int index, int[] values, int minstep, int maxstep) throws SQLException {
+		return executeRuleStatement(rulename, delta ? getDeltaRuleKey(rulename) : rulename, index, values, minstep, maxstep);
+	}
+
+	/**
+	 * Execute the statement with the given index of the given rule like
+	 * executeRuleStatement(rulename,delta,index,values,minstep,maxstep),
+	 * where the statements are those stored under the given key.
+	 * @param rulename
+	 * @param key the name of the rule, or a key like getDeltaRuleKey()
+	 * @param index
+	 * @param values
+	 * @param minstep
+	 * @param maxstep
+	 * @return the number of affected rows
+	 * @throws SQLException
+	 */
+	protected int executeRuleStatement(String rulename, String key, int index, int[] values, int minstep, int maxstep) throws SQLException {
+		if (explainrules) explainRuleStatement(rulename, key, index, values);
+		long sTime = System.nanoTime();
+		int result = executeRuleStatement(key, index, values);
+		String variant = key.equals(rulename) ? "" : key.substring(rulename.length()+2) + " ";
+		rulestatistics.record(rulename, variant + "statement " + index, minstep, maxstep, result, -1, System.nanoTime() - sTime);
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if ( (result > 0) && (rd != null) ) {
+			addTableSize(rd.getHead().getName(), (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT) ? -result : result);
+		}
+		return result;
+	}
+
+	/**
+	 * Execute the statement with the given index of the rule statements of
+	 * the given key, using the given values for its parameters. If rules can
+	 * be run concurrently, the statement is executed on a connection that is
+	 * not used by any other thread at this time.
+	 * @param key
+	 * @param index
+	 * @param values
+	 * @return the number of affected rows
+	 * @throws SQLException
+	 */
+	protected int executeRuleStatement(String key, int index, int[] values) throws SQLException {
+		if (parallelism <= 1) {
+			refreshMemoryTables();
+			return executeStatement(inferencerulestmts.get(key).get(index), values);
+		}
+		Session session = takeSession();
+		try {
+			if (hasStaleMemoryTables()) {
+				refreshlock.writeLock().lock();
+				try {
+					refreshMemoryTables();
+				} finally {
+					refreshlock.writeLock().unlock();
+				}
+			}
+			refreshlock.readLock().lock();
+			try {
+				synchronized (session) {
+					return executeStatement(session.getStatement(key, index), values);
+				}
+			} finally {
+				refreshlock.readLock().unlock();
+			}
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	protected int executeStatement(PreparedStatement stmt, int[] values) throws SQLException {
+		for (int i=0; i<values.length; i++) {
+			stmt.setInt(i+1, values[i]);
+		}
+		return stmt.executeUpdate();
+	}
+
+	/**
+	 * Transform a rule declaration into a list of prepared SQL statements used to
+	 * execute the rule. The first entry of the list is the version of the rule operating
 	 * on all input data without additional step-based filters. All following statements
 	 * correspond to variants of the rule where only certain combinations of steps are
 	 * considered in the body, thus enabling semi-naive evaluation.
+	 * If delta tables are used, the statements that write to the new-delta
+	 * table of the head are prepared as well, and stored under the key
+	 * getDeltaRuleKey(), and the statements for saturateContextRules() are
+	 * stored under the key getContextRuleKey().
 	 * @param rd
 	 * @return
 	 */
 	protected ArrayList<PreparedStatement> getInferenceRuleStatements(InferenceRuleDeclaration rd) {
+		ArrayList<String> deltasql = new ArrayList<String>(), contextsql = new ArrayList<String>();
+		ArrayList<String> sql = getInferenceRuleSQL(rd, deltasql, contextsql);
+		if (rd.getMode() != InferenceRuleDeclaration.MODE_CHECK) {
+			inferencerulesql.put(rd.getName(), sql);
+			if (deltasql.size() > 0) {
+				inferencerulesql.put(getDeltaRuleKey(rd.getName()), deltasql);
+				inferencerulestmts.put(getDeltaRuleKey(rd.getName()), prepareStatements(deltasql));
+			} else {
+				inferencerulesql.remove(getDeltaRuleKey(rd.getName()));
+				inferencerulestmts.remove(getDeltaRuleKey(rd.getName()));
+			}
+			if (contextsql.size() > 0) {
+				inferencerulesql.put(getContextRuleKey(rd.getName()), contextsql);
+				inferencerulestmts.put(getContextRuleKey(rd.getName()), prepareStatements(contextsql));
+			} else {
+				inferencerulesql.remove(getContextRuleKey(rd.getName()));
+				inferencerulestmts.remove(getContextRuleKey(rd.getName()));
+			}
+		}
+		return prepareStatements(sql);
+	}
+
+	protected ArrayList<PreparedStatement> prepareStatements(ArrayList<String> sql) {
 		ArrayList<PreparedStatement> result = new ArrayList<PreparedStatement>();
+		for (int i=0; i<sql.size(); i++) {
+			try {
+				result.add(con.prepareStatement(sql.get(i)));
+			} catch (SQLException e) { // bug in the SQL generation, just print it
+				e.printStackTrace();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Transform a rule declaration into the SQL code of the statements
+	 * returned by getInferenceRuleStatements(). If delta tables are used and
+	 * the rule infers facts of a predicate with delta tables, the SQL code
+	 * of the statements that write to the new-delta table is added to
+	 * deltasql: first the version without step filters, then the versions
+	 * with step filters in the same order as in the result, and finally, if
+	 * all inferred body atoms have delta tables, one version for each such
+	 * atom that reads its delta table instead.
+	 * If the last argument of the head is a variable, the SQL code of the
+	 * semi-naive versions that saturateContextRules() uses is added to
+	 * contextsql, in the same order as in the result. These versions also
+	 * take a modulus and a remainder that the context must have, where the
+	 * field of the context is taken from the atom that is read first.
+	 * Except for checks, the body atoms are joined in the order of
+	 * getJoinOrder(), where the atom that a semi-naive version restricts to
+	 * the facts of the last round (or the atom that reads its delta table)
+	 * comes first. The sizes of the tables that were used for this are
+	 * recorded for updateRulePlan().
+	 * @param rd
+	 * @param deltasql
+	 * @param contextsql
+	 * @return
+	 */
+	protected ArrayList<String> getInferenceRuleSQL(InferenceRuleDeclaration rd, ArrayList<String> deltasql, ArrayList<String> contextsql) {
+		ArrayList<String> result = new ArrayList<String>();
 		ArrayList<String> fromTables = new ArrayList<String>();
+		HashMap<Integer,String> atomTables = new HashMap<Integer,String>(); // tables of body atoms, by position in the body
+		String lastTable = null; // table that is joined after the body atoms
 		ArrayList<String> inferredTables = new ArrayList<String>();
+		boolean inferredDeltaTables = true; // true if all inferred body atoms have delta tables
 		HashMap<String,ArrayList<String>> varequalities = new HashMap<String,ArrayList<String>>();
 		HashMap<String,ArrayList<String>> constequalities = new HashMap<String,ArrayList<String>>();
 		ArrayList<StringPair> varinequalities = new ArrayList<StringPair>();
@@ -617,16 +1820,25 @@ public class MySQLStorageDriver implements StorageDriver {
 			if (rd.getBody().get(i).getName().equals("orel:distinct")) {
 				varinequalities.add(new StringPair(rd.getBody().get(i).getArguments().get(0).getValue(),rd.getBody().get(i).getArguments().get(1).getValue()));
 			} else {
+				int inferredcount = inferredTables.size();
 				fromTables.add(prepareRuleBodyAtom(rd, rd.getBody().get(i), i, inferredTables, varequalities, constequalities));
+				atomTables.put(i, fromTables.get(fromTables.size()-1));
+				if (inferredTables.size() > inferredcount) {
+					inferredDeltaTables = inferredDeltaTables && hasDeltaTables(predicates.get(rd.getBody().get(i).getName()));
+				}
 			}
 		}
 		
 		// make strings for INSERT and SELECT part
-		String insert = "", select = "", on = "";
+		String insert = "", select = "", on = "", columns = "";
+		ArrayList<String> headvalues = new ArrayList<String>(); // SQL values of the head arguments
+		PredicateDeclaration headpd = null;
 		PredicateTerm pt;
 		if (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT) { // DELETE
 			insert = "DELETE t" + rd.getBody().size() + ".*";
-			fromTables.add(prepareRuleBodyAtom(rd, rd.getHead(), rd.getBody().size(), inferredTables, varequalities, constequalities));
+			prepareRuleBodyAtom(rd, rd.getHead(), rd.getBody().size(), inferredTables, varequalities, constequalities);
+			lastTable = addQuotes(rd.getHead().getName()) + " AS t" + rd.getBody().size(); // delete from the original table
+			fromTables.add(lastTable);
 		} else if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) { // SELECT all (we just care about the non-zero count here)
 			select = "SELECT * ";
 			// Note: we build the "ON" string here instead of adding equalities to our HashMaps, since otherwise the order of ? in the statement would not be correct
@@ -647,34 +1859,35 @@ public class MySQLStorageDriver implements StorageDriver {
 			hasParameterConstants = true; // never make stepped statements for checks
 		} else { // INSERT SELECTed data
 			assert rd.getMode() == InferenceRuleDeclaration.MODE_INFER;
-			insert = "INSERT IGNORE INTO " + addQuotes(rd.getHead().getName()) + " (";
 			PredicateDeclaration pd = predicates.get(rd.getHead().getName()); // use "pd == null" to indicate that rule is broken
 			for (int i=0; i<rd.getHead().getArguments().size(); i++) {
-				if (i>0) insert = insert + ",";
-				insert = insert + "f" + (i);
+				if (i>0) columns = columns + ",";
+				columns = columns + "f" + (i);
 				pt = rd.getHead().getArguments().get(i);
 				if (!select.equals("")) select = select + ",";
 				if (pt.isVariable()) {
 					if (varequalities.containsKey(pt.getValue())) {
-						select = select + varequalities.get(pt.getValue()).get(0) + " AS f" + (i);
+						headvalues.add(varequalities.get(pt.getValue()).get(0));
 					} else { // else: unsafe rule, drop it
 						LogWriter.get().printlnError("Rule " + rd.getName() + " is unsafe. Ignoring it."); 
 						pd = null;
 					}
 				} else {
-					select = select + "\"" + pt.getValue() + "\" AS f" + (i);
+					headvalues.add("\"" + pt.getValue() + "\"");
 				}
+				if (pd != null) select = select + headvalues.get(i) + " AS f" + (i);
 			}
 			if (pd == null) {
 				LogWriter.get().printlnError("There was a problem registering rule " + rd.getName());
 				return result;
 			}
 			if (pd.isInferred()) {
-				insert = insert + ",step";
+				columns = columns + ",step";
 				select = select + ", ? AS step";
 			}
-			insert = insert + ") "; 
+			insert = "INSERT IGNORE INTO " + addQuotes(rd.getHead().getName()) + " (" + columns + ") ";
 			select = "SELECT DISTINCT " + select;
+			headpd = pd;
 		}
 		
 		// make string for ON part (join conditions)
@@ -708,45 +1921,88 @@ public class MySQLStorageDriver implements StorageDriver {
 			}
 		}
 		
-		// make string for FROM part
+		// make string for FROM part; the semi-naive versions get their own order of joins
 		String from = "";
-		for (int i=0; i<fromTables.size(); i++) {
-			from += ( (i==0) ? "" : " INNER JOIN " ) + fromTables.get(i);
+		if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) {
+			for (int i=0; i<fromTables.size(); i++) {
+				from += ( (i==0) ? "" : " INNER JOIN " ) + fromTables.get(i);
+			}
+		} else {
+			ruleplansizes.put(rd.getName(), getTableSizes(rd));
+			from = getJoinedTables(rd, atomTables, getJoinOrder(rd, -1), -1, lastTable);
+		}
+		ArrayList<String> stepFroms = new ArrayList<String>();
+		for (int i=0; (i<inferredTables.size()) && (rd.getMode() != InferenceRuleDeclaration.MODE_CHECK) && !hasParameterConstants; i++) {
+			stepFroms.add(getJoinedTables(rd, atomTables, getJoinOrder(rd, Integer.parseInt(inferredTables.get(i).substring(1))), -1, lastTable));
 		}
 		String onOperator = (fromTables.size()<2) ? " WHERE " : " ON ";
+		String onPart = (on.equals("")) ? "" : onOperator + on;
 	
 		/// Now build the final rules ...
 		// always make step-less version at index 0
-		String sql = insert + select + " FROM " + from + ( (on.equals("")) ? "" : onOperator) + on;
-		try {
-			//if (rd.getName().equals("inst-gbot")) LogWriter.get().printlnDebug(rd.getName() + ":\n " + sql + ((rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ? " LIMIT 1" : "") + "\n\n"); // DEBUG
-			result.add(con.prepareStatement( "/*" + rd.getName() + "*/" + sql + ((rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ? " LIMIT 1" : "") ));
-		} catch (SQLException e) { // bug in the above code, just print it
-			e.printStackTrace();
-		}
+		String sql = insert + select + " FROM " + from + onPart;
+		//if (rd.getName().equals("inst-gbot")) LogWriter.get().printlnDebug(rd.getName() + ":\n " + sql + ((rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ? " LIMIT 1" : "") + "\n\n"); // DEBUG
+		result.add( "/*" + rd.getName() + "*/" + sql + ((rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) ? " LIMIT 1" : "") );
 		
 		// other indices k hold semi-naive rule for the k-th inferred predicate 
+		ArrayList<String> stepConditions = new ArrayList<String>();
 		if ( (inferredTables.size() > 0) && (!hasParameterConstants) ) {
 			// make rule variants for semi-naive evaluation			
 			for (int i=0; i<inferredTables.size(); i++) {
 				String stepCondition = "";
-				String on_op = on.equals("") ? " WHERE " : " AND ";
 				for (int j=0; j<=i; j++) {
+					if (j>0) stepCondition += " AND ";
 					if (j<i) {
-						stepCondition += on_op + inferredTables.get(j) + ".step<?";
+						stepCondition += inferredTables.get(j) + ".step<?";
 					} else {
-						stepCondition += on_op + inferredTables.get(j) + ".step>=? AND " + inferredTables.get(j) + ".step<=?";
+						stepCondition += inferredTables.get(j) + ".step>=? AND " + inferredTables.get(j) + ".step<=?";
 					}
-					on_op = " AND ";
 				}
+				stepConditions.add(stepCondition);
 				//if (rd.getName().equals("(unG1)")) LogWriter.get().printlnDebug(sql + stepCondition); // DEBUG
-				try {
-					result.add(con.prepareStatement("/*" + rd.getName() + "_" + i + "*/" + sql + stepCondition));
-				} catch (SQLException e) { // bug in the above code, just print it
-					e.printStackTrace(); 
+				result.add("/*" + rd.getName() + "_" + i + "*/" + insert + select + " FROM " + stepFroms.get(i) + onPart + (on.equals("") ? " WHERE " : " AND ") + stepCondition);
+			}
+		}
+
+		// statements for saturating contexts also filter the context of the first atom
+		pt = (rd.getHead().getArguments().size() > 0) ? rd.getHead().getArguments().get(rd.getHead().getArguments().size()-1) : null;
+		if ( (contextsql != null) && (headpd != null) && (pt != null) && pt.isVariable() ) {
+			String contextfield;
+			for (int i=0; i<stepConditions.size(); i++) {
+				contextfield = varequalities.get(pt.getValue()).get(0);
+				for (int j=0; j<varequalities.get(pt.getValue()).size(); j++) {
+					if (varequalities.get(pt.getValue()).get(j).startsWith(inferredTables.get(i) + ".")) {
+						contextfield = varequalities.get(pt.getValue()).get(j);
+						break;
+					}
+				}
+				contextsql.add("/*" + rd.getName() + "_c" + i + "*/" + insert + select + " FROM " + stepFroms.get(i) + onPart + (on.equals("") ? " WHERE " : " AND ") +
+						stepConditions.get(i) + " AND " + contextfield + " MOD ?=?");
+			}
+		}
+
+		// statements for delta tables insert into the new-delta table only what is not in the head table
+		if ( (deltasql != null) && (headpd != null) && hasDeltaTables(headpd) && (!hasParameterConstants) ) {
+			String headalias = "t" + rd.getBody().size();
+			String antijoin = " LEFT JOIN " + addQuotes(rd.getHead().getName()) + " AS " + headalias + " ON ";
+			for (int i=0; i<headvalues.size(); i++) {
+				antijoin = antijoin + ( (i==0) ? "" : " AND " ) + headalias + ".f" + i + "=" + headvalues.get(i);
+			}
+			String where = " WHERE " + headalias + ".f0 IS NULL" + ( ( on.equals("") || (fromTables.size()>=2) ) ? "" : " AND " + on );
+			String deltainsert = "INSERT IGNORE INTO " + addQuotes(getNewDeltaTableName(rd.getHead().getName())) + " (" + columns + ") ";
+			String join = ( on.equals("") || (fromTables.size()<2) ) ? "" : " ON " + on;
+			deltasql.add("/*" + rd.getName() + "_n*/" + deltainsert + select + " FROM " + from + join + antijoin + where);
+			for (int i=0; i<stepConditions.size(); i++) {
+				deltasql.add("/*" + rd.getName() + "_n" + i + "*/" + deltainsert + select + " FROM " + stepFroms.get(i) + join + antijoin + where + " AND " + stepConditions.get(i));
+			}
+			if (inferredDeltaTables) {
+				int atom;
+				for (int i=0; i<inferredTables.size(); i++) { // read the delta table of the i-th inferred atom first
+					atom = Integer.parseInt(inferredTables.get(i).substring(1));
+					deltasql.add("/*" + rd.getName() + "_d" + i + "*/" + deltainsert + select + " FROM " + getJoinedTables(rd, atomTables, getJoinOrder(rd, atom), atom, null) + join + antijoin + where);
 				}
 			}
-		}		
+		}
 		return result;
 	}
 	
@@ -802,85 +2058,1185 @@ public class MySQLStorageDriver implements StorageDriver {
 				}
 			}
 		}
-		return addQuotes(pa.getName()) + " AS t" + (i);
+		if (pd.isInMemory()) {
+			return addQuotes(getMemoryTableName(pa.getName())) + " AS t" + (i);
+		} else {
+			return addQuotes(pa.getName()) + " AS t" + (i);
+		}
 	}
 
-	/* *** Id management *** */
-	
-	public int getID(String key) {
-		int id = 0;
-		//LogWriter.get().printlnDebug("Getting id for " + description); // debug
-		String hash;
-		if (key.toCharArray().length < namefieldlength) { // try to keep names intact ...
-			hash = key;
-		} else { // ... but use a hash if the string is too long
-			digest.update(key.getBytes());
-			hash = "_" + getHex(digest.digest());
+	/* *** Indexes and plans of rule statements *** */
+
+	/**
+	 * Find the order in which the statements of the given rule join its body
+	 * atoms. The given atom comes first, or, if first is -1 (or not the
+	 * position of a body atom), the atom with the smallest table. Then the
+	 * next atom is always the one that is expected to match the fewest rows
+	 * for each row of the atoms before, as estimated by getMatchingRows().
+	 * If two atoms are expected to match as many rows, an atom that shares a
+	 * variable with the atoms before or that has a constant is preferred,
+	 * and otherwise the atoms keep their order in the rule. The atoms of
+	 * orel:distinct are left out.
+	 * @param rd
+	 * @param first position of the first atom in the body, or -1
+	 * @return positions of the atoms in the body in the order of the join
+	 */
+	protected int[] getJoinOrder(InferenceRuleDeclaration rd, int first) {
+		ArrayList<Integer> remaining = new ArrayList<Integer>();
+		for (int i=0; i<rd.getBody().size(); i++) {
+			if (!rd.getBody().get(i).getName().equals("orel:distinct")) remaining.add(i);
 		}
-		if (ids.containsKey(hash)) { // id in LRU cache
-			id = ids.get(hash).intValue();
-		} else if (unwrittenids.containsKey(hash)) { // id was created recently and is not written to disk yet
-			id = unwrittenids.get(hash).intValue();
-		} else try { // id not available: find it in the DB or newly allocate it
-			if (findid == null) findid = con.prepareStatement("SELECT id FROM ids WHERE name=? LIMIT 1");
-			findid.setString(1, hash);
-			ResultSet res = findid.executeQuery();
-			if (res.next()) {
-				id = res.getInt(1);
-			} else if (loadmode) { // use batch operations and write caching
-				// check if we need to pre-allocate more ids (and commit recently created ids)
-				if ( ( (curid>0) && (curid>maxid) ) || 
-				     ( (curid==0) && ((prelocatedids == null) || (!prelocatedids.next())) ) ) {
-					if (curid == 0) { // rely on AUTO INCREMENT
-						if (prelocids == null) {
-							String insertvals = "(NULL,\"-\")";
-							for (int i=1; (i<prelocsize); i++) {
-								insertvals = insertvals.concat(",(NULL,\"-\")");
-							}
-							prelocids = con.prepareStatement("INSERT INTO ids VALUES " + insertvals, Statement.RETURN_GENERATED_KEYS);
-						}
-						if (prelocatedids != null) prelocatedids.close();						
-						prelocids.executeUpdate();
-						prelocatedids = prelocids.getGeneratedKeys();
-						prelocatedids.next();						
-					} else { // simply increment ids yourself
-						maxid = maxid + prelocsize;
-					}
-					if (makeids != null) { // in any case: batch write recently introduced ids
-						makeids.executeBatch();
-						unwrittenids.clear();
-					}
-					con.commit(); // needed to ensure that above SELECTs will be correct now that unwrittenids is empty again
-				}
-				// add a new id to the current batch and unwritten id cache
-				if (curid == 0) {
-					id = prelocatedids.getInt(1);
-					if (makeids == null) makeids = con.prepareStatement("UPDATE ids SET name=? WHERE id=?");
-					makeids.setInt(2,id);
-					makeids.setString(1,hash);
-				} else {
-					id = curid++;
-					if (makeids == null) makeids = con.prepareStatement("INSERT INTO ids VALUES (?,?)");
-					makeids.setInt(1,id);
-					makeids.setString(2,hash);					
+		if (!remaining.contains(first)) first = -1;
+		int[] result = new int[remaining.size()];
+		HashSet<String> boundvariables = new HashSet<String>();
+		PredicateAtom pa;
+		PredicateTerm pt;
+		int best;
+		double rows, bestrows = 0;
+		boolean connected, bestconnected = false;
+		for (int pos=0; pos<result.length; pos++) {
+			best = -1;
+			for (int k=0; k<remaining.size(); k++) {
+				if (pos == 0 && first >= 0) {
+					if (remaining.get(k) != first) continue;
+					best = k;
+					break;
+				}
+				pa = rd.getBody().get(remaining.get(k));
+				connected = false;
+				for (int j=0; (j<pa.getArguments().size()) && !connected; j++) {
+					pt = pa.getArguments().get(j);
+					connected = !pt.isVariable() || boundvariables.contains(pt.getValue());
+				}
+				rows = getMatchingRows(pa, boundvariables);
+				if ( (best < 0) || (rows < bestrows) || ( (rows == bestrows) && connected && !bestconnected ) ) {
+					best = k;
+					bestrows = rows;
+					bestconnected = connected;
 				}
-				unwrittenids.put(hash,id);
-				makeids.addBatch();
-			} else { // use slow single insert
-				if (makeid == null) makeid = con.prepareStatement("INSERT INTO ids VALUES (NULL,?)", Statement.RETURN_GENERATED_KEYS);
-				makeid.setString(1,hash);
-				makeid.executeUpdate();
-				prelocatedids = makeid.getGeneratedKeys();
-				prelocatedids.next();
-				id = prelocatedids.getInt(1);
 			}
-			res.close();
-			ids.put(hash,id);
-		} catch (SQLException e) { // should happen only on programming errors in above code
-			e.printStackTrace();
-			id = -1;
+			result[pos] = remaining.remove(best);
+			pa = rd.getBody().get(result[pos]);
+			for (int j=0; j<pa.getArguments().size(); j++) {
+				pt = pa.getArguments().get(j);
+				if (pt.isVariable()) boundvariables.add(pt.getValue());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Estimate how many rows of the table of the given atom match one row of
+	 * the atoms that bind the given variables. The rows are looked up with
+	 * the index of one field, so the size of the table is divided by the
+	 * largest number of distinct values among the fields that hold a
+	 * constant or a bound variable. If no field is bound, the result is the
+	 * size of the table.
+	 * @param pa
+	 * @param boundvariables
+	 * @return
+	 */
+	protected double getMatchingRows(PredicateAtom pa, HashSet<String> boundvariables) {
+		double size = getTableSize(pa.getName());
+		long[] distincts = getFieldDistincts(pa.getName());
+		long distinct = 1;
+		PredicateTerm pt;
+		for (int j=0; (j<pa.getArguments().size()) && (j<distincts.length); j++) {
+			pt = pa.getArguments().get(j);
+			if ( !pt.isVariable() || boundvariables.contains(pt.getValue()) ) {
+				distinct = Math.max(distinct, distincts[j]);
+			}
+		}
+		return size/distinct;
+	}
+
+	/**
+	 * Get the estimated number of distinct values of each field of the table
+	 * of the given predicate. The values are counted when they are first
+	 * needed, and again when the size of the table has changed by more than
+	 * REPLAN_FACTOR since. In the meantime, the numbers of values are assumed
+	 * to grow with the size of the table, so that each value keeps the same
+	 * number of rows. Fields without statistics have as many values as the
+	 * table has rows.
+	 * @param predicate
+	 * @return numbers of distinct values of the fields, by their position
+	 */
+	protected synchronized long[] getFieldDistincts(String predicate) {
+		PredicateDeclaration pd = predicates.get(predicate);
+		long size = getTableSize(predicate);
+		if (pd == null) return new long[0];
+		long[] counted = fielddistincts.get(predicate);
+		Long countedsize = fielddistinctsizes.get(predicate);
+		if ( (counted == null) || (Math.max(size, countedsize) > Math.max(1, Math.min(size, countedsize))*REPLAN_FACTOR) ) {
+			counted = new long[pd.getFieldCount()];
+			countedsize = size;
+			try {
+				Statement stmt = con.createStatement();
+				ResultSet res;
+				for (int i=0; i<counted.length; i++) {
+					res = stmt.executeQuery("SELECT COUNT(DISTINCT f" + i + ") FROM " + addQuotes(predicate));
+					counted[i] = res.next() ? res.getLong(1) : 0;
+					res.close();
+				}
+				stmt.close();
+			} catch (SQLException e) { // no statistics; just print the message
+				e.printStackTrace();
+				counted = new long[0];
+			}
+			fielddistincts.put(predicate, counted);
+			fielddistinctsizes.put(predicate, countedsize);
+		}
+		long[] result = new long[pd.getFieldCount()];
+		for (int i=0; i<result.length; i++) {
+			if ( (i < counted.length) && (countedsize > 0) ) {
+				result[i] = Math.min(size, Math.max(1, counted[i]*size/countedsize));
+			} else {
+				result[i] = size;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Make the FROM part of a rule statement that joins the tables of the
+	 * body atoms in the given order with STRAIGHT_JOIN, so that MySQL does
+	 * not change this order. The conditions of the join are not included.
+	 * @param rd
+	 * @param atomtables tables of the body atoms by their position in the body, as made by prepareRuleBodyAtom()
+	 * @param order positions of the body atoms in the order of the join
+	 * @param deltaatom position of the atom that should read its delta table, or -1
+	 * @param lasttable table that is joined after all body atoms, or null
+	 * @return
+	 */
+	protected String getJoinedTables(InferenceRuleDeclaration rd, HashMap<Integer,String> atomtables, int[] order, int deltaatom, String lasttable) {
+		String result = "", table;
+		for (int i=0; i<order.length; i++) {
+			table = atomtables.get(order[i]);
+			if (order[i] == deltaatom) {
+				table = addQuotes(getDeltaTableName(rd.getBody().get(deltaatom).getName())) + table.substring(table.lastIndexOf(" AS "));
+			}
+			result += ( (i==0) ? "" : " STRAIGHT_JOIN " ) + table;
+		}
+		if (lasttable != null) result += ( result.equals("") ? "" : " STRAIGHT_JOIN " ) + lasttable;
+		return result;
+	}
+
+	/**
+	 * Get the estimated number of rows of the table of the given predicate.
+	 * The sizes are read from the statistics of the database when they are
+	 * first needed after commit(), and are updated with the rows that rules
+	 * insert or delete in the meantime.
+	 * @param predicate
+	 * @return
+	 */
+	protected synchronized long getTableSize(String predicate) {
+		if (tablesizes.isEmpty()) {
+			try {
+				Statement stmt = con.createStatement();
+				ResultSet res = stmt.executeQuery("SELECT TABLE_NAME,TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA=DATABASE()");
+				while (res.next()) {
+					if (predicates.containsKey(res.getString(1))) tablesizes.put(res.getString(1), res.getLong(2));
+				}
+				res.close();
+				stmt.close();
+			} catch (SQLException e) { // no statistics; just print the message
+				e.printStackTrace();
+			}
+		}
+		Long result = tablesizes.get(predicate);
+		if (result == null) {
+			result = 0L;
+			tablesizes.put(predicate, result); // do not read the statistics again for unknown tables
+		}
+		return result;
+	}
+
+	protected synchronized void addTableSize(String predicate, long rows) {
+		Long size = tablesizes.get(predicate);
+		if (size != null) tablesizes.put(predicate, Math.max(0, size + rows));
+	}
+
+	/**
+	 * Get the current sizes of the tables of the body atoms of the given rule.
+	 * @param rd
+	 * @return map from predicates to their estimated numbers of rows
+	 */
+	protected HashMap<String,Long> getTableSizes(InferenceRuleDeclaration rd) {
+		HashMap<String,Long> result = new HashMap<String,Long>();
+		for (int i=0; i<rd.getBody().size(); i++) {
+			if (!rd.getBody().get(i).getName().equals("orel:distinct")) {
+				result.put(rd.getBody().get(i).getName(), getTableSize(rd.getBody().get(i).getName()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Make the statements of the given rule again if the size of the table
+	 * of some body atom has changed by more than REPLAN_FACTOR since they
+	 * were made, so that the order of the joins fits the data again. The
+	 * statements that sessions prepared for the rule are closed, and the new
+	 * statements are explained again if this is enabled.
+	 * @param rulename
+	 */
+	protected synchronized void updateRulePlan(String rulename) {
+		HashMap<String,Long> plannedsizes = ruleplansizes.get(rulename);
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if ( (plannedsizes == null) || (rd == null) ) return;
+		boolean outdated = false;
+		Iterator<String> predit = plannedsizes.keySet().iterator();
+		String predicate;
+		long low, high;
+		while (predit.hasNext() && !outdated) {
+			predicate = predit.next();
+			low = Math.max(1, Math.min(plannedsizes.get(predicate), getTableSize(predicate)));
+			high = Math.max(plannedsizes.get(predicate), getTableSize(predicate));
+			outdated = (high > low*REPLAN_FACTOR);
+		}
+		if (!outdated) return;
+		LogWriter.get().printlnDebug("  Making new statements for rule " + rulename + " for the current table sizes."); // debug
+		closeRuleStatements(rulename);
+		inferencerulestmts.put(rulename, getInferenceRuleStatements(rd));
+	}
+
+	/**
+	 * Find the composite indexes that the statements of the given rule need
+	 * for finding the facts of its body atoms, and record them for
+	 * createRuleIndexes(). The body atoms are joined in the orders of
+	 * getJoinOrder() for the current sizes of the tables, one for every
+	 * semi-naive version of the statements, or in their order in the rule
+	 * if the rule checks facts. A field of an atom is bound if it holds a
+	 * constant or a variable of an earlier atom (or of the head if the rule
+	 * checks facts, since the values of the head are then given). An atom
+	 * needs a composite index if at least two of its fields are bound and if
+	 * these fields are not the first fields of the primary key. If just one
+	 * field is bound, the index of this field is used.
+	 * @param rd
+	 * @param indexfields map from predicates to the lists of fields of their indexes, where the result is added
+	 */
+	protected void findRuleIndexes(InferenceRuleDeclaration rd, HashMap<String,HashSet<String>> indexfields) {
+		HashSet<String> boundvariables = new HashSet<String>();
+		PredicateTerm pt;
+		PredicateDeclaration pd;
+		if (rd.getMode() == InferenceRuleDeclaration.MODE_CHECK) {
+			for (int j=0; j<rd.getHead().getArguments().size(); j++) {
+				pt = rd.getHead().getArguments().get(j);
+				if (pt.isVariable()) boundvariables.add(pt.getValue());
+			}
+			int[] order = new int[rd.getBody().size()];
+			for (int i=0; i<order.length; i++) {
+				order[i] = i;
+			}
+			findRuleIndexes(rd, order, boundvariables, indexfields);
+		} else {
+			findRuleIndexes(rd, getJoinOrder(rd, -1), boundvariables, indexfields);
+			for (int i=0; i<rd.getBody().size(); i++) {
+				pd = predicates.get(rd.getBody().get(i).getName());
+				if ( (pd != null) && pd.isInferred() && (rd.getBody().get(i).getArguments().size() == pd.getFieldCount()) ) {
+					findRuleIndexes(rd, getJoinOrder(rd, i), new HashSet<String>(), indexfields);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the composite indexes that are needed for joining the body atoms
+	 * of the given rule in the given order, as in findRuleIndexes().
+	 * @param rd
+	 * @param order positions of the body atoms in the order of the join
+	 * @param boundvariables variables that are bound before the first atom; this set is changed
+	 * @param indexfields map from predicates to the lists of fields of their indexes, where the result is added
+	 */
+	protected void findRuleIndexes(InferenceRuleDeclaration rd, int[] order, HashSet<String> boundvariables, HashMap<String,HashSet<String>> indexfields) {
+		PredicateAtom pa;
+		PredicateDeclaration pd;
+		PredicateTerm pt;
+		String fields;
+		int count;
+		boolean prefix;
+		for (int i=0; i<order.length; i++) {
+			pa = rd.getBody().get(order[i]);
+			pd = predicates.get(pa.getName());
+			if (pd == null) continue; // orel:distinct (unknown predicates are reported when the SQL is made)
+			fields = "";
+			count = 0;
+			prefix = true;
+			for (int j=0; (j<pa.getArguments().size()) && (j<pd.getFieldCount()); j++) {
+				pt = pa.getArguments().get(j);
+				if ( !pt.isVariable() || boundvariables.contains(pt.getValue()) ) {
+					fields = fields + ( (count==0) ? "" : "," ) + "f" + j;
+					if (j != count) prefix = false;
+					count++;
+				}
+			}
+			if ( (count >= 2) && !prefix ) {
+				if (!indexfields.containsKey(pd.getName())) {
+					indexfields.put(pd.getName(), new HashSet<String>());
+				}
+				indexfields.get(pd.getName()).add(fields);
+			}
+			for (int j=0; j<pa.getArguments().size(); j++) {
+				pt = pa.getArguments().get(j);
+				if (pt.isVariable()) boundvariables.add(pt.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Create the indexes that were found by findRuleIndexes() if they do not
+	 * exist yet. The indexes are also created for the delta tables and
+	 * MEMORY engine tables of the predicates. Creating an index on a large
+	 * table takes some time, but it is only done once for every database.
+	 * @param indexfields map from predicates to the lists of fields of their indexes
+	 * @throws SQLException
+	 */
+	protected synchronized void createRuleIndexes(HashMap<String,HashSet<String>> indexfields) throws SQLException {
+		Statement stmt = con.createStatement();
+		PredicateDeclaration pd;
+		ArrayList<String> tables = new ArrayList<String>();
+		Iterator<String> predit = indexfields.keySet().iterator(), fieldit;
+		while (predit.hasNext()) {
+			pd = predicates.get(predit.next());
+			if (pd == null) continue;
+			tables.clear();
+			tables.add(pd.getName());
+			if (hasDeltaTables(pd)) {
+				tables.add(getDeltaTableName(pd.getName()));
+				tables.add(getNewDeltaTableName(pd.getName()));
+			}
+			if (pd.isInMemory()) tables.add(getMemoryTableName(pd.getName()));
+			fieldit = indexfields.get(pd.getName()).iterator();
+			while (fieldit.hasNext()) {
+				String fields = fieldit.next();
+				for (int j=0; j<tables.size(); j++) {
+					createRuleIndex(stmt, tables.get(j), fields);
+				}
+			}
+		}
+		stmt.close();
+	}
+
+	protected void createRuleIndex(Statement stmt, String table, String fields) throws SQLException {
+		String name = "rule_" + fields.replace(',', '_');
+		if (knownruleindexes.contains(table + "." + name)) return;
+		ResultSet res = stmt.executeQuery("SHOW INDEX FROM " + addQuotes(table) + " WHERE Key_name=\"" + name + "\"");
+		boolean exists = res.next();
+		res.close();
+		if (!exists) {
+			LogWriter.get().printlnNote("Creating index " + name + " on " + table + " for inference rules.");
+			stmt.execute("ALTER TABLE " + addQuotes(table) + " ADD INDEX " + name + " (" + fields + ")");
+		}
+		knownruleindexes.add(table + "." + name);
+	}
+
+	/**
+	 * Run EXPLAIN on the given statement of a rule, using the given values
+	 * for its parameters, and report every full table scan and every
+	 * temporary table that MySQL plans to use as a warning. Every statement
+	 * is explained only once, when it is first executed, so that the plan
+	 * is based on the data that the rule actually works on. The statement is
+	 * prepared with EXPLAIN in front and with the same parameters. Servers
+	 * that cannot explain INSERT and DELETE (before MySQL 5.6) are asked for
+	 * the plan of the query of an INSERT, or of a SELECT with the joins of a
+	 * DELETE, instead.
+	 * @param rulename
+	 * @param key the name of the rule, or a key like getDeltaRuleKey()
+	 * @param index
+	 * @param values
+	 */
+	protected void explainRuleStatement(String rulename, String key, int index, int[] values) {
+		synchronized (explainedstatements) {
+			if (!explainedstatements.add(key + "\t" + index)) return;
+		}
+		if ( !inferencerulesql.containsKey(key) || (index >= inferencerulesql.get(key).size()) ) return;
+		String sql = inferencerulesql.get(key).get(index);
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		String statement = "Statement " + (key.equals(rulename) ? "" : "(" + key.substring(rulename.length()+2) + ") ") + index + " of rule " + rulename;
+		PreparedStatement stmt = null;
+		try {
+			ResultSet res;
+			try {
+				stmt = prepareExplainStatement(sql, values);
+				res = stmt.executeQuery();
+			} catch (SQLException e) { // try again with a query
+				if (stmt != null) stmt.close();
+				sql = sql.substring(sql.indexOf("*/") + 2); // remove comment with the name
+				if (sql.startsWith("DELETE")) {
+					sql = "SELECT *" + sql.substring(sql.indexOf(" FROM "));
+				} else {
+					sql = sql.substring(sql.indexOf("SELECT "));
+				}
+				stmt = prepareExplainStatement(sql, values);
+				res = stmt.executeQuery();
+			}
+			String table, type, extra;
+			boolean problems = false;
+			while (res.next()) {
+				table = res.getString("table");
+				type = res.getString("type");
+				extra = res.getString("Extra");
+				if ( (rd != null) && (table != null) && table.matches("t[0-9]+") ) { // name the predicate of the atom
+					int atom = Integer.parseInt(table.substring(1));
+					table = table + " (" + ( (atom < rd.getBody().size()) ? rd.getBody().get(atom).getName() : rd.getHead().getName() ) + ")";
+				}
+				if ("ALL".equals(type)) {
+					LogWriter.get().printlnWarning(statement + " reads all of " + table + " (about " + res.getString("rows") + " rows).");
+					problems = true;
+				}
+				if ( (extra != null) && (extra.indexOf("Using temporary") >= 0) ) {
+					LogWriter.get().printlnWarning(statement + " uses a temporary table for " + table + ".");
+					problems = true;
+				}
+			}
+			res.close();
+			stmt.close();
+			if (problems) LogWriter.get().printlnDebug("  EXPLAIN " + sql);
+		} catch (SQLException e) {
+			LogWriter.get().printlnWarning(statement + " could not be explained: " + e.getMessage());
+		}
+	}
+
+	protected PreparedStatement prepareExplainStatement(String sql, int[] values) throws SQLException {
+		PreparedStatement result = con.prepareStatement("EXPLAIN " + sql);
+		for (int i=0; i<values.length; i++) {
+			result.setInt(i+1, values[i]);
+		}
+		return result;
+	}
+
+	/* *** Management of predicates that are kept in memory *** */
+
+	/**
+	 * Get the name of the MEMORY engine table that mirrors the data of the
+	 * given predicate.
+	 * @param predicate
+	 * @return
+	 */
+	protected String getMemoryTableName(String predicate) {
+		return predicate + "__mem";
+	}
+
+	/**
+	 * Get the names of all predicates that are declared to be kept in memory.
+	 * @return
+	 */
+	protected ArrayList<String> getMemoryPredicates() {
+		ArrayList<String> result = new ArrayList<String>();
+		Iterator<PredicateDeclaration> pit = predicates.values().iterator();
+		PredicateDeclaration pd;
+		while (pit.hasNext()) {
+			pd = pit.next();
+			if (pd.isInMemory()) result.add(pd.getName());
+		}
+		return result;
+	}
+
+	/**
+	 * Get the heap copy of the given predicate, loading it from the database
+	 * if necessary. Returns null if the predicate is not kept in memory or if
+	 * its table cannot be read.
+	 * @param predicate
+	 * @return
+	 */
+	protected synchronized MemoryPredicateTable getMemoryTable(String predicate) {
+		MemoryPredicateTable table = memorytables.get(predicate);
+		if (table != null) return table;
+		PredicateDeclaration pd = predicates.get(predicate);
+		if ( (pd == null) || !pd.isInMemory() ) return null;
+		try {
+			flushInserts(predicate);
+			table = new MemoryPredicateTable(pd.getFieldCount());
+			Statement stmt = con.createStatement();
+			ResultSet res = stmt.executeQuery("SELECT * FROM " + addQuotes(predicate));
+			int[] tuple = new int[pd.getFieldCount()];
+			while (res.next()) {
+				for (int i=0; i<tuple.length; i++) {
+					tuple[i] = res.getInt(i+1);
+				}
+				table.add(tuple, pd.isInferred() ? res.getInt(tuple.length+1) : 0);
+			}
+			res.close();
+			memorytables.put(predicate, table);
+		} catch (SQLException e) { // usually this means that the table was not created yet
+			e.printStackTrace();
+			return null;
+		}
+		return table;
+	}
+
+	/**
+	 * Forget all in-memory copies of the given predicate after it has been
+	 * modified in some other way than by makePredicateAssertion().
+	 * @param predicate
+	 */
+	protected synchronized void invalidateMemoryTable(String predicate) {
+		memorytables.remove(predicate);
+		stalememorytables.add(predicate);
+	}
+
+	/**
+	 * Update the status of in-memory copies and write filters after the
+	 * given rule has changed the given number of tuples.
+	 * @param rulename
+	 * @param changes
+	 */
+	protected synchronized void updateMemoryTables(String rulename, int changes) {
+		if (changes <= 0) return;
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		String predicate = rd.getHead().getName();
+		if (predicates.get(predicate).isInMemory()) {
+			invalidateMemoryTable(predicate);
+		} else if (rd.getMode() == InferenceRuleDeclaration.MODE_RETRACT) {
+			forgetWrittenFacts(predicate);
+		}
+	}
+
+	/**
+	 * Make sure that the MEMORY engine tables of all predicates that are kept
+	 * in memory agree with the original tables. This needs to be called
+	 * before any statement that reads from the MEMORY engine tables.
+	 * @throws SQLException
+	 */
+	protected synchronized void refreshMemoryTables() throws SQLException {
+		if (stalememorytables.isEmpty()) return;
+		Statement stmt = con.createStatement();
+		Iterator<String> predit = stalememorytables.iterator();
+		String predicate;
+		while (predit.hasNext()) {
+			predicate = predit.next();
+			flushInserts(predicate);
+			stmt.execute("DELETE FROM " + addQuotes(getMemoryTableName(predicate)));
+			stmt.execute("INSERT INTO " + addQuotes(getMemoryTableName(predicate)) + " SELECT * FROM " + addQuotes(predicate));
+		}
+		stalememorytables.clear();
+	}
+
+	protected synchronized boolean hasStaleMemoryTables() {
+		return !stalememorytables.isEmpty();
+	}
+
+	/**
+	 * Write all pending batch inserts of the given predicate, on all
+	 * connections.
+	 * @param predicate
+	 * @throws SQLException
+	 */
+	protected void flushInserts(String predicate) throws SQLException {
+		Iterator<Session> sessionit = allsessions.iterator();
+		Session session;
+		while (sessionit.hasNext()) {
+			session = sessionit.next();
+			synchronized (session) {
+				session.flushInserts(predicate);
+			}
+		}
+	}
+
+	/* *** Management of delta tables *** */
+
+	/**
+	 * Enable or disable the use of delta tables for semi-naive evaluation.
+	 * This must be set before initialize() is called and before rules are
+	 * registered, since it changes the tables and the rule statements.
+	 * @param deltatables
+	 */
+	public void setDeltaTables(boolean deltatables) {
+		this.deltatables = deltatables;
+	}
+
+	/**
+	 * Set whether the composite indexes that the prepared rules need should
+	 * be created (see findRuleIndexes() and prepareInferenceRules()). This
+	 * must be set before the knowledge base is initialized.
+	 * @param ruleindexes
+	 */
+	public void setRuleIndexes(boolean ruleindexes) {
+		this.ruleindexes = ruleindexes;
+	}
+
+	/**
+	 * Set whether the plan of every rule statement should be checked with
+	 * EXPLAIN when the statement is first executed (see explainRuleStatement()).
+	 * @param explainrules
+	 */
+	public void setExplainRules(boolean explainrules) {
+		this.explainrules = explainrules;
+		synchronized (explainedstatements) {
+			explainedstatements.clear();
+		}
+	}
+
+	/**
+	 * Check if the given predicate has delta tables.
+	 * @param pd
+	 * @return
+	 */
+	protected boolean hasDeltaTables(PredicateDeclaration pd) {
+		return deltatables && (pd != null) && pd.isInferred() && !pd.isInMemory();
+	}
+
+	protected String getDeltaTableName(String predicate) {
+		return predicate + "__delta";
+	}
+
+	protected String getNewDeltaTableName(String predicate) {
+		return predicate + "__newdelta";
+	}
+
+	/**
+	 * Get the key under which the statements of the given rule are stored
+	 * that write to the new-delta table of the head.
+	 * @param rulename
+	 * @return
+	 */
+	protected String getDeltaRuleKey(String rulename) {
+		return rulename + "__delta";
+	}
+
+	/**
+	 * Get the key under which the statements of the given rule are stored
+	 * that saturateContextRules() uses.
+	 * @param rulename
+	 * @return
+	 */
+	protected String getContextRuleKey(String rulename) {
+		return rulename + "__context";
+	}
+
+	/**
+	 * Get the state of the delta tables of the given predicate, finding the
+	 * largest step of its facts if necessary. Facts that an earlier run left
+	 * in the new-delta table (e.g. when it was aborted) are moved to the main
+	 * table first, since nothing else is known about them.
+	 * @param predicate
+	 * @return
+	 * @throws SQLException
+	 */
+	protected synchronized DeltaState getDeltaState(String predicate) throws SQLException {
+		DeltaState ds = deltastates.get(predicate);
+		if (ds != null) return ds;
+		flushInserts(predicate);
+		Statement stmt = con.createStatement();
+		stmt.execute("INSERT IGNORE INTO " + addQuotes(predicate) + " SELECT * FROM " + addQuotes(getNewDeltaTableName(predicate)));
+		stmt.execute("TRUNCATE TABLE " + addQuotes(getNewDeltaTableName(predicate)));
+		stmt.execute("TRUNCATE TABLE " + addQuotes(getDeltaTableName(predicate)));
+		ResultSet res = stmt.executeQuery("SELECT MAX(step) FROM " + addQuotes(predicate));
+		ds = new DeltaState(res.next() ? res.getInt(1) : 0);
+		res.close();
+		stmt.close();
+		deltastates.put(predicate, ds);
+		return ds;
+	}
+
+	/**
+	 * Record the largest step of the facts of the given predicate while its
+	 * delta tables are empty.
+	 * @param predicate
+	 * @param step
+	 */
+	protected synchronized void setBaseStep(String predicate, int step) {
+		DeltaState ds = deltastates.get(predicate);
+		if (ds == null) {
+			deltastates.put(predicate, new DeltaState(step));
+		} else if ( !ds.hasdelta && !ds.pending ) {
+			ds.basemax = step;
+		}
+	}
+
+	/**
+	 * Prepare the delta tables of the given predicate before facts with the
+	 * given step are written to its main table, or before its facts are
+	 * changed in other ways.
+	 * @param predicate
+	 * @param step
+	 * @throws SQLException
+	 */
+	protected synchronized void recordDirectWrite(String predicate, int step) throws SQLException {
+		DeltaState ds = deltastates.get(predicate);
+		if (ds == null) return; // the largest step is read from the table when needed
+		resetDelta(predicate);
+		if (step > ds.basemax) ds.basemax = step;
+	}
+
+	/**
+	 * Record that facts with the given step have been written to the
+	 * new-delta table of the given predicate.
+	 * @param predicate
+	 * @param step
+	 * @throws SQLException
+	 */
+	protected synchronized void recordPendingDelta(String predicate, int step) throws SQLException {
+		DeltaState ds = getDeltaState(predicate);
+		if (ds.pending) {
+			if (step < ds.pendingmin) ds.pendingmin = step;
+			if (step > ds.pendingmax) ds.pendingmax = step;
+		} else {
+			ds.pending = true;
+			ds.pendingmin = step;
+			ds.pendingmax = step;
+		}
+		deltasused = true;
+	}
+
+	/**
+	 * Make sure that the facts of all body predicates of the given rule are
+	 * in their main tables up to the step max_cur_step, and that their delta
+	 * tables hold the facts with larger steps up to max_cur_step. Since the
+	 * steps of rounds increase, the new-delta table of a predicate becomes
+	 * its delta table when the first rule of a round reads it.
+	 * @param rd
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return true if the delta tables of all inferred body atoms contain all
+	 * facts with steps from min_cur_step to max_cur_step
+	 * @throws SQLException
+	 */
+	protected synchronized boolean prepareDeltas(InferenceRuleDeclaration rd, int min_cur_step, int max_cur_step) throws SQLException {
+		boolean result = true;
+		PredicateAtom pa;
+		PredicateDeclaration pd;
+		DeltaState ds;
+		for (int i=0; i<rd.getBody().size(); i++) {
+			pa = rd.getBody().get(i);
+			pd = predicates.get(pa.getName());
+			if ( (pd == null) || !pd.isInferred() ) continue; // e.g. orel:distinct
+			if (!hasDeltaTables(pd)) {
+				result = false;
+				continue;
+			}
+			ds = getDeltaState(pa.getName());
+			if ( !ds.hasdelta || (ds.to < max_cur_step) ) { // start a new round
+				Statement stmt = con.createStatement();
+				if (ds.hasdelta) {
+					stmt.execute("TRUNCATE TABLE " + addQuotes(getDeltaTableName(pa.getName())));
+					if (ds.to > ds.basemax) ds.basemax = ds.to;
+				}
+				if ( ds.pending && (ds.pendingmin <= max_cur_step) ) {
+					stmt.execute("INSERT INTO " + addQuotes(getDeltaTableName(pa.getName())) +
+							" SELECT * FROM " + addQuotes(getNewDeltaTableName(pa.getName())) + " WHERE step<=" + max_cur_step);
+					stmt.execute("INSERT IGNORE INTO " + addQuotes(pa.getName()) + " SELECT * FROM " + addQuotes(getDeltaTableName(pa.getName())));
+					stmt.execute("DELETE FROM " + addQuotes(getNewDeltaTableName(pa.getName())) + " WHERE step<=" + max_cur_step);
+					if (ds.pendingmax <= max_cur_step) {
+						ds.pending = false;
+					} else {
+						ds.pendingmin = max_cur_step+1;
+					}
+				}
+				stmt.close();
+				ds.hasdelta = true;
+				ds.from = ds.basemax+1;
+				ds.to = max_cur_step;
+				deltasused = true;
+			}
+			if ( (pa.getArguments().size() == pd.getFieldCount()) && ( (ds.from > min_cur_step) || (ds.to != max_cur_step) ) ) {
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Move all facts from the new-delta table of the given predicate to its
+	 * main table, and empty its delta table.
+	 * @param predicate
+	 * @throws SQLException
+	 */
+	protected synchronized void resetDelta(String predicate) throws SQLException {
+		DeltaState ds = deltastates.get(predicate);
+		if ( (ds == null) || (!ds.hasdelta && !ds.pending) ) return;
+		Statement stmt = con.createStatement();
+		if (ds.pending) {
+			stmt.execute("INSERT IGNORE INTO " + addQuotes(predicate) + " SELECT * FROM " + addQuotes(getNewDeltaTableName(predicate)));
+			stmt.execute("TRUNCATE TABLE " + addQuotes(getNewDeltaTableName(predicate)));
+			if (ds.pendingmax > ds.basemax) ds.basemax = ds.pendingmax;
+			ds.pending = false;
+		}
+		if (ds.hasdelta) {
+			stmt.execute("TRUNCATE TABLE " + addQuotes(getDeltaTableName(predicate)));
+			if (ds.to > ds.basemax) ds.basemax = ds.to;
+			ds.hasdelta = false;
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Call resetDelta() for all predicates. This is needed before rules are
+	 * run or facts are read without delta tables.
+	 * @throws SQLException
+	 */
+	protected synchronized void resetDeltas() throws SQLException {
+		if (!deltasused) return;
+		Iterator<String> predit = deltastates.keySet().iterator();
+		while (predit.hasNext()) {
+			resetDelta(predit.next());
+		}
+		deltasused = false;
+	}
+
+	/**
+	 * Prepare the delta tables before the given rule is run without them.
+	 * @param rulename
+	 * @param newstep
+	 * @throws SQLException
+	 */
+	protected synchronized void beginDirectRule(String rulename, int newstep) throws SQLException {
+		resetDeltas();
+		InferenceRuleDeclaration rd = inferencerules.get(rulename);
+		if (rd.getMode() != InferenceRuleDeclaration.MODE_RETRACT) {
+			recordDirectWrite(rd.getHead().getName(), newstep);
+		}
+	}
+
+	/**
+	 * Enable or disable the use of LOAD DATA LOCAL INFILE while loading.
+	 * @param bulkload
+	 */
+	public void setBulkLoad(boolean bulkload) {
+		this.bulkload = bulkload;
+	}
+
+	/**
+	 * Write all ids that have been created in load mode but not written yet.
+	 * @throws SQLException
+	 */
+	protected void flushIDs() throws SQLException {
+		if (idloadbuffersize > 0) {
+			if (!loadData(con, "ids", "(id,name)", idloadbuffer)) { // insert the rows one by one
+				PreparedStatement stmt = con.prepareStatement("INSERT INTO ids VALUES (?,?)");
+				String[] rows = idloadbuffer.toString().split("\n");
+				int tab;
+				for (int i=0; i<rows.length; i++) {
+					tab = rows[i].indexOf('\t');
+					stmt.setInt(1, Integer.parseInt(rows[i].substring(0,tab)));
+					stmt.setString(2, unescapeLoadValue(rows[i].substring(tab+1)));
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				stmt.close();
+			}
+			idloadbuffer.setLength(0);
+			idloadbuffersize = 0;
+		}
+		if (makeids != null) makeids.executeBatch();
+	}
+
+	/**
+	 * Send the given tab-separated rows to the given table using LOAD DATA
+	 * LOCAL INFILE. Returns false if this is not supported, in which case
+	 * bulk loading is disabled for the remaining run.
+	 * @param con the connection to use
+	 * @param table
+	 * @param columns SQL code for the list of columns that are given
+	 * @param buffer
+	 * @return true if the data was written
+	 */
+	protected boolean loadData(Connection con, String table, String columns, StringBuilder buffer) {
+		if (!bulkload) return false;
+		try {
+			Statement stmt = con.createStatement();
+			// the MySQL driver can read local files from a stream; it is not part of the JDBC interface
+			Method method = stmt.getClass().getMethod("setLocalInfileInputStream", InputStream.class);
+			method.invoke(stmt, new ByteArrayInputStream(buffer.toString().getBytes("UTF-8")));
+			stmt.execute("LOAD DATA LOCAL INFILE 'orel.tsv' IGNORE INTO TABLE " + addQuotes(table) + " CHARACTER SET utf8 " + columns);
+			stmt.close();
+			return true;
+		} catch (SQLException e) {
+			LogWriter.get().printlnError("LOAD DATA LOCAL INFILE failed (" + e.getMessage() + "); using batch inserts instead.");
+		} catch (UnsupportedEncodingException e) { // unlikely
+			e.printStackTrace();
+		} catch (Exception e) { // reflection failed
+			LogWriter.get().printlnWarning("Database driver does not support LOAD DATA from streams; using batch inserts instead.");
+		}
+		bulkload = false;
+		return false;
+	}
+
+	/**
+	 * Escape a string for use in data for LOAD DATA INFILE.
+	 * @param value
+	 * @return
+	 */
+	protected static String escapeLoadValue(String value) {
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	protected static String unescapeLoadValue(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		char c;
+		for (int i=0; i<value.length(); i++) {
+			c = value.charAt(i);
+			if ( (c == '\\') && (i+1 < value.length()) ) {
+				c = value.charAt(++i);
+				if (c == 't') c = '\t';
+				else if (c == 'n') c = '\n';
+				else if (c == 'r') c = '\r';
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	/* *** Id management *** */
+	
+	public synchronized int getID(String key) {
+		int id = 0;
+		//LogWriter.get().printlnDebug("Getting id for " + description); // debug
+		String hash = getIDName(key);
+		if (!idsread) loadIDs();
+		if ( (id = ids.get(hash)) >= 0 ) { // id in cache
+			// nothing else to do
+		} else if (unwrittenids.containsKey(hash)) { // id was created recently and is not written to disk yet
+			id = unwrittenids.get(hash).intValue();
+		} else try { // id not available: find it in the DB or newly allocate it
+			long sTime = EventLog.start();
+			if (idsloaded && ids.isComplete()) { // the cache knows all ids, no need to look
+				id = makeID(hash);
+			} else {
+				if (findid == null) findid = con.prepareStatement("SELECT id FROM ids WHERE name=? LIMIT 1");
+				findid.setString(1, hash);
+				ResultSet res = findid.executeQuery();
+				if (res.next()) {
+					id = res.getInt(1);
+				} else {
+					id = makeID(hash);
+				}
+				res.close();
+			}
+			ids.put(hash,id);
+			EventLog.end(EventLog.ID, "getID", 1, sTime);
+		} catch (SQLException e) { // should happen only on programming errors in above code
+			e.printStackTrace();
+			id = -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Get the ids of all given keys. All keys that are not cached are looked
+	 * up with one query (or one query per maxbatchsize keys), and all keys
+	 * that have no id yet are written in one batch.
+	 * @param keys
+	 * @return
+	 */
+	public synchronized int[] getIDs(Collection<String> keys) {
+		int[] result = new int[keys.size()];
+		String[] hashes = new String[keys.size()];
+		LinkedHashMap<String,Integer> missing = new LinkedHashMap<String,Integer>();
+		Iterator<String> keyit = keys.iterator();
+		if (!idsread) loadIDs();
+		for (int i=0; i<result.length; i++) {
+			hashes[i] = getIDName(keyit.next());
+			if ( (result[i] = ids.get(hashes[i])) >= 0 ) { // id in cache
+				// nothing else to do
+			} else if (unwrittenids.containsKey(hashes[i])) { // id was created recently and is not written to disk yet
+				result[i] = unwrittenids.get(hashes[i]).intValue();
+			} else {
+				missing.put(hashes[i], -1);
+			}
+		}
+		if (missing.isEmpty()) return result;
+		long sTime = EventLog.start();
+		try {
+			if (!idsloaded || !ids.isComplete()) findIDs(missing);
+			makeIDs(missing);
+		} catch (SQLException e) { // should happen only on programming errors in above code
+			e.printStackTrace();
+		}
+		EventLog.end(EventLog.ID, "getIDs", missing.size(), sTime);
+		for (int i=0; i<result.length; i++) {
+			if (missing.containsKey(hashes[i])) {
+				result[i] = missing.get(hashes[i]).intValue();
+			}
+		}
+		Iterator<Map.Entry<String,Integer>> entryit = missing.entrySet().iterator();
+		Map.Entry<String,Integer> entry;
+		while (entryit.hasNext()) {
+			entry = entryit.next();
+			if (entry.getValue() >= 0) ids.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Read the whole ids table into the id cache, as long as it has space.
+	 * If this succeeds and all ids fit, then the database does not need to
+	 * be asked for ids that are not in the cache.
+	 */
+	protected void loadIDs() {
+		idsread = true;
+		try {
+			Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(Integer.MIN_VALUE); // stream results instead of reading them all at once
+			ResultSet res = stmt.executeQuery("SELECT name,id FROM ids");
+			String name;
+			while (res.next() && ids.isComplete()) {
+				name = res.getString(1);
+				if ( (name != null) && !name.equals("-") ) { // ignore pre-allocated ids
+					ids.put(name, res.getInt(2));
+				}
+			}
+			res.close();
+			stmt.close();
+			idsloaded = true;
+		} catch (SQLException e) {
+			// don't worry; usually this just means that the table ids was not created yet
+			ids.clear();
+		}
+	}
+
+	/**
+	 * Look up the ids of the given names in the database, and store them as
+	 * values of the given map.
+	 * @param names map from names to ids, using -1 for unknown ids
+	 * @throws SQLException
+	 */
+	protected void findIDs(LinkedHashMap<String,Integer> names) throws SQLException {
+		ArrayList<String> namelist = new ArrayList<String>(names.keySet());
+		int count;
+		PreparedStatement stmt;
+		ResultSet res;
+		for (int start=0; start<namelist.size(); start+=maxbatchsize) {
+			count = Math.min(maxbatchsize, namelist.size()-start);
+			stmt = findidsstmts.get(count);
+			if (stmt == null) {
+				String sql = "SELECT name,id FROM ids WHERE name IN (?";
+				for (int i=1; i<count; i++) {
+					sql = sql.concat(",?");
+				}
+				stmt = con.prepareStatement(sql + ")");
+				findidsstmts.put(count, stmt);
+			}
+			for (int i=0; i<count; i++) {
+				stmt.setString(i+1, namelist.get(start+i));
+			}
+			res = stmt.executeQuery();
+			while (res.next()) {
+				names.put(res.getString(1), res.getInt(2));
+			}
+			res.close();
+		}
+	}
+
+	/**
+	 * Create new ids for all names in the given map that have no id yet, and
+	 * store them as values of the given map. In loading mode, this adds the
+	 * new names to the current batch. Otherwise, all names are inserted with
+	 * a single statement.
+	 * @param names map from names to ids, using -1 for unknown ids
+	 * @throws SQLException
+	 */
+	protected void makeIDs(LinkedHashMap<String,Integer> names) throws SQLException {
+		ArrayList<String> newnames = new ArrayList<String>();
+		Iterator<Map.Entry<String,Integer>> entryit = names.entrySet().iterator();
+		Map.Entry<String,Integer> entry;
+		while (entryit.hasNext()) {
+			entry = entryit.next();
+			if (entry.getValue() < 0) {
+				if (loadmode) {
+					entry.setValue(makeID(entry.getKey()));
+				} else {
+					newnames.add(entry.getKey());
+				}
+			}
+		}
+		if (newnames.size() == 0) {
+			return;
+		} else if (newnames.size() == 1) {
+			names.put(newnames.get(0), makeID(newnames.get(0)));
+			return;
+		}
+		String sql = "INSERT INTO ids VALUES (NULL,?)";
+		for (int i=1; i<newnames.size(); i++) {
+			sql = sql.concat(",(NULL,?)");
+		}
+		PreparedStatement stmt = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		for (int i=0; i<newnames.size(); i++) {
+			stmt.setString(i+1, newnames.get(i));
+		}
+		stmt.executeUpdate();
+		ResultSet res = stmt.getGeneratedKeys();
+		for (int i=0; (i<newnames.size()) && res.next(); i++) {
+			names.put(newnames.get(i), res.getInt(1));
+		}
+		res.close();
+		stmt.close();
+	}
+
+	/**
+	 * Create a new id for the given name, which must not have an id yet.
+	 * @param hash
+	 * @return
+	 * @throws SQLException
+	 */
+	protected int makeID(String hash) throws SQLException {
+		int id;
+		if (loadmode) { // use batch operations and write caching
+			// check if we need to pre-allocate more ids (and commit recently created ids)
+			if ( ( (curid>0) && (curid>maxid) ) || 
+			     ( (curid==0) && ((prelocatedids == null) || (!prelocatedids.next())) ) ) {
+				if (curid == 0) { // rely on AUTO INCREMENT
+					if (prelocids == null) {
+						String insertvals = "(NULL,\"-\")";
+						for (int i=1; (i<prelocsize); i++) {
+							insertvals = insertvals.concat(",(NULL,\"-\")");
+						}
+						prelocids = con.prepareStatement("INSERT INTO ids VALUES " + insertvals, Statement.RETURN_GENERATED_KEYS);
+					}
+					if (prelocatedids != null) prelocatedids.close();						
+					prelocids.executeUpdate();
+					prelocatedids = prelocids.getGeneratedKeys();
+					prelocatedids.next();						
+				} else { // simply increment ids yourself
+					maxid = curid + prelocsize - 1;
+				}
+				// in any case: batch write recently introduced ids
+				flushIDs();
+				unwrittenids.clear();
+				con.commit(); // needed to ensure that above SELECTs will be correct now that unwrittenids is empty again
+			}
+			// add a new id to the current batch and unwritten id cache
+			if (curid == 0) {
+				id = prelocatedids.getInt(1);
+				if (makeids == null) makeids = con.prepareStatement("UPDATE ids SET name=? WHERE id=?");
+				makeids.setInt(2,id);
+				makeids.setString(1,hash);
+				makeids.addBatch();
+			} else if (bulkload) {
+				id = curid++;
+				idloadbuffer.append(id).append('\t').append(escapeLoadValue(hash)).append('\n');
+				idloadbuffersize++;
+			} else {
+				id = curid++;
+				if (makeids == null) makeids = con.prepareStatement("INSERT INTO ids VALUES (?,?)");
+				makeids.setInt(1,id);
+				makeids.setString(2,hash);					
+				makeids.addBatch();
+			}
+			unwrittenids.put(hash,id);
+		} else { // use slow single insert
+			if (makeid == null) makeid = con.prepareStatement("INSERT INTO ids VALUES (NULL,?)", Statement.RETURN_GENERATED_KEYS);
+			makeid.setString(1,hash);
+			makeid.executeUpdate();
+			prelocatedids = makeid.getGeneratedKeys();
+			prelocatedids.next();
+			id = prelocatedids.getInt(1);
+		}
+		return id;
+	}
+
+	/**
+	 * Get the string that is stored in the ids table for the given key. This
+	 * is the key itself, or a hash if the key is too long.
+	 * @param key
+	 * @return
+	 */
+	protected String getIDName(String key) {
+		if (key.toCharArray().length < namefieldlength) { // try to keep names intact ...
+			return key;
+		} else { // ... but use a hash if the string is too long
+			digest.update(key.getBytes());
+			return "_" + getHex(digest.digest());
 		}
-		return id;
 	}
 
 	protected static final String HEXES = "0123456789ABCDEF";
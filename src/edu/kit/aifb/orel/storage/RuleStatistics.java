@@ -0,0 +1,244 @@
+package edu.kit.aifb.orel.storage;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import edu.kit.aifb.orel.client.LogWriter;
+
+/**
+ * Record of the work done by the rules of a storage driver. Drivers run a
+ * rule in one or more variants, e.g. one for each body atom that is
+ * restricted to new facts in semi-naive evaluation, and record every run
+ * of a variant. For each rule and variant, the entry holds the number of
+ * runs, the number of rows that were added or deleted, the number of
+ * derived rows that were already stored, the time, and the smallest and
+ * largest step of the facts that the runs were restricted to (runs that
+ * consider all facts use the range from -1 to the step before the new
+ * step). Drivers that cannot see duplicates record them as unknown.
+ *
+ * Statistics accumulate until clear() is called. They can be exported as
+ * CSV or JSON.
+ * @author agent
+ */
+public class RuleStatistics {
+	/**
+	 * Statistics for one variant of one rule.
+	 */
+	static public class Entry {
+		protected String rule;
+		protected String variant;
+		protected long runs = 0;
+		protected long rows = 0;
+		protected long duplicates = 0; // -1 if not known
+		protected long nanos = 0;
+		protected int minstep = Integer.MAX_VALUE;
+		protected int maxstep = Integer.MIN_VALUE;
+
+		public Entry(String rule, String variant) {
+			this.rule = rule;
+			this.variant = variant;
+		}
+
+		protected Entry(Entry entry) {
+			rule = entry.rule;
+			variant = entry.variant;
+			runs = entry.runs;
+			rows = entry.rows;
+			duplicates = entry.duplicates;
+			nanos = entry.nanos;
+			minstep = entry.minstep;
+			maxstep = entry.maxstep;
+		}
+
+		public String getRule() {
+			return rule;
+		}
+
+		public String getVariant() {
+			return variant;
+		}
+
+		public long getRuns() {
+			return runs;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * Get the number of derived rows that were stored already, or -1
+		 * if this is not known.
+		 * @return
+		 */
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		public double getMilliseconds() {
+			return nanos / 1000000.0;
+		}
+
+		public int getMinStep() {
+			return minstep;
+		}
+
+		public int getMaxStep() {
+			return maxstep;
+		}
+	}
+
+	protected LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+	/**
+	 * Record one run of a variant of a rule.
+	 * @param rule
+	 * @param variant
+	 * @param minstep smallest step of the facts that the run was restricted to
+	 * @param maxstep largest step of the facts that the run was restricted to
+	 * @param rows number of rows added or deleted
+	 * @param duplicates number of derived rows that were stored already, or -1 if not known
+	 * @param nanos time of the run in nanoseconds
+	 */
+	public synchronized void record(String rule, String variant, int minstep, int maxstep, long rows, long duplicates, long nanos) {
+		String key = rule + "\t" + variant;
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(rule, variant);
+			entries.put(key, entry);
+		}
+		entry.runs++;
+		entry.rows += rows;
+		entry.duplicates = ( (duplicates < 0) || (entry.duplicates < 0) ) ? -1 : entry.duplicates + duplicates;
+		entry.nanos += nanos;
+		entry.minstep = Math.min(entry.minstep, minstep);
+		entry.maxstep = Math.max(entry.maxstep, maxstep);
+	}
+
+	/**
+	 * Get copies of all entries, with the entries that took most time first.
+	 * @return
+	 */
+	public synchronized List<Entry> getEntries() {
+		ArrayList<Entry> result = new ArrayList<Entry>(entries.size());
+		Iterator<Entry> entryit = entries.values().iterator();
+		while (entryit.hasNext()) {
+			result.add(new Entry(entryit.next()));
+		}
+		Collections.sort(result, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return (e1.nanos > e2.nanos) ? -1 : ( (e1.nanos < e2.nanos) ? 1 : 0 );
+			}
+		});
+		return result;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Print all entries at debug level.
+	 */
+	public void print() {
+		List<Entry> list = getEntries();
+		Entry entry;
+		LogWriter.get().printlnDebug("Times spent on inference rules:");
+		for (int i=0; i<list.size(); i++) {
+			entry = list.get(i);
+			LogWriter.get().printlnDebug("  Rule " + entry.rule + " [" + entry.variant + "]: " + Math.round(entry.getMilliseconds()) + "ms, " +
+					entry.runs + " run(s), " + entry.rows + " row(s)" + (entry.duplicates >= 0 ? ", " + entry.duplicates + " duplicate(s)" : "") +
+					", steps " + entry.minstep + " to " + entry.maxstep + ".");
+		}
+	}
+
+	/**
+	 * Write all entries as CSV, with one header line.
+	 * @param writer
+	 */
+	public void writeCSV(Writer writer) {
+		List<Entry> list = getEntries();
+		Entry entry;
+		PrintWriter out = new PrintWriter(writer);
+		out.println("rule,variant,runs,rows,duplicates,ms,minstep,maxstep");
+		for (int i=0; i<list.size(); i++) {
+			entry = list.get(i);
+			out.println(quoteCSV(entry.rule) + "," + quoteCSV(entry.variant) + "," + entry.runs + "," + entry.rows + "," +
+					(entry.duplicates >= 0 ? String.valueOf(entry.duplicates) : "") + "," + entry.getMilliseconds() + "," +
+					entry.minstep + "," + entry.maxstep);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write all entries as a JSON array of objects. Unknown numbers of
+	 * duplicates are given as null.
+	 * @param writer
+	 */
+	public void writeJSON(Writer writer) {
+		List<Entry> list = getEntries();
+		Entry entry;
+		PrintWriter out = new PrintWriter(writer);
+		out.println("[");
+		for (int i=0; i<list.size(); i++) {
+			entry = list.get(i);
+			out.println("  {\"rule\": " + quoteJSON(entry.rule) + ", \"variant\": " + quoteJSON(entry.variant) +
+					", \"runs\": " + entry.runs + ", \"rows\": " + entry.rows +
+					", \"duplicates\": " + (entry.duplicates >= 0 ? String.valueOf(entry.duplicates) : "null") +
+					", \"ms\": " + entry.getMilliseconds() + ", \"minstep\": " + entry.minstep + ", \"maxstep\": " + entry.maxstep +
+					"}" + (i+1 < list.size() ? "," : ""));
+		}
+		out.println("]");
+		out.flush();
+	}
+
+	/**
+	 * Write all entries to the given file, as CSV if its name ends with
+	 * ".csv" and as JSON otherwise.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void save(String filename) throws IOException {
+		FileWriter writer = new FileWriter(filename);
+		try {
+			if (filename.toLowerCase().endsWith(".csv")) {
+				writeCSV(writer);
+			} else {
+				writeJSON(writer);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	static protected String quoteCSV(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	static protected String quoteJSON(String value) {
+		StringBuilder result = new StringBuilder(value.length() + 2);
+		result.append('"');
+		char c;
+		for (int i=0; i<value.length(); i++) {
+			c = value.charAt(i);
+			if ( (c == '"') || (c == '\\') ) {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int)c));
+			} else {
+				result.append(c);
+			}
+		}
+		result.append('"');
+		return result.toString();
+	}
+
+}
@@ -1,5 +1,7 @@
 package edu.kit.aifb.orel.storage;
 
+import java.util.Collection;
+
 import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
 import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
 
@@ -14,8 +16,25 @@ public interface StorageDriver {
 	public void initialize() throws Exception;
 	
 	public void drop() throws Exception;
+
+	/**
+	 * Delete the given predicate together with all of its facts, and forget
+	 * its declaration. This is used for temporary predicates, e.g. of
+	 * goal-directed materialization. Rules that use the predicate must be
+	 * unregistered first.
+	 * @param predicate
+	 * @throws Exception
+	 */
+	public void drop(String predicate) throws Exception;
 	
 	public void dumpStatistics();
+
+	/**
+	 * Get the statistics of the rules that were run by this driver since it
+	 * was created or since the statistics were cleared.
+	 * @return
+	 */
+	public RuleStatistics getRuleStatistics();
 	
 	public void clear(boolean onlyderived) throws Exception;
 	public void clear(String predicate, boolean onlyderived) throws Exception;
@@ -32,10 +51,119 @@ public interface StorageDriver {
 	public int getMaxStep();
 
 	public void registerInferenceRule(InferenceRuleDeclaration rd);
+
+	/**
+	 * Remove a registered rule together with the statements and other data
+	 * that the driver keeps for it. This is used for temporary rules, e.g. of
+	 * goal-directed materialization. Unknown rules and check rules are
+	 * ignored, since check rules become part of the checks of their head.
+	 * @param rulename
+	 */
+	public void unregisterInferenceRule(String rulename);
+
+	/**
+	 * Prepare the storage for the given rules, which are the fixed rules of
+	 * a reasoner, e.g. by creating the indexes they need. This is done when
+	 * the knowledge base is initialized, after initialize(), so that other
+	 * rules that are registered while reasoning do not change the storage.
+	 * The rules are not registered by this.
+	 * @param rules
+	 * @throws Exception
+	 */
+	public void prepareInferenceRules(Collection<InferenceRuleDeclaration> rules) throws Exception;
 	
 	public int runRule(String rulename, int newstep);
 	public int runRule(String rulename, int newstep, int[] params);
 	public int runRule(String rulename, int min_cur_step, int max_cur_step);
+
+	/**
+	 * Compute the transitive closure of the given binary predicate, i.e.
+	 * derive all facts that the rule p(x,z) :- p(x,y), p(y,z) would derive
+	 * when applied until no more facts are found. New facts are given the
+	 * step value newstep. The result is computed in memory and written back
+	 * in a single bulk operation.
+	 * @param predicate
+	 * @param newstep
+	 * @return the number of new tuples that were found
+	 */
+	public int computeTransitiveClosure(String predicate, int newstep);
+
+	/**
+	 * Apply the given registered rules until no more new facts are found,
+	 * for obtaining all results that require the use of some data with step
+	 * values between min_cur_step and max_cur_step; the boundaries are
+	 * included. Newly derived tuples are marked with the step value
+	 * max_cur_step, so that the rules have been applied to all facts up to
+	 * this step afterwards.
+	 *
+	 * The rules must have a common context: the last argument of the head of
+	 * every rule is a variable, and every body atom of a head predicate of
+	 * the rules has this variable as its last argument, too. The facts of
+	 * one context (i.e. one value of the last argument) are thus derived from
+	 * facts of the same context and from facts of other predicates, which the
+	 * rules do not change, so that storages can saturate each context on its
+	 * own. The caller must make sure that no other rules are run meanwhile.
+	 * @param rulenames
+	 * @param min_cur_step
+	 * @param max_cur_step
+	 * @return the number of new tuples that were found
+	 */
+	public int saturateContextRules(Collection<String> rulenames, int min_cur_step, int max_cur_step);
+
+	/**
+	 * Get the step up to which the given registered rule has been applied to
+	 * all facts, as recorded by setWatermark(), or -1 if this is not known.
+	 * The result is also -1 if a predicate without steps in the body of the
+	 * rule received new facts after the watermark was set, since these facts
+	 * cannot be told apart from older ones.
+	 * @param rulename
+	 * @return
+	 */
+	public int getWatermark(String rulename);
+
+	/**
+	 * Record that the given rule has been applied to all facts up to the
+	 * given step. Watermarks are kept together with the facts, and clearing
+	 * a predicate removes the watermarks of all rules with this head.
+	 * As long as some watermark is set, facts that are asserted between
+	 * beginLoading() and endLoading() get a new step above all steps used so
+	 * far, so that rules can be applied to the new facts only. Such facts
+	 * are still kept when clearing derived facts. New facts that are asserted
+	 * outside of loading remove all watermarks.
+	 * @param rulename
+	 * @param step
+	 */
+	public void setWatermark(String rulename, int step);
+
+	/**
+	 * Get the steps other than 0 that were given to asserted facts while
+	 * loading, as described for setWatermark(). All other facts with steps
+	 * above 0 were derived by rules.
+	 * @return
+	 */
+	public Collection<Integer> getLoadSteps();
+
+	/**
+	 * Get the number of rules that may be run concurrently by different
+	 * threads, provided that they have different head predicates. The same
+	 * holds for transitive closures, where the closed predicate is the head.
+	 * Other methods must not be called while rules are run concurrently.
+	 * Loaders use the same number of threads for writing facts, so
+	 * getID(), getIDs(), and makePredicateAssertion() must allow concurrent
+	 * calls, and so must checkPredicateAssertion() among its own calls.
+	 * @return
+	 */
+	public int getParallelism();
 	
 	public int getID(String key);
+
+	/**
+	 * Get the ids of all given keys, in the order in which they are returned
+	 * by the collection's iterator. This has the same result as calling
+	 * getID() for every key, but drivers can find and create the ids with
+	 * fewer operations.
+	 * @param keys
+	 * @return
+	 */
+	public int[] getIDs(Collection<String> keys);
 }
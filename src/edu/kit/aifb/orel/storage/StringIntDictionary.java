@@ -0,0 +1,202 @@
+package edu.kit.aifb.orel.storage;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Memory-efficient map from strings to non-negative ints, used for caching
+ * the ids of the storage. Keys are stored UTF-8 encoded in one large byte
+ * array, and entries are found using an open addressing hash table that
+ * stores entry numbers. No objects are created per entry.
+ *
+ * The dictionary has a maximal number of entries. When it is full, further
+ * entries are not stored any more (existing entries are never evicted), and
+ * isComplete() returns false from then on. The dictionary also counts the
+ * lookups that it could answer.
+ * @author agent
+ */
+public class StringIntDictionary {
+	protected int maxsize;
+	protected int size = 0;
+	protected boolean complete = true;
+	// entry data
+	protected byte[] arena;
+	protected int arenasize = 0;
+	protected int[] offsets; // start of the key of each entry in the arena
+	protected int[] lengths;
+	protected int[] values;
+	protected int[] hashes;
+	// hash table: stores entry+1, 0 means empty
+	protected int[] table;
+	protected int mask;
+	// statistics
+	protected long lookups = 0;
+	protected long hits = 0;
+
+	/**
+	 * Create a new dictionary that holds at most maxsize entries.
+	 * @param maxsize
+	 */
+	public StringIntDictionary(int maxsize) {
+		this.maxsize = maxsize;
+		clear();
+	}
+
+	/**
+	 * Remove all entries. Statistics are not reset.
+	 */
+	public void clear() {
+		size = 0;
+		complete = true;
+		arena = new byte[1024];
+		arenasize = 0;
+		offsets = new int[64];
+		lengths = new int[64];
+		values = new int[64];
+		hashes = new int[64];
+		table = new int[128];
+		mask = table.length-1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxsize;
+	}
+
+	/**
+	 * Return true if no entry was ever dropped because the dictionary was
+	 * full since it was last cleared.
+	 * @return
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Get the value for the given key, or -1 if there is none.
+	 * @param key
+	 * @return
+	 */
+	public int get(String key) {
+		byte[] bytes = encode(key);
+		int hash = hash(bytes);
+		int pos = hash & mask, entry;
+		lookups++;
+		while (table[pos] != 0) {
+			entry = table[pos]-1;
+			if ( (hashes[entry] == hash) && equalsEntry(entry, bytes) ) {
+				hits++;
+				return values[entry];
+			}
+			pos = (pos+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Store the given non-negative value for the given key. The value of
+	 * existing keys is overwritten. If the dictionary is full, new keys are
+	 * not stored.
+	 * @param key
+	 * @param value
+	 */
+	public void put(String key, int value) {
+		byte[] bytes = encode(key);
+		int hash = hash(bytes);
+		int pos = hash & mask, entry;
+		while (table[pos] != 0) {
+			entry = table[pos]-1;
+			if ( (hashes[entry] == hash) && equalsEntry(entry, bytes) ) {
+				values[entry] = value;
+				return;
+			}
+			pos = (pos+1) & mask;
+		}
+		if (size >= maxsize) {
+			complete = false;
+			return;
+		}
+		if (size == values.length) {
+			growEntries();
+		}
+		while (arenasize + bytes.length > arena.length) {
+			arena = Arrays.copyOf(arena, arena.length*2);
+		}
+		System.arraycopy(bytes, 0, arena, arenasize, bytes.length);
+		offsets[size] = arenasize;
+		lengths[size] = bytes.length;
+		values[size] = value;
+		hashes[size] = hash;
+		arenasize += bytes.length;
+		table[pos] = size+1;
+		size++;
+		if (size*2 > table.length) {
+			growTable();
+		}
+	}
+
+	/**
+	 * Get the number of calls of get() since the dictionary was created.
+	 * @return
+	 */
+	public long getLookupCount() {
+		return lookups;
+	}
+
+	/**
+	 * Get the fraction of calls of get() that found a value, or 0 if there
+	 * were no calls yet.
+	 * @return
+	 */
+	public double getHitRate() {
+		return (lookups == 0) ? 0 : ((double)hits)/lookups;
+	}
+
+	protected void growEntries() {
+		int capacity = values.length*2;
+		offsets = Arrays.copyOf(offsets, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		values = Arrays.copyOf(values, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+	}
+
+	protected void growTable() {
+		table = new int[table.length*2];
+		mask = table.length-1;
+		int pos;
+		for (int entry=0; entry<size; entry++) {
+			pos = hashes[entry] & mask;
+			while (table[pos] != 0) pos = (pos+1) & mask;
+			table[pos] = entry+1;
+		}
+	}
+
+	protected boolean equalsEntry(int entry, byte[] bytes) {
+		if (lengths[entry] != bytes.length) return false;
+		int offset = offsets[entry];
+		for (int i=0; i<bytes.length; i++) {
+			if (arena[offset+i] != bytes[i]) return false;
+		}
+		return true;
+	}
+
+	protected static byte[] encode(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) { // UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected static int hash(byte[] bytes) {
+		int h = 17;
+		for (int i=0; i<bytes.length; i++) {
+			h = h*31 + bytes[i];
+		}
+		h = h * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,175 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computation of the transitive closure of a binary relation in memory. The
+ * strongly connected components of the relation are computed first, so that
+ * reachability only needs to be computed for the (acyclic) graph of these
+ * components. This is done in reverse topological order, where the set of
+ * reachable components is stored in a bitset for each component.
+ *
+ * All operations are iterative, so arbitrarily long chains can be processed
+ * without running out of stack space.
+ * @author agent
+ */
+public class TransitiveClosure {
+	protected int nodecount = 0;
+	protected int[] nodevalues; // original value of each node
+	protected int[] edgestart;  // first position of the edges of each node in edgetargets
+	protected int[] edgetargets;
+	protected int[] component;  // component of each node
+	protected int componentcount = 0;
+
+	/**
+	 * Add all tuples of the transitive closure of the given binary table that
+	 * are not in the table yet, using the given step value. The table must not
+	 * be modified by other threads during this operation.
+	 * @param table
+	 * @param newstep
+	 * @return the number of new tuples
+	 */
+	public static int close(MemoryPredicateTable table, int newstep) {
+		TransitiveClosure closure = new TransitiveClosure(table);
+		return closure.addClosure(table, newstep);
+	}
+
+	protected TransitiveClosure(MemoryPredicateTable table) {
+		int size = table.size();
+		// number the nodes
+		IntIntMap nodes = new IntIntMap(table.getDistinctCount(0) + table.getDistinctCount(1));
+		nodevalues = new int[16];
+		int[] from = new int[size], to = new int[size];
+		for (int row=0; row<size; row++) {
+			from[row] = getNode(nodes, table.getValue(row, 0));
+			to[row] = getNode(nodes, table.getValue(row, 1));
+		}
+		// build adjacency lists
+		edgestart = new int[nodecount+1];
+		for (int row=0; row<size; row++) {
+			edgestart[from[row]+1]++;
+		}
+		for (int i=0; i<nodecount; i++) {
+			edgestart[i+1] += edgestart[i];
+		}
+		edgetargets = new int[size];
+		int[] fill = new int[nodecount];
+		for (int row=0; row<size; row++) {
+			edgetargets[edgestart[from[row]] + fill[from[row]]++] = to[row];
+		}
+		computeComponents();
+	}
+
+	protected int getNode(IntIntMap nodes, int value) {
+		int node = nodes.get(value);
+		if (node < 0) {
+			node = nodecount++;
+			nodes.put(value, node);
+			if (node == nodevalues.length) {
+				nodevalues = Arrays.copyOf(nodevalues, nodevalues.length*2);
+			}
+			nodevalues[node] = value;
+		}
+		return node;
+	}
+
+	/**
+	 * Compute the strongly connected components using an iterative version of
+	 * Tarjan's algorithm. Components are numbered in the order in which they
+	 * are found, so every component has a larger number than all components
+	 * that are reachable from it.
+	 */
+	protected void computeComponents() {
+		component = new int[nodecount];
+		int[] index = new int[nodecount], lowlink = new int[nodecount];
+		Arrays.fill(index, -1);
+		boolean[] onstack = new boolean[nodecount];
+		int[] stack = new int[nodecount];
+		int stacksize = 0;
+		int[] callnode = new int[nodecount], calledge = new int[nodecount];
+		int calldepth, node, succ, member, nextindex = 0;
+		for (int root=0; root<nodecount; root++) {
+			if (index[root] >= 0) continue;
+			calldepth = 0;
+			callnode[0] = root;
+			calledge[0] = edgestart[root];
+			index[root] = lowlink[root] = nextindex++;
+			stack[stacksize++] = root;
+			onstack[root] = true;
+			while (calldepth >= 0) {
+				node = callnode[calldepth];
+				if (calledge[calldepth] < edgestart[node+1]) {
+					succ = edgetargets[calledge[calldepth]++];
+					if (index[succ] < 0) { // descend
+						index[succ] = lowlink[succ] = nextindex++;
+						stack[stacksize++] = succ;
+						onstack[succ] = true;
+						calldepth++;
+						callnode[calldepth] = succ;
+						calledge[calldepth] = edgestart[succ];
+					} else if (onstack[succ] && (index[succ] < lowlink[node])) {
+						lowlink[node] = index[succ];
+					}
+				} else { // all successors done
+					if (lowlink[node] == index[node]) {
+						do {
+							member = stack[--stacksize];
+							onstack[member] = false;
+							component[member] = componentcount;
+						} while (member != node);
+						componentcount++;
+					}
+					calldepth--;
+					if ( (calldepth >= 0) && (lowlink[node] < lowlink[callnode[calldepth]]) ) {
+						lowlink[callnode[calldepth]] = lowlink[node];
+					}
+				}
+			}
+		}
+	}
+
+	protected int addClosure(MemoryPredicateTable table, int newstep) {
+		// list the members of each component
+		int[] memberstart = new int[componentcount+1];
+		for (int node=0; node<nodecount; node++) {
+			memberstart[component[node]+1]++;
+		}
+		for (int c=0; c<componentcount; c++) {
+			memberstart[c+1] += memberstart[c];
+		}
+		int[] members = new int[nodecount], fill = new int[componentcount];
+		for (int node=0; node<nodecount; node++) {
+			members[memberstart[component[node]] + fill[component[node]]++] = node;
+		}
+		// successors come first, so their reachability is known when needed
+		BitSet[] reachable = new BitSet[componentcount];
+		int[] tuple = new int[2];
+		int result = 0, node, target;
+		for (int c=0; c<componentcount; c++) {
+			reachable[c] = new BitSet();
+			for (int m=memberstart[c]; m<memberstart[c+1]; m++) {
+				node = members[m];
+				for (int e=edgestart[node]; e<edgestart[node+1]; e++) {
+					target = component[edgetargets[e]];
+					if (target == c) {
+						reachable[c].set(c); // component is cyclic
+					} else if (!reachable[c].get(target)) {
+						reachable[c].set(target);
+						reachable[c].or(reachable[target]);
+					}
+				}
+			}
+			for (int d=reachable[c].nextSetBit(0); d>=0; d=reachable[c].nextSetBit(d+1)) {
+				for (int m=memberstart[c]; m<memberstart[c+1]; m++) {
+					tuple[0] = nodevalues[members[m]];
+					for (int n=memberstart[d]; n<memberstart[d+1]; n++) {
+						tuple[1] = nodevalues[members[n]];
+						if (table.add(tuple, newstep)) result++;
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,110 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.Arrays;
+
+/**
+ * Set of tuples of a fixed arity that is used to recognize tuples that have
+ * been written before, so that they need not be sent to the database again.
+ * As in MemoryPredicateTable, tuples are kept in a flat int array, and an
+ * open addressing hash table over the rows is used to find them.
+ *
+ * The filter stores at most a given number of tuples. When this limit is
+ * reached, further tuples are not recorded anymore, and the filter cannot
+ * recognize them when they are added again. The filter is exact in that it
+ * never reports a tuple as known if it has not been added before, since
+ * dropping a new tuple would lose a fact.
+ * @author agent
+ */
+public class TupleFilter {
+	protected int arity;
+	protected int maxsize;
+	protected int size = 0;
+	protected int[] tuples; // arity values per row
+
+	// hash table for finding rows: stores row+1, 0 means empty
+	protected int[] rowhash;
+	protected int rowmask;
+
+	/**
+	 * Create a new filter.
+	 * @param arity the number of values in each tuple
+	 * @param maxsize the largest number of tuples to store
+	 */
+	public TupleFilter(int arity, int maxsize) {
+		this.arity = arity;
+		this.maxsize = maxsize;
+		int capacity = 16;
+		tuples = new int[capacity*arity];
+		rowhash = new int[capacity*2];
+		rowmask = rowhash.length-1;
+	}
+
+	/**
+	 * Record the given tuple.
+	 * @param tuple
+	 * @return false if the tuple has been added before
+	 */
+	public synchronized boolean add(int[] tuple) {
+		int pos = hashTuple(tuple) & rowmask;
+		while (rowhash[pos] != 0) {
+			if (equalsRow(rowhash[pos]-1, tuple)) return false;
+			pos = (pos+1) & rowmask;
+		}
+		if (size >= maxsize) return true; // full: do not record the tuple
+		if ((size+1)*arity > tuples.length) {
+			grow();
+			pos = hashTuple(tuple) & rowmask;
+			while (rowhash[pos] != 0) pos = (pos+1) & rowmask;
+		}
+		System.arraycopy(tuple, 0, tuples, size*arity, arity);
+		rowhash[pos] = size+1;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Get the number of tuples that have been recorded.
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	protected void grow() {
+		int capacity = rowhash.length; // double the number of rows
+		tuples = Arrays.copyOf(tuples, capacity*arity);
+		rowhash = new int[capacity*2];
+		rowmask = rowhash.length-1;
+		int pos;
+		for (int row=0; row<size; row++) {
+			pos = hashRow(row) & rowmask;
+			while (rowhash[pos] != 0) pos = (pos+1) & rowmask;
+			rowhash[pos] = row+1;
+		}
+	}
+
+	protected boolean equalsRow(int row, int[] tuple) {
+		int base = row*arity;
+		for (int i=0; i<arity; i++) {
+			if (tuples[base+i] != tuple[i]) return false;
+		}
+		return true;
+	}
+
+	protected int hashRow(int row) {
+		return hashTuple(tuples, row*arity);
+	}
+
+	protected int hashTuple(int[] tuple) {
+		return hashTuple(tuple, 0);
+	}
+
+	protected int hashTuple(int[] values, int offset) {
+		int h = 17;
+		for (int i=0; i<arity; i++) {
+			h = h*31 + values[offset+i];
+		}
+		h = h * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
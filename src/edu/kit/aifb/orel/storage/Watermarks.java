@@ -0,0 +1,200 @@
+package edu.kit.aifb.orel.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+
+/**
+ * Record of how far the rules have been applied to the stored facts, used
+ * by the storage drivers for incremental materialization. Three kinds of
+ * entries are kept:
+ * - the watermark of a rule, i.e. the step up to which the rule has been
+ *   applied to all facts;
+ * - for predicates without steps, the last load step in which new facts
+ *   were added, since such facts cannot be told apart from older ones;
+ * - the load steps that were given to asserted facts, so that these facts
+ *   are not mistaken for derived facts.
+ * Every entry is a name with a prefix for its kind and an integer value, so
+ * that drivers can easily keep them in a single table. The names of rule
+ * watermarks also contain the head predicate of the rule, so that they can
+ * be removed when the predicate is cleared even if the rule is not known.
+ * @author agent
+ */
+public class Watermarks {
+	static final protected String RULE = "r:";
+	static final protected String CHANGE = "c:";
+	static final protected String LOAD = "l:";
+
+	protected HashMap<String,Integer> entries;
+	protected int rulecount = 0;
+
+	public Watermarks() {
+		entries = new HashMap<String,Integer>();
+	}
+
+	/**
+	 * Get all entries, as a map from names to values.
+	 * @return
+	 */
+	public Map<String,Integer> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Set the entry of the given name, e.g. when reading stored entries.
+	 * @param name
+	 * @param value
+	 */
+	public void put(String name, int value) {
+		if ( name.startsWith(RULE) && !entries.containsKey(name) ) rulecount++;
+		entries.put(name, value);
+	}
+
+	protected void remove(String name) {
+		if ( name.startsWith(RULE) && entries.containsKey(name) ) rulecount--;
+		entries.remove(name);
+	}
+
+	/**
+	 * Return true if there is some rule with a watermark.
+	 * @return
+	 */
+	public boolean hasRuleWatermarks() {
+		return (rulecount > 0);
+	}
+
+	/**
+	 * Get the watermark of the given rule, or -1 if there is none or if some
+	 * predicate without steps in its body was changed after the watermark.
+	 * @param rd
+	 * @param predicates
+	 * @return
+	 */
+	public int getRuleWatermark(InferenceRuleDeclaration rd, Map<String,PredicateDeclaration> predicates) {
+		Integer step = entries.get(getRuleKey(rd));
+		if (step == null) return -1;
+		PredicateDeclaration pd;
+		Integer change;
+		for (int i=0; i<rd.getBody().size(); i++) {
+			pd = predicates.get(rd.getBody().get(i).getName());
+			if ( (pd != null) && !pd.isInferred() ) {
+				change = entries.get(CHANGE + pd.getName());
+				if ( (change != null) && (change > step) ) return -1;
+			}
+		}
+		return step;
+	}
+
+	/**
+	 * Set the watermark of the given rule.
+	 * @param rd
+	 * @param step
+	 * @return the name of the changed entry
+	 */
+	public String setRuleWatermark(InferenceRuleDeclaration rd, int step) {
+		put(getRuleKey(rd), step);
+		return getRuleKey(rd);
+	}
+
+	/**
+	 * Remove the watermarks of all rules with the given head predicate. This
+	 * is necessary when facts of this predicate are deleted, since the rules
+	 * may have to derive them again.
+	 * @param predicate
+	 * @return the names of the removed entries
+	 */
+	public ArrayList<String> removeRuleWatermarks(String predicate) {
+		ArrayList<String> result = new ArrayList<String>();
+		Iterator<String> nameit = entries.keySet().iterator();
+		String name, prefix = RULE + predicate + ":";
+		while (nameit.hasNext()) {
+			name = nameit.next();
+			if (name.startsWith(prefix)) result.add(name);
+		}
+		for (int i=0; i<result.size(); i++) {
+			remove(result.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the watermarks of all rules.
+	 * @return the names of the removed entries
+	 */
+	public ArrayList<String> removeRuleWatermarks() {
+		ArrayList<String> result = new ArrayList<String>();
+		Iterator<String> nameit = entries.keySet().iterator();
+		String name;
+		while (nameit.hasNext()) {
+			name = nameit.next();
+			if (name.startsWith(RULE)) result.add(name);
+		}
+		for (int i=0; i<result.size(); i++) {
+			remove(result.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Record that new facts were added to the given predicate without steps
+	 * while loading facts with the given step.
+	 * @param predicate
+	 * @param loadstep
+	 * @return the name of the changed entry, or null if nothing changed
+	 */
+	public String recordChange(String predicate, int loadstep) {
+		Integer change = entries.get(CHANGE + predicate);
+		if ( (change != null) && (change >= loadstep) ) return null;
+		put(CHANGE + predicate, loadstep);
+		return CHANGE + predicate;
+	}
+
+	/**
+	 * Get a new step for asserted facts that is above the given largest step
+	 * of the stored facts and above all watermarks, and record it as a load
+	 * step.
+	 * @param maxstep
+	 * @return the name of the new entry
+	 */
+	public String recordLoadStep(int maxstep) {
+		int loadstep = maxstep;
+		Iterator<String> nameit = entries.keySet().iterator();
+		String name;
+		while (nameit.hasNext()) {
+			name = nameit.next();
+			if ( name.startsWith(RULE) && (entries.get(name) > loadstep) ) loadstep = entries.get(name);
+		}
+		loadstep++;
+		put(LOAD + loadstep, loadstep);
+		return LOAD + loadstep;
+	}
+
+	/**
+	 * Get the steps that were given to asserted facts, not including 0.
+	 * @return
+	 */
+	public HashSet<Integer> getLoadSteps() {
+		HashSet<Integer> result = new HashSet<Integer>();
+		Iterator<String> nameit = entries.keySet().iterator();
+		String name;
+		while (nameit.hasNext()) {
+			name = nameit.next();
+			if (name.startsWith(LOAD)) result.add(entries.get(name));
+		}
+		return result;
+	}
+
+	public void clear() {
+		entries.clear();
+		rulecount = 0;
+	}
+
+	protected static String getRuleKey(InferenceRuleDeclaration rd) {
+		return RULE + rd.getHead().getName() + ":" + rd.getName();
+	}
+}
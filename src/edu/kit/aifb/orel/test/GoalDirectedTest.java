@@ -0,0 +1,137 @@
+package edu.kit.aifb.orel.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.client.SystemLogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+import edu.kit.aifb.orel.kbmanager.MagicSetRewriter;
+import edu.kit.aifb.orel.storage.MemoryStorageDriver;
+
+/**
+ * Randomized test of MagicSetRewriter. Random sets of facts are loaded
+ * without materializing them, and random goals are checked after the
+ * goal-directed materialization for these goals. The results must be the
+ * same as for checking the goals on the full materialization computed by
+ * ReferenceMaterializer, where the check rule may also be used. Several
+ * rounds of goals are checked on the same storage, and the magic predicates
+ * must be gone after each round.
+ *
+ * Run with the number of random fact sets as the optional argument.
+ * @author agent
+ */
+public class GoalDirectedTest extends MaterializationTest {
+	static final protected String[][] CHECKRULES = {
+		{"r-check", "?r(x,y) :- p(x,y), p(y,x), orel:distinct(x,y)"} };
+	static final protected String[] GOALPREDICATES = {"e","p","q","lab","r","t","wp","wl"};
+
+	public static void main(String[] args) throws Exception {
+		LogWriter.set(new SystemLogWriter(LogWriter.LEVEL_WARNING, LogWriter.LEVEL_WARNING));
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		ArrayList<InferenceRuleDeclaration> rules = new ArrayList<InferenceRuleDeclaration>();
+		for (int i=0; i<RULES.length; i++) {
+			rules.add(InferenceRuleDeclaration.buildFromString(RULES[i][0], RULES[i][1]));
+		}
+		ArrayList<InferenceRuleDeclaration> checkrules = new ArrayList<InferenceRuleDeclaration>();
+		for (int i=0; i<CHECKRULES.length; i++) {
+			checkrules.add(InferenceRuleDeclaration.buildFromString(CHECKRULES[i][0], CHECKRULES[i][1]));
+		}
+		int goalcount = 0;
+		for (long seed=0; seed<count; seed++) {
+			Random random = new Random(seed);
+			ArrayList<PredicateAtom> facts = makeFacts(random);
+			ReferenceMaterializer expected = materialize(rules, facts);
+			HashMap<String,HashSet<List<Integer>>> checked = getCheckedFacts(expected, checkrules);
+			MemoryStorageDriver storage = makeStorage(rules, 1, true);
+			for (int i=0; i<checkrules.size(); i++) {
+				storage.registerInferenceRule(checkrules.get(i));
+			}
+			load(storage, facts);
+			MagicSetRewriter rewriter = new MagicSetRewriter(rules, checkrules);
+			for (int round=0; round<3; round++) {
+				ArrayList<PredicateAtom> goals = makeGoals(random, expected);
+				rewriter.rewrite(goals);
+				rewriter.materialize(storage);
+				String test = "seed " + seed + ", round " + round, predicate;
+				for (int i=0; i<goals.size(); i++) {
+					boolean result = storage.checkPredicateAssertion(goals.get(i).getName(), getIDs(goals.get(i)));
+					boolean entailed = checked.get(goals.get(i).getName()).contains(ReferenceMaterializer.toList(getIDs(goals.get(i))));
+					if (result != entailed) {
+						report(test, "goal " + toString(goals.get(i).getName(), goals.get(i).getArguments()) + " is " + (entailed ? "" : "not ") + "entailed");
+					}
+				}
+				goalcount += goals.size();
+				Iterator<PredicateDeclaration> predit = rewriter.getMagicPredicates().iterator();
+				while (predit.hasNext()) {
+					predicate = predit.next().getName();
+					if (!storage.getFacts(predicate).isEmpty()) report(test, "magic predicate " + predicate + " was not dropped");
+				}
+			}
+		}
+		System.out.println("Tested " + goalcount + " goal(s) on " + count + " fact set(s): " + failures + " failure(s).");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Get the facts that are found by checking the given materialization,
+	 * where every check rule may be applied once.
+	 */
+	protected static HashMap<String,HashSet<List<Integer>>> getCheckedFacts(ReferenceMaterializer materialization, ArrayList<InferenceRuleDeclaration> checkrules) {
+		HashMap<String,HashSet<List<Integer>>> result = new HashMap<String,HashSet<List<Integer>>>();
+		for (int i=0; i<GOALPREDICATES.length; i++) {
+			result.put(GOALPREDICATES[i], new HashSet<List<Integer>>(materialization.getFacts(GOALPREDICATES[i])));
+		}
+		ArrayList<List<Integer>> found = new ArrayList<List<Integer>>();
+		for (int i=0; i<checkrules.size(); i++) {
+			found.clear();
+			materialization.match(checkrules.get(i), 0, new HashMap<String,Integer>(), found);
+			result.get(checkrules.get(i).getHead().getName()).addAll(found);
+		}
+		return result;
+	}
+
+	/**
+	 * Make some goals, about half of which are entailed facts if there are
+	 * enough of them.
+	 */
+	protected static ArrayList<PredicateAtom> makeGoals(Random random, ReferenceMaterializer expected) {
+		ArrayList<PredicateAtom> result = new ArrayList<PredicateAtom>();
+		int size = 1 + random.nextInt(6);
+		String predicate;
+		ArrayList<List<Integer>> entailed;
+		List<Integer> values;
+		ArrayList<PredicateTerm> arguments;
+		for (int i=0; i<size; i++) {
+			predicate = GOALPREDICATES[random.nextInt(GOALPREDICATES.length)];
+			entailed = new ArrayList<List<Integer>>(expected.getFacts(predicate));
+			arguments = new ArrayList<PredicateTerm>();
+			if ( random.nextBoolean() && !entailed.isEmpty() ) {
+				values = entailed.get(random.nextInt(entailed.size()));
+				for (int j=0; j<values.size(); j++) {
+					arguments.add(new PredicateTerm(String.valueOf(values.get(j)), false));
+				}
+			} else {
+				for (int j=0; j<getArity(predicate); j++) {
+					arguments.add(new PredicateTerm(String.valueOf(1 + random.nextInt(DOMAIN)), false));
+				}
+			}
+			result.add(new PredicateAtom(predicate, arguments));
+		}
+		return result;
+	}
+
+	protected static int getArity(String predicate) {
+		for (int i=0; i<PREDICATES.length; i++) {
+			if (PREDICATES[i][0].equals(predicate)) return Integer.parseInt(PREDICATES[i][1]);
+		}
+		return 0;
+	}
+}
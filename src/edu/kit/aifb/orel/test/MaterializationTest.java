@@ -0,0 +1,233 @@
+package edu.kit.aifb.orel.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import edu.kit.aifb.orel.client.LogWriter;
+import edu.kit.aifb.orel.client.SystemLogWriter;
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+import edu.kit.aifb.orel.kbmanager.DRedRewriter;
+import edu.kit.aifb.orel.kbmanager.RuleScheduler;
+import edu.kit.aifb.orel.storage.MemoryStorageDriver;
+
+/**
+ * Differential test of MemoryStorageDriver and RuleScheduler. Random sets of
+ * facts are materialized with a fixed set of rules, and the result is
+ * compared with the one of ReferenceMaterializer. This is done for loading
+ * all facts at once, for loading them in several incremental steps, and for
+ * removing some of them again by DRed. The rules include transitivity (which
+ * is computed as a closure), recursion through several predicates, constants,
+ * orel:distinct, a cyclic body for trie joins, a predicate that has both
+ * asserted and derived facts, and rules with a common context in their last
+ * argument that are saturated per context, recursively with the other rules.
+ *
+ * Run with the number of random fact sets as the optional argument. Every
+ * set is tested with nested and trie joins, and with one and two threads
+ * (and then also with three context threads).
+ * @author agent
+ */
+public class MaterializationTest {
+	static final protected int DOMAIN = 12;
+	static final protected String[][] PREDICATES = {
+		{"e","2","true"}, {"p","2","true"}, {"q","2","true"}, {"lab","2","true"},
+		{"r","2","true"}, {"t","3","true"}, {"wp","3","true"}, {"wl","3","true"}, {"mark","1","false"} };
+	static final protected String[][] RULES = {
+		{"p-e", "p(x,y) :- e(x,y)"},
+		{"p-trans", "p(x,z) :- p(x,y), p(y,z)"},
+		{"q-lab", "q(x,w) :- p(x,y), lab(y,w)"},
+		{"lab-q", "lab(x,w) :- q(x,w), mark(x)"},
+		{"q-self", "q(x,3) :- mark(x), p(x,x)"},
+		{"r-q", "r(x,y) :- q(x,w), q(y,w), orel:distinct(x,y)"},
+		{"t-r", "t(x,y,z) :- r(x,y), r(y,z), r(z,x)"},
+		{"e-t", "e(x,z) :- t(x,y,z), mark(y)"},
+		{"wp-mark", "wp(w,w,w) :- mark(w)"},
+		{"wp-e", "wp(x,z,w) :- wp(x,y,w), e(y,z)"},
+		{"wp-wp", "wp(x,z,w) :- wp(x,y,w), wp(y,z,w)"},
+		{"wl-lab", "wl(x,v,w) :- wp(w,x,w), lab(x,v)"},
+		{"wl-self", "wl(x,3,w) :- wp(x,x,w), orel:distinct(x,w)"},
+		{"wl-wl", "wl(x,v,w) :- wl(y,v,w), wp(y,x,w), mark(x)"},
+		{"e-wl", "e(w,x) :- wl(x,3,w)"} };
+
+	protected static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		LogWriter.set(new SystemLogWriter(LogWriter.LEVEL_WARNING, LogWriter.LEVEL_WARNING));
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		ArrayList<InferenceRuleDeclaration> rules = new ArrayList<InferenceRuleDeclaration>();
+		for (int i=0; i<RULES.length; i++) {
+			rules.add(InferenceRuleDeclaration.buildFromString(RULES[i][0], RULES[i][1]));
+		}
+		for (long seed=0; seed<count; seed++) {
+			ArrayList<PredicateAtom> facts = makeFacts(new Random(seed));
+			for (int threads=1; threads<=2; threads++) {
+				testFull(rules, facts, seed, threads, false);
+				testFull(rules, facts, seed, threads, true);
+				testIncremental(rules, facts, seed, threads, true);
+			}
+		}
+		System.out.println("Tested " + count + " fact set(s): " + failures + " failure(s).");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Materialize all facts at once, then remove some of them by DRed and
+	 * materialize the rederived facts.
+	 */
+	protected static void testFull(ArrayList<InferenceRuleDeclaration> rules, ArrayList<PredicateAtom> facts, long seed, int threads, boolean triejoins) throws Exception {
+		String test = "seed " + seed + ", " + threads + " thread(s), " + (triejoins ? "trie joins" : "nested joins");
+		MemoryStorageDriver storage = makeStorage(rules, threads, triejoins);
+		load(storage, facts);
+		makeScheduler(storage, rules).materialize();
+		compare(storage, materialize(rules, facts), "full materialization, " + test);
+
+		Random random = new Random(seed+1000);
+		ArrayList<PredicateAtom> removed = new ArrayList<PredicateAtom>(), remaining = new ArrayList<PredicateAtom>();
+		for (int i=0; i<facts.size(); i++) {
+			if (random.nextInt(4) == 0) {
+				removed.add(facts.get(i));
+			} else {
+				remaining.add(facts.get(i));
+			}
+		}
+		DRedRewriter rewriter = new DRedRewriter(rules);
+		rewriter.rewrite(removed);
+		makeScheduler(storage, rules).materialize(rewriter.remove(storage));
+		compare(storage, materialize(rules, remaining), "DRed removal of " + removed.size() + " fact(s), " + test);
+	}
+
+	/**
+	 * Load the facts in three chunks and materialize incrementally after
+	 * each of them. For odd seeds, the derived facts are cleared before the
+	 * last chunk, so that the last materialization starts from scratch.
+	 */
+	protected static void testIncremental(ArrayList<InferenceRuleDeclaration> rules, ArrayList<PredicateAtom> facts, long seed, int threads, boolean triejoins) throws Exception {
+		String test = "seed " + seed + ", " + threads + " thread(s)";
+		MemoryStorageDriver storage = makeStorage(rules, threads, triejoins);
+		int[] ends = { facts.size()*6/10, facts.size()*8/10, facts.size() };
+		RuleScheduler scheduler;
+		for (int i=0; i<ends.length; i++) {
+			if ( (i == ends.length-1) && (seed % 2 == 1) ) storage.clear(true);
+			load(storage, facts.subList((i == 0) ? 0 : ends[i-1], ends[i]));
+			scheduler = makeScheduler(storage, rules);
+			scheduler.setIncremental(true);
+			scheduler.materialize();
+			compare(storage, materialize(rules, facts.subList(0, ends[i])), "incremental materialization of chunk " + (i+1) + ", " + test);
+		}
+	}
+
+	protected static ArrayList<PredicateAtom> makeFacts(Random random) {
+		LinkedHashSet<String> keys = new LinkedHashSet<String>(); // facts must not be asserted twice for DRed
+		ArrayList<PredicateAtom> result = new ArrayList<PredicateAtom>();
+		int size = 15 + random.nextInt(30);
+		String[] predicates = {"e","e","e","lab","mark"};
+		String predicate;
+		int arity;
+		ArrayList<PredicateTerm> arguments;
+		for (int i=0; i<size; i++) {
+			predicate = predicates[random.nextInt(predicates.length)];
+			arity = predicate.equals("mark") ? 1 : 2;
+			arguments = new ArrayList<PredicateTerm>(arity);
+			for (int j=0; j<arity; j++) {
+				arguments.add(new PredicateTerm(String.valueOf(1 + random.nextInt(DOMAIN)), false));
+			}
+			if (keys.add(toString(predicate, arguments))) result.add(new PredicateAtom(predicate, arguments));
+		}
+		Collections.shuffle(result, random);
+		return result;
+	}
+
+	protected static MemoryStorageDriver makeStorage(ArrayList<InferenceRuleDeclaration> rules, int threads, boolean triejoins) {
+		MemoryStorageDriver storage = new MemoryStorageDriver(threads);
+		for (int i=0; i<PREDICATES.length; i++) {
+			storage.registerPredicate(new PredicateDeclaration(PREDICATES[i][0], Integer.parseInt(PREDICATES[i][1]), PREDICATES[i][2].equals("true"), false));
+		}
+		storage.initialize();
+		storage.setTrieJoins(triejoins);
+		if (threads > 1) storage.setContextThreads(threads+1);
+		for (int i=0; i<rules.size(); i++) {
+			storage.registerInferenceRule(rules.get(i));
+		}
+		return storage;
+	}
+
+	protected static RuleScheduler makeScheduler(MemoryStorageDriver storage, ArrayList<InferenceRuleDeclaration> rules) {
+		RuleScheduler scheduler = new RuleScheduler(storage);
+		for (int i=0; i<rules.size(); i++) {
+			scheduler.addRule(rules.get(i));
+		}
+		return scheduler;
+	}
+
+	protected static void load(MemoryStorageDriver storage, List<PredicateAtom> facts) {
+		storage.beginLoading();
+		for (int i=0; i<facts.size(); i++) {
+			storage.makePredicateAssertion(facts.get(i).getName(), getIDs(facts.get(i)));
+		}
+		storage.endLoading();
+	}
+
+	protected static ReferenceMaterializer materialize(ArrayList<InferenceRuleDeclaration> rules, List<PredicateAtom> facts) {
+		ReferenceMaterializer result = new ReferenceMaterializer(rules);
+		for (int i=0; i<facts.size(); i++) {
+			result.addFact(facts.get(i).getName(), getIDs(facts.get(i)));
+		}
+		result.materialize();
+		return result;
+	}
+
+	/**
+	 * Compare the facts of all predicates in the storage with the expected
+	 * ones, and report the differences.
+	 */
+	protected static void compare(MemoryStorageDriver storage, ReferenceMaterializer expected, String test) {
+		HashSet<List<Integer>> found, missing, extra;
+		ArrayList<int[]> tuples;
+		int[] tuple;
+		for (int i=0; i<PREDICATES.length; i++) {
+			found = new HashSet<List<Integer>>();
+			tuples = storage.getFacts(PREDICATES[i][0]);
+			for (int j=0; j<tuples.size(); j++) {
+				tuple = tuples.get(j);
+				if (!found.add(ReferenceMaterializer.toList(tuple))) {
+					report(test, "duplicate fact " + PREDICATES[i][0] + ReferenceMaterializer.toList(tuple));
+				}
+			}
+			missing = new HashSet<List<Integer>>(expected.getFacts(PREDICATES[i][0]));
+			missing.removeAll(found);
+			extra = new HashSet<List<Integer>>(found);
+			extra.removeAll(expected.getFacts(PREDICATES[i][0]));
+			if (!missing.isEmpty()) report(test, "missing facts " + PREDICATES[i][0] + missing);
+			if (!extra.isEmpty()) report(test, "unexpected facts " + PREDICATES[i][0] + extra);
+		}
+	}
+
+	protected static void report(String test, String message) {
+		failures++;
+		System.out.println("FAILED (" + test + "): " + message);
+	}
+
+	protected static int[] getIDs(PredicateAtom fact) {
+		int[] result = new int[fact.getArguments().size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = Integer.parseInt(fact.getArguments().get(i).getValue());
+		}
+		return result;
+	}
+
+	protected static String toString(String predicate, ArrayList<PredicateTerm> arguments) {
+		String result = predicate;
+		Iterator<PredicateTerm> argit = arguments.iterator();
+		while (argit.hasNext()) {
+			result = result + "," + argit.next().getValue();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,136 @@
+package edu.kit.aifb.orel.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.kit.aifb.orel.inferencing.InferenceRuleDeclaration;
+import edu.kit.aifb.orel.inferencing.PredicateAtom;
+import edu.kit.aifb.orel.inferencing.PredicateTerm;
+
+/**
+ * Simple naive evaluation of inference rules on sets of int tuples, used as
+ * the expected result when testing storage drivers. Every rule is applied to
+ * all facts until nothing new is found, without steps, indexes, or any other
+ * optimization, so that the result is easy to trust. Only the rules of mode
+ * MODE_INFER are used, and orel:distinct is the only built-in predicate.
+ * @author agent
+ */
+public class ReferenceMaterializer {
+	protected ArrayList<InferenceRuleDeclaration> rules;
+	protected HashMap<String,HashSet<List<Integer>>> facts;
+
+	public ReferenceMaterializer(Collection<InferenceRuleDeclaration> rules) {
+		this.rules = new ArrayList<InferenceRuleDeclaration>();
+		Iterator<InferenceRuleDeclaration> ruleit = rules.iterator();
+		InferenceRuleDeclaration rd;
+		while (ruleit.hasNext()) {
+			rd = ruleit.next();
+			if (rd.getMode() == InferenceRuleDeclaration.MODE_INFER) this.rules.add(rd);
+		}
+		facts = new HashMap<String,HashSet<List<Integer>>>();
+	}
+
+	public void addFact(String predicate, int... ids) {
+		getFacts(predicate).add(toList(ids));
+	}
+
+	public void removeFact(String predicate, int... ids) {
+		getFacts(predicate).remove(toList(ids));
+	}
+
+	/**
+	 * Get the set of facts of the given predicate. The result is not a copy.
+	 * @param predicate
+	 * @return
+	 */
+	public HashSet<List<Integer>> getFacts(String predicate) {
+		HashSet<List<Integer>> result = facts.get(predicate);
+		if (result == null) {
+			result = new HashSet<List<Integer>>();
+			facts.put(predicate, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Apply all rules until no new facts are found.
+	 */
+	public void materialize() {
+		boolean changed = true;
+		ArrayList<List<Integer>> found = new ArrayList<List<Integer>>();
+		InferenceRuleDeclaration rd;
+		while (changed) {
+			changed = false;
+			for (int i=0; i<rules.size(); i++) {
+				rd = rules.get(i);
+				found.clear();
+				match(rd, 0, new HashMap<String,Integer>(), found);
+				for (int j=0; j<found.size(); j++) {
+					changed = getFacts(rd.getHead().getName()).add(found.get(j)) || changed;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find all instances of the head of the rule for the bindings that extend
+	 * the given ones and match the body atoms from the given position on.
+	 */
+	protected void match(InferenceRuleDeclaration rd, int position, HashMap<String,Integer> bindings, ArrayList<List<Integer>> result) {
+		if (position == rd.getBody().size()) {
+			ArrayList<PredicateTerm> arguments = rd.getHead().getArguments();
+			ArrayList<Integer> tuple = new ArrayList<Integer>(arguments.size());
+			for (int i=0; i<arguments.size(); i++) {
+				tuple.add(getValue(arguments.get(i), bindings));
+			}
+			result.add(tuple);
+			return;
+		}
+		PredicateAtom atom = rd.getBody().get(position);
+		ArrayList<PredicateTerm> arguments = atom.getArguments();
+		if (atom.getName().equals("orel:distinct")) {
+			if (!getValue(arguments.get(0), bindings).equals(getValue(arguments.get(1), bindings))) {
+				match(rd, position+1, bindings, result);
+			}
+			return;
+		}
+		Iterator<List<Integer>> factit = new ArrayList<List<Integer>>(getFacts(atom.getName())).iterator();
+		List<Integer> fact;
+		HashMap<String,Integer> newbindings;
+		boolean matches;
+		PredicateTerm term;
+		Integer value;
+		while (factit.hasNext()) {
+			fact = factit.next();
+			newbindings = new HashMap<String,Integer>(bindings);
+			matches = true;
+			for (int i=0; (i<arguments.size()) && matches; i++) {
+				term = arguments.get(i);
+				value = term.isVariable() ? newbindings.get(term.getValue()) : Integer.valueOf(term.getValue());
+				if (value == null) {
+					newbindings.put(term.getValue(), fact.get(i));
+				} else {
+					matches = value.equals(fact.get(i));
+				}
+			}
+			if (matches) match(rd, position+1, newbindings, result);
+		}
+	}
+
+	protected static Integer getValue(PredicateTerm term, HashMap<String,Integer> bindings) {
+		return term.isVariable() ? bindings.get(term.getValue()) : Integer.valueOf(term.getValue());
+	}
+
+	protected static List<Integer> toList(int[] ids) {
+		Integer[] values = new Integer[ids.length];
+		for (int i=0; i<ids.length; i++) {
+			values[i] = ids[i];
+		}
+		return Arrays.asList(values);
+	}
+}